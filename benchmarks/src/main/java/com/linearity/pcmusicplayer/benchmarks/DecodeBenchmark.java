@@ -0,0 +1,86 @@
+package com.linearity.pcmusicplayer.benchmarks;
+
+import com.linearity.pcmusicplayer.PcmSource;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a song to PCM, as every load, prefetch and seek does.
+ * Set -Dbench.mp3=... to decode a real MP3; otherwise a generated silent one is used,
+ * which decodes faster than music. The WAV case is the cost of reading PCM as is.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DecodeBenchmark {
+
+    /** Seconds of audio in the generated songs */
+    private static final int SONG_SECONDS = 30;
+
+    @Param({"mp3", "wav"})
+    public String format;
+
+    private Path directory;
+    private File song;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("decode-bench");
+        String configured = System.getProperty("bench.mp3", "");
+        if (this.format.equals("mp3") && !configured.isEmpty()) {
+            this.song = new File(configured);
+        } else if (this.format.equals("mp3")) {
+            this.song = this.directory.resolve("silence.mp3").toFile();
+            SyntheticLibrary.writeSilentMp3(this.song, SONG_SECONDS);
+        } else {
+            this.song = this.directory.resolve("tone.wav").toFile();
+            SyntheticLibrary.writeWav(this.song, SONG_SECONDS);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SyntheticLibrary.delete(this.directory);
+    }
+
+    /**
+     * Decodes the whole song. Divide the song's length by the time per op for the
+     * decode speed as a multiple of real time.
+     *
+     * @return bytes of PCM decoded
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long decodeWholeSong() throws Exception {
+        long total = 0;
+        try (PcmSource source = PcmSource.open(this.song)) {
+            int read;
+            while ((read = source.read(this.buffer, 0, this.buffer.length)) > 0) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Opens the song and decodes its first 4 KB, what stands between pressing play and
+     * hearing something.
+     *
+     * @return bytes of PCM decoded
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int timeToFirstSample() throws Exception {
+        try (PcmSource source = PcmSource.open(this.song)) {
+            return source.read(this.buffer, 0, 4096);
+        }
+    }
+}
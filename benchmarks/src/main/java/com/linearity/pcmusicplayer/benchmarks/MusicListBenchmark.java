@@ -0,0 +1,49 @@
+package com.linearity.pcmusicplayer.benchmarks;
+
+import com.linearity.pcmusicplayer.MusicListReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing a .musiclist whose lines name existing songs. Songs are taken by extension and
+ * not stat'ed here. The reader's cache is cleared before each read, so every op parses.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MusicListBenchmark {
+
+    @Param({"1200", "12000"})
+    public int lines;
+
+    private Path directory;
+    private Path musicList;
+    private final MusicListReader reader = new MusicListReader();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("musiclist-bench");
+        List<File> songs = SyntheticLibrary.createTree(this.directory.resolve("music"), Math.max(1, this.lines / 120), 10, 12);
+        this.musicList = this.directory.resolve("all.musiclist");
+        SyntheticLibrary.writeMusicList(this.musicList.toFile(), songs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SyntheticLibrary.delete(this.directory);
+    }
+
+    @Benchmark
+    public List<MusicListReader.Entry> parse() throws Exception {
+        this.reader.clearCache();
+        return this.reader.read(this.musicList);
+    }
+}
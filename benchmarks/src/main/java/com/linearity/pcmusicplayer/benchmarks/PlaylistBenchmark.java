@@ -0,0 +1,102 @@
+package com.linearity.pcmusicplayer.benchmarks;
+
+import com.linearity.pcmusicplayer.PathTable;
+import com.linearity.pcmusicplayer.Playlist;
+import com.linearity.pcmusicplayer.ShuffleOrder;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building and shuffling the playlist. Songs are only paths; nothing is read from disk.
+ * The legacy case repeats what the player did before the playlist held int ids: a File
+ * array shuffled with SecureRandom and copied into a List.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PlaylistBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private List<File> songs;
+    private PathTable paths;
+    private int[] trackIds;
+    private long seed;
+    private final Random legacyRandom = new SecureRandom();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.songs = SyntheticLibrary.songPaths(this.size);
+        this.paths = new PathTable();
+        this.trackIds = new int[this.size];
+        for (int i = 0; i < this.size; i++) {
+            this.trackIds[i] = this.paths.add(this.songs.get(i));
+        }
+    }
+
+    /**
+     * Adds every song to a new path table and makes a playlist of them.
+     */
+    @Benchmark
+    public Playlist build() {
+        PathTable table = new PathTable();
+        int[] ids = new int[this.songs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = table.add(this.songs.get(i));
+        }
+        Playlist playlist = new Playlist(table);
+        playlist.setTracks(ids, null);
+        return playlist;
+    }
+
+    /**
+     * Shuffles the playlist and draws the first song, all a launch waits for.
+     */
+    @Benchmark
+    public int shuffleFirstSong() {
+        Playlist playlist = new Playlist(this.paths);
+        playlist.setTracks(this.trackIds, new ShuffleOrder(this.seed++, ShuffleOrder.Spread.NONE));
+        return playlist.trackAt(0);
+    }
+
+    /**
+     * Shuffles the playlist and draws every song.
+     */
+    @Benchmark
+    public int[] shuffleEverySong() {
+        Playlist playlist = new Playlist(this.paths);
+        playlist.setTracks(this.trackIds, new ShuffleOrder(this.seed++, ShuffleOrder.Spread.NONE));
+        return playlist.drawnTracks();
+    }
+
+    /**
+     * Shuffles the playlist keeping songs by one artist apart, and draws every song.
+     */
+    @Benchmark
+    public int[] shuffleEverySongSpreadArtists() {
+        Playlist playlist = new Playlist(this.paths);
+        playlist.setTracks(this.trackIds, new ShuffleOrder(this.seed++, ShuffleOrder.Spread.ARTIST));
+        return playlist.drawnTracks();
+    }
+
+    @Benchmark
+    public List<File> legacyShuffleArray() {
+        File[] files = this.songs.toArray(new File[0]);
+        for (int i = 0; i < files.length; i++) {
+            int other = i + this.legacyRandom.nextInt(files.length - i);
+            File swap = files[other];
+            files[other] = files[i];
+            files[i] = swap;
+        }
+        return List.of(files);
+    }
+}
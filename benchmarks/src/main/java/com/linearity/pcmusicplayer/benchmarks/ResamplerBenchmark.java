@@ -0,0 +1,104 @@
+package com.linearity.pcmusicplayer.benchmarks;
+
+import com.linearity.pcmusicplayer.PcmSource;
+import com.linearity.pcmusicplayer.Resampler;
+import org.openjdk.jmh.annotations.*;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sample rate conversion: one second of stereo audio through the resampler alone, and a
+ * 44.1 kHz WAV read through PcmSource converted to the output rate, as the engine plays it.
+ * Divide a second by the score for how much faster than real time it runs.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ResamplerBenchmark {
+
+    private static final int BLOCK_FRAMES = 4096;
+
+    @Param({"FAST", "GOOD", "BEST"})
+    public Resampler.Quality quality;
+
+    /** input rate:output rate */
+    @Param({"44100:48000", "48000:44100", "22050:48000"})
+    public String rates;
+
+    private int inputRate;
+    private int outputRate;
+    private float[] second;
+    private final float[] output = new float[BLOCK_FRAMES * 2];
+    private Path directory;
+    private File wav;
+    private final byte[] buffer = new byte[BLOCK_FRAMES * 4];
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        String[] pair = this.rates.split(":");
+        this.inputRate = Integer.parseInt(pair[0]);
+        this.outputRate = Integer.parseInt(pair[1]);
+        this.second = new float[this.inputRate * 2];
+        for (int i = 0; i < this.inputRate; i++) {
+            float sample = (float) (0.25 * Math.sin(2 * Math.PI * 440 * i / this.inputRate));
+            this.second[i * 2] = sample;
+            this.second[i * 2 + 1] = sample;
+        }
+        this.directory = Files.createTempDirectory("resampler-bench");
+        this.wav = this.directory.resolve("song.wav").toFile();
+        SyntheticLibrary.writeWav(this.wav, 10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        SyntheticLibrary.delete(this.directory);
+    }
+
+    @Benchmark
+    public long resampleOneSecond() {
+        Resampler resampler = new Resampler(this.inputRate, this.outputRate, 2, this.quality);
+        long frames = 0;
+        float[] block = new float[BLOCK_FRAMES * 2];
+        for (int offset = 0; offset < this.inputRate; offset += BLOCK_FRAMES) {
+            int length = Math.min(BLOCK_FRAMES, this.inputRate - offset);
+            System.arraycopy(this.second, offset * 2, block, 0, length * 2);
+            resampler.write(block, length);
+            frames += drain(resampler);
+        }
+        resampler.finish();
+        return frames + drain(resampler);
+    }
+
+    /**
+     * Ten seconds of a 44.1 kHz WAV; the input rate of the parameter is not used. At an
+     * output rate of 44.1 kHz nothing is converted, which gives the cost of decoding alone.
+     */
+    @Benchmark
+    public long decodeAndConvertTenSeconds() throws Exception {
+        long bytes = 0;
+        try (PcmSource source = PcmSource.open(this.wav)) {
+            source.convertTo(new AudioFormat(this.outputRate, 16, 2, true, false), this.quality);
+            int n;
+            while ((n = source.read(this.buffer, 0, this.buffer.length)) >= 0) {
+                bytes += n;
+            }
+        }
+        return bytes;
+    }
+
+    private long drain(Resampler resampler) {
+        long frames = 0;
+        int n;
+        while ((n = resampler.read(this.output, BLOCK_FRAMES)) > 0) {
+            frames += n;
+        }
+        return frames;
+    }
+}
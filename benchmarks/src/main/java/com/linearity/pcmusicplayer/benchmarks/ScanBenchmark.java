@@ -0,0 +1,59 @@
+package com.linearity.pcmusicplayer.benchmarks;
+
+import com.linearity.pcmusicplayer.LibraryIndex;
+import com.linearity.pcmusicplayer.LibraryScanner;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scanning a directory tree for songs, with every directory listed and with an index that
+ * knows the tree already, as on a second launch. The tree has 12 songs per album and 10
+ * albums per artist; divide songs by the time per op for the scan rate.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ScanBenchmark {
+
+    @Param({"1200", "12000"})
+    public int songs;
+
+    private Path directory;
+    private LibraryScanner scanner;
+    private LibraryScanner indexedScanner;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.directory = Files.createTempDirectory("scan-bench");
+        SyntheticLibrary.createTree(this.directory, Math.max(1, this.songs / 120), 10, 12);
+        this.scanner = new LibraryScanner();
+        LibraryIndex index = new LibraryIndex(this.directory.resolve("library.index").toFile());
+        this.indexedScanner = new LibraryScanner(index);
+        this.indexedScanner.scanAll(List.of(this.directory.toFile()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this.scanner.shutdown();
+        this.indexedScanner.shutdown();
+        SyntheticLibrary.delete(this.directory);
+    }
+
+    @Benchmark
+    public List<File> listEveryDirectory() {
+        return this.scanner.scanAll(List.of(this.directory.toFile()));
+    }
+
+    @Benchmark
+    public List<File> unchangedTreeWithIndex() {
+        return this.indexedScanner.scanAll(List.of(this.directory.toFile()));
+    }
+}
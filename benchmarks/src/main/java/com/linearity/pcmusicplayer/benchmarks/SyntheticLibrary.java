@@ -0,0 +1,151 @@
+package com.linearity.pcmusicplayer.benchmarks;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test data for the benchmarks: song trees laid out as artist/album/song, musiclists and
+ * audio files, all under a temporary directory.
+ */
+final class SyntheticLibrary {
+
+    private static final String[] WORDS = {"love", "night", "blue", "moon", "dance", "river",
+            "fire", "heart", "road", "sky", "rain", "gold", "midnight", "summer", "highway", "dreams"};
+
+    private SyntheticLibrary() {}
+
+    /**
+     * Song paths that look like a real library, without creating any files.
+     *
+     * @param count number of songs
+     * @return absolute paths, twelve songs per album and ten albums per artist
+     */
+    static List<File> songPaths(int count) {
+        List<File> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int album = i / 12;
+            int artist = album / 10;
+            songs.add(new File("/music/Artist " + artist + "/Album " + album + "/"
+                    + (i % 12 + 1) + " " + WORDS[i % WORDS.length] + " " + WORDS[(i / 7) % WORDS.length] + ".mp3"));
+        }
+        return songs;
+    }
+
+    /**
+     * Creates a tree of empty song files.
+     *
+     * @param root directory to create it in
+     * @param artists artist directories
+     * @param albumsPerArtist album directories in each artist directory
+     * @param songsPerAlbum songs in each album directory
+     * @return the songs created
+     */
+    static List<File> createTree(Path root, int artists, int albumsPerArtist, int songsPerAlbum) throws IOException {
+        List<File> songs = new ArrayList<>(artists * albumsPerArtist * songsPerAlbum);
+        for (int artist = 0; artist < artists; artist++) {
+            for (int album = 0; album < albumsPerArtist; album++) {
+                Path directory = Files.createDirectories(root.resolve("Artist " + artist).resolve("Album " + album));
+                for (int song = 0; song < songsPerAlbum; song++) {
+                    Path file = directory.resolve((song + 1) + " " + WORDS[song % WORDS.length] + ".mp3");
+                    Files.createFile(file);
+                    songs.add(file.toFile());
+                }
+                Files.writeString(directory.resolve("cover.txt"), "not a song");
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Writes a musiclist naming songs, one path per line.
+     *
+     * @param file musiclist to write
+     * @param songs songs to list
+     */
+    static void writeMusicList(File file, List<File> songs) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (File song : songs) {
+                out.write(song.getPath());
+                out.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Writes an MP3 of silence: 128 kbit/s, 44.1 kHz stereo MPEG-1 Layer III frames with
+     * empty side information. Without an encoder at hand this is the only MP3 that can be
+     * made here; it exercises frame parsing and synthesis but not Huffman decoding, so
+     * real songs decode slower.
+     *
+     * @param file file to write
+     * @param seconds length of the song
+     */
+    static void writeSilentMp3(File file, int seconds) throws IOException {
+        int frameLength = 144 * 128000 / 44100;
+        int frames = seconds * 44100 / 1152;
+        byte[] frame = new byte[frameLength];
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB;
+        frame[2] = (byte) 0x90;
+        frame[3] = (byte) 0x00;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (int i = 0; i < frames; i++) {
+                out.write(frame);
+            }
+        }
+    }
+
+    /**
+     * Writes a 16-bit 44.1 kHz stereo WAV of a sine tone.
+     *
+     * @param file file to write
+     * @param seconds length of the song
+     */
+    static void writeWav(File file, int seconds) throws IOException {
+        AudioFormat format = new AudioFormat(44100, 16, 2, true, false);
+        int frames = seconds * 44100;
+        byte[] pcm = new byte[frames * 4];
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (Math.sin(2 * Math.PI * 440 * i / 44100.0) * 8000);
+            for (int channel = 0; channel < 2; channel++) {
+                pcm[i * 4 + channel * 2] = (byte) sample;
+                pcm[i * 4 + channel * 2 + 1] = (byte) (sample >> 8);
+            }
+        }
+        try (AudioInputStream in = new AudioInputStream(new ByteArrayInputStream(pcm), format, frames)) {
+            AudioSystem.write(in, AudioFileFormat.Type.WAVE, file);
+        }
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param root directory to delete
+     */
+    static void delete(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,170 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Mixes the end of one song into the start of the next with an equal-power fade.
+ * The incoming song is read by the caller as usual; the mixer reads the same amount of
+ * the outgoing song into its own buffer and adds it in. Both buffers are allocated in
+ * prepare(), so mixing allocates nothing on the audio thread.
+ *
+ * The fade gains follow a quarter sine and cosine, stepped per frame by a rotation so no
+ * trigonometry runs per sample. Not thread-safe; used under the engine's lock.
+ */
+public class CrossfadeMixer {
+
+    @Nullable
+    private PcmSource outgoing;
+    /** Makes up for the ReplayGain difference, since the chain applies the incoming song's gain */
+    private float outgoingScale;
+    private int fadeFrames;
+    private int fadePosition;
+    /** Gain of the incoming song at the current frame, sin of the fade angle */
+    private double fadeIn;
+    /** Gain of the outgoing song, cos of the fade angle */
+    private double fadeOut;
+    private double stepCos;
+    private double stepSin;
+    private int channels;
+    private byte[] mixBuffer = new byte[0];
+
+    /**
+     * Gets the mixer ready for a format. Any fade in progress is cut.
+     *
+     * @param format 16-bit signed little-endian PCM, as the output line uses
+     * @param maxFrames largest buffer that will be mixed
+     */
+    public void prepare(AudioFormat format, int maxFrames) {
+        finish();
+        this.channels = format.getChannels();
+        int needed = maxFrames * format.getFrameSize();
+        if (this.mixBuffer.length < needed) {
+            this.mixBuffer = new byte[needed];
+        }
+    }
+
+    /**
+     * @return true while a fade is in progress
+     */
+    public boolean isActive() {
+        return this.outgoing != null || this.fadePosition < this.fadeFrames;
+    }
+
+    /**
+     * Starts fading from one song to the next. The mixer takes over the outgoing source
+     * and closes it when the fade is over.
+     *
+     * @param outgoing song that fades out, positioned at the first frame to mix
+     * @param fadeFrames length of the fade
+     * @param outgoingScale linear gain applied to the outgoing song on top of the fade
+     */
+    public void begin(PcmSource outgoing, int fadeFrames, float outgoingScale) {
+        finish();
+        this.outgoing = outgoing;
+        this.outgoingScale = outgoingScale;
+        this.fadeFrames = Math.max(1, fadeFrames);
+        this.fadePosition = 0;
+        this.fadeIn = 0;
+        this.fadeOut = 1;
+        double step = Math.PI / 2 / this.fadeFrames;
+        this.stepCos = Math.cos(step);
+        this.stepSin = Math.sin(step);
+    }
+
+    /**
+     * Mixes the outgoing song into a buffer of the incoming one, in place.
+     * When the incoming song has already ended, the buffer is filled with the outgoing
+     * song alone, up to capacity bytes.
+     *
+     * @param pcm the incoming song's audio
+     * @param length bytes of incoming audio in pcm, or -1 if the incoming song has ended
+     * @param capacity size of pcm
+     * @return bytes of mixed audio in pcm, or -1 if both songs have ended
+     */
+    public int mix(byte[] pcm, int length, int capacity) {
+        int frameSize = this.channels * 2;
+        int incoming = Math.max(0, length);
+        int wanted = Math.min(incoming > 0 ? incoming : capacity, this.mixBuffer.length);
+        int outgoingBytes = readOutgoing(Math.min(wanted, (this.fadeFrames - this.fadePosition) * frameSize));
+        if (incoming < outgoingBytes) {
+            // the incoming song ended first: play the outgoing one out over silence
+            Arrays.fill(pcm, incoming, outgoingBytes, (byte) 0);
+        }
+        int total = Math.max(incoming, outgoingBytes);
+        if (total == 0) {
+            finish();
+            return -1;
+        }
+        int frames = total / frameSize;
+        byte[] mix = this.mixBuffer;
+        int outgoingSamples = outgoingBytes / 2;
+        int b = 0;
+        int sample = 0;
+        for (int frame = 0; frame < frames && this.fadePosition < this.fadeFrames; frame++, this.fadePosition++) {
+            float in = (float) this.fadeIn;
+            float out = (float) this.fadeOut * this.outgoingScale;
+            for (int channel = 0; channel < this.channels; channel++, b += 2, sample++) {
+                float value = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8)) * in;
+                if (sample < outgoingSamples) {
+                    value += (short) ((mix[b] & 0xFF) | (mix[b + 1] << 8)) * out;
+                }
+                int rounded = Math.round(value);
+                if (rounded > Short.MAX_VALUE) {
+                    rounded = Short.MAX_VALUE;
+                } else if (rounded < Short.MIN_VALUE) {
+                    rounded = Short.MIN_VALUE;
+                }
+                pcm[b] = (byte) rounded;
+                pcm[b + 1] = (byte) (rounded >> 8);
+            }
+            double sin = this.fadeIn * this.stepCos + this.fadeOut * this.stepSin;
+            this.fadeOut = this.fadeOut * this.stepCos - this.fadeIn * this.stepSin;
+            this.fadeIn = sin;
+        }
+        if (this.fadePosition >= this.fadeFrames) {
+            finish();
+        }
+        return total;
+    }
+
+    /**
+     * Ends the fade now, closing the outgoing song.
+     */
+    public void finish() {
+        closeOutgoing();
+        this.fadeFrames = 0;
+        this.fadePosition = 0;
+    }
+
+    private int readOutgoing(int length) {
+        if (this.outgoing == null || length <= 0) {
+            return 0;
+        }
+        try {
+            int n = this.outgoing.read(this.mixBuffer, 0, length);
+            if (n > 0) {
+                return n;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // the outgoing song ended before the fade did; the incoming one keeps fading in
+        closeOutgoing();
+        return 0;
+    }
+
+    private void closeOutgoing() {
+        if (this.outgoing != null) {
+            try {
+                this.outgoing.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.outgoing = null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.linearity.pcmusicplayer;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often each track's decoder has been opened.
+ * Every PcmSource.open is recorded, so a song change that decodes a file twice shows up
+ * as a count of two for that track.
+ */
+public class DecodeCounter {
+
+    private final Map<TrackKey, LongAdder> counts = new ConcurrentHashMap<>();
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * Records one decode of the track.
+     *
+     * @param key track that was decoded
+     */
+    public void record(TrackKey key) {
+        this.counts.computeIfAbsent(key, k -> new LongAdder()).increment();
+        this.total.increment();
+    }
+
+    /**
+     * @param songFile file to look up
+     * @return times the file, in its current version, has been decoded
+     */
+    public long count(File songFile) {
+        LongAdder count = this.counts.get(TrackKey.of(songFile));
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return decodes across all tracks
+     */
+    public long total() {
+        return this.total.sum();
+    }
+
+    /**
+     * Forgets every recorded decode.
+     */
+    public void reset() {
+        this.counts.clear();
+        this.total.reset();
+    }
+}
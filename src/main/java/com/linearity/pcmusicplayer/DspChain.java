@@ -0,0 +1,157 @@
+package com.linearity.pcmusicplayer;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Processing applied to decoded audio on its way to the output line:
+ * ReplayGain, any added stages, the software volume and finally the true-peak limiter.
+ * Each buffer is converted from 16-bit PCM to floats once, run through every stage in
+ * place and converted back, using a work buffer allocated when the format changes.
+ */
+public class DspChain {
+
+    private final ReplayGainStage replayGain = new ReplayGainStage();
+    private final GainStage gain = new GainStage();
+    private final TruePeakLimiter limiter = new TruePeakLimiter();
+    /** Stages added with addStage, run between ReplayGain and the volume */
+    private final List<DspStage> added = new ArrayList<>();
+    private volatile DspStage[] stages;
+    /** Computed ReplayGain for songs whose tags lack it */
+    private volatile Function<File, ReplayGain> replayGainLookup = songFile -> ReplayGain.NONE;
+
+    /** Guarded by this */
+    private float[] samples = new float[0];
+    private float sampleRate;
+    private int channels;
+
+    public DspChain() {
+        rebuild();
+    }
+
+    public ReplayGainStage getReplayGain() {
+        return this.replayGain;
+    }
+
+    public GainStage getGain() {
+        return this.gain;
+    }
+
+    public TruePeakLimiter getLimiter() {
+        return this.limiter;
+    }
+
+    /**
+     * Adds a stage after ReplayGain and before the volume and limiter.
+     *
+     * @param stage stage to run on every buffer from now on
+     */
+    public synchronized void addStage(DspStage stage) {
+        if (this.channels > 0) {
+            stage.prepare(this.sampleRate, this.channels);
+        }
+        this.added.add(stage);
+        rebuild();
+    }
+
+    /**
+     * @param stage stage to stop running
+     */
+    public synchronized void removeStage(DspStage stage) {
+        if (this.added.remove(stage)) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Gets the chain ready for a format, and forgets the history of every stage.
+     *
+     * @param format 16-bit signed little-endian PCM
+     * @param maxFrames largest buffer that will be processed
+     */
+    public synchronized void prepare(AudioFormat format, int maxFrames) {
+        this.sampleRate = format.getSampleRate();
+        this.channels = format.getChannels();
+        int needed = maxFrames * this.channels;
+        if (this.samples.length < needed) {
+            this.samples = new float[needed];
+        }
+        for (DspStage stage : this.stages) {
+            stage.prepare(this.sampleRate, this.channels);
+        }
+    }
+
+    /**
+     * Sets where ReplayGain values come from for songs without ReplayGain tags,
+     * e.g. loudness analysis results. The lookup runs on the audio thread, so it must not
+     * touch the disk.
+     *
+     * @param lookup gives a song's computed values, or ReplayGain.NONE
+     */
+    public void setReplayGainLookup(Function<File, ReplayGain> lookup) {
+        this.replayGainLookup = lookup;
+    }
+
+    /**
+     * Tells every stage a new song starts with the next buffer.
+     *
+     * @param songFile the new song
+     * @param tags the new song's ReplayGain tags
+     */
+    public void trackChanged(File songFile, ReplayGain tags) {
+        ReplayGain replayGain = tags.hasTrackGain() && tags.hasAlbumGain()
+                ? tags
+                : tags.orElse(this.replayGainLookup.apply(songFile));
+        for (DspStage stage : this.stages) {
+            stage.trackChanged(replayGain);
+        }
+    }
+
+    /**
+     * Processes a buffer of 16-bit signed little-endian PCM in place.
+     *
+     * @param pcm audio in the format given to prepare
+     * @param length bytes to process, a whole number of frames
+     */
+    public synchronized void process(byte[] pcm, int length) {
+        int channels = this.channels;
+        if (channels == 0) {
+            return;
+        }
+        int count = length / 2;
+        int frames = count / channels;
+        if (this.samples.length < count) {
+            // only if a caller passes more than prepare() was told about
+            this.samples = new float[count];
+        }
+        float[] samples = this.samples;
+        for (int i = 0, b = 0; i < count; i++, b += 2) {
+            samples[i] = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8)) * (1f / 32768f);
+        }
+        for (DspStage stage : this.stages) {
+            stage.process(samples, frames, channels);
+        }
+        for (int i = 0, b = 0; i < count; i++, b += 2) {
+            int value = Math.round(samples[i] * 32768f);
+            if (value > Short.MAX_VALUE) {
+                value = Short.MAX_VALUE;
+            } else if (value < Short.MIN_VALUE) {
+                value = Short.MIN_VALUE;
+            }
+            pcm[b] = (byte) value;
+            pcm[b + 1] = (byte) (value >> 8);
+        }
+    }
+
+    private void rebuild() {
+        List<DspStage> all = new ArrayList<>(this.added.size() + 3);
+        all.add(this.replayGain);
+        all.addAll(this.added);
+        all.add(this.gain);
+        all.add(this.limiter);
+        this.stages = all.toArray(new DspStage[0]);
+    }
+}
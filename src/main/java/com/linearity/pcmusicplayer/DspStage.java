@@ -0,0 +1,73 @@
+package com.linearity.pcmusicplayer;
+
+/**
+ * One step of the {@link DspChain} between the decoder and the output line.
+ * Stages work in place on interleaved float samples, full scale being ±1.0, and run on
+ * the pump thread, so process() must not allocate, block or take locks others hold for long.
+ * Settings changed from other threads should go through volatile fields.
+ */
+public interface DspStage {
+
+    /**
+     * Called before the first buffer and whenever the output format changes, and when
+     * playback jumps so that history such as delay lines should be forgotten.
+     * Allocate buffers here.
+     *
+     * @param sampleRate frames per second
+     * @param channels samples per frame
+     */
+    void prepare(float sampleRate, int channels);
+
+    /**
+     * Processes a buffer in place.
+     *
+     * @param samples interleaved samples
+     * @param frames number of frames in the buffer
+     * @param channels samples per frame
+     */
+    void process(float[] samples, int frames, int channels);
+
+    /**
+     * Called on the pump thread when a new song starts, exactly at its first buffer.
+     *
+     * @param replayGain the new song's ReplayGain values
+     */
+    default void trackChanged(ReplayGain replayGain) {}
+
+    /**
+     * Multiplies a buffer by a gain that moves linearly from one value to another across
+     * it, so gain changes don't click.
+     *
+     * @param from gain at the first frame
+     * @param to gain reached at the last frame
+     */
+    static void applyGain(float[] samples, int frames, int channels, float from, float to) {
+        if (from == to) {
+            if (from == 1f) {
+                return;
+            }
+            int count = frames * channels;
+            for (int i = 0; i < count; i++) {
+                samples[i] *= from;
+            }
+            return;
+        }
+        float step = (to - from) / Math.max(1, frames);
+        float gain = from;
+        int i = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            gain += step;
+            for (int channel = 0; channel < channels; channel++) {
+                samples[i++] *= gain;
+            }
+        }
+    }
+
+    /**
+     * @param decibels gain in dB
+     * @return linear gain factor
+     */
+    static float dbToLinear(float decibels) {
+        return (float) Math.pow(10, decibels / 20.0);
+    }
+}
@@ -0,0 +1,59 @@
+package com.linearity.pcmusicplayer;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how responsive the FX thread is by queueing a no-op on it at a fixed rate and
+ * timing how long it waits to run. Every delay goes into {@link PlayerMetrics#FX_DELAYS};
+ * the long ones are also recorded as {@link PlayerEvents.FxStall}.
+ * Only one probe is in flight at a time, so a stalled thread isn't flooded.
+ */
+public class FxStallMonitor {
+
+    private static final long PROBE_MILLIS = 100;
+    /** Delays from here on are stalls: a few frames at 60 Hz */
+    private static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Executor fxExecutor;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fx-stall-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+    /** When the probe in flight was queued, 0 if none is */
+    private final AtomicLong probeQueuedAt = new AtomicLong();
+    private final Runnable probe = this::probeRan;
+
+    /**
+     * @param fxExecutor runs tasks on the FX thread, normally Platform::runLater
+     */
+    public FxStallMonitor(Executor fxExecutor) {
+        this.fxExecutor = fxExecutor;
+    }
+
+    public void start() {
+        this.ticker.scheduleAtFixedRate(() -> {
+            if (this.probeQueuedAt.compareAndSet(0, System.nanoTime())) {
+                this.fxExecutor.execute(this.probe);
+            }
+        }, PROBE_MILLIS, PROBE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        this.ticker.shutdownNow();
+    }
+
+    private void probeRan() {
+        long delay = System.nanoTime() - this.probeQueuedAt.getAndSet(0);
+        PlayerMetrics.FX_DELAYS.record(delay);
+        if (delay >= STALL_NANOS && PlayerEvents.FX_STALL.isEnabled()) {
+            PlayerEvents.FxStall event = new PlayerEvents.FxStall();
+            event.delay = delay;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.linearity.pcmusicplayer;
+
+/**
+ * Software volume. Works the same on every mixer, whether or not its lines offer a
+ * MASTER_GAIN control. A new gain is reached smoothly over one buffer.
+ */
+public class GainStage implements DspStage {
+
+    /** At or below this the output is silent */
+    public static final float MIN_GAIN_DB = -80f;
+    public static final float MAX_GAIN_DB = 6f;
+
+    private volatile float gainDb = 0f;
+    private volatile float targetGain = 1f;
+    /** Gain reached at the end of the last buffer; pump thread only */
+    private float gain = 1f;
+
+    /**
+     * @param decibels new gain, clamped to MIN_GAIN_DB..MAX_GAIN_DB
+     */
+    public void setGainDb(float decibels) {
+        decibels = Math.max(MIN_GAIN_DB, Math.min(MAX_GAIN_DB, decibels));
+        this.gainDb = decibels;
+        this.targetGain = decibels <= MIN_GAIN_DB ? 0f : DspStage.dbToLinear(decibels);
+    }
+
+    public float getGainDb() {
+        return this.gainDb;
+    }
+
+    @Override
+    public void prepare(float sampleRate, int channels) {
+        this.gain = this.targetGain;
+    }
+
+    @Override
+    public void process(float[] samples, int frames, int channels) {
+        float target = this.targetGain;
+        DspStage.applyGain(samples, frames, channels, this.gain, target);
+        this.gain = target;
+    }
+}
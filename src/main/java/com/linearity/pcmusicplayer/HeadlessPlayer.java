@@ -0,0 +1,198 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays songs through MusicPlayerModel without a display, and optionally without a sound
+ * card, then prints what the run cost: audio played against wall time, decodes, and the
+ * gaps between songs. The run stops when the song after the last one starts, so the totals
+ * include a moment of it. Meant for servers, CI and endurance runs of the whole pipeline from
+ * decoder through DSP chain to output.
+ *
+ * Usage: HeadlessPlayer [options] song|directory|musiclist...
+ *   --sink=line        play on the sound card (default)
+ *   --sink=null        throw the audio away as fast as it is decoded
+ *   --sink=realtime    throw the audio away at playback speed
+ *   --sink=wav:FILE    record the audio to a WAV file as fast as it is decoded
+ *   --songs=N          stop after N songs, default once through the playlist
+ *   --seconds=S        stop after S seconds of wall time
+ *   --shuffle          shuffle the playlist first
+ *   --crossfade=MS     overlap consecutive songs
+ *   --rate=HZ          play every song at this rate, 16-bit stereo; 0 for each song's own
+ *                      format, the default except on the sound card
+ *   --resampler=Q      resampling quality: fast, good (default) or best
+ *   --metrics=FILE     write {@link PlayerMetrics} to a file at the end
+ *   --pcm-cache        keep the decoded audio of recent songs, as the GUI does
+ */
+public class HeadlessPlayer {
+
+    private final List<OutputSink> sinks = new ArrayList<>();
+
+    /**
+     * @param args options and songs, see the class description
+     */
+    public static void main(String[] args) throws Exception {
+        System.exit(new HeadlessPlayer().run(args));
+    }
+
+    /**
+     * @return exit status
+     */
+    private int run(String[] args) throws Exception {
+        OutputSink.Factory sinkFactory = LineOutputSink::open;
+        int songLimit = -1;
+        long secondsLimit = -1;
+        boolean shuffle = false;
+        int crossfadeMillis = 0;
+        AudioFormat outputFormat = null;
+        boolean rateGiven = false;
+        boolean lineSink = true;
+        Resampler.Quality resamplerQuality = Resampler.Quality.GOOD;
+        File metricsFile = null;
+        boolean pcmCache = false;
+        List<File> songs = new ArrayList<>();
+        List<File> roots = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.equals("--sink=line")) {
+                sinkFactory = LineOutputSink::open;
+                lineSink = true;
+            } else if (arg.equals("--sink=null")) {
+                sinkFactory = NullOutputSink.maxSpeed();
+                lineSink = false;
+            } else if (arg.equals("--sink=realtime")) {
+                sinkFactory = NullOutputSink.realTime();
+                lineSink = false;
+            } else if (arg.startsWith("--sink=wav:")) {
+                sinkFactory = WavFileOutputSink.to(new File(arg.substring("--sink=wav:".length())));
+                lineSink = false;
+            } else if (arg.startsWith("--songs=")) {
+                songLimit = Integer.parseInt(arg.substring("--songs=".length()));
+            } else if (arg.startsWith("--seconds=")) {
+                secondsLimit = Long.parseLong(arg.substring("--seconds=".length()));
+            } else if (arg.equals("--shuffle")) {
+                shuffle = true;
+            } else if (arg.startsWith("--crossfade=")) {
+                crossfadeMillis = Integer.parseInt(arg.substring("--crossfade=".length()));
+            } else if (arg.startsWith("--rate=")) {
+                int rate = Integer.parseInt(arg.substring("--rate=".length()));
+                outputFormat = rate > 0 ? new AudioFormat(rate, 16, 2, true, false) : null;
+                rateGiven = true;
+            } else if (arg.startsWith("--resampler=")) {
+                resamplerQuality = Resampler.Quality.valueOf(arg.substring("--resampler=".length()).toUpperCase(Locale.ROOT));
+            } else if (arg.equals("--pcm-cache")) {
+                pcmCache = true;
+            } else if (arg.startsWith("--metrics=")) {
+                metricsFile = new File(arg.substring("--metrics=".length()));
+            } else if (arg.startsWith("--")) {
+                System.out.println("Unknown option " + arg);
+                return 2;
+            } else {
+                File file = new File(arg);
+                if (file.isDirectory() || file.getName().endsWith(".musiclist")) {
+                    roots.add(file);
+                } else {
+                    songs.add(file);
+                }
+            }
+        }
+        if (!roots.isEmpty()) {
+            LibraryScanner scanner = new LibraryScanner();
+            songs.addAll(scanner.scanAll(roots));
+            scanner.shutdown();
+        }
+        if (songs.isEmpty()) {
+            System.out.println("Usage: HeadlessPlayer [--sink=line|null|realtime|wav:FILE] [--songs=N] [--seconds=S]"
+                    + " [--shuffle] [--crossfade=MS] [--rate=HZ] [--resampler=fast|good|best] [--metrics=FILE] [--pcm-cache]"
+                    + " song|directory|musiclist...");
+            return 2;
+        }
+
+        PcmCache cache = pcmCache ? PcmCache.createTemporary(PcmCache.DEFAULT_MAX_BYTES, PcmCache.DEFAULT_MAX_TRACKS) : null;
+        PcmSource.setCache(cache);
+        OutputSink.Factory baseFactory = sinkFactory;
+        StreamingPlaybackEngine engine = new StreamingPlaybackEngine(null,
+                (format, bufferBytes, stateListener) -> track(baseFactory.open(format, bufferBytes, stateListener)));
+        engine.setOutputFormat(rateGiven || !lineSink ? outputFormat : LineOutputSink.preferredFormat());
+        engine.setResamplerQuality(resamplerQuality);
+        MusicPlayerModel model = new MusicPlayerModel(engine);
+        model.setCrossfadeMillis(crossfadeMillis);
+        model.setPlaylist(songs, shuffle ? ShuffleOrder.newOrder(ShuffleOrder.Spread.NONE) : null);
+        int toPlay = songLimit > 0 ? songLimit : model.getPlaylist().size();
+        CountDownLatch finished = new CountDownLatch(1);
+        model.addPlaybackListener(new PlaybackListener() {
+            private int started;
+
+            @Override
+            public void onSongChanged(@Nullable SongBean song) {
+                if (song == null) {
+                    return;
+                }
+                if (++this.started > toPlay) {
+                    finished.countDown();
+                    return;
+                }
+                System.out.println("[" + this.started + "/" + toPlay + "] " + song.songFile().getPath());
+            }
+        });
+
+        long startedAt = System.nanoTime();
+        model.loadSpecificAsync(0).join();
+        model.start();
+        if (secondsLimit > 0) {
+            finished.await(secondsLimit, TimeUnit.SECONDS);
+        } else {
+            finished.await();
+        }
+        long wallNanos = System.nanoTime() - startedAt;
+        model.stop();
+        double audioSeconds = playedSeconds();
+        model.shutdown();
+        if (cache != null) {
+            System.out.println("pcm cache: " + cache.size() + " songs, " + (cache.getTotalBytes() >> 20) + " MB, "
+                    + PlayerMetrics.PCM_CACHE_HITS.sum() + " hits");
+            cache.close();
+        }
+
+        double wallSeconds = wallNanos / 1e9;
+        Runtime runtime = Runtime.getRuntime();
+        System.out.printf("audio: %.1f s in %.1f s wall time (%.1fx real time)%n",
+                audioSeconds, wallSeconds, wallSeconds > 0 ? audioSeconds / wallSeconds : 0);
+        System.out.println("decodes: " + model.getTotalDecodeCount());
+        System.out.println("transitions: " + model.getTransitionLatencies());
+        System.out.printf("heap: %d MB used of %d MB%n",
+                (runtime.totalMemory() - runtime.freeMemory()) >> 20, runtime.totalMemory() >> 20);
+        System.out.println("underruns: " + PlayerMetrics.UNDERRUNS.sum());
+        if (metricsFile != null) {
+            PlayerMetrics.dump(metricsFile);
+        }
+        return 0;
+    }
+
+    /**
+     * Remembers every sink the engine opens, so the audio played can be totalled at the end.
+     */
+    private synchronized OutputSink track(OutputSink sink) {
+        this.sinks.add(sink);
+        return sink;
+    }
+
+    /**
+     * @return seconds of audio that reached the sinks
+     */
+    private synchronized double playedSeconds() {
+        double seconds = 0;
+        for (OutputSink sink : this.sinks) {
+            AudioFormat format = sink.getFormat();
+            seconds += sink.getLongFramePosition() / (double) format.getFrameRate();
+        }
+        return seconds;
+    }
+}
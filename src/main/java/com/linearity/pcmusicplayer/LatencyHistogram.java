@@ -0,0 +1,108 @@
+package com.linearity.pcmusicplayer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in power-of-two microsecond buckets: bucket 0 holds everything under
+ * 1 µs, bucket i holds [2^(i-1), 2^i) µs, and the last bucket everything longer.
+ * Recording is lock-free, so it can be called from the audio threads.
+ */
+public class LatencyHistogram {
+
+    /** The last bucket starts at 2^(BUCKETS-2) µs, a little over a minute */
+    private static final int BUCKETS = 28;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param nanos duration to count, negative values count as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        long micros = nanos / 1000;
+        int bucket = micros == 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        this.counts.incrementAndGet(bucket);
+        this.totalNanos.addAndGet(nanos);
+        this.maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return number of durations recorded
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += this.counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return mean duration in microseconds, 0 if nothing was recorded
+     */
+    public double meanMicros() {
+        long count = count();
+        return count == 0 ? 0 : this.totalNanos.get() / 1000.0 / count;
+    }
+
+    /**
+     * @return longest duration recorded, in microseconds
+     */
+    public double maxMicros() {
+        return this.maxNanos.get() / 1000.0;
+    }
+
+    /**
+     * Estimates a percentile as the upper edge of the bucket it falls in.
+     *
+     * @param percentile between 0 and 100
+     * @return upper bound of the percentile in microseconds, 0 if nothing was recorded
+     */
+    public long percentileMicros(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= Math.max(1, rank)) {
+                return i == 0 ? 1 : 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    /**
+     * @param bucket bucket number, 0 to {@link #bucketCount()} - 1
+     * @return durations counted in that bucket
+     */
+    public long bucket(int bucket) {
+        return this.counts.get(bucket);
+    }
+
+    public int bucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.totalNanos.set(0);
+        this.maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.0fus p50<=%dus p99<=%dus max=%.0fus",
+                count(), meanMicros(), percentileMicros(50), percentileMicros(99), maxMicros());
+    }
+}
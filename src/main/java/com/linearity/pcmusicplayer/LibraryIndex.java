@@ -0,0 +1,420 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk record of what earlier scans found.
+ * For every scanned directory it keeps the directory's mtime, the songs directly in it and
+ * the entries worth descending into, so a directory whose mtime hasn't changed can be
+ * reused without listing it again. For every song it keeps size, mtime, format,
+ * duration and loudness (once known), or that its analysis failed.
+ *
+ * The file is a DataOutputStream dump: a header, the track table, then the directory table
+ * referring to tracks by their position in the track table.
+ */
+public class LibraryIndex {
+
+    private static final int MAGIC = 0x50434C49; // "PCLI"
+    private static final int VERSION = 3;
+    /** Loudness ReplayGain 2.0 brings songs to, in LUFS */
+    private static final float REFERENCE_LUFS = -18f;
+    /** Directories changed this recently may still change within the same mtime tick */
+    private static final long MTIME_SETTLE_MILLIS = 2000;
+
+    public enum Format { MP3, WAV, OTHER }
+
+    /**
+     * A song as last seen on disk.
+     *
+     * @param durationMicros duration in microseconds, or -1 if not known yet
+     * @param loudnessLufs integrated loudness, or NaN if not analyzed yet
+     * @param truePeakDb true peak in dBTP, or NaN if not analyzed yet
+     * @param analysisFailed whether this version of the file (this size and mtime) couldn't be decoded
+     *                       for analysis; a changed file gets a new record and is analyzed again
+     */
+    public record Track(String path, long size, long lastModified, Format format, long durationMicros,
+                        float loudnessLufs, float truePeakDb, boolean analysisFailed) {
+
+        public Track(String path, long size, long lastModified, Format format, long durationMicros) {
+            this(path, size, lastModified, format, durationMicros, Float.NaN, Float.NaN, false);
+        }
+
+        public File file() {
+            return new File(this.path);
+        }
+
+        public boolean hasLoudness() {
+            return !Float.isNaN(this.truePeakDb);
+        }
+
+        public Track withDuration(long micros) {
+            return new Track(this.path, this.size, this.lastModified, this.format, micros,
+                    this.loudnessLufs, this.truePeakDb, this.analysisFailed);
+        }
+
+        public Track withLoudness(float lufs, float peakDb) {
+            return new Track(this.path, this.size, this.lastModified, this.format, this.durationMicros,
+                    lufs, peakDb, false);
+        }
+
+        public Track withAnalysisFailed() {
+            return new Track(this.path, this.size, this.lastModified, this.format, this.durationMicros,
+                    Float.NaN, Float.NaN, true);
+        }
+    }
+
+    /**
+     * A directory as last listed.
+     *
+     * @param trackPaths songs directly inside the directory
+     * @param children subdirectories and musiclists inside the directory
+     */
+    public record Directory(long lastModified, List<String> trackPaths, List<String> children) {}
+
+    private final File file;
+    private final Map<String, Track> tracks = new ConcurrentHashMap<>();
+    private final Map<String, Directory> directories = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    /**
+     * @param file where the index is saved
+     */
+    public LibraryIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Index in the player's data directory.
+     *
+     * @return loaded index, empty if there was none
+     */
+    public static LibraryIndex loadDefault() {
+        return load(PlayerFiles.dataFile("library.index"));
+    }
+
+    /**
+     * Reads an index file. A missing, outdated or damaged file gives an empty index.
+     *
+     * @param file index file
+     * @return loaded index
+     */
+    public static LibraryIndex load(File file) {
+        PlayerEvents.IndexOperation timing = new PlayerEvents.IndexOperation("library index load", file);
+        LibraryIndex index = read(file);
+        timing.finish(PlayerMetrics.LIBRARY_INDEX_LOADS);
+        return index;
+    }
+
+    private static LibraryIndex read(File file) {
+        LibraryIndex index = new LibraryIndex(file);
+        if (!file.isFile()) {
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                return index;
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                return index;
+            }
+            int trackCount = in.readInt();
+            String[] trackPaths = new String[trackCount];
+            Format[] formats = Format.values();
+            for (int i = 0; i < trackCount; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                Format format = formats[in.readByte()];
+                long duration = in.readLong();
+                // version 1 had no loudness; those songs get analyzed again
+                float loudness = version >= 2 ? in.readFloat() : Float.NaN;
+                float peak = version >= 2 ? in.readFloat() : Float.NaN;
+                // versions before 3 didn't record failures; those songs get tried once more
+                boolean failed = version >= 3 && in.readBoolean();
+                trackPaths[i] = path;
+                index.tracks.put(path, new Track(path, size, lastModified, format, duration, loudness, peak, failed));
+            }
+            int directoryCount = in.readInt();
+            for (int i = 0; i < directoryCount; i++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                int songCount = in.readInt();
+                List<String> songs = new ArrayList<>(songCount);
+                for (int j = 0; j < songCount; j++) {
+                    songs.add(trackPaths[in.readInt()]);
+                }
+                int childCount = in.readInt();
+                List<String> children = new ArrayList<>(childCount);
+                for (int j = 0; j < childCount; j++) {
+                    children.add(in.readUTF());
+                }
+                index.directories.put(path, new Directory(lastModified, songs, children));
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to read library index, rescanning everything.");
+            e.printStackTrace();
+            index.tracks.clear();
+            index.directories.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Writes the index if anything changed since it was loaded or last saved.
+     * The file is replaced atomically, so a crash mid-save keeps the old index.
+     */
+    public synchronized void save() throws IOException {
+        if (!this.dirty) {
+            return;
+        }
+        PlayerEvents.IndexOperation timing = new PlayerEvents.IndexOperation("library index save", this.file);
+        write();
+        timing.finish(PlayerMetrics.LIBRARY_INDEX_SAVES);
+    }
+
+    private void write() throws IOException {
+        this.dirty = false;
+        File temp = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            List<Track> trackList = new ArrayList<>(this.tracks.values());
+            Map<String, Integer> trackNumbers = new HashMap<>(trackList.size() * 2);
+            out.writeInt(trackList.size());
+            for (Track track : trackList) {
+                trackNumbers.put(track.path(), trackNumbers.size());
+                out.writeUTF(track.path());
+                out.writeLong(track.size());
+                out.writeLong(track.lastModified());
+                out.writeByte(track.format().ordinal());
+                out.writeLong(track.durationMicros());
+                out.writeFloat(track.loudnessLufs());
+                out.writeFloat(track.truePeakDb());
+                out.writeBoolean(track.analysisFailed());
+            }
+            List<Map.Entry<String, Directory>> directoryList = new ArrayList<>(this.directories.entrySet());
+            out.writeInt(directoryList.size());
+            for (Map.Entry<String, Directory> entry : directoryList) {
+                Directory directory = entry.getValue();
+                List<Integer> songs = new ArrayList<>(directory.trackPaths().size());
+                for (String path : directory.trackPaths()) {
+                    Integer number = trackNumbers.get(path);
+                    if (number != null) {
+                        songs.add(number);
+                    }
+                }
+                out.writeUTF(entry.getKey());
+                out.writeLong(directory.lastModified());
+                out.writeInt(songs.size());
+                for (int number : songs) {
+                    out.writeInt(number);
+                }
+                out.writeInt(directory.children().size());
+                for (String child : directory.children()) {
+                    out.writeUTF(child);
+                }
+            }
+        } catch (IOException e) {
+            this.dirty = true;
+            throw e;
+        }
+        Files.move(temp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Gets a directory's listing from an earlier scan, if it is still valid.
+     *
+     * @param key real path of the directory
+     * @param lastModified the directory's current mtime
+     * @return cached listing, or null if the directory must be listed again
+     */
+    @Nullable
+    public Directory getDirectory(String key, long lastModified) {
+        Directory directory = this.directories.get(key);
+        if (directory == null || directory.lastModified() != lastModified) {
+            return null;
+        }
+        return directory;
+    }
+
+    /**
+     * Records a fresh listing of a directory and its songs. Songs the directory's previous
+     * listing had and this one doesn't are gone, and are dropped from the index.
+     * Directories modified in the last couple of seconds are not cached, since a change
+     * within the same mtime tick would go unnoticed.
+     *
+     * @param key real path of the directory
+     * @param lastModified the directory's mtime when it was listed
+     * @param songs songs directly inside the directory
+     * @param children subdirectories and musiclists inside the directory
+     */
+    public void putDirectory(String key, long lastModified, List<Track> songs, List<String> children) {
+        List<String> paths = new ArrayList<>(songs.size());
+        for (Track song : songs) {
+            remember(song);
+            paths.add(song.path());
+        }
+        Directory previous = this.directories.get(key);
+        if (previous != null) {
+            Set<String> listed = new HashSet<>(paths);
+            for (String path : previous.trackPaths()) {
+                if (!listed.contains(path)) {
+                    this.tracks.remove(path);
+                }
+            }
+        }
+        if (System.currentTimeMillis() - lastModified >= MTIME_SETTLE_MILLIS) {
+            this.directories.put(key, new Directory(lastModified, List.copyOf(paths), List.copyOf(children)));
+        }
+        this.dirty = true;
+    }
+
+    /**
+     * Records a song found outside a directory listing, e.g. one listed in a musiclist.
+     *
+     * @param song the song as just seen on disk
+     */
+    public void putTrack(Track song) {
+        if (remember(song)) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Drops a song that no longer exists.
+     *
+     * @param songFile song
+     */
+    public void removeTrack(File songFile) {
+        if (this.tracks.remove(songFile.getPath()) != null) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Stores a song, keeping what is known about it if the file is unchanged.
+     *
+     * @return true if the index didn't know this version of the song yet
+     */
+    private boolean remember(Track song) {
+        Track known = this.tracks.get(song.path());
+        if (known != null && known.size() == song.size() && known.lastModified() == song.lastModified()) {
+            // keep what we learned about the unchanged file, e.g. its duration
+            return false;
+        }
+        this.tracks.put(song.path(), song);
+        return true;
+    }
+
+    /**
+     * @param songFile song to look up
+     * @return what the index knows about the song, or null
+     */
+    @Nullable
+    public Track getTrack(File songFile) {
+        return this.tracks.get(songFile.getPath());
+    }
+
+    /**
+     * Stores a song's duration once it is known, e.g. after opening it for playback.
+     *
+     * @param songFile song
+     * @param durationMicros duration in microseconds
+     */
+    public void updateDuration(File songFile, long durationMicros) {
+        Track track = this.tracks.get(songFile.getPath());
+        if (track != null && track.durationMicros() != durationMicros) {
+            this.tracks.put(track.path(), track.withDuration(durationMicros));
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Stores the result of analyzing a song's loudness.
+     *
+     * @param songFile song
+     * @param lufs integrated loudness, NaN if the song is silent
+     * @param peakDb true peak in dBTP
+     */
+    public void updateLoudness(File songFile, float lufs, float peakDb) {
+        Track track = this.tracks.get(songFile.getPath());
+        if (track != null) {
+            this.tracks.put(track.path(), track.withLoudness(lufs, peakDb));
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Records that a song couldn't be decoded for analysis, so it isn't queued again until
+     * the file changes.
+     *
+     * @param songFile song
+     */
+    public void markAnalysisFailed(File songFile) {
+        Track track = this.tracks.get(songFile.getPath());
+        if (track != null && !track.analysisFailed()) {
+            this.tracks.put(track.path(), track.withAnalysisFailed());
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * @return songs whose loudness hasn't been analyzed yet, leaving out ones whose current
+     *         version failed to decode
+     */
+    public List<Track> tracksMissingLoudness() {
+        List<Track> missing = new ArrayList<>();
+        for (Track track : this.tracks.values()) {
+            if (!track.hasLoudness() && !track.analysisFailed()) {
+                missing.add(track);
+            }
+        }
+        missing.sort(Comparator.comparing(Track::path));
+        return missing;
+    }
+
+    /**
+     * Track gain worked out from the analyzed loudness, for songs without ReplayGain tags.
+     *
+     * @param songFile song
+     * @return computed track gain and peak, or ReplayGain.NONE if the song wasn't analyzed
+     */
+    public ReplayGain replayGainFor(File songFile) {
+        Track track = this.tracks.get(songFile.getPath());
+        if (track == null || !track.hasLoudness() || Float.isNaN(track.loudnessLufs())) {
+            return ReplayGain.NONE;
+        }
+        return new ReplayGain(REFERENCE_LUFS - track.loudnessLufs(),
+                (float) Math.pow(10, track.truePeakDb() / 20), Float.NaN, Float.NaN);
+    }
+
+    /**
+     * @return number of songs in the index
+     */
+    public int trackCount() {
+        return this.tracks.size();
+    }
+
+    /**
+     * Works out a song's format from its name.
+     *
+     * @param lowerCaseName file name in lower case
+     * @return detected format
+     */
+    public static Format formatOf(String lowerCaseName) {
+        if (lowerCaseName.endsWith(".mp3")) {
+            return Format.MP3;
+        }
+        if (lowerCaseName.endsWith(".wav")) {
+            return Format.WAV;
+        }
+        return Format.OTHER;
+    }
+}
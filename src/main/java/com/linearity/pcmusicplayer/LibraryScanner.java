@@ -0,0 +1,508 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds songs under directories and .musiclist files.
+ * Each directory is listed by its own fork-join task, so slow (network) file systems are
+ * read in parallel. Songs are handed to the listener in batches while the scan runs;
+ * the first song is handed over as soon as it is found.
+ *
+ * Semantics match the old recursive executeFile: .mp3 and .wav files are songs,
+ * .musiclist files list one path per line (songs, directories or other musiclists),
+ * and every directory or musiclist is visited at most once per scan.
+ * With a LibraryIndex, directories whose mtime hasn't changed since the last scan are not
+ * listed again.
+ */
+public class LibraryScanner {
+
+    /** Songs collected before a batch is handed to the listener */
+    private static final int BATCH_SIZE = 512;
+    /** Songs from a musiclist stat'ed by one fork-join task */
+    private static final int SONG_SLICE_SIZE = 32;
+    /** Longest a found song waits in a batch, and the interval between progress reports */
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    /**
+     * Receives scan results. Methods are called from scanning threads, one at a time.
+     */
+    public interface Listener {
+        /**
+         * @param tracks songs found since the last call
+         */
+        void onTracksFound(List<File> tracks);
+
+        /**
+         * @param directoriesScanned directories and musiclists read so far
+         * @param tracksFound songs found so far
+         */
+        default void onProgress(long directoriesScanned, long tracksFound) {}
+
+        /**
+         * Called when a musiclist includes itself, directly or through other musiclists
+         * and directories. The cycle is not followed.
+         *
+         * @param chain musiclists from the outermost to the one included again
+         */
+        default void onIncludeCycle(List<File> chain) {
+            System.out.println("Musiclist includes itself: " + chain);
+        }
+
+        /**
+         * @param cancelled true if the scan was cancelled before it finished
+         */
+        default void onFinished(boolean cancelled) {}
+    }
+
+    /**
+     * Musiclists currently being expanded, innermost first.
+     */
+    private record IncludeChain(String key, @Nullable IncludeChain parent) {
+
+        boolean contains(String path) {
+            for (IncludeChain link = this; link != null; link = link.parent) {
+                if (link.key.equals(path)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<File> toFiles(String last) {
+            List<File> files = new ArrayList<>();
+            files.add(new File(last));
+            for (IncludeChain link = this; link != null; link = link.parent) {
+                files.add(0, new File(link.key));
+            }
+            return files;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    @Nullable
+    private final LibraryIndex index;
+    /** Shared by all scans, so parsed musiclists are reused across scans */
+    private final MusicListReader musicListReader = new MusicListReader();
+
+    /**
+     * Constructor for a scanner with its own pool, sized for I/O-bound work, that lists
+     * every directory.
+     */
+    public LibraryScanner() {
+        this(null);
+    }
+
+    /**
+     * Constructor for a scanner with its own pool, sized for I/O-bound work.
+     *
+     * @param index index consulted for unchanged directories and updated with fresh listings, or null
+     */
+    public LibraryScanner(@Nullable LibraryIndex index) {
+        this(new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2)), index);
+    }
+
+    /**
+     * @param pool pool the directory tasks run on
+     * @param index index consulted for unchanged directories and updated with fresh listings, or null
+     */
+    public LibraryScanner(ForkJoinPool pool, @Nullable LibraryIndex index) {
+        this.pool = pool;
+        this.index = index;
+    }
+
+    /**
+     * Starts scanning in the background.
+     *
+     * @param roots directories, songs or .musiclist files to scan
+     * @param listener receives songs, progress and completion
+     * @return handle to wait for or cancel the scan
+     */
+    public Scan scan(List<File> roots, Listener listener) {
+        Scan scan = new Scan(listener, this.index, this.musicListReader);
+        this.pool.execute(() -> scan.run(roots));
+        return scan;
+    }
+
+    /**
+     * Scans and waits for the result, collecting every song found.
+     *
+     * @param roots directories, songs or .musiclist files to scan
+     * @return songs in no particular order
+     */
+    public List<File> scanAll(List<File> roots) {
+        List<File> songs = Collections.synchronizedList(new ArrayList<>());
+        scan(roots, songs::addAll).await();
+        return new ArrayList<>(songs);
+    }
+
+    /**
+     * Stops the pool's threads. Running scans are cancelled.
+     */
+    public void shutdown() {
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * Checks the song extensions executeFile accepted.
+     *
+     * @param lowerCaseName file name in lower case
+     * @return true for .mp3 and .wav
+     */
+    static boolean isSong(String lowerCaseName) {
+        return lowerCaseName.endsWith(".mp3") || lowerCaseName.endsWith(".wav");
+    }
+
+    /**
+     * One running scan.
+     */
+    public static class Scan {
+
+        private final Listener listener;
+        @Nullable
+        private final LibraryIndex index;
+        private final MusicListReader musicListReader;
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+        /** Directories and musiclists already visited, to break cycles */
+        private final Set<String> visited = ConcurrentHashMap.newKeySet();
+        private final AtomicLong directoriesScanned = new AtomicLong();
+        private final AtomicLong tracksFound = new AtomicLong();
+        private final long startedAt = System.nanoTime();
+        private final PlayerEvents.LibraryScan event = new PlayerEvents.LibraryScan();
+
+        /** Guarded by itself */
+        private final List<File> pending = new ArrayList<>();
+        private long lastFlush = System.nanoTime();
+        private long lastProgress = System.nanoTime();
+
+        private Scan(Listener listener, @Nullable LibraryIndex index, MusicListReader musicListReader) {
+            this.listener = listener;
+            this.index = index;
+            this.musicListReader = musicListReader;
+            this.event.begin();
+        }
+
+        /**
+         * Asks the scan to stop. Songs already handed over stay handed over.
+         */
+        public void cancel() {
+            this.cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return this.cancelled.get();
+        }
+
+        public boolean isDone() {
+            return this.done.getCount() == 0;
+        }
+
+        /**
+         * Blocks until the scan has finished or was cancelled.
+         */
+        public void await() {
+            try {
+                this.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public long getDirectoriesScanned() {
+            return this.directoriesScanned.get();
+        }
+
+        public long getTracksFound() {
+            return this.tracksFound.get();
+        }
+
+        private void run(List<File> roots) {
+            try {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (File root : roots) {
+                    tasks.add(ForkJoinTask.adapt(() -> visit(root.toPath(), null)));
+                }
+                ForkJoinTask.invokeAll(tasks);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (this.index != null) {
+                    try {
+                        this.index.save();
+                    } catch (IOException e) {
+                        System.out.println("Failed to save library index.");
+                        e.printStackTrace();
+                    }
+                }
+                recordTiming();
+                synchronized (this.pending) {
+                    flush();
+                    this.listener.onProgress(this.directoriesScanned.get(), this.tracksFound.get());
+                    this.listener.onFinished(this.cancelled.get());
+                }
+                this.done.countDown();
+            }
+        }
+
+        private void recordTiming() {
+            PlayerMetrics.LIBRARY_SCANS.record(System.nanoTime() - this.startedAt);
+            this.event.end();
+            if (this.event.shouldCommit()) {
+                this.event.directories = this.directoriesScanned.get();
+                this.event.songs = this.tracksFound.get();
+                this.event.cancelled = this.cancelled.get();
+                this.event.commit();
+            }
+        }
+
+        /**
+         * Handles one path the way executeFile did: walk directories, keep songs, read musiclists.
+         *
+         * @param chain musiclists that led here, or null
+         */
+        private void visit(Path path, @Nullable IncludeChain chain) {
+            if (this.cancelled.get()) {
+                return;
+            }
+            String name = lowerCaseName(path);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                if (this.index != null && isSong(name)) {
+                    this.index.removeTrack(path.toFile());
+                }
+                return;
+            } catch (IOException e) {
+                return;
+            }
+            if (attributes.isDirectory()) {
+                visitDirectory(path, attributes.lastModifiedTime().toMillis(), chain);
+                return;
+            }
+            if (isSong(name)) {
+                found(List.of(indexSong(path, name, attributes)));
+            } else if (name.endsWith(".musiclist") && Files.isReadable(path)) {
+                visitMusicList(path, chain);
+            }
+        }
+
+        /**
+         * Stats a song the way {@link #visit} does: its current version goes into the index,
+         * and a song that no longer exists is dropped from it.
+         *
+         * @return the song, or null if it doesn't exist or can't be read
+         */
+        @Nullable
+        private File statSong(Path path) {
+            String name = lowerCaseName(path);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                if (this.index != null) {
+                    this.index.removeTrack(path.toFile());
+                }
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+            return attributes.isDirectory() ? null : indexSong(path, name, attributes);
+        }
+
+        /**
+         * Records a song as just seen on disk.
+         *
+         * @return the song's file
+         */
+        private File indexSong(Path path, String lowerCaseName, BasicFileAttributes attributes) {
+            File song = path.toFile();
+            if (this.index != null) {
+                this.index.putTrack(new LibraryIndex.Track(song.getPath(), attributes.size(),
+                        attributes.lastModifiedTime().toMillis(), LibraryIndex.formatOf(lowerCaseName), -1));
+            }
+            return song;
+        }
+
+        private static String lowerCaseName(Path path) {
+            return path.getFileName() == null ? "" : path.getFileName().toString().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * Lists a directory, or takes its listing from the index if its mtime is unchanged.
+         * Subdirectories are still visited either way, since their own contents may have changed.
+         */
+        private void visitDirectory(Path directory, long lastModified, @Nullable IncludeChain chain) {
+            String key = markVisited(directory);
+            if (key == null) {
+                return;
+            }
+            List<File> songs = new ArrayList<>();
+            List<ForkJoinTask<?>> children = new ArrayList<>();
+            LibraryIndex.Directory cached = this.index == null ? null : this.index.getDirectory(key, lastModified);
+            if (cached != null) {
+                for (String path : cached.trackPaths()) {
+                    songs.add(new File(path));
+                }
+                for (String child : cached.children()) {
+                    children.add(ForkJoinTask.adapt(() -> visit(Path.of(child), chain)));
+                }
+            } else {
+                List<LibraryIndex.Track> tracks = new ArrayList<>();
+                List<String> childPaths = new ArrayList<>();
+                boolean complete = true;
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        if (this.cancelled.get()) {
+                            complete = false;
+                            break;
+                        }
+                        String name = entry.getFileName().toString().toLowerCase(Locale.ROOT);
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        } catch (IOException e) {
+                            continue;
+                        }
+                        if (attributes.isDirectory() || name.endsWith(".musiclist")) {
+                            childPaths.add(entry.toString());
+                            children.add(ForkJoinTask.adapt(() -> visit(entry, chain)));
+                        } else if (isSong(name)) {
+                            File song = entry.toFile();
+                            songs.add(song);
+                            tracks.add(new LibraryIndex.Track(song.getPath(), attributes.size(),
+                                    attributes.lastModifiedTime().toMillis(), LibraryIndex.formatOf(name), -1));
+                        }
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    // unreadable directory, same as listFiles() returning null
+                    complete = false;
+                }
+                if (complete && this.index != null) {
+                    this.index.putDirectory(key, lastModified, tracks, childPaths);
+                }
+            }
+            this.directoriesScanned.incrementAndGet();
+            found(songs);
+            ForkJoinTask.invokeAll(children);
+        }
+
+        /**
+         * Expands a musiclist through the shared MusicListReader.
+         * A list already on the include chain is a cycle and is reported; a list reached
+         * again through another parent is just skipped.
+         * Listed songs are stat'ed in parallel slices, keeping the index up to date with them.
+         */
+        private void visitMusicList(Path musicList, @Nullable IncludeChain chain) {
+            String key = realPath(musicList);
+            if (chain != null && chain.contains(key)) {
+                this.listener.onIncludeCycle(chain.toFiles(key));
+                return;
+            }
+            if (!this.visited.add(key)) {
+                return;
+            }
+            IncludeChain included = new IncludeChain(key, chain);
+            List<Path> listedSongs = new ArrayList<>();
+            List<ForkJoinTask<?>> children = new ArrayList<>();
+            try {
+                for (MusicListReader.Entry entry : this.musicListReader.read(musicList)) {
+                    if (this.cancelled.get()) {
+                        break;
+                    }
+                    switch (entry.kind()) {
+                        case SONG -> listedSongs.add(entry.file().toPath());
+                        case DIRECTORY -> children.add(ForkJoinTask.adapt(() -> visit(entry.file().toPath(), included)));
+                        case MUSIC_LIST -> children.add(ForkJoinTask.adapt(() -> visitMusicList(entry.file().toPath(), included)));
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            File[] present = new File[listedSongs.size()];
+            List<ForkJoinTask<?>> slices = new ArrayList<>();
+            for (int from = 0; from < present.length; from += SONG_SLICE_SIZE) {
+                int start = from;
+                int end = Math.min(from + SONG_SLICE_SIZE, present.length);
+                slices.add(ForkJoinTask.adapt(() -> {
+                    for (int i = start; i < end && !this.cancelled.get(); i++) {
+                        present[i] = statSong(listedSongs.get(i));
+                    }
+                }));
+            }
+            ForkJoinTask.invokeAll(slices);
+            List<File> songs = new ArrayList<>(present.length);
+            for (File song : present) {
+                if (song != null) {
+                    songs.add(song);
+                }
+            }
+            this.directoriesScanned.incrementAndGet();
+            found(songs);
+            ForkJoinTask.invokeAll(children);
+        }
+
+        /**
+         * @return the real path of the directory, or null if it was already visited in this scan
+         */
+        @Nullable
+        private String markVisited(Path path) {
+            String key = realPath(path);
+            return this.visited.add(key) ? key : null;
+        }
+
+        private static String realPath(Path path) {
+            try {
+                return path.toRealPath().toString();
+            } catch (IOException e) {
+                return path.toAbsolutePath().normalize().toString();
+            }
+        }
+
+        /**
+         * Queues found songs and hands them over when the batch is full, when it has waited
+         * long enough, or when they are the first songs of the scan.
+         */
+        private void found(List<File> songs) {
+            long now = System.nanoTime();
+            synchronized (this.pending) {
+                boolean first = this.tracksFound.get() == 0 && !songs.isEmpty();
+                this.tracksFound.addAndGet(songs.size());
+                this.pending.addAll(songs);
+                if (first || this.pending.size() >= BATCH_SIZE || now - this.lastFlush >= REPORT_INTERVAL_NANOS) {
+                    flush();
+                }
+                if (now - this.lastProgress >= REPORT_INTERVAL_NANOS) {
+                    this.lastProgress = now;
+                    this.listener.onProgress(this.directoriesScanned.get(), this.tracksFound.get());
+                }
+            }
+        }
+
+        /**
+         * Guarded by pending.
+         */
+        private void flush() {
+            this.lastFlush = System.nanoTime();
+            if (this.pending.isEmpty()) {
+                return;
+            }
+            List<File> batch = new ArrayList<>(this.pending);
+            this.pending.clear();
+            try {
+                this.listener.onTracksFound(batch);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
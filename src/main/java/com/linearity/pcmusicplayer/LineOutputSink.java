@@ -0,0 +1,101 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.*;
+
+/**
+ * OutputSink playing through the system's default mixer.
+ */
+public class LineOutputSink implements OutputSink {
+
+    private final SourceDataLine line;
+
+    private LineOutputSink(SourceDataLine line) {
+        this.line = line;
+    }
+
+    /**
+     * Picks the format to keep the output open in, whatever the songs' formats.
+     * Java Sound doesn't tell what rate the device runs at, so this is 48 kHz, what most
+     * devices and system mixers run at, unless the mixer can't take it; 44.1 kHz otherwise.
+     * -Dpcmusicplayer.outputRate=... sets the rate, and 0 plays every song at its own rate.
+     *
+     * @return 16-bit stereo format, or null to follow each song's format
+     */
+    @Nullable
+    public static AudioFormat preferredFormat() {
+        Integer configured = Integer.getInteger("pcmusicplayer.outputRate");
+        if (configured != null) {
+            return configured > 0 ? new AudioFormat(configured, 16, 2, true, false) : null;
+        }
+        for (float rate : new float[] {48000, 44100}) {
+            AudioFormat format = new AudioFormat(rate, 16, 2, true, false);
+            if (AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, format))) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a line of the default mixer; usable as an {@link OutputSink.Factory}.
+     *
+     * @param format format the audio will be written in
+     * @param bufferBytes size of the line's buffer
+     * @param stateListener run when the line starts or stops
+     * @return the open line
+     * @throws LineUnavailableException if there is no line for the format
+     */
+    public static LineOutputSink open(AudioFormat format, int bufferBytes, Runnable stateListener) throws LineUnavailableException {
+        SourceDataLine line = AudioSystem.getSourceDataLine(format);
+        // catches the line stopping on its own, e.g. when the device goes away
+        line.addLineListener(event -> {
+            if (event.getType() == LineEvent.Type.START || event.getType() == LineEvent.Type.STOP) {
+                stateListener.run();
+            }
+        });
+        line.open(format, bufferBytes);
+        return new LineOutputSink(line);
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return this.line.getFormat();
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset, int length) {
+        return this.line.write(buffer, offset, length);
+    }
+
+    @Override
+    public void start() {
+        this.line.start();
+    }
+
+    @Override
+    public void stop() {
+        this.line.stop();
+    }
+
+    @Override
+    public void flush() {
+        this.line.flush();
+    }
+
+    @Override
+    public void drain() {
+        this.line.drain();
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        return this.line.getLongFramePosition();
+    }
+
+    @Override
+    public void close() {
+        this.line.close();
+    }
+}
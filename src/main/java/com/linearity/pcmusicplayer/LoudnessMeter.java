@@ -0,0 +1,186 @@
+package com.linearity.pcmusicplayer;
+
+import java.util.Arrays;
+
+/**
+ * Measures a song's integrated loudness and true peak as EBU R128 / ITU-R BS.1770-4
+ * defines them: K-weighted mean square over 400 ms blocks overlapping by 75%, gated
+ * at -70 LUFS and then 10 LU below the ungated mean. True peak uses the same 4x
+ * interpolation as the {@link TruePeakLimiter}.
+ * Feed it decoded 16-bit PCM with {@link #process(byte[], int)}, then read the results.
+ */
+public class LoudnessMeter {
+
+    private static final double ABSOLUTE_GATE_LUFS = -70;
+    private static final double RELATIVE_GATE_LU = -10;
+    private static final int TAPS = TruePeakLimiter.TAPS;
+    private static final float[] PHASES = TruePeakLimiter.PHASES;
+
+    private final int channels;
+    private final double[] weights;
+    /** K-weighting: high shelf then high pass, biquad coefficients b0 b1 b2 a1 a2 */
+    private final double[] shelf;
+    private final double[] highPass;
+    /** Filter state per channel: shelf z1 z2, high pass z1 z2 */
+    private final double[] state;
+    /** Samples for the true-peak interpolator, written twice as in TruePeakLimiter */
+    private final float[] history;
+    private int historyPosition;
+
+    private final int subBlockFrames;
+    private int subBlockFill;
+    private double subBlockEnergy;
+    /** Energy of the last four 100 ms sub-blocks */
+    private final double[] recent = new double[4];
+    private int recentCount;
+    /** Mean square of every 400 ms block so far */
+    private double[] blocks = new double[256];
+    private int blockCount;
+    private float peak;
+
+    /**
+     * @param sampleRate frames per second
+     * @param channels samples per frame; in 5.1 the LFE is left out and the surrounds weigh 1.41
+     */
+    public LoudnessMeter(float sampleRate, int channels) {
+        this.channels = channels;
+        this.weights = new double[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            boolean surround = channels >= 6;
+            this.weights[channel] = !surround ? 1 : channel == 3 ? 0 : channel >= 4 ? 1.41 : 1;
+        }
+        double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+        double vh = Math.pow(10, 3.999843853973347 / 20);
+        double vb = Math.pow(vh, 0.4996667741545416);
+        double q = 0.7071752369554196;
+        double a0 = 1 + k / q + k * k;
+        this.shelf = new double[]{
+                (vh + vb * k / q + k * k) / a0, 2 * (k * k - vh) / a0, (vh - vb * k / q + k * k) / a0,
+                2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0
+        };
+        k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+        q = 0.5003270373238773;
+        a0 = 1 + k / q + k * k;
+        this.highPass = new double[]{1, -2, 1, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0};
+        this.state = new double[channels * 4];
+        this.history = new float[2 * TAPS * channels];
+        this.subBlockFrames = Math.max(1, Math.round(sampleRate / 10));
+    }
+
+    /**
+     * Adds decoded audio.
+     *
+     * @param pcm 16-bit signed little-endian interleaved samples
+     * @param length bytes to read, a whole number of frames
+     */
+    public void process(byte[] pcm, int length) {
+        int frames = length / (2 * this.channels);
+        int b = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            int position = this.historyPosition = (this.historyPosition + 1) % TAPS;
+            double energy = 0;
+            for (int channel = 0; channel < this.channels; channel++, b += 2) {
+                float sample = (short) ((pcm[b] & 0xFF) | (pcm[b + 1] << 8)) * (1f / 32768f);
+                energy += this.weights[channel] * square(kWeight(sample, channel * 4));
+                truePeak(sample, channel, position);
+            }
+            this.subBlockEnergy += energy;
+            if (++this.subBlockFill == this.subBlockFrames) {
+                endSubBlock();
+            }
+        }
+    }
+
+    /**
+     * @return integrated loudness in LUFS, or NaN if the song is silent throughout
+     */
+    public double integratedLoudness() {
+        double absoluteGate = energyOf(ABSOLUTE_GATE_LUFS);
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < this.blockCount; i++) {
+            if (this.blocks[i] > absoluteGate) {
+                sum += this.blocks[i];
+                count++;
+            }
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double relativeGate = energyOf(loudnessOf(sum / count) + RELATIVE_GATE_LU);
+        sum = 0;
+        count = 0;
+        for (int i = 0; i < this.blockCount; i++) {
+            if (this.blocks[i] > absoluteGate && this.blocks[i] > relativeGate) {
+                sum += this.blocks[i];
+                count++;
+            }
+        }
+        return count == 0 ? Double.NaN : loudnessOf(sum / count);
+    }
+
+    /**
+     * @return highest true peak, 1.0 being full scale
+     */
+    public float truePeak() {
+        return this.peak;
+    }
+
+    private double kWeight(double x, int s) {
+        double[] f = this.shelf;
+        double y = f[0] * x + this.state[s];
+        this.state[s] = f[1] * x - f[3] * y + this.state[s + 1];
+        this.state[s + 1] = f[2] * x - f[4] * y;
+        f = this.highPass;
+        double z = f[0] * y + this.state[s + 2];
+        this.state[s + 2] = f[1] * y - f[3] * z + this.state[s + 3];
+        this.state[s + 3] = f[2] * y - f[4] * z;
+        return z;
+    }
+
+    private void truePeak(float sample, int channel, int position) {
+        int base = channel * 2 * TAPS;
+        this.history[base + position] = sample;
+        this.history[base + position + TAPS] = sample;
+        int oldest = base + position + 1;
+        float peak = Math.max(this.peak, Math.abs(sample));
+        for (int phase = 0; phase < PHASES.length; phase += TAPS) {
+            float value = 0f;
+            for (int tap = 0; tap < TAPS; tap++) {
+                value += PHASES[phase + tap] * this.history[oldest + tap];
+            }
+            peak = Math.max(peak, Math.abs(value));
+        }
+        this.peak = peak;
+    }
+
+    /**
+     * Closes a 100 ms sub-block; every sub-block after the third completes a 400 ms block.
+     */
+    private void endSubBlock() {
+        double energy = this.subBlockEnergy / this.subBlockFrames;
+        this.subBlockEnergy = 0;
+        this.subBlockFill = 0;
+        System.arraycopy(this.recent, 1, this.recent, 0, 3);
+        this.recent[3] = energy;
+        if (++this.recentCount < 4) {
+            return;
+        }
+        if (this.blockCount == this.blocks.length) {
+            this.blocks = Arrays.copyOf(this.blocks, this.blockCount * 2);
+        }
+        this.blocks[this.blockCount++] = (this.recent[0] + this.recent[1] + this.recent[2] + this.recent[3]) / 4;
+    }
+
+    private static double square(double x) {
+        return x * x;
+    }
+
+    private static double loudnessOf(double energy) {
+        return -0.691 + 10 * Math.log10(energy);
+    }
+
+    private static double energyOf(double loudness) {
+        return Math.pow(10, (loudness + 0.691) / 10);
+    }
+}
@@ -0,0 +1,238 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Measures the loudness of every song in the library that hasn't been measured yet, so
+ * songs without ReplayGain tags can still be normalized. Songs are decoded in parallel on
+ * a fixed set of low-priority workers, one song per worker at a time.
+ *
+ * Results go into the LibraryIndex, which is saved every few songs; an interrupted run
+ * picks up where it stopped the next time, since only songs without a result are queued.
+ * A song that fails to decode is marked as failed and skipped until its file changes.
+ * While music is playing, only one worker decodes at a time and it idles most of the
+ * time, so analysis can't starve the audio thread.
+ *
+ * The same pass summarizes each song's waveform for the seek bar, if given a store for it.
+ */
+public class LoudnessScanner {
+
+    /** Songs analyzed between saves of the index */
+    private static final int SAVE_INTERVAL = 25;
+    /** Bytes decoded per step; the workers check for cancellation and throttling between steps */
+    private static final int CHUNK_BYTES = 1 << 16;
+    /** While music plays, a worker sleeps this many times as long as its last step took */
+    private static final int PLAYBACK_IDLE_FACTOR = 3;
+
+    private final LibraryIndex index;
+    private final int workers;
+    private final BooleanSupplier playbackActive;
+    @Nullable
+    private final WaveformStore waveforms;
+    private final ExecutorService pool;
+    /** Held by the one worker allowed to decode while music plays */
+    private final Semaphore playbackPermit = new Semaphore(1);
+
+    /**
+     * Constructor for a scanner using every core but one.
+     *
+     * @param index songs to analyze and where results are stored
+     * @param playbackActive tells whether music is playing right now
+     * @param waveforms where to store the waveforms of analyzed songs, or null for none
+     */
+    public LoudnessScanner(LibraryIndex index, BooleanSupplier playbackActive, @Nullable WaveformStore waveforms) {
+        this(index, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), playbackActive, waveforms);
+    }
+
+    /**
+     * @param index songs to analyze and where results are stored
+     * @param workers songs decoded at once while nothing plays
+     * @param playbackActive tells whether music is playing right now
+     * @param waveforms where to store the waveforms of analyzed songs, or null for none
+     */
+    public LoudnessScanner(LibraryIndex index, int workers, BooleanSupplier playbackActive, @Nullable WaveformStore waveforms) {
+        this.index = index;
+        this.workers = workers;
+        this.playbackActive = playbackActive;
+        this.waveforms = waveforms;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "loudness-analysis-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts analyzing every song the index has no loudness for.
+     *
+     * @return handle to follow, wait for or cancel the run
+     */
+    public Analysis analyzeMissing() {
+        Analysis analysis = new Analysis(this.index.tracksMissingLoudness());
+        for (int i = 0; i < this.workers; i++) {
+            this.pool.execute(analysis::work);
+        }
+        return analysis;
+    }
+
+    /**
+     * Stops the workers. Running analyses are cancelled; songs finished so far are kept
+     * in the index, which the caller saves.
+     */
+    public void shutdown() {
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * One run over the songs that were missing a loudness when it started.
+     */
+    public class Analysis {
+
+        private final ConcurrentLinkedQueue<LibraryIndex.Track> queue;
+        private final int total;
+        private final AtomicInteger analyzed = new AtomicInteger();
+        private final AtomicInteger runningWorkers = new AtomicInteger(LoudnessScanner.this.workers);
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Analysis(List<LibraryIndex.Track> tracks) {
+            this.queue = new ConcurrentLinkedQueue<>(tracks);
+            this.total = tracks.size();
+        }
+
+        /**
+         * Asks the run to stop after the current step. Finished songs stay in the index.
+         */
+        public void cancel() {
+            this.cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return this.cancelled.get();
+        }
+
+        public boolean isDone() {
+            return this.done.getCount() == 0;
+        }
+
+        /**
+         * Blocks until every song was analyzed or the run was cancelled.
+         */
+        public void await() {
+            try {
+                this.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return songs analyzed so far, including ones that failed to decode
+         */
+        public int getAnalyzed() {
+            return this.analyzed.get();
+        }
+
+        /**
+         * @return songs queued when the run started
+         */
+        public int getTotal() {
+            return this.total;
+        }
+
+        private void work() {
+            byte[] buffer = new byte[CHUNK_BYTES];
+            try {
+                LibraryIndex.Track track;
+                while (!this.cancelled.get() && !Thread.currentThread().isInterrupted()
+                        && (track = this.queue.poll()) != null) {
+                    analyze(track.file(), buffer);
+                    if (this.analyzed.incrementAndGet() % SAVE_INTERVAL == 0) {
+                        saveIndex();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // shut down; finished songs are saved below
+            } finally {
+                if (this.runningWorkers.decrementAndGet() == 0) {
+                    saveIndex();
+                    this.done.countDown();
+                }
+            }
+        }
+
+        private void analyze(File songFile, byte[] buffer) throws InterruptedException {
+            try (PcmSource source = PcmSource.openForAnalysis(songFile)) {
+                AudioFormat format = source.getFormat();
+                LoudnessMeter meter = new LoudnessMeter(format.getSampleRate(), format.getChannels());
+                WaveformPeaks.Builder peaks = LoudnessScanner.this.waveforms != null
+                        ? new WaveformPeaks.Builder(format)
+                        : null;
+                while (!this.cancelled.get()) {
+                    int n;
+                    if (LoudnessScanner.this.playbackActive.getAsBoolean()) {
+                        LoudnessScanner.this.playbackPermit.acquire();
+                        long start = System.nanoTime();
+                        try {
+                            n = decodeStep(source, meter, peaks, buffer);
+                        } finally {
+                            LoudnessScanner.this.playbackPermit.release();
+                        }
+                        long busy = System.nanoTime() - start;
+                        TimeUnit.NANOSECONDS.sleep(busy * PLAYBACK_IDLE_FACTOR);
+                    } else {
+                        n = decodeStep(source, meter, peaks, buffer);
+                    }
+                    if (n < 0) {
+                        float peakDb = (float) (20 * Math.log10(meter.truePeak()));
+                        LoudnessScanner.this.index.updateLoudness(songFile, (float) meter.integratedLoudness(), peakDb);
+                        if (peaks != null) {
+                            LoudnessScanner.this.waveforms.put(songFile, peaks.build());
+                        }
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.out.println("Failed to analyze the loudness of " + songFile);
+                e.printStackTrace();
+                if (!this.cancelled.get() && !Thread.currentThread().isInterrupted()) {
+                    LoudnessScanner.this.index.markAnalysisFailed(songFile);
+                }
+            }
+        }
+
+        private int decodeStep(PcmSource source, LoudnessMeter meter, @Nullable WaveformPeaks.Builder peaks,
+                               byte[] buffer) throws IOException {
+            int n = source.read(buffer, 0, buffer.length);
+            if (n > 0) {
+                meter.process(buffer, n);
+                if (peaks != null) {
+                    peaks.process(buffer, n);
+                }
+            }
+            return n;
+        }
+
+        private void saveIndex() {
+            try {
+                LoudnessScanner.this.index.save();
+            } catch (Exception e) {
+                System.out.println("Failed to save the library index.");
+                e.printStackTrace();
+            }
+        }
+    }
+}
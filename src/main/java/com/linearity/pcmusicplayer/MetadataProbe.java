@@ -0,0 +1,393 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads tags and duration straight from a song file's headers.
+ * MP3: ID3v2 (2.2 to 2.4) and ID3v1 tags including ReplayGain values kept in TXXX frames,
+ * duration from a Xing/Info or VBRI header when
+ * present, otherwise from the first frame's bitrate. WAV: the fmt and data chunks and a
+ * LIST/INFO chunk. Only a few kilobytes are read; no audio is decoded.
+ */
+public final class MetadataProbe {
+
+    /** How far past the ID3v2 tag to look for the first MPEG frame */
+    private static final int FRAME_SEARCH_BYTES = 64 * 1024;
+    /** Title, artist, album, then track gain, track peak, album gain, album peak */
+    private static final int TAG_SLOTS = 7;
+    private static final String[] REPLAYGAIN_KEYS = {
+            "REPLAYGAIN_TRACK_GAIN", "REPLAYGAIN_TRACK_PEAK", "REPLAYGAIN_ALBUM_GAIN", "REPLAYGAIN_ALBUM_PEAK"
+    };
+    /** Pseudo slot for TXXX frames, which are sorted by their description */
+    private static final int USER_TEXT = -2;
+
+    private MetadataProbe() {}
+
+    /**
+     * Probes a song file.
+     *
+     * @param songFile .mp3 or .wav file
+     * @return what could be read, {@link TrackMetadata#UNKNOWN} if nothing
+     */
+    public static TrackMetadata probe(File songFile) {
+        try (RandomAccessFile in = new RandomAccessFile(songFile, "r")) {
+            byte[] magic = new byte[4];
+            if (in.length() >= 4) {
+                in.readFully(magic);
+            }
+            if (magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F') {
+                return probeWav(in);
+            }
+            return probeMp3(in);
+        } catch (Exception e) {
+            return TrackMetadata.UNKNOWN;
+        }
+    }
+
+    /*******************************************************
+     *                                                      *
+     *  MP3                                                 *
+     *                                                      *
+     *******************************************************/
+
+    private static TrackMetadata probeMp3(RandomAccessFile in) throws IOException {
+        String[] tags = new String[TAG_SLOTS];
+        long audioStart = readId3v2(in, tags);
+        ReplayGain replayGain = replayGain(tags);
+        long audioEnd = in.length();
+        if (audioEnd >= 128) {
+            byte[] v1 = new byte[128];
+            in.seek(audioEnd - 128);
+            in.readFully(v1);
+            if (v1[0] == 'T' && v1[1] == 'A' && v1[2] == 'G') {
+                audioEnd -= 128;
+                fillIfMissing(tags, 0, latin1Field(v1, 3, 30));
+                fillIfMissing(tags, 1, latin1Field(v1, 33, 30));
+                fillIfMissing(tags, 2, latin1Field(v1, 63, 30));
+            }
+        }
+
+        long frameStart = findFrame(in, audioStart);
+        if (frameStart < 0 || frameStart >= audioEnd) {
+            return new TrackMetadata(tags[0], tags[1], tags[2], -1, 0, 0, replayGain);
+        }
+        in.seek(frameStart);
+        byte[] frame = new byte[(int) Math.min(256, audioEnd - frameStart)];
+        in.readFully(frame);
+        MpegFrameHeader header = frame.length < 4 ? null : MpegFrameHeader.parse(frame[0], frame[1], frame[2], frame[3]);
+        if (header == null) {
+            return new TrackMetadata(tags[0], tags[1], tags[2], -1, 0, 0, replayGain);
+        }
+        long duration = -1;
+        long frames = vbrFrameCount(frame, header);
+        if (frames > 0) {
+            duration = (long) (frames * header.frameMicros());
+        } else if (header.bitrate() > 0) {
+            duration = (audioEnd - frameStart) * 8_000_000L / header.bitrate();
+        }
+        return new TrackMetadata(tags[0], tags[1], tags[2], duration, header.sampleRate(), header.channels(), replayGain);
+    }
+
+    /**
+     * Reads an ID3v2 tag at the start of the file into the tag slots: title, artist, album,
+     * then the four ReplayGain values.
+     * Frames we don't need, such as cover art, are skipped without being read.
+     *
+     * @return offset of the first byte after the tag (0 if there is none)
+     */
+    private static long readId3v2(RandomAccessFile in, String[] tags) throws IOException {
+        byte[] header = new byte[10];
+        in.seek(0);
+        if (in.length() < 10) {
+            return 0;
+        }
+        in.readFully(header);
+        if (header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            return 0;
+        }
+        int major = header[3];
+        int flags = header[5] & 0xFF;
+        long tagEnd = 10 + syncsafe(header, 6) + ((flags & 0x10) != 0 ? 10 : 0);
+        long position = 10;
+        if ((flags & 0x40) != 0 && major >= 3) {
+            byte[] extended = new byte[4];
+            in.seek(position);
+            in.readFully(extended);
+            position += major == 4 ? syncsafe(extended, 0) : 4 + bigEndian(extended, 0, 4);
+        }
+        int idLength = major == 2 ? 3 : 4;
+        int headerLength = major == 2 ? 6 : 10;
+        byte[] frameHeader = new byte[headerLength];
+        while (position + headerLength <= tagEnd && position + headerLength <= in.length()) {
+            in.seek(position);
+            in.readFully(frameHeader);
+            if (frameHeader[0] == 0) {
+                break; // padding
+            }
+            String id = new String(frameHeader, 0, idLength, StandardCharsets.ISO_8859_1);
+            long size = major == 2 ? bigEndian(frameHeader, 3, 3)
+                    : major == 4 ? syncsafe(frameHeader, 4) : bigEndian(frameHeader, 4, 4);
+            long payload = position + headerLength;
+            if (size <= 0 || payload + size > tagEnd) {
+                break;
+            }
+            int slot = switch (id) {
+                case "TIT2", "TT2" -> 0;
+                case "TPE1", "TP1" -> 1;
+                case "TALB", "TAL" -> 2;
+                case "TXXX", "TXX" -> USER_TEXT;
+                default -> -1;
+            };
+            if (slot != -1 && size < 64 * 1024) {
+                byte[] text = new byte[(int) size];
+                in.seek(payload);
+                in.readFully(text);
+                if (slot == USER_TEXT) {
+                    readUserText(text, tags);
+                } else {
+                    tags[slot] = decodeText(text);
+                }
+            }
+            position = payload + size;
+        }
+        return tagEnd;
+    }
+
+    /**
+     * Reads a TXXX frame (encoding, description, value) and keeps it if it is one of the
+     * ReplayGain values.
+     */
+    private static void readUserText(byte[] frame, String[] tags) {
+        String text = decodeAll(frame);
+        if (text == null) {
+            return;
+        }
+        int nul = text.indexOf('\0');
+        if (nul < 0) {
+            return;
+        }
+        String key = text.substring(0, nul).trim();
+        String value = trimNulls(text.substring(nul + 1).replace("\uFEFF", ""));
+        for (int i = 0; i < REPLAYGAIN_KEYS.length; i++) {
+            if (REPLAYGAIN_KEYS[i].equalsIgnoreCase(key)) {
+                tags[3 + i] = value;
+            }
+        }
+    }
+
+    private static ReplayGain replayGain(String[] tags) {
+        return new ReplayGain(ReplayGain.parse(tags[3]), ReplayGain.parse(tags[4]),
+                ReplayGain.parse(tags[5]), ReplayGain.parse(tags[6]));
+    }
+
+    /**
+     * Finds the first of two consecutive valid frame headers, to avoid false syncs in junk data.
+     *
+     * @return offset of the first frame, or -1
+     */
+    private static long findFrame(RandomAccessFile in, long from) throws IOException {
+        int length = (int) Math.min(FRAME_SEARCH_BYTES, in.length() - from);
+        if (length < 4) {
+            return -1;
+        }
+        byte[] window = new byte[length];
+        in.seek(from);
+        in.readFully(window);
+        for (int i = 0; i + 4 <= length; i++) {
+            MpegFrameHeader header = MpegFrameHeader.parse(window[i], window[i + 1], window[i + 2], window[i + 3]);
+            if (header == null) {
+                continue;
+            }
+            int next = i + header.frameLength();
+            if (next + 4 > length || MpegFrameHeader.parse(window[next], window[next + 1], window[next + 2], window[next + 3]) != null) {
+                return from + i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the frame count from a Xing/Info or VBRI header in the first frame.
+     *
+     * @return number of frames, or -1 if there is no such header
+     */
+    static long vbrFrameCount(byte[] frame, MpegFrameHeader header) {
+        int xing = header.xingOffset();
+        if (xing + 12 <= frame.length && (matches(frame, xing, "Xing") || matches(frame, xing, "Info"))) {
+            long flags = bigEndian(frame, xing + 4, 4);
+            if ((flags & 1) != 0) {
+                return bigEndian(frame, xing + 8, 4);
+            }
+            return -1;
+        }
+        int vbri = 4 + 32;
+        if (vbri + 18 <= frame.length && matches(frame, vbri, "VBRI")) {
+            return bigEndian(frame, vbri + 14, 4);
+        }
+        return -1;
+    }
+
+    /*******************************************************
+     *                                                      *
+     *  WAV                                                 *
+     *                                                      *
+     *******************************************************/
+
+    private static TrackMetadata probeWav(RandomAccessFile in) throws IOException {
+        byte[] riff = new byte[12];
+        in.seek(0);
+        in.readFully(riff);
+        if (!matches(riff, 8, "WAVE")) {
+            return TrackMetadata.UNKNOWN;
+        }
+        String[] tags = new String[3];
+        int channels = 0;
+        int sampleRate = 0;
+        long byteRate = 0;
+        long dataSize = -1;
+        long position = 12;
+        byte[] chunkHeader = new byte[8];
+        while (position + 8 <= in.length()) {
+            in.seek(position);
+            in.readFully(chunkHeader);
+            String id = new String(chunkHeader, 0, 4, StandardCharsets.ISO_8859_1);
+            long size = littleEndian(chunkHeader, 4, 4);
+            long body = position + 8;
+            if (id.equals("fmt ") && size >= 16) {
+                byte[] fmt = new byte[16];
+                in.readFully(fmt);
+                channels = (int) littleEndian(fmt, 2, 2);
+                sampleRate = (int) littleEndian(fmt, 4, 4);
+                byteRate = littleEndian(fmt, 8, 4);
+            } else if (id.equals("data")) {
+                dataSize = Math.min(size, in.length() - body);
+            } else if (id.equals("LIST") && size >= 4 && size < 64 * 1024) {
+                byte[] list = new byte[(int) size];
+                in.readFully(list);
+                if (matches(list, 0, "INFO")) {
+                    readInfo(list, tags);
+                }
+            }
+            position = body + size + (size & 1);
+        }
+        long duration = byteRate > 0 && dataSize >= 0 ? dataSize * 1_000_000L / byteRate : -1;
+        return new TrackMetadata(tags[0], tags[1], tags[2], duration, sampleRate, channels, ReplayGain.NONE);
+    }
+
+    private static void readInfo(byte[] list, String[] tags) {
+        int position = 4;
+        while (position + 8 <= list.length) {
+            String id = new String(list, position, 4, StandardCharsets.ISO_8859_1);
+            int size = (int) littleEndian(list, position + 4, 4);
+            int body = position + 8;
+            if (size < 0 || body + size > list.length) {
+                return;
+            }
+            int slot = switch (id) {
+                case "INAM" -> 0;
+                case "IART" -> 1;
+                case "IPRD" -> 2;
+                default -> -1;
+            };
+            if (slot >= 0) {
+                tags[slot] = trimNulls(new String(list, body, size, StandardCharsets.UTF_8));
+            }
+            position = body + size + (size & 1);
+        }
+    }
+
+    /*******************************************************
+     *                                                      *
+     *  HELPERS                                             *
+     *                                                      *
+     *******************************************************/
+
+    /**
+     * Decodes an ID3v2 text frame: an encoding byte followed by the text.
+     */
+    @Nullable
+    static String decodeText(byte[] frame) {
+        String text = decodeAll(frame);
+        if (text == null) {
+            return null;
+        }
+        text = trimNulls(text);
+        return text.isEmpty() ? null : text;
+    }
+
+    /**
+     * Decodes everything after the encoding byte of a text frame, NULs included.
+     */
+    @Nullable
+    private static String decodeAll(byte[] frame) {
+        if (frame.length < 2) {
+            return null;
+        }
+        Charset charset = switch (frame[0]) {
+            case 1 -> StandardCharsets.UTF_16;
+            case 2 -> StandardCharsets.UTF_16BE;
+            case 3 -> StandardCharsets.UTF_8;
+            default -> StandardCharsets.ISO_8859_1;
+        };
+        return new String(frame, 1, frame.length - 1, charset);
+    }
+
+    /**
+     * Cuts a string at its first NUL; ID3v2.4 separates multiple values that way.
+     */
+    private static String trimNulls(String text) {
+        int nul = text.indexOf('\0');
+        return (nul >= 0 ? text.substring(0, nul) : text).trim();
+    }
+
+    @Nullable
+    private static String latin1Field(byte[] bytes, int offset, int length) {
+        String text = trimNulls(new String(bytes, offset, length, StandardCharsets.ISO_8859_1));
+        return text.isEmpty() ? null : text;
+    }
+
+    private static void fillIfMissing(String[] tags, int slot, @Nullable String value) {
+        if (tags[slot] == null) {
+            tags[slot] = value;
+        }
+    }
+
+    private static boolean matches(byte[] bytes, int offset, String ascii) {
+        if (offset + ascii.length() > bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (bytes[offset + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long syncsafe(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0x7FL) << 21) | ((bytes[offset + 1] & 0x7FL) << 14)
+                | ((bytes[offset + 2] & 0x7FL) << 7) | (bytes[offset + 3] & 0x7FL);
+    }
+
+    static long bigEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    static long littleEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,147 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Probes song metadata on a small background pool and keeps the results in a size-bounded
+ * LRU cache. Requests are served newest first, and once too many are waiting the oldest
+ * are dropped, so scrolling quickly through a long playlist only probes the rows that are
+ * still on screen.
+ */
+public class MetadataService {
+
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+    /** Requests allowed to wait; a ListView shows far fewer rows than this */
+    private static final int MAX_PENDING = 256;
+    private static final int PROBE_THREADS = 2;
+
+    private final Map<File, TrackMetadata> cache;
+    private final Map<File, CompletableFuture<TrackMetadata>> inFlight = new ConcurrentHashMap<>();
+    private final BlockingDeque<File> pending = new LinkedBlockingDeque<>();
+    private final ExecutorService probePool;
+    private final Executor callbackExecutor;
+    @Nullable
+    private final LibraryIndex index;
+    private volatile BiConsumer<File, TrackMetadata> probeListener = (songFile, metadata) -> {};
+
+    /**
+     * @param cacheSize number of songs whose metadata is kept
+     * @param callbackExecutor where completed requests are delivered, e.g. Platform::runLater
+     * @param index index that learns each probed duration, or null
+     */
+    public MetadataService(int cacheSize, Executor callbackExecutor, @Nullable LibraryIndex index) {
+        this.cache = new LinkedHashMap<>(cacheSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File, TrackMetadata> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.callbackExecutor = callbackExecutor;
+        this.index = index;
+        this.probePool = Executors.newFixedThreadPool(PROBE_THREADS, r -> {
+            Thread t = new Thread(r, "metadata-probe");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        for (int i = 0; i < PROBE_THREADS; i++) {
+            this.probePool.execute(this::work);
+        }
+    }
+
+    /**
+     * Sets a callback that sees every probe result, e.g. to index the tags for search.
+     * It runs on a probe thread.
+     *
+     * @param listener receives the song and its metadata
+     */
+    public void setProbeListener(BiConsumer<File, TrackMetadata> listener) {
+        this.probeListener = listener;
+    }
+
+    /**
+     * Gets cached metadata without probing.
+     *
+     * @param songFile song
+     * @return metadata, or null if not cached
+     */
+    @Nullable
+    public TrackMetadata getCached(File songFile) {
+        synchronized (this.cache) {
+            return this.cache.get(songFile);
+        }
+    }
+
+    /**
+     * Gets a song's metadata, probing it in the background if it isn't cached.
+     * The future completes on the callback executor; it is cancelled if the request is
+     * dropped because newer ones pushed it out.
+     *
+     * @param songFile song
+     * @return future metadata
+     */
+    public CompletableFuture<TrackMetadata> request(File songFile) {
+        TrackMetadata cached = getCached(songFile);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        CompletableFuture<TrackMetadata> created = new CompletableFuture<>();
+        CompletableFuture<TrackMetadata> existing = this.inFlight.putIfAbsent(songFile, created);
+        if (existing != null) {
+            return existing;
+        }
+        this.pending.offerFirst(songFile);
+        while (this.pending.size() > MAX_PENDING) {
+            File dropped = this.pending.pollLast();
+            if (dropped == null) {
+                break;
+            }
+            CompletableFuture<TrackMetadata> droppedFuture = this.inFlight.remove(dropped);
+            if (droppedFuture != null) {
+                droppedFuture.cancel(false);
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Stops the probe threads.
+     */
+    public void shutdown() {
+        this.probePool.shutdownNow();
+    }
+
+    /**
+     * Body of each probe thread: takes the newest request, probes it and publishes the result.
+     */
+    private void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            File songFile;
+            try {
+                songFile = this.pending.takeFirst();
+            } catch (InterruptedException e) {
+                return;
+            }
+            CompletableFuture<TrackMetadata> future = this.inFlight.get(songFile);
+            if (future == null) {
+                continue;
+            }
+            TrackMetadata metadata = MetadataProbe.probe(songFile);
+            synchronized (this.cache) {
+                this.cache.put(songFile, metadata);
+            }
+            if (this.index != null && metadata.durationMicros() >= 0) {
+                this.index.updateDuration(songFile, metadata.durationMicros());
+            }
+            this.probeListener.accept(songFile, metadata);
+            this.inFlight.remove(songFile, future);
+            this.callbackExecutor.execute(() -> future.complete(metadata));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.linearity.pcmusicplayer;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Byte offsets of MPEG frames at regular time intervals through an MP3 file.
+ * With it a seek opens the file at the nearest indexed frame and decodes at most one
+ * interval, instead of decoding everything from the start of the song.
+ *
+ * Each entry is looked up by the PCM frame at its interval boundary, but points a couple
+ * of frames before it, because a layer III frame may borrow bits from the frames before it
+ * (the bit reservoir) and overlaps them in the MDCT; decoding from a little earlier means
+ * the first audible frame after a seek decodes cleanly.
+ *
+ * A frame header is only trusted where a second one follows it, so a stray sync word in
+ * damaged data can't shift the positions of every later frame.
+ */
+public class Mp3SeekIndex {
+
+    /** Seconds between index entries */
+    public static final double INTERVAL_SECONDS = 1.0;
+    /** Frames decoded ahead of an entry's boundary to refill the bit reservoir */
+    private static final int PRIMING_FRAMES = 2;
+    /** Longer than any MPEG frame plus the header after it, for looking ahead while resyncing */
+    private static final int LOOKAHEAD_BYTES = 4096;
+
+    private final long[] boundaryFrames;
+    private final long[] byteOffsets;
+    private final long[] pcmFrames;
+
+    /**
+     * @param boundaryFrames PCM frame at each entry's interval boundary, ascending
+     * @param byteOffsets file offset of the frame each entry starts decoding at, ascending
+     * @param pcmFrames first PCM frame decoded from that frame, ascending
+     */
+    public Mp3SeekIndex(long[] boundaryFrames, long[] byteOffsets, long[] pcmFrames) {
+        if (byteOffsets.length != pcmFrames.length || boundaryFrames.length != pcmFrames.length) {
+            throw new IllegalArgumentException("boundaries, offsets and frames differ in length");
+        }
+        this.boundaryFrames = boundaryFrames;
+        this.byteOffsets = byteOffsets;
+        this.pcmFrames = pcmFrames;
+    }
+
+    /**
+     * Walks the frame headers of an MP3 file. Only the four header bytes of each frame
+     * are looked at; nothing is decoded.
+     *
+     * @param songFile MP3 file
+     * @return index, empty if no frames were found
+     */
+    public static Mp3SeekIndex build(File songFile) throws IOException {
+        long[] boundaries = new long[64];
+        long[] offsets = new long[64];
+        long[] frames = new long[64];
+        int count = 0;
+        try (BufferedInputStream in = new BufferedInputStream(new FileInputStream(songFile), 1 << 16)) {
+            long position = skipId3v2(in);
+            long pcmFrame = 0;
+            long nextBoundary = 0;
+            long[] recentOffsets = new long[PRIMING_FRAMES + 1];
+            long[] recentFrames = new long[PRIMING_FRAMES + 1];
+            int seen = 0;
+            boolean inSync = false;
+            byte[] header = new byte[4];
+            while (true) {
+                in.mark(LOOKAHEAD_BYTES);
+                if (in.readNBytes(header, 0, 4) < 4) {
+                    break;
+                }
+                MpegFrameHeader frame = MpegFrameHeader.parse(header[0], header[1], header[2], header[3]);
+                if (frame != null && !inSync) {
+                    boolean confirmed = frame.frameLength() >= 4 && followedByFrame(in, frame);
+                    in.reset();
+                    in.skipNBytes(4);
+                    if (!confirmed) {
+                        frame = null;
+                    }
+                }
+                if (frame == null || frame.frameLength() < 4) {
+                    // not at a frame: resync one byte further on
+                    inSync = false;
+                    in.reset();
+                    if (in.skip(1) < 1) {
+                        break;
+                    }
+                    position++;
+                    continue;
+                }
+                inSync = true;
+                int slot = seen % recentOffsets.length;
+                recentOffsets[slot] = position;
+                recentFrames[slot] = pcmFrame;
+                seen++;
+                if (pcmFrame >= nextBoundary) {
+                    int primed = Math.max(0, seen - 1 - PRIMING_FRAMES) % recentOffsets.length;
+                    if (count == offsets.length) {
+                        boundaries = Arrays.copyOf(boundaries, count * 2);
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                        frames = Arrays.copyOf(frames, count * 2);
+                    }
+                    boundaries[count] = pcmFrame;
+                    offsets[count] = recentOffsets[primed];
+                    frames[count] = recentFrames[primed];
+                    count++;
+                    nextBoundary = pcmFrame + (long) (INTERVAL_SECONDS * frame.sampleRate());
+                }
+                pcmFrame += frame.samplesPerFrame();
+                long skip = frame.frameLength() - 4;
+                if (skipFully(in, skip) < skip) {
+                    break;
+                }
+                position += frame.frameLength();
+            }
+        }
+        return new Mp3SeekIndex(Arrays.copyOf(boundaries, count), Arrays.copyOf(offsets, count),
+                Arrays.copyOf(frames, count));
+    }
+
+    /**
+     * Checks that another frame header of the same stream starts right after a frame.
+     *
+     * @param in stream positioned just past the frame's header, marked before it
+     * @param frame the frame's header
+     * @return true if the next header is there and agrees with this one
+     */
+    private static boolean followedByFrame(InputStream in, MpegFrameHeader frame) throws IOException {
+        long skip = frame.frameLength() - 4;
+        byte[] next = new byte[4];
+        if (skipFully(in, skip) < skip || in.readNBytes(next, 0, 4) < 4) {
+            return false;
+        }
+        MpegFrameHeader following = MpegFrameHeader.parse(next[0], next[1], next[2], next[3]);
+        return following != null && following.version() == frame.version()
+                && following.layer() == frame.layer() && following.sampleRate() == frame.sampleRate();
+    }
+
+    /**
+     * Finds the last entry whose boundary is at or before a PCM frame. Decoding from the
+     * entry's {@link #byteOffset(int)} primes the decoder before the target.
+     *
+     * @param frame target PCM frame
+     * @return entry number, or -1 if the index is empty
+     */
+    public int entryFor(long frame) {
+        int found = Arrays.binarySearch(this.boundaryFrames, frame);
+        if (found >= 0) {
+            return found;
+        }
+        return -found - 2;
+    }
+
+    public long boundaryFrame(int entry) {
+        return this.boundaryFrames[entry];
+    }
+
+    /**
+     * @return file offset to start decoding at for the entry, a couple of frames before its boundary
+     */
+    public long byteOffset(int entry) {
+        return this.byteOffsets[entry];
+    }
+
+    /**
+     * @return first PCM frame decoded from {@link #byteOffset(int)}
+     */
+    public long pcmFrame(int entry) {
+        return this.pcmFrames[entry];
+    }
+
+    public int size() {
+        return this.byteOffsets.length;
+    }
+
+    /**
+     * Writes the entries; the caller writes whatever identifies the file.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(this.byteOffsets.length);
+        for (int i = 0; i < this.byteOffsets.length; i++) {
+            out.writeLong(this.boundaryFrames[i]);
+            out.writeLong(this.byteOffsets[i]);
+            out.writeLong(this.pcmFrames[i]);
+        }
+    }
+
+    /**
+     * Reads entries written by {@link #writeTo(DataOutputStream)}.
+     */
+    public static Mp3SeekIndex readFrom(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("bad seek index size " + count);
+        }
+        long[] boundaries = new long[count];
+        long[] offsets = new long[count];
+        long[] frames = new long[count];
+        for (int i = 0; i < count; i++) {
+            boundaries[i] = in.readLong();
+            offsets[i] = in.readLong();
+            frames[i] = in.readLong();
+        }
+        return new Mp3SeekIndex(boundaries, offsets, frames);
+    }
+
+    /**
+     * @return bytes actually skipped, less than requested only at end of stream
+     */
+    private static long skipFully(InputStream in, long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long n = in.skip(count - skipped);
+            if (n <= 0) {
+                if (in.read() < 0) {
+                    break;
+                }
+                n = 1;
+            }
+            skipped += n;
+        }
+        return skipped;
+    }
+
+    /**
+     * Skips an ID3v2 tag at the start of the stream.
+     *
+     * @return bytes skipped
+     */
+    private static long skipId3v2(BufferedInputStream in) throws IOException {
+        in.mark(10);
+        byte[] header = in.readNBytes(10);
+        if (header.length < 10 || header[0] != 'I' || header[1] != 'D' || header[2] != '3') {
+            in.reset();
+            return 0;
+        }
+        long size = ((header[6] & 0x7FL) << 21) | ((header[7] & 0x7FL) << 14)
+                | ((header[8] & 0x7FL) << 7) | (header[9] & 0x7FL);
+        if ((header[5] & 0x10) != 0) {
+            size += 10;
+        }
+        in.skipNBytes(size);
+        return 10 + size;
+    }
+}
@@ -0,0 +1,91 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The four-byte header in front of every MPEG audio frame.
+ *
+ * @param version 1 for MPEG-1, 2 for MPEG-2, 25 for MPEG-2.5
+ * @param layer 1, 2 or 3
+ * @param bitrate bits per second
+ * @param sampleRate samples per second
+ * @param channels 1 or 2
+ * @param samplesPerFrame PCM frames decoded from this frame
+ * @param frameLength bytes in this frame, header included
+ */
+public record MpegFrameHeader(int version, int layer, int bitrate, int sampleRate, int channels,
+                              int samplesPerFrame, int frameLength) {
+
+    private static final int[][] BITRATES_KBPS = {
+            // MPEG-1 layer I, II, III
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG-2/2.5 layer I, II and III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[] SAMPLE_RATES_MPEG1 = {44100, 48000, 32000};
+
+    /**
+     * Decodes a frame header.
+     *
+     * @param b0 first byte
+     * @param b1 second byte
+     * @param b2 third byte
+     * @param b3 fourth byte
+     * @return the header, or null if the bytes aren't a valid (non free-format) frame header
+     */
+    @Nullable
+    public static MpegFrameHeader parse(int b0, int b1, int b2, int b3) {
+        if ((b0 & 0xFF) != 0xFF || (b1 & 0xE0) != 0xE0) {
+            return null;
+        }
+        int versionBits = (b1 >> 3) & 3;
+        int layerBits = (b1 >> 1) & 3;
+        int bitrateIndex = (b2 >> 4) & 0xF;
+        int sampleRateIndex = (b2 >> 2) & 3;
+        if (versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return null;
+        }
+        int version = versionBits == 3 ? 1 : versionBits == 2 ? 2 : 25;
+        int layer = 4 - layerBits;
+        int padding = (b2 >> 1) & 1;
+        int channels = ((b3 >> 6) & 3) == 3 ? 1 : 2;
+
+        int table = version == 1 ? layer - 1 : layer == 1 ? 3 : 4;
+        int bitrate = BITRATES_KBPS[table][bitrateIndex] * 1000;
+        int sampleRate = SAMPLE_RATES_MPEG1[sampleRateIndex] / (version == 1 ? 1 : version == 2 ? 2 : 4);
+
+        int samplesPerFrame;
+        int frameLength;
+        if (layer == 1) {
+            samplesPerFrame = 384;
+            frameLength = (12 * bitrate / sampleRate + padding) * 4;
+        } else if (layer == 2 || version == 1) {
+            samplesPerFrame = 1152;
+            frameLength = 144 * bitrate / sampleRate + padding;
+        } else {
+            samplesPerFrame = 576;
+            frameLength = 72 * bitrate / sampleRate + padding;
+        }
+        return new MpegFrameHeader(version, layer, bitrate, sampleRate, channels, samplesPerFrame, frameLength);
+    }
+
+    /**
+     * @return offset from the frame start where a Xing/Info tag would be, past the side info
+     */
+    public int xingOffset() {
+        if (this.version == 1) {
+            return this.channels == 1 ? 4 + 17 : 4 + 32;
+        }
+        return this.channels == 1 ? 4 + 9 : 4 + 17;
+    }
+
+    /**
+     * @return duration of one frame in microseconds
+     */
+    public double frameMicros() {
+        return this.samplesPerFrame * 1_000_000.0 / this.sampleRate;
+    }
+}
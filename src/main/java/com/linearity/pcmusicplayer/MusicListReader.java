@@ -0,0 +1,149 @@
+package com.linearity.pcmusicplayer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads .musiclist files: UTF-8 text with one song, directory or musiclist path per line.
+ * Lines are streamed, so lists of any size are read with constant memory beyond the result.
+ * Listed directories and musiclists are checked in batches on the fork-join pool, one stat
+ * per entry. Songs are listed whether or not they exist: the caller stats them anyway, and
+ * needs to see the missing ones to forget them.
+ * Parsed lists are cached by path, size and mtime, so a list included from several places,
+ * or read again by a later scan, is only parsed once.
+ */
+public class MusicListReader {
+
+    /** Lines collected before their existence is checked */
+    private static final int CHECK_BATCH_SIZE = 256;
+    /** Entries stat'ed by one fork-join task */
+    private static final int CHECK_SLICE_SIZE = 32;
+
+    public enum Kind { SONG, DIRECTORY, MUSIC_LIST }
+
+    /**
+     * A file listed in a musiclist. Directories and musiclists existed when the list was
+     * parsed; songs may not exist at all.
+     */
+    public record Entry(File file, Kind kind) {}
+
+    private record Parsed(long size, long lastModified, List<Entry> entries) {}
+
+    private final Map<String, Parsed> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Reads the entries of a musiclist, in file order.
+     * Lines naming missing directories or musiclists, or unsupported file types, are left out.
+     *
+     * @param musicList musiclist file
+     * @return listed songs, directories and musiclists
+     */
+    public List<Entry> read(Path musicList) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(musicList, BasicFileAttributes.class);
+        String key = musicList.toAbsolutePath().normalize().toString();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        Parsed cached = this.cache.get(key);
+        if (cached != null && cached.size() == attributes.size() && cached.lastModified() == lastModified) {
+            return cached.entries();
+        }
+        List<Entry> entries = parse(musicList);
+        this.cache.put(key, new Parsed(attributes.size(), lastModified, List.copyOf(entries)));
+        return entries;
+    }
+
+    /**
+     * Forgets every parsed list.
+     */
+    public void clearCache() {
+        this.cache.clear();
+    }
+
+    private List<Entry> parse(Path musicList) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        List<String> batch = new ArrayList<>(CHECK_BATCH_SIZE);
+        // malformed bytes become U+FFFD like new String(bytes, UTF_8) did, instead of failing the read
+        InputStreamReader decoder = new InputStreamReader(Files.newInputStream(musicList),
+                StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE));
+        try (BufferedReader reader = new BufferedReader(decoder, 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                batch.add(line);
+                if (batch.size() >= CHECK_BATCH_SIZE) {
+                    checkBatch(batch, entries);
+                    batch.clear();
+                }
+            }
+        }
+        checkBatch(batch, entries);
+        return entries;
+    }
+
+    /**
+     * Checks a batch of listed paths in parallel and appends the ones kept, in order.
+     */
+    private static void checkBatch(List<String> lines, List<Entry> entries) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        Entry[] checked = new Entry[lines.size()];
+        List<ForkJoinTask<?>> slices = new ArrayList<>();
+        for (int from = 0; from < lines.size(); from += CHECK_SLICE_SIZE) {
+            int start = from;
+            int end = Math.min(from + CHECK_SLICE_SIZE, lines.size());
+            slices.add(ForkJoinTask.adapt(() -> {
+                for (int i = start; i < end; i++) {
+                    checked[i] = check(lines.get(i));
+                }
+            }));
+        }
+        ForkJoinTask.invokeAll(slices);
+        for (Entry entry : checked) {
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * @return the entry for a listed path, or null if it isn't playable or is a
+     *         directory or musiclist that doesn't exist
+     */
+    private static Entry check(String line) {
+        File file = new File(line);
+        String lowerCase = line.toLowerCase(Locale.ROOT);
+        if (LibraryScanner.isSong(lowerCase)) {
+            return new Entry(file, Kind.SONG);
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        } catch (Exception e) {
+            return null;
+        }
+        if (attributes.isDirectory()) {
+            return new Entry(file, Kind.DIRECTORY);
+        }
+        if (lowerCase.endsWith(".musiclist")) {
+            return new Entry(file, Kind.MUSIC_LIST);
+        }
+        return null;
+    }
+}
@@ -1,32 +1,36 @@
 package com.linearity.pcmusicplayer;
 
+import javafx.animation.Animation;
 import javafx.animation.KeyFrame;
 import javafx.animation.Timeline;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
+import javafx.collections.ListChangeListener;
 import javafx.geometry.Insets;
 import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
 import javafx.geometry.Rectangle2D;
+import javafx.geometry.Side;
 import javafx.scene.Scene;
-import javafx.scene.chart.NumberAxis;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Screen;
 import javafx.stage.Stage;
-import javafx.stage.Popup;
-import javafx.geometry.Point2D;
 import javafx.util.Duration;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -36,112 +40,68 @@ import java.util.concurrent.atomic.AtomicLong;
  * @author connoryork (cxy1054@rit.edu)
  * @author mbroman (broman334@tamu.edu)
  */
-public class MusicPlayerGUI extends Application implements Observer {
-
-    public static final Random randomGenerator = new SecureRandom();
-    public static <T> void shuffleArray(T[] array){
-        int n = array.length;
-        // Loop over array.
-        
-        for (int i = 0; i < array.length; i++) {
-            // Get a random index of the array past the current index.
-            // ... The argument is an exclusive bound.
-            //     It will not go past the array send.
-            int randomValue = i + randomGenerator.nextInt(n - i);
-            // Swap the random element with the present element.
-            T randomElement = array[randomValue];
-            array[randomValue] = array[i];
-            array[i] = randomElement;
-        }
-    }
-    public static void shuffleArray(int[] array){
-        int n = array.length;
-        // Loop over array.
-        for (int i = 0; i < array.length; i++) {
-            // Get a random index of the array past the current index.
-            // ... The argument is an exclusive bound.
-            //     It will not go past the array send.
-            int randomValue = i + randomGenerator.nextInt(n - i);
-            // Swap the random element with the present element.
-            int randomElement = array[randomValue];
-            array[randomValue] = array[i];
-            array[i] = randomElement;
-        }
-    }
-    private static void executeFile(File f, List<File> Songlist){
-        executeFile(f,Songlist,new HashSet<>());
-    }
-    private static void executeFile(File f, List<File> Songlist, Set<String> Folders) {
-        if (f.isDirectory()){
-            if (Folders.contains(f.getAbsolutePath())){
-                return;
-            }
-            Folders.add(f.getAbsolutePath());
-            File[] files = f.listFiles();
-            if (files == null){return;}
-            for (File f0:files){
-                executeFile(f0,Songlist,Folders);
-            }
-            return;
-        }
-        String fileAbs = f.getAbsolutePath();
-        String end = fileAbs.toLowerCase();
-        String[] arr = end.split("\\.");
-        end = arr[arr.length-1];
-        if (end.equals("mp3")
-                || end.equals("wav")) {//I don't want to check it.
-            Songlist.add(f);
-        }
-        else if(end.equals("musiclist") && f.canRead()){
-            try {
-                FileInputStream fileInputStream = new FileInputStream(f);
-                byte[] fileBytes = new byte[(int) f.length()];
-                fileInputStream.read(fileBytes);
-                fileInputStream.close();
-                String fileStr = new String(fileBytes, StandardCharsets.UTF_8);
-                for (String str:fileStr.split("\n")){
-//                                str = str.replace("\n","\\\n");
-                    if (str.isEmpty()){continue;}
-                    if (str.endsWith("\r")){
-                        str = str.substring(0,str.length() - 1);
-                    }
-                    File file1 = new File(str);
-                    if (file1.exists()) {
-                        //and I'll always check it.
-                        String str1 = str.toLowerCase();
-                        if (str1.endsWith(".mp3") || str1.endsWith(".wav")){
-                            Songlist.add(file1);
-                        }
-                        else if (file1.isDirectory() || str1.endsWith(".musiclist")){
-                            executeFile(file1,Songlist,Folders);
-                        }
-                    }
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
-//        Log.d("linearity", String.valueOf(Songlist.size()));
-    }
-
+public class MusicPlayerGUI extends Application implements PlaybackListener {
 
     /** CONSTANTS FOR GUI */
     private static final int DEFAULT_PADDING = 5;
     private static final int DEFAULT_SPACING = 10;
     private static final int DEFAULT_SLIDER_HEIGHT = 180;
-    private static final double DEFAULT_UPDATER_DURATION = 2.0;
+    /** Ranked search hits offered under the filter field */
+    private static final int MAX_SUGGESTIONS = 10;
+    /** How often the session is saved while the player runs */
+    private static final int SESSION_SAVE_SECONDS = 10;
 
     /** Model for easy access */
     private MusicPlayerModel model;
+    /** What earlier scans found, so unchanged directories aren't listed again */
+    private LibraryIndex libraryIndex;
+    /** Finds songs in directories and musiclists off the FX thread */
+    private LibraryScanner libraryScanner;
+    /** Reads tags and durations for the playlist rows on screen */
+    private MetadataService metadataService;
+    /** Words of every scanned song's names and probed tags, for ranked search */
+    private SongSearchIndex songSearchIndex;
+    /** Scan currently filling the playlist, if any */
+    private LibraryScanner.Scan libraryScan;
+    /** Measures the loudness of songs without ReplayGain tags in the background */
+    private LoudnessScanner loudnessScanner;
+    /** Loudness analysis started after the last finished scan, if any */
+    private LoudnessScanner.Analysis loudnessAnalysis;
+    /** Session saved by the last run, until it is resumed */
+    @Nullable
+    private SessionSnapshot savedSession;
+    /** Saves the session every SESSION_SAVE_SECONDS while the player runs */
+    private Timeline sessionSaver;
+    /** Writes session snapshots off the FX thread */
+    private final ExecutorService sessionWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "session-writer");
+        t.setDaemon(true);
+        return t;
+    });
+    /** Playlist version in the snapshot file, -1 if the file must be written whole */
+    private volatile int savedPlaylistVersion = -1;
+    /** What consecutive songs should differ in when shuffling */
+    private ShuffleOrder.Spread spread = ShuffleOrder.Spread.NONE;
+    /** Decoded audio of the last songs played, so going back to one doesn't decode it again */
+    @Nullable
+    private PcmCache pcmCache;
+    /** Waveforms drawn in the song slider */
+    private WaveformStore waveformStore;
+    /** Records how long the FX thread takes to get to queued work */
+    private final FxStallMonitor fxStallMonitor = new FxStallMonitor(Platform::runLater);
 
     /** Play/Pause button for easy access */
     private Button play;
     /** Volume Slider for easy access */
     private Slider volumeSlider;
     /** Song Slider for easy access */
-    private Slider songSlider;
+    private WaveformSeekBar songSlider;
     /** Stage for easy access */
     private Stage stage;
+    /** Song whose title and length the GUI currently shows */
+    private SongBean shownSong;
+    /** Button images, loaded once */
+    private final Map<String, Image> images = new HashMap<>();
 
     /**
      * Launches the GUI.
@@ -153,12 +113,28 @@ public class MusicPlayerGUI extends Application implements Observer {
     }
 
     /**
-     * Initializes the model and sets the GUI as an observer.
+     * Initializes the model and registers the GUI for its playback events.
+     * Runs on the launcher thread, so the library index is read here rather than in start().
      */
     @Override
     public void init() {
+        this.libraryIndex = LibraryIndex.loadDefault();
+        this.libraryScanner = new LibraryScanner(this.libraryIndex);
+        this.metadataService = new MetadataService(MetadataService.DEFAULT_CACHE_SIZE, Platform::runLater, this.libraryIndex);
+        this.pcmCache = PcmCache.createTemporary(PcmCache.DEFAULT_MAX_BYTES, PcmCache.DEFAULT_MAX_TRACKS);
+        PcmSource.setCache(this.pcmCache);
         this.model = new MusicPlayerModel();
-        this.model.addObserver(this);
+        this.songSearchIndex = new SongSearchIndex(this.model.getPathTable());
+        this.metadataService.setProbeListener(this.songSearchIndex::addTags);
+        this.model.setCallbackExecutor(Platform::runLater);
+        this.model.addPlaybackListener(this);
+        this.model.getDspChain().setReplayGainLookup(this.libraryIndex::replayGainFor);
+        this.waveformStore = WaveformStore.openDefault();
+        this.loudnessScanner = new LoudnessScanner(this.libraryIndex, this.model::isRunning, this.waveformStore);
+        this.savedSession = SessionSnapshot.load(SessionSnapshot.defaultFile(), this.model.getPathTable());
+        if (this.savedSession != null && this.savedSession.getShuffle() != null) {
+            this.spread = this.savedSession.getShuffle().spread();
+        }
     }
 
     /**
@@ -178,13 +154,6 @@ public class MusicPlayerGUI extends Application implements Observer {
         primaryStage.setResizable(true);
         primaryStage.setAlwaysOnTop(false);
 
-        /* Starts a TimeLine that automatically updates the gui every second.
-        This allows for the song slider to move with the song's position */
-        KeyFrame updater = new KeyFrame(Duration.seconds(DEFAULT_UPDATER_DURATION), event -> notifytheGUI());
-        Timeline t = new Timeline(updater);
-        t.setCycleCount(Timeline.INDEFINITE);
-        t.play();
-
         primaryStage.show();
 
         Rectangle2D screen = Screen.getPrimary().getVisualBounds();
@@ -193,22 +162,102 @@ public class MusicPlayerGUI extends Application implements Observer {
 
 
         {
-            List<File> actuallyPlaylist = new ArrayList<>();
             File defaultList = new File("all.musiclist");
-            if (defaultList.exists() && defaultList.isFile()) {
-                executeFile(defaultList,actuallyPlaylist);
-                File[] files = actuallyPlaylist.toArray(new File[0]);
-                shuffleArray(files);
-                int counter = 0;
-                for (File f:files){
-                    System.out.printf(counter+".");
-                    System.out.println(f.getName());
-                    counter += 1;
-                }
-                this.model.setPlaylist(List.of(files));
-                loadPlaylistSong();
+            List<File> roots = defaultList.exists() && defaultList.isFile() ? List.of(defaultList) : List.of();
+            SessionSnapshot session = this.savedSession;
+            this.savedSession = null;
+            if (session != null && session.getTrackIds().length > 0) {
+                resumeSession(session, roots);
+            } else if (!roots.isEmpty()) {
+                scanIntoPlaylist(Collections.emptyList(), roots);
             }
         }
+        this.sessionSaver = new Timeline(new KeyFrame(Duration.seconds(SESSION_SAVE_SECONDS), event -> saveSession()));
+        this.sessionSaver.setCycleCount(Animation.INDEFINITE);
+        this.sessionSaver.play();
+        this.fxStallMonitor.start();
+    }
+
+    /**
+     * JavaFX stop method. Releases the audio output.
+     */
+    @Override
+    public void stop() {
+        this.fxStallMonitor.stop();
+        if (this.libraryScan != null) {
+            this.libraryScan.cancel();
+        }
+        if (this.loudnessAnalysis != null) {
+            this.loudnessAnalysis.cancel();
+        }
+        this.libraryScanner.shutdown();
+        this.loudnessScanner.shutdown();
+        this.waveformStore.shutdown();
+        this.metadataService.shutdown();
+        if (this.sessionSaver != null) {
+            this.sessionSaver.stop();
+            saveSession();
+        }
+        this.model.shutdown();
+        if (this.pcmCache != null) {
+            PcmSource.setCache(null);
+            this.pcmCache.close();
+        }
+        try {
+            this.libraryIndex.save();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        this.sessionWriter.shutdown();
+        try {
+            this.sessionWriter.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the playback metrics to metrics.txt in the data directory, off the FX thread.
+     */
+    private void saveMetrics() {
+        File file = PlayerFiles.dataFile("metrics.txt");
+        this.sessionWriter.execute(() -> {
+            try {
+                PlayerMetrics.dump(file);
+                System.out.println("Saved metrics to " + file.getAbsolutePath());
+            } catch (Exception e) {
+                System.out.println("Failed to save metrics.");
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Saves the playlist, the playback position and the volume. The whole snapshot is
+     * written when the playlist changed since the last save; otherwise only its header.
+     */
+    private void saveSession() {
+        int version = this.model.getPlaylistVersion();
+        boolean whole = version != this.savedPlaylistVersion;
+        SessionSnapshot.Playback playback = this.model.capturePlayback(Double.longBitsToDouble(this.currentVolume.get()));
+        ShuffleOrder.State shuffle = this.model.getShuffleState();
+        this.savedPlaylistVersion = version;
+        PathTable paths = this.model.getPathTable();
+        this.sessionWriter.execute(() -> {
+            File file = SessionSnapshot.defaultFile();
+            try {
+                if (whole || !file.isFile()) {
+                    // drawn and copied here, off the FX thread
+                    new SessionSnapshot(playback, shuffle, this.model.capturePlaylist()).save(file, paths);
+                } else {
+                    new SessionSnapshot(playback, shuffle, new int[0]).saveHeader(file);
+                }
+            } catch (Exception e) {
+                this.savedPlaylistVersion = -1;
+                e.printStackTrace();
+                System.out.println("Failed to save session.");
+            }
+        });
     }
 
     /*******************************************************
@@ -232,25 +281,94 @@ public class MusicPlayerGUI extends Application implements Observer {
         bp.setLeft(buildSongList());
         return bp;
     }
-    private ListView<SongBean> buildSongList(){
+
+    /**
+     * Builds the playlist view with a filter field above it. While the field holds text,
+     * the list shows only the songs whose file or directory name contains it, and a menu
+     * under the field offers the best ranked matches of its words, also by tags; picking
+     * one, or pressing Enter for the first, plays it.
+     *
+     * @return filter field and playlist in a VBox
+     */
+    private VBox buildSongList(){
         ListView<SongBean> listView = new ListView<>();
         listView.setPrefSize(300, 80);
         listView.setItems(this.model.getPlaylist());
+        TextField filter = new TextField();
+        filter.setPromptText("Filter playlist");
+        Runnable applyFilter = () -> {
+            String query = filter.getText();
+            if (query == null || query.isBlank()) {
+                listView.setItems(this.model.getPlaylist());
+                return;
+            }
+            listView.setItems(FXCollections.observableList(this.model.searchPlaylist(query)));
+        };
+        ContextMenu suggestions = new ContextMenu();
+        List<SongSearchIndex.Hit> hits = new ArrayList<>();
+        filter.textProperty().addListener((observable, oldText, newText) -> {
+            applyFilter.run();
+            hits.clear();
+            if (newText != null && newText.strip().length() >= 2) {
+                hits.addAll(this.songSearchIndex.search(newText, MAX_SUGGESTIONS));
+            }
+            suggestions.getItems().clear();
+            for (SongSearchIndex.Hit hit : hits) {
+                File songFile = hit.songFile();
+                File parent = songFile.getParentFile();
+                MenuItem item = new MenuItem(songFile.getName() + (parent == null ? "" : "  (" + parent.getName() + ")"));
+                item.setOnAction(e -> playPlaylistSong(this.model.positionOf(songFile)));
+                suggestions.getItems().add(item);
+            }
+            if (hits.isEmpty()) {
+                suggestions.hide();
+            } else if (!suggestions.isShowing()) {
+                suggestions.show(filter, Side.BOTTOM, 0, 0);
+            }
+        });
+        filter.setOnAction(e -> {
+            if (!hits.isEmpty()) {
+                suggestions.hide();
+                playPlaylistSong(this.model.positionOf(hits.get(0).songFile()));
+            }
+        });
+        // songs found by a running scan show up in the filtered list too
+        this.model.getPlaylist().addListener((ListChangeListener<SongBean>) change -> {
+            if (listView.getItems() != this.model.getPlaylist()) {
+                applyFilter.run();
+            }
+        });
+        listView.setCellFactory(view -> new SongListCell(this.metadataService));
         listView.setOnMouseClicked(event -> {
             if (event.getClickCount() >= 2){
                 SongBean selected = listView.getSelectionModel().getSelectedItem();
-                int index = selected.index();
-                this.model.loadSpecificSong(index);
-                boolean wasRunning = false;
-                if (this.model.hasClip() && this.model.isRunning()) {
-                    this.model.stop();
-                    wasRunning = true;
+                if (selected == null) {
+                    return;
                 }
-                loadSongTitleAndVolume(selected, wasRunning);
-                this.model.start();
+                playPlaylistSong(selected.index());
             }
         });
-        return listView;
+        VBox.setVgrow(listView, Priority.ALWAYS);
+        return new VBox(filter, listView);
+    }
+
+    /**
+     * Loads and plays a playlist song.
+     *
+     * @param index playlist index; nothing happens if it is negative
+     */
+    private void playPlaylistSong(int index) {
+        if (index < 0) {
+            return;
+        }
+        boolean wasRunning = false;
+        if (this.model.hasClip() && this.model.isRunning()) {
+            this.model.stop();
+            wasRunning = true;
+        }
+        boolean finalWasRunning = wasRunning;
+        // the song is shown by onSongChanged
+        this.model.loadSpecificAsync(index).thenAccept(song -> this.model.start());
     }
 
     /**
@@ -281,7 +399,7 @@ public class MusicPlayerGUI extends Application implements Observer {
             if (this.model.hasPlaylist() && this.model.getClipCurrentValue() == 0)
                 this.loadPrevPlaylistSong();
             else
-                this.model.rewindToStart();
+                this.model.seekAsync(0);
         });
         return rewind;
     }
@@ -297,10 +415,9 @@ public class MusicPlayerGUI extends Application implements Observer {
         play.setOnAction(e -> {
             if (this.model.hasClip()) {
                 if (this.model.atEnd()) { // song ended but play button was pressed
-                    this.model.setSongPosition(0);
                     this.songSlider.setValue(0);
                     setImage(play, "pause.png");
-                    this.model.start();
+                    this.model.seekAsync(0).thenRun(this.model::start);
                 } else if (!this.model.isRunning()) { // paused
                     setImage(play, "pause.png");
                     this.model.start();
@@ -335,13 +452,17 @@ public class MusicPlayerGUI extends Application implements Observer {
     }
 
     /**
-     * Sets the image of the Button.
+     * Sets the image of the Button. Each image file is only read the first time.
      *
      * @param b Button object
      * @param filename filename of image
      */
     private void setImage(ButtonBase b, String filename) {
-        Image image = new Image(getClass().getClassLoader().getResourceAsStream(filename));
+        Image image = this.images.computeIfAbsent(filename,
+                name -> new Image(getClass().getClassLoader().getResourceAsStream(name)));
+        if (b.getGraphic() instanceof ImageView view && view.getImage() == image) {
+            return;
+        }
         b.setGraphic(new ImageView(image));
     }
 
@@ -400,59 +521,55 @@ public class MusicPlayerGUI extends Application implements Observer {
                     new FileChooser.ExtensionFilter("All Files", "*.*")
             );
             List<File> newPlaylist = playlistChooser.showOpenMultipleDialog(this.stage);
-            List<File> actuallyPlaylist = new ArrayList<>();
+            if (newPlaylist == null) {
+                return;
+            }
+            List<File> songs = new ArrayList<>();
+            List<File> musicLists = new ArrayList<>();
             for (File file : newPlaylist) {
                 if (file.getName().endsWith(".musiclist")) {
-                    executeFile(file,actuallyPlaylist);
+                    musicLists.add(file);
                 } else {
-                    actuallyPlaylist.add(file);
+                    songs.add(file);
                 }
             }
-            File[] files = actuallyPlaylist.toArray(new File[0]);
-            shuffleArray(files);
-            newPlaylist = List.of(files);
-            this.model.setPlaylist(newPlaylist);
-            loadPlaylistSong();
+            scanIntoPlaylist(songs, musicLists);
 
         });
         menuChoose.getItems().addAll(songItem, playlistItem);
-        menuBar.getMenus().addAll(menuChoose);
+        // spread modes; picking one reshuffles everything after the current song
+        Menu menuShuffle = new Menu("Shuffle");
+        ToggleGroup spreads = new ToggleGroup();
+        String[] spreadNames = {"Any Order", "Spread Directories", "Spread Artists"};
+        for (ShuffleOrder.Spread spread : ShuffleOrder.Spread.values()) {
+            RadioMenuItem spreadItem = new RadioMenuItem(spreadNames[spread.ordinal()]);
+            spreadItem.setToggleGroup(spreads);
+            spreadItem.setSelected(spread == this.spread);
+            spreadItem.setOnAction(event -> {
+                this.spread = spread;
+                SongBean current = this.model.getCurrentSong();
+                this.model.shuffleAll(ShuffleOrder.newOrder(spread), current == null ? null : current.songFile());
+            });
+            menuShuffle.getItems().add(spreadItem);
+        }
+        Menu menuDiagnostics = new Menu("Diagnostics");
+        MenuItem saveMetricsItem = new MenuItem("Save Metrics");
+        saveMetricsItem.setOnAction(event -> saveMetrics());
+        menuDiagnostics.getItems().add(saveMetricsItem);
+        menuBar.getMenus().addAll(menuChoose, menuShuffle, menuDiagnostics);
         return menuBar;
     }
 
     /**
-     * Builds the song slider, which changes song position based on mouse movement
-     * of the slider. Also shows time positions in the song by moving the cursor over
-     * the slider.
+     * Builds the song slider, which draws the song's waveform and changes song position
+     * when clicked or dragged. Also shows time positions in the song by moving the cursor
+     * over the slider.
      *
-     * @return Slider that manages song position
+     * @return WaveformSeekBar that manages song position
      */
-    private Slider buildSongSlider() {
-        Slider songSlider = new Slider(0, 0, 0);
-        songSlider.setShowTickMarks(true);
-        songSlider.setShowTickLabels(false);
-        songSlider.setMajorTickUnit(60 * 44231.5636364);
-
-        Label label = new Label();
-        Popup popup = new Popup();
-        popup.getContent().add(label);
-        songSlider.setOnMouseClicked(event -> this.model.setSongPosition(((int) songSlider.getValue())));
-        songSlider.setOnMouseMoved(e -> {
-            NumberAxis axis = (NumberAxis) songSlider.lookup(".axis");
-            Point2D location = axis.sceneToLocal(e.getSceneX(), e.getSceneY());
-            double mouseX = location.getX();
-            double value = axis.getValueForDisplay(mouseX).doubleValue();
-            if (value >= songSlider.getMin() && value <= songSlider.getMax()) {
-                label.setText(String.format("%d:%02d",(int)(value/44231.5636364)/60,(int)(value/44231.5636364)%60));
-            } else {
-                label.setText("");
-            }
-            popup.setAnchorX(e.getScreenX() - 5);
-            popup.setAnchorY(e.getScreenY() - 20);
-        });
-
-        songSlider.setOnMouseEntered(e -> popup.show(songSlider, e.getScreenX() - 5, e.getScreenY() - 20));
-        songSlider.setOnMouseExited(e -> popup.hide());
+    private WaveformSeekBar buildSongSlider() {
+        WaveformSeekBar songSlider = new WaveformSeekBar();
+        songSlider.setOnSeek(frame -> this.model.seekAsync((int) frame));
 
         this.songSlider = songSlider;
         songSlider.setPadding(new Insets(DEFAULT_PADDING));
@@ -472,23 +589,161 @@ public class MusicPlayerGUI extends Application implements Observer {
      * @param songBean song file and index to load
      */
     public void loadSong(SongBean songBean) {
-        File songFile = songBean.songFile();
         if (this.model.hasClip() && this.model.isRunning()) {
             this.model.stop();
         }
-        this.model.changeSong(songBean);
-        this.stage.setTitle(songFile.getName() + " ~ MusicPlayer");
+        this.model.loadAsync(songBean).thenAccept(song -> showOpenedSongVolume());
+    }
+
+    /**
+     * Puts the volume slider of a song opened from a file halfway up its range. The song
+     * itself is shown by onSongChanged.
+     */
+    private void showOpenedSongVolume() {
         int MIN_VOLUME = (int) this.model.getMinVolume();
         int MAX_VOLUME = (int) this.model.getMaxVolume();
-        // update volume slider
         int half = (MAX_VOLUME + MIN_VOLUME)/2;
         this.volumeSlider.setMax(MAX_VOLUME);
         this.volumeSlider.setMin(half);
         this.volumeSlider.setValue((MAX_VOLUME + half) /2.);
-        // update song slider
-        this.songSlider.setMax(this.model.getClipLength());
-        this.songSlider.setMin(0);
-        this.songSlider.setValue(0);
+    }
+
+    /**
+     * Shows a song's waveform in the song slider once it is read or made, and its times
+     * at its own sample rate.
+     *
+     * @param songBean song just loaded
+     */
+    private void showWaveform(SongBean songBean) {
+        this.songSlider.setFrameRate(this.model.getClipFrameRate());
+        this.songSlider.setPeaks(null);
+        this.waveformStore.request(songBean.songFile(), peaks -> Platform.runLater(() -> {
+            if (this.shownSong == songBean) {
+                this.songSlider.setPeaks(peaks);
+            }
+        }));
+    }
+
+    /**
+     * Replaces the playlist with the given songs plus whatever a background scan of the
+     * given roots finds. Found songs are shuffled in as they arrive; the first one is
+     * loaded right away, and the whole playlist is shuffled again once the scan ends,
+     * the song playing by then first.
+     *
+     * @param songs songs to start the playlist with
+     * @param roots directories and musiclists to scan
+     */
+    private void scanIntoPlaylist(List<File> songs, List<File> roots) {
+        this.songSearchIndex.clear();
+        this.songSearchIndex.addSongs(songs);
+        ShuffleOrder shuffle = ShuffleOrder.newOrder(this.spread);
+        this.model.setPlaylist(songs, shuffle);
+        if (!songs.isEmpty()) {
+            loadFirstPlaylistSong();
+        }
+        scanLibrary(roots, () -> {
+            SongBean current = this.model.getCurrentSong();
+            this.model.shuffleAll(shuffle.restart(), current == null ? null : current.songFile());
+        });
+    }
+
+    /**
+     * Puts back the playlist saved by the last run and carries on with the song that was
+     * playing, at the frame it was at, without waiting for the library. The roots are
+     * scanned meanwhile; songs the saved playlist lacks are shuffled in, and the saved
+     * order is kept.
+     * The saved songs are searchable right away, not just the ones the scan finds again.
+     *
+     * @param session snapshot of the last run
+     * @param roots directories and musiclists to scan
+     */
+    private void resumeSession(SessionSnapshot session, List<File> roots) {
+        double volume = session.getPlayback().volume();
+        if (!Double.isNaN(volume)) {
+            setCurrentVolume(volume);
+        }
+        this.songSearchIndex.clear();
+        PathTable paths = this.model.getPathTable();
+        int[] trackIds = session.getTrackIds();
+        List<File> songs = new ArrayList<>(trackIds.length);
+        for (int id : trackIds) {
+            songs.add(paths.file(id));
+        }
+        this.songSearchIndex.addSongs(songs);
+        this.savedPlaylistVersion = -1;
+        this.model.resumeSession(session).thenAccept(song -> {
+            if (song != null) {
+                this.songSlider.setValue(this.model.getClipCurrentValue());
+            }
+        });
+        scanLibrary(roots, null);
+    }
+
+    /**
+     * Scans roots in the background, appending what it finds to the playlist.
+     * Loads the first song found if the playlist was empty.
+     *
+     * @param roots directories and musiclists to scan
+     * @param whenDone run on the FX thread if the scan finishes without being cancelled
+     */
+    private void scanLibrary(List<File> roots, @Nullable Runnable whenDone) {
+        if (this.libraryScan != null) {
+            this.libraryScan.cancel();
+        }
+        if (roots.isEmpty()) {
+            this.libraryScan = null;
+            return;
+        }
+        this.libraryScan = this.libraryScanner.scan(roots, new LibraryScanner.Listener() {
+            @Override
+            public void onTracksFound(List<File> tracks) {
+                songSearchIndex.addSongs(tracks);
+                Platform.runLater(() -> {
+                    boolean first = model.getPlaylist().isEmpty();
+                    model.appendToPlaylist(tracks);
+                    if (first) {
+                        loadFirstPlaylistSong();
+                    }
+                });
+            }
+
+            @Override
+            public void onProgress(long directoriesScanned, long tracksFound) {
+                Platform.runLater(() -> {
+                    if (shownSong == null) {
+                        stage.setTitle("Scanning... " + tracksFound + " songs ~ MusicPlayer");
+                    }
+                });
+            }
+
+            @Override
+            public void onFinished(boolean cancelled) {
+                if (!cancelled) {
+                    Platform.runLater(() -> {
+                        if (whenDone != null) {
+                            whenDone.run();
+                        }
+                        analyzeLoudness();
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts measuring the loudness of newly found songs, unless a run is still going.
+     */
+    private void analyzeLoudness() {
+        if (this.loudnessAnalysis == null || this.loudnessAnalysis.isDone()) {
+            this.loudnessAnalysis = this.loudnessScanner.analyzeMissing();
+        }
+    }
+
+    /**
+     * Loads the first song of the playlist without starting it.
+     */
+    private void loadFirstPlaylistSong() {
+        this.model.loadSpecificAsync(0);
     }
 
     private final AtomicLong currentVolume = new AtomicLong(Double.doubleToLongBits(Double.NaN));
@@ -517,12 +772,25 @@ public class MusicPlayerGUI extends Application implements Observer {
             this.model.stop();
             wasRunning = true;
         }
-        SongBean song = this.model.loadNextSong();
-        this.model.changeSong(song);
-        loadSongTitleAndVolume(song, wasRunning);
+        boolean finalWasRunning = wasRunning;
+        this.model.nextAsync().thenAccept(song -> continuePlaying(finalWasRunning));
+    }
+
+    /**
+     * Starts the song just loaded if the one before it was playing. The song itself is
+     * shown by onSongChanged, once per change.
+     *
+     * @param wasRunning whether the previous song was playing
+     */
+    private void continuePlaying(boolean wasRunning) {
+        if (wasRunning) {
+            setImage(this.play, "pause.png");
+            this.model.start();
+        }
     }
 
-    private void loadSongTitleAndVolume(SongBean songBean, boolean wasRunning) {
+    private void loadSongTitleAndVolume(@Nullable SongBean songBean) {
+        this.shownSong = songBean;
         if (songBean == null) {
             this.stage.setTitle("MusicPlayer");
         }else {
@@ -539,14 +807,8 @@ public class MusicPlayerGUI extends Application implements Observer {
             this.model.volumeChange(getCurrentVolume());
             // update song slider
             this.songSlider.setMax(this.model.getClipLength());
-            this.songSlider.setMin(0);
             this.songSlider.setValue(0);
-            // update play/pause button
-            if (wasRunning) {
-                setImage(this.play, "pause.png");
-                this.model.start();
-            }
-            this.model.volumeChange(getCurrentVolume());
+            showWaveform(songBean);
         }
     }
 
@@ -560,8 +822,8 @@ public class MusicPlayerGUI extends Application implements Observer {
             this.model.stop();
             wasRunning = true;
         }
-        SongBean song = this.model.loadPrevSong();
-        loadSongTitleAndVolume(song, wasRunning);
+        boolean finalWasRunning = wasRunning;
+        this.model.prevAsync().thenAccept(song -> continuePlaying(finalWasRunning));
 //        this.stage.setTitle(song.getName() + " ~ MusicPlayer");
 //        int MIN_VOLUME = (int) this.model.getMinVolume();
 //        int MAX_VOLUME = (int) this.model.getMaxVolume();
@@ -584,41 +846,44 @@ public class MusicPlayerGUI extends Application implements Observer {
     }
 
     /**
-     * Notifies the GUI to update.
+     * Keeps the play button in sync. Moving on to the next song when one ends is up to
+     * the model; it is shown through onSongChanged.
      *
-     * Used by the TimeLine to update the song sliders position.
+     * @param state new playback state
      */
-    public void notifytheGUI() {
-        this.model.announceChanges();
+    @Override
+    public void onStateChanged(State state) {
+        setImage(this.play, state == State.PLAYING ? "pause.png" : "play.png");
     }
 
-
     /**
-     * Updates GUI based on changes in the model
+     * Shows the song now loaded, whether the user picked it or the model moved on by itself.
+     * This is the only place a song change is shown, so each change draws one waveform.
      *
-     * @param o not used
-     * @param arg not used
+     * @param song song now loaded, or null if none is
      */
     @Override
-    public void update(java.util.Observable o, Object arg) {
-        // make sure play button is in sync
-        if (this.model.isRunning()) {
-            setImage(this.play, "pause.png");
+    public void onSongChanged(@Nullable SongBean song) {
+        if (song != this.shownSong) {
+            loadSongTitleAndVolume(song);
         }
-        else {
-            setImage(this.play, "play.png");
+    }
+
+    /**
+     * Moves the song slider along with playback, unless the user is dragging it.
+     *
+     * @param frame current position
+     * @param frameLength song length
+     */
+    @Override
+    public void onPositionChanged(long frame, long frameLength) {
+        if (this.songSlider.isValueChanging()) {
+            return;
         }
-        if (this.model.hasClip()) {
-            if (this.model.atEnd()) {
-                if (this.model.hasPlaylist()) {
-                    this.loadPlaylistSong();
-                } else {
-                    setImage(this.play, "play.png");
-                }
-            }
-            // update slider based on current song position
-            this.songSlider.setValue(this.model.getClipCurrentValue());
+        if (frameLength > 0 && frameLength != (long) this.songSlider.getMax()) {
+            this.songSlider.setMax(frameLength);
+            this.songSlider.setFrameRate(this.model.getClipFrameRate());
         }
-
+        this.songSlider.setValue(frame);
     }
 }
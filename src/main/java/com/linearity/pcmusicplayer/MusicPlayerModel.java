@@ -1,15 +1,16 @@
 package com.linearity.pcmusicplayer;
 
-import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import org.jetbrains.annotations.Nullable;
 
-import javax.sound.sampled.*;
 import java.io.File;
+import java.util.AbstractList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Observable;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Model file of the Model-View-Controller design pattern.
@@ -19,19 +20,71 @@ import java.util.concurrent.atomic.AtomicInteger;
  * @author connoryork (cxy1054@rit.edu)
  * @author mbroman (broman334@tamu.edu)
  */
-public class MusicPlayerModel extends Observable {
+public class MusicPlayerModel {
+
+    /** Decoded audio held ahead for the next song, about 12 seconds of 44.1 kHz stereo */
+    public static final int DEFAULT_PREFETCH_BUDGET_BYTES = 2 * 1024 * 1024;
+    /** How often position events are sent while playing */
+    public static final long DEFAULT_POSITION_TICK_MILLIS = 100;
 
     public AtomicBoolean loadingFlag = new AtomicBoolean(true);
     /**
      * PRIVATE DATA MEMBERS
      */
-    private Clip clip;
-    private AudioInputStream audioStream;
-    private AudioInputStream decodedStream;
-    private AudioFormat baseFormat;
-    private AudioFormat decodeFormat;
-    private final ObservableList<SongBean> playlist = FXCollections.observableArrayList();
+    private final PlaybackEngine engine;
+    /** Every song path the model has seen; the playlist and search indexes hold ids into it */
+    private final PathTable pathTable = new PathTable();
+    private final Playlist playlist = new Playlist(this.pathTable);
     private final AtomicInteger playlistPosition = new AtomicInteger(0);
+    /** Holds the playlist's songs for type-to-filter search; FX thread only */
+    private final PlaylistSearchIndex searchIndex = new PlaylistSearchIndex(this.pathTable);
+    /** Set when the playlist was replaced; the search index is rebuilt on the next search */
+    private boolean searchIndexStale;
+    /** Order the playlist is drawn in, and the song it was told to put first; null if not shuffled */
+    private volatile ShuffleOrder shuffle;
+    private volatile File shuffleAnchor;
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "track-prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+    /** Runs decoding commands submitted through the async API, one at a time */
+    private final ExecutorService commandExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "model-commands");
+        t.setDaemon(true);
+        return t;
+    });
+    /** Bumped per submitted load/seek; a queued command only runs if it is still the latest */
+    private final AtomicLong loadGeneration = new AtomicLong();
+    private final AtomicLong seekGeneration = new AtomicLong();
+    private volatile Executor callbackExecutor = Runnable::run;
+    private Future<?> prefetchTask;
+    /** Song the prefetch task is decoding or has queued on the engine, until the engine plays it; guarded by this */
+    private SongBean prefetchSong;
+    private volatile int prefetchBudgetBytes = DEFAULT_PREFETCH_BUDGET_BYTES;
+    private volatile SongBean currentSong;
+    /** File version loaded in the engine, so loading it again can be skipped */
+    private volatile TrackKey currentKey;
+
+    private final List<PlaybackListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "position-ticks");
+        t.setDaemon(true);
+        return t;
+    });
+    private ScheduledFuture<?> tickTask;
+    /** Set while a refresh is queued on the callback executor, so bursts of changes make one */
+    private final AtomicBoolean refreshPending = new AtomicBoolean();
+    /** What listeners were last told; only touched by refreshes */
+    private volatile PlaybackListener.State publishedState = PlaybackListener.State.IDLE;
+    private volatile SongBean publishedSong;
+    private long publishedFrame = -1;
+    private long publishedLength = -1;
+
+    /** Time from one song's last frame to the next song's first, for every track change */
+    private final LatencyHistogram transitionLatencies = PlayerMetrics.TRANSITION_GAPS;
+    /** Set between the engine reporting the end of a song and the next song being started */
+    private final AtomicBoolean advancePending = new AtomicBoolean();
 
     /********************************************************
     *                                                       *
@@ -40,47 +93,48 @@ public class MusicPlayerModel extends Observable {
     ********************************************************/
 
     /**
-     * Constructor for the model. Essentially sets up the model with everything set to null.
+     * Constructor for the model. Plays through a StreamingPlaybackEngine that keeps
+     * MP3 seek indexes in the player's data directory.
      */
     public MusicPlayerModel() {
-        this.clip = null;
-        this.audioStream = null;
-        this.decodedStream = null;
-        this.baseFormat = null;
-        this.decodeFormat = null;
+        this(new StreamingPlaybackEngine(SeekIndexStore.openDefault()));
+    }
+
+    /**
+     * Constructor for the model.
+     *
+     * @param engine audio output to play songs through
+     */
+    public MusicPlayerModel(PlaybackEngine engine) {
+        this.engine = engine;
+        this.engine.setTrackAdvanceListener(this::onTrackAdvanced);
+        this.engine.setStateListener(this::onEngineStateChanged);
+        setPositionTickMillis(DEFAULT_POSITION_TICK_MILLIS);
     }
 
     /**
-     * Changes the song loaded onto the clip.
+     * Changes the song loaded into the playback engine.
+     * Loading the file that is already loaded, unchanged on disk, does not decode it again;
+     * if it had finished playing it is rewound instead.
      *
      * @param songBean file and index to change to currents song
      */
     public void changeSong(SongBean songBean) {
         File songFile = songBean.songFile();
         try {
-            if (this.clip != null) {
-                try {
-                    this.clip.close();
-                }catch (Exception e) {
-                    e.printStackTrace();
+            TrackKey key = TrackKey.of(songFile);
+            if (key.equals(this.currentKey) && this.engine.isOpen()) {
+                if (this.engine.isEndOfStream()) {
+                    this.engine.setFramePosition(0);
                 }
+            } else {
+                this.currentKey = null;
+                prefetchConsumed(songFile);
+                this.engine.open(songFile);
+                this.currentKey = key;
             }
-            this.audioStream = AudioSystem.getAudioInputStream(songFile);
-            this.baseFormat = audioStream.getFormat();
-            this.decodeFormat = new AudioFormat(
-                    AudioFormat.Encoding.PCM_SIGNED,
-                    baseFormat.getSampleRate(),
-                    16,
-                    baseFormat.getChannels(),
-                    baseFormat.getChannels() * 2,
-                    baseFormat.getSampleRate(),
-                    false
-            );
-            this.decodedStream = AudioSystem.getAudioInputStream(decodeFormat, audioStream);
-            this.clip = AudioSystem.getClip();
-
-            this.clip.open(decodedStream);
-            this.clip.setFramePosition(0);
+            this.currentSong = songBean;
+            prefetchNext();
         } catch (Exception e) {
             System.out.println("Failed to load audio.");
             System.out.println(songFile.getAbsolutePath());
@@ -90,18 +144,215 @@ public class MusicPlayerModel extends Observable {
         }
     }
 
+    /**
+     * Decodes the start of the song after the current one on the prefetch thread and
+     * queues it on the engine, so it follows the current song without a gap.
+     * At most one song is prefetched, holding at most prefetchBudgetBytes of audio.
+     * A song already being prefetched or waiting on the engine isn't decoded again.
+     */
+    private synchronized void prefetchNext() {
+        SongBean next = peekNextSong();
+        if (next != null && next.equals(this.prefetchSong)) {
+            return;
+        }
+        if (this.prefetchTask != null) {
+            this.prefetchTask.cancel(false);
+        }
+        this.prefetchSong = next;
+        if (next == null) {
+            this.engine.queueNext(null);
+            return;
+        }
+        int budget = this.prefetchBudgetBytes;
+        this.prefetchTask = this.prefetchExecutor.submit(() -> {
+            PcmSource source = null;
+            try {
+                source = PcmSource.open(next.songFile());
+                source.prefill(budget);
+                source.getReplayGain();
+                if (next.equals(peekNextSong())) {
+                    this.engine.queueNext(source);
+                    source = null;
+                }
+            } catch (Exception e) {
+                System.out.println("Failed to prefetch audio.");
+                System.out.println(next.songFile().getAbsolutePath());
+                e.printStackTrace();
+                prefetchDropped(next);
+            } finally {
+                if (source != null) {
+                    prefetchDropped(next);
+                    try {
+                        source.close();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets the prefetched song once the engine has been asked to play it, so the song
+     * after it gets prefetched even if it is the same file.
+     */
+    private synchronized void prefetchConsumed(File songFile) {
+        if (this.prefetchSong != null && this.prefetchSong.songFile().equals(songFile)) {
+            this.prefetchSong = null;
+        }
+    }
+
+    /**
+     * Forgets a prefetch that didn't end up queued on the engine.
+     */
+    private synchronized void prefetchDropped(SongBean song) {
+        if (song.equals(this.prefetchSong)) {
+            this.prefetchSong = null;
+        }
+    }
+
+    /**
+     * Called by the engine once it has moved on to the queued song by itself.
+     */
+    private void onTrackAdvanced(File songFile, long gapNanos) {
+        prefetchConsumed(songFile);
+        SongBean next = peekNextSong();
+        if (next == null || !next.songFile().equals(songFile)) {
+            return;
+        }
+        recordTransition(songFile, gapNanos);
+        this.playlistPosition.set(next.index());
+        this.currentSong = next;
+        this.currentKey = TrackKey.of(songFile);
+        prefetchNext();
+        announceChanges();
+    }
+
+    /**
+     * Called by the engine on every state change. The moment the last frame of a song has
+     * played, the next song in the playlist is loaded and started on the command thread,
+     * without a round trip through the GUI.
+     */
+    private void onEngineStateChanged() {
+        if (this.engine.isEndOfStream() && !this.playlist.isEmpty()
+                && this.advancePending.compareAndSet(false, true)) {
+            long endedAt = System.nanoTime();
+            long loadTicket = this.loadGeneration.get();
+            long seekTicket = this.seekGeneration.get();
+            try {
+                this.commandExecutor.execute(() -> advanceAfterEnd(endedAt, loadTicket, seekTicket));
+            } catch (RejectedExecutionException e) {
+                this.advancePending.set(false);
+            }
+        }
+        announceChanges();
+    }
+
+    /**
+     * Starts the next song after the current one ended by itself, unless the user loaded
+     * or seeked something in the meantime. Runs on the command thread.
+     */
+    private void advanceAfterEnd(long endedAt, long loadTicket, long seekTicket) {
+        this.advancePending.set(false);
+        if (loadTicket != this.loadGeneration.get() || seekTicket != this.seekGeneration.get()
+                || !this.engine.isEndOfStream() || this.playlist.isEmpty()) {
+            return;
+        }
+        this.loadGeneration.incrementAndGet();
+        changeSong(selectNextSong());
+        if (this.engine.isOpen()) {
+            this.engine.start();
+            recordTransition(this.currentSong.songFile(), System.nanoTime() - endedAt);
+        }
+    }
+
+    /**
+     * Records a change of song that happened without the user asking.
+     */
+    private void recordTransition(File songFile, long gapNanos) {
+        this.transitionLatencies.record(gapNanos);
+        if (PlayerEvents.TRACK_TRANSITION.isEnabled()) {
+            PlayerEvents.TrackTransition event = new PlayerEvents.TrackTransition();
+            event.song = songFile.getPath();
+            event.gap = gapNanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Gets the time between the end of one song and the start of the next, for every
+     * change of song that happened without the user asking: gapless splices (0), line
+     * format switches, and songs loaded after the previous one ended.
+     * This is {@link PlayerMetrics#TRANSITION_GAPS}, shared by every model in the process.
+     *
+     * @return live histogram of transition latencies
+     */
+    public LatencyHistogram getTransitionLatencies() {
+        return this.transitionLatencies;
+    }
+
+    /**
+     * @return the song after the current one in the playlist, or null if the playlist is empty
+     */
+    @Nullable
+    private SongBean peekNextSong() {
+        try {
+            int size = this.playlist.size();
+            if (size == 0) {
+                return null;
+            }
+            return this.playlist.get((this.playlistPosition.get() + 1) % size);
+        } catch (IndexOutOfBoundsException e) {
+            // playlist replaced while we looked at it
+            return null;
+        }
+    }
+
+    /**
+     * Gets how many times a file has been decoded, by loads, prefetches and seeks alike.
+     *
+     * @param songFile file to look up
+     * @return decodes of the file's current version
+     */
+    public long getDecodeCount(File songFile) {
+        return PcmSource.DECODES.count(songFile);
+    }
+
+    /**
+     * Gets how many decoders have been opened in total.
+     *
+     * @return decodes across all files
+     */
+    public long getTotalDecodeCount() {
+        return PcmSource.DECODES.total();
+    }
+
+    /**
+     * Sets how much decoded audio may be held in memory for the next song.
+     *
+     * @param bytes prefetch budget, applied from the next prefetch on
+     */
+    public void setPrefetchBudget(int bytes) {
+        this.prefetchBudgetBytes = Math.max(0, bytes);
+    }
+
+    /**
+     * Gets the song currently loaded, including songs reached by gapless advance.
+     *
+     * @return current song, or null if none was loaded
+     */
+    @Nullable
+    public SongBean getCurrentSong() {
+        return this.currentSong;
+    }
+
     /**
      * Loads the next song in the playlist, if possible.
      *
      * @return File (.mp3) that was changed to the current song
      */
     public SongBean loadNextSong() {
-        int currentIndex = this.playlistPosition.incrementAndGet();
-        if (currentIndex >= this.playlist.size()) {
-            currentIndex = 0;
-            this.playlistPosition.set(currentIndex);
-        }
-        SongBean song = this.playlist.get(currentIndex);
+        SongBean song = selectNextSong();
         this.changeSong(song);
         return song;
     }
@@ -112,6 +363,45 @@ public class MusicPlayerModel extends Observable {
      * @return File (.mp3) that was changed to the current song
      */
     public SongBean loadSpecificSong(int currentIndex) {
+        SongBean song = selectSpecificSong(currentIndex);
+        this.changeSong(song);
+        return song;
+    }
+
+    /**
+     * Loads the previous song on the playlist
+     *
+     * @return File (.mp3) that was changed to the current song
+     */
+    @Nullable
+    public SongBean loadPrevSong() {
+        SongBean song = selectPrevSong();
+        if (song != null) {
+            this.changeSong(song);
+        }
+        return song;
+    }
+
+    /**
+     * Moves the playlist position forward without loading anything.
+     *
+     * @return song at the new position
+     */
+    private SongBean selectNextSong() {
+        int currentIndex = this.playlistPosition.incrementAndGet();
+        if (currentIndex >= this.playlist.size()) {
+            currentIndex = 0;
+            this.playlistPosition.set(currentIndex);
+        }
+        return this.playlist.get(currentIndex);
+    }
+
+    /**
+     * Moves the playlist position to an index, wrapping around, without loading anything.
+     *
+     * @return song at the new position
+     */
+    private SongBean selectSpecificSong(int currentIndex) {
         int playListSize = this.playlist.size();
         while (currentIndex >= this.playlist.size()) {
             currentIndex -= playListSize;
@@ -120,37 +410,145 @@ public class MusicPlayerModel extends Observable {
             currentIndex += playListSize;
         }
         this.playlistPosition.set(currentIndex);
-        SongBean song = this.playlist.get(currentIndex);
-        this.changeSong(song);
-        return song;
+        return this.playlist.get(currentIndex);
     }
 
     /**
-     * Loads the previous song on the playlist
+     * Moves the playlist position back without loading anything.
      *
-     * @return File (.mp3) that was changed to the current song
+     * @return song at the new position
      */
     @Nullable
-    public SongBean loadPrevSong() {
+    private SongBean selectPrevSong() {
         if (this.playlist != null) {
             int currentIndex = this.playlistPosition.decrementAndGet();
             if (currentIndex < 0) {
                 currentIndex = this.playlist.size() - 1;
                 this.playlistPosition.set(currentIndex);
             }
-            SongBean song = this.playlist.get(currentIndex);
-            this.changeSong(song);
-            return song;
+            return this.playlist.get(currentIndex);
         }
         return null;
     }
 
+    /********************************************************
+    *                                                       *
+    *      ASYNC COMMANDS                                   *
+    *                                                       *
+    ********************************************************/
+
+    /**
+     * Sets where command results and playback events are delivered.
+     * The GUI passes Platform::runLater so everything lands on the FX thread.
+     *
+     * @param callbackExecutor executor for completions and listener calls
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Loads a song on the command thread.
+     * A newer load, next or prev cancels this one if it hasn't started decoding yet.
+     *
+     * @param songBean song to load
+     * @return future completed on the callback executor with the loaded song
+     */
+    public CompletableFuture<SongBean> loadAsync(SongBean songBean) {
+        long ticket = this.loadGeneration.incrementAndGet();
+        return submitCommand(ticket, this.loadGeneration, () -> {
+            this.changeSong(songBean);
+            return songBean;
+        });
+    }
+
+    /**
+     * Moves to the next song in the playlist right away and loads it on the command thread.
+     * Pressing next repeatedly advances the position each time but only decodes the last pick.
+     *
+     * @return future completed on the callback executor with the loaded song
+     */
+    public CompletableFuture<SongBean> nextAsync() {
+        return loadAsync(selectNextSong());
+    }
+
+    /**
+     * Moves to the previous song in the playlist right away and loads it on the command thread.
+     *
+     * @return future completed on the callback executor with the loaded song
+     */
+    public CompletableFuture<SongBean> prevAsync() {
+        SongBean song = selectPrevSong();
+        if (song == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return loadAsync(song);
+    }
+
+    /**
+     * Moves to a playlist index right away and loads it on the command thread.
+     *
+     * @param index playlist index, wrapped around the playlist size
+     * @return future completed on the callback executor with the loaded song
+     */
+    public CompletableFuture<SongBean> loadSpecificAsync(int index) {
+        return loadAsync(selectSpecificSong(index));
+    }
+
+    /**
+     * Seeks on the command thread. A newer seek cancels this one if it hasn't started yet,
+     * so dragging the song slider only decodes up to the last position.
+     *
+     * @param position frame position to set song at
+     * @return future completed on the callback executor with the requested position
+     */
+    public CompletableFuture<Integer> seekAsync(int position) {
+        long ticket = this.seekGeneration.incrementAndGet();
+        return submitCommand(ticket, this.seekGeneration, () -> {
+            this.setSongPosition(position);
+            return position;
+        });
+    }
+
+    /**
+     * Cancels every command that hasn't started yet.
+     */
+    public void cancelPendingCommands() {
+        this.loadGeneration.incrementAndGet();
+        this.seekGeneration.incrementAndGet();
+    }
+
+    /**
+     * Runs a command on the command thread unless a newer command of the same kind
+     * was submitted in the meantime, in which case the returned future is cancelled.
+     */
+    private <T> CompletableFuture<T> submitCommand(long ticket, AtomicLong generation, Callable<T> command) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            this.commandExecutor.execute(() -> {
+                if (ticket != generation.get()) {
+                    this.callbackExecutor.execute(() -> result.cancel(false));
+                    return;
+                }
+                try {
+                    T value = command.call();
+                    this.callbackExecutor.execute(() -> result.complete(value));
+                } catch (Throwable t) {
+                    this.callbackExecutor.execute(() -> result.completeExceptionally(t));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     /**
      * Starts the song from its current position.
      */
     public void start() {
-        if (this.hasClip() && !this.clip.isRunning()) {
-            this.clip.start();
+        if (this.hasClip() && !this.engine.isRunning()) {
+            this.engine.start();
         }
     }
 
@@ -158,126 +556,367 @@ public class MusicPlayerModel extends Observable {
      * Pauses the clip.
      */
     public void stop() {
-        if (this.hasClip() && this.clip.isRunning()) {
-            this.clip.stop();
+        if (this.hasClip() && this.engine.isRunning()) {
+            this.engine.stop();
         }
     }
 
     /**
-     * Changes the clips loudness.
+     * Changes the clips loudness. The volume is applied in software by the engine's DSP
+     * chain, so it behaves the same on every mixer.
+     * The GUI's volume slider starts halfway up the gain range; its lowest position mutes.
      *
      * @param decibels decibels desired by the user
      */
     public void volumeChange(double decibels) {
         if (this.hasClip()) {
-            FloatControl gainControl = (FloatControl) this.clip.getControl(FloatControl.Type.MASTER_GAIN);
-            if (decibels ==  ( getMaxVolume() +  getMinVolume()) / 2.) {
-                gainControl.setValue((float) this.getMinVolume());
+            if (decibels <= (getMaxVolume() + getMinVolume()) / 2.) {
+                this.engine.setGain((float) this.getMinVolume());
             } else
-                gainControl.setValue((float) decibels);
+                this.engine.setGain((float) decibels);
         }
     }
 
+    /**
+     * Gets the processing between the decoder and the output: ReplayGain, volume,
+     * limiter, and any stages added to it.
+     *
+     * @return the engine's DSP chain
+     */
+    public DspChain getDspChain() {
+        return this.engine.getDspChain();
+    }
+
+    /**
+     * Sets how long consecutive songs overlap when one follows another by itself.
+     * Skipping or picking a song still switches immediately.
+     *
+     * @param millis crossfade length, 0 for gapless playback without overlap
+     */
+    public void setCrossfadeMillis(int millis) {
+        this.engine.setCrossfadeMillis(millis);
+    }
+
+    /**
+     * Chooses how songs are normalized.
+     *
+     * @param mode OFF, TRACK or ALBUM
+     */
+    public void setReplayGainMode(ReplayGainStage.Mode mode) {
+        this.engine.getDspChain().getReplayGain().setMode(mode);
+    }
+
     /**
      * Rewinds the clip to the start.
      */
     public void rewindToStart() {
         if (this.hasClip()) {
-            boolean prevRun = this.clip.isRunning();
-            this.clip.stop();
-            this.clip.setFramePosition(0);
-            if(prevRun) {
-                this.clip.start();
-            }
+            this.engine.setFramePosition(0);
         }
     }
 
     /**
      * Sets the clip's position to the new value.
      *
-     * @param position frame position to set song at (0 < position < this.clip.getFrameLength())
+     * @param position frame position to set song at (0 < position < getClipLength())
      */
     public void setSongPosition(int position) {
         if (this.hasClip()) {
-            boolean prevRun = this.clip.isRunning();
-            this.clip.stop();
-            this.clip.setFramePosition(position);
-            if (prevRun) {
-                this.clip.start();
-            }
+            this.engine.setFramePosition(position);
         }
     }
 
     /**
-     * Sets the playlist to a new list.
+     * Sets the playlist to a new list, as a single change of the observable playlist.
      *
      * @param playlist list of Files to set the new playlist as
      */
     public void setPlaylist(List<File> playlist) {
-        this.playlist.clear();
-        for (int i=0;i<playlist.size();i++) {
-            this.playlist.add(new SongBean(playlist.get(i), i));
+        setPlaylist(playlist, null);
+    }
+
+    /**
+     * Sets the playlist to a new list, as a single change of the observable playlist.
+     *
+     * @param playlist list of Files to set the new playlist as
+     * @param shuffle order to play the new playlist in, or null to keep the list's order;
+     *                songs appended later are shuffled in with the rest
+     */
+    public void setPlaylist(List<File> playlist, @Nullable ShuffleOrder shuffle) {
+        int[] trackIds = new int[playlist.size()];
+        for (int i = 0; i < trackIds.length; i++) {
+            trackIds[i] = this.pathTable.add(playlist.get(i));
         }
+        this.searchIndexStale = true;
+        this.playlist.setTracks(trackIds, shuffle);
+        this.shuffle = shuffle;
+        this.shuffleAnchor = null;
         this.playlistPosition.set(0);
+        prefetchNext();
+    }
+
+    /**
+     * Adds songs to the end of the playlist, e.g. as a library scan finds them.
+     * If the playlist is shuffled, they join the songs not played yet.
+     * Songs already in the playlist are skipped.
+     *
+     * @param songs files to append
+     */
+    public void appendToPlaylist(List<File> songs) {
+        int start = this.playlist.size();
+        int[] trackIds = new int[songs.size()];
+        int count = 0;
+        for (File song : songs) {
+            int trackId = this.pathTable.add(song);
+            if (!this.playlist.containsTrack(trackId)) {
+                trackIds[count++] = trackId;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        trackIds = Arrays.copyOf(trackIds, count);
+        if (!this.searchIndexStale) {
+            this.searchIndex.append(trackIds);
+        }
+        this.playlist.appendTracks(trackIds);
+        if (start <= this.playlistPosition.get() + 1) {
+            // the song after the current one just changed
+            prefetchNext();
+        }
+    }
+
+    /**
+     * Shuffles the whole playlist, one song first and the rest after it. The order only
+     * depends on the shuffle's seed, the first song and which songs are in the playlist,
+     * so the same state gives the same order again after a restart. The current song
+     * keeps playing and the playlist continues after it.
+     *
+     * @param shuffle order to play the playlist in
+     * @param first song to put first, or null to shuffle every song
+     */
+    public void shuffleAll(ShuffleOrder shuffle, @Nullable File first) {
+        int firstId = first == null ? -1 : this.pathTable.find(first);
+        if (this.playlist.containsTrack(firstId)) {
+            this.playlist.moveTrack(firstId, 0);
+            this.playlist.shuffle(1, shuffle);
+            this.shuffleAnchor = first;
+        } else {
+            this.playlist.shuffle(0, shuffle);
+            this.shuffleAnchor = null;
+        }
+        this.shuffle = shuffle;
+        SongBean current = this.currentSong;
+        int position = current == null ? -1 : positionOf(current.songFile());
+        this.playlistPosition.set(Math.max(position, 0));
+        prefetchNext();
+    }
+
+    /**
+     * Gets what is needed to shuffle the playlist the same way again with {@link #shuffleAll}.
+     *
+     * @return the shuffle's state, or null if the playlist isn't shuffled
+     */
+    @Nullable
+    public ShuffleOrder.State getShuffleState() {
+        ShuffleOrder shuffle = this.shuffle;
+        if (shuffle == null) {
+            return null;
+        }
+        File anchor = this.shuffleAnchor;
+        return new ShuffleOrder.State(shuffle.getSeed(), shuffle.getSpread(), anchor == null ? null : anchor.getPath());
+    }
+
+    /**
+     * Takes where playback is, to resume from later. Cheap enough for a periodic save;
+     * the playlist itself is taken by {@link #capturePlaylist} when it changed.
+     * Call on the thread that changes the playlist.
+     *
+     * @param volume volume to save along
+     * @return position in the playlist and in the current song, and the volume
+     */
+    public SessionSnapshot.Playback capturePlayback(double volume) {
+        SongBean current = this.currentSong;
+        long frame = current != null && this.hasClip() ? this.engine.getFramePosition() : 0;
+        return new SessionSnapshot.Playback(this.playlistPosition.get(), frame, volume);
+    }
+
+    /**
+     * Copies the playlist in playing order for a session snapshot, drawing whatever is
+     * left of the shuffle. May be called on any thread, so a large playlist is copied
+     * off the FX thread.
+     *
+     * @return song ids referring to {@link #getPathTable()}
+     */
+    public int[] capturePlaylist() {
+        return this.playlist.drawnTracks();
+    }
+
+    /**
+     * Gets a number that changes whenever the playlist does, so a saved snapshot
+     * can tell whether its playlist is still current.
+     *
+     * @return the playlist's version
+     */
+    public int getPlaylistVersion() {
+        return this.playlist.getVersion();
     }
 
+    /**
+     * Puts back a saved playlist in its saved order and loads the song that was playing
+     * at the saved frame. Songs appended later are shuffled in by the saved shuffle.
+     *
+     * @param snapshot snapshot read into {@link #getPathTable()}
+     * @return future completed on the callback executor once the song is loaded and seeked,
+     * with the song, or null if the saved playlist was empty
+     */
+    public CompletableFuture<SongBean> resumeSession(SessionSnapshot snapshot) {
+        ShuffleOrder.State state = snapshot.getShuffle();
+        ShuffleOrder shuffle = state == null ? null : state.order();
+        this.searchIndexStale = true;
+        this.playlist.setDrawnTracks(snapshot.getTrackIds(), shuffle);
+        this.shuffle = shuffle;
+        this.shuffleAnchor = state == null || state.anchorPath() == null ? null : new File(state.anchorPath());
+        if (this.playlist.isEmpty()) {
+            this.playlistPosition.set(0);
+            return CompletableFuture.completedFuture(null);
+        }
+        SessionSnapshot.Playback playback = snapshot.getPlayback();
+        long ticket = this.loadGeneration.incrementAndGet();
+        SongBean song = selectSpecificSong(playback.position());
+        return submitCommand(ticket, this.loadGeneration, () -> {
+            this.changeSong(song);
+            if (playback.frame() > 0) {
+                this.setSongPosition((int) Math.min(playback.frame(), Integer.MAX_VALUE));
+            }
+            return song;
+        });
+    }
+
+    /**
+     * Gets the playlist. Its SongBeans are made as they are asked for, so hold on to
+     * indexes rather than to the beans themselves.
+     *
+     * @return the playlist, changed on the FX thread only
+     */
     public ObservableList<SongBean> getPlaylist() {
         return playlist;
     }
 
+    /**
+     * Gets the table of every song path the model has seen. Song ids in it are stable,
+     * so other indexes can refer to songs by them.
+     *
+     * @return the shared path table
+     */
+    public PathTable getPathTable() {
+        return this.pathTable;
+    }
+
+    /**
+     * Finds where a song is in the playlist.
+     *
+     * @param songFile song to look for
+     * @return its playlist index, or -1 if it isn't in the playlist
+     */
+    public int positionOf(File songFile) {
+        return this.playlist.positionOf(this.pathTable.find(songFile));
+    }
+
+    /**
+     * Finds playlist songs whose file or directory name contains the query, ignoring case.
+     * Call on the thread that changes the playlist.
+     *
+     * @param query text to look for
+     * @return matching songs in playlist order, the whole playlist for a blank query;
+     * made into SongBeans as they are read
+     */
+    public List<SongBean> searchPlaylist(String query) {
+        if (this.searchIndexStale) {
+            this.searchIndex.rebuild(this.playlist.tracks());
+            this.searchIndexStale = false;
+        }
+        int[] positions = this.searchIndex.search(query);
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = this.playlist.positionOf(positions[i]);
+        }
+        Arrays.sort(positions);
+        return new AbstractList<>() {
+            @Override
+            public SongBean get(int index) {
+                return playlist.get(positions[index]);
+            }
+
+            @Override
+            public int size() {
+                return positions.length;
+            }
+        };
+    }
+
     /**
      * Gets the minimum decibel volume of the clip.
-     * Implies that there is a current song stored in this.clip.
+     * Implies that there is a current song loaded in the engine.
      *
      * @return min decibel volume of the current clip
      */
     public double getMinVolume() {
         if (!this.hasClip()) {return 0.;}
-        FloatControl gainControl = (FloatControl) this.clip.getControl(FloatControl.Type.MASTER_GAIN);
-        return gainControl.getMinimum();
+        return this.engine.getMinGain();
     }
 
     /**
      * Gets the maximum decibel volume of the clip.
-     * Implies that there is a current song stored in this.clip.
+     * Implies that there is a current song loaded in the engine.
      *
      * @return max decibel volume of the current clip
      */
     public double getMaxVolume() {
         if (!this.hasClip()) {return 1.;}
-        FloatControl gainControl = (FloatControl) this.clip.getControl(FloatControl.Type.MASTER_GAIN);
-        return gainControl.getMaximum();
+        return this.engine.getMaxGain();
     }
 
     /**
      * Gets the total length of the current clip.
-     * Implies that there is a current song stored in this.clip.
+     * Implies that there is a current song loaded in the engine.
      *
      * @return length of the current clip
      */
     public int getClipLength() {
         if (!this.hasClip()) {return 0;}
-        return this.clip.getFrameLength();
+        return (int) this.engine.getFrameLength();
+    }
+
+    /**
+     * Gets the frame rate of the current clip's positions and length, to show them as time.
+     *
+     * @return frames per second, or 0 if no song is loaded
+     */
+    public float getClipFrameRate() {
+        if (!this.hasClip()) {return 0;}
+        return this.engine.getFrameRate();
     }
 
     /**
      * Gets the current position of the song.
-     * Implies that there is a current song stored in this.clip.
+     * Implies that there is a current song loaded in the engine.
      *
      * @return the current integer position of the song
      */
     public int getClipCurrentValue() {
-        return this.clip.getFramePosition();
+        if (!this.hasClip()) {return 0;}
+        return (int) this.engine.getFramePosition();
     }
 
     /**
      * Checks if the song is at the end.
+     * The song length is only an estimate while streaming, so this asks the engine
+     * whether the last frame has played rather than comparing positions.
      *
      * @return true if at the end, false otherwise
      */
     public boolean atEnd() {
-
-        return this.clip.getFrameLength() - this.clip.getFramePosition() <= 50000;
+        return this.hasClip() && this.engine.isEndOfStream();
     }
 
     /**
@@ -286,7 +925,7 @@ public class MusicPlayerModel extends Observable {
      * @return true if song is playing, false otherwise
      */
     public boolean isRunning() {
-        return this.hasClip() && (this.clip.isRunning() || this.atEnd());
+        return this.hasClip() && (this.engine.isRunning() || this.atEnd());
     }
 
     /**
@@ -295,7 +934,7 @@ public class MusicPlayerModel extends Observable {
      * @return true if song exists, false otherwise
      */
     public boolean hasClip() {
-        return this.clip != null;
+        return this.engine.isOpen();
     }
 
     /**
@@ -308,10 +947,107 @@ public class MusicPlayerModel extends Observable {
     }
 
     /**
-     * Utility function to notify GUI that changes were made with the model's instance variables.
+     * Releases the playback engine. The model can't play anything afterwards.
+     */
+    public void shutdown() {
+        this.ticker.shutdownNow();
+        this.commandExecutor.shutdownNow();
+        this.prefetchExecutor.shutdownNow();
+        this.engine.close();
+    }
+
+    /********************************************************
+    *                                                       *
+    *      PLAYBACK EVENTS                                  *
+    *                                                       *
+    ********************************************************/
+
+    /**
+     * @param listener receives playback events on the callback executor
+     */
+    public void addPlaybackListener(PlaybackListener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * @param listener listener to stop sending events to
+     */
+    public void removePlaybackListener(PlaybackListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Sets how often position events are sent while a song is playing.
+     * Nothing is sent while paused.
+     *
+     * @param millis interval between position checks
+     */
+    public synchronized void setPositionTickMillis(long millis) {
+        if (this.tickTask != null) {
+            this.tickTask.cancel(false);
+        }
+        this.tickTask = this.ticker.scheduleAtFixedRate(() -> {
+            if (this.publishedState == PlaybackListener.State.PLAYING) {
+                announceChanges();
+            }
+        }, millis, Math.max(1, millis), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tells listeners about whatever changed since they last heard: the song, the playback
+     * state and the position. Called by the engine on every state change and by the model
+     * itself; calls that arrive while one is already queued are folded into it.
      */
     public void announceChanges() {
-        setChanged();
-        notifyObservers();
+        if (!this.refreshPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.callbackExecutor.execute(() -> {
+                this.refreshPending.set(false);
+                publishChanges();
+            });
+        } catch (RejectedExecutionException e) {
+            this.refreshPending.set(false);
+        }
+    }
+
+    /**
+     * Compares the model with what listeners were last told and sends the differences.
+     * Runs on the callback executor.
+     */
+    private void publishChanges() {
+        SongBean song = this.currentSong;
+        if (song != this.publishedSong) {
+            this.publishedSong = song;
+            for (PlaybackListener listener : this.listeners) {
+                listener.onSongChanged(song);
+            }
+        }
+        PlaybackListener.State state;
+        if (!this.hasClip()) {
+            state = PlaybackListener.State.IDLE;
+        } else if (this.engine.isEndOfStream()) {
+            state = PlaybackListener.State.ENDED;
+        } else if (this.engine.isRunning()) {
+            state = PlaybackListener.State.PLAYING;
+        } else {
+            state = PlaybackListener.State.PAUSED;
+        }
+        if (state != this.publishedState) {
+            this.publishedState = state;
+            for (PlaybackListener listener : this.listeners) {
+                listener.onStateChanged(state);
+            }
+        }
+        long frame = this.hasClip() ? this.engine.getFramePosition() : 0;
+        long length = this.hasClip() ? this.engine.getFrameLength() : 0;
+        if (frame != this.publishedFrame || length != this.publishedLength) {
+            this.publishedFrame = frame;
+            this.publishedLength = length;
+            for (PlaybackListener listener : this.listeners) {
+                listener.onPositionChanged(frame, length);
+            }
+        }
     }
-}
\ No newline at end of file
+}
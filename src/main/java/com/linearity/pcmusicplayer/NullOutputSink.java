@@ -0,0 +1,165 @@
+package com.linearity.pcmusicplayer;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * OutputSink that throws the audio away, for machines without a sound card.
+ * In real time it plays out its buffer against the system clock, so songs take as long
+ * as they would on a speaker. Otherwise every write is played the moment it is made and
+ * the engine runs as fast as it can decode, which measures the pipeline's throughput.
+ */
+public class NullOutputSink implements OutputSink {
+
+    private final Object lock = new Object();
+    private final AudioFormat format;
+    private final boolean realTime;
+    private final long bufferFrames;
+
+    /** Guarded by lock */
+    private long writtenFrames;
+    /** Frames played when the clock last started, and when that was */
+    private long playedAtStart;
+    private long startedAt;
+    private boolean running;
+
+    private NullOutputSink(AudioFormat format, int bufferBytes, boolean realTime) {
+        this.format = format;
+        this.realTime = realTime;
+        this.bufferFrames = Math.max(1, bufferBytes / format.getFrameSize());
+    }
+
+    /**
+     * @return factory of sinks that play in real time
+     */
+    public static OutputSink.Factory realTime() {
+        return (format, bufferBytes, stateListener) -> new NullOutputSink(format, bufferBytes, true);
+    }
+
+    /**
+     * @return factory of sinks that take audio as fast as it comes
+     */
+    public static OutputSink.Factory maxSpeed() {
+        return (format, bufferBytes, stateListener) -> new NullOutputSink(format, bufferBytes, false);
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return this.format;
+    }
+
+    @Override
+    public int write(byte[] buffer, int offset, int length) {
+        int frameSize = this.format.getFrameSize();
+        long frames = length / frameSize;
+        synchronized (lock) {
+            if (!this.realTime) {
+                this.writtenFrames += frames;
+                return (int) (frames * frameSize);
+            }
+            long accepted = 0;
+            try {
+                while (accepted < frames) {
+                    long played = playedFrames();
+                    if (this.running && played == this.writtenFrames) {
+                        // ran dry; the clock restarts when audio arrives again
+                        this.playedAtStart = played;
+                        this.startedAt = System.nanoTime();
+                    }
+                    long room = this.bufferFrames - (this.writtenFrames - played);
+                    if (room > 0) {
+                        long taken = Math.min(room, frames - accepted);
+                        this.writtenFrames += taken;
+                        accepted += taken;
+                    } else if (!this.running) {
+                        break;
+                    } else {
+                        lock.wait(Math.max(1, nanosUntilPlayed(this.bufferFrames / 4) / 1_000_000));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return (int) (accepted * frameSize);
+        }
+    }
+
+    @Override
+    public void start() {
+        synchronized (lock) {
+            if (!this.running) {
+                this.startedAt = System.nanoTime();
+                this.running = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (lock) {
+            if (this.running) {
+                this.playedAtStart = playedFrames();
+                this.running = false;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (lock) {
+            this.playedAtStart = playedFrames();
+            this.startedAt = System.nanoTime();
+            this.writtenFrames = this.playedAtStart;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void drain() {
+        synchronized (lock) {
+            try {
+                while (this.running && playedFrames() < this.writtenFrames) {
+                    lock.wait(Math.max(1, nanosUntilPlayed(this.writtenFrames - playedFrames()) / 1_000_000));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean isRealTime() {
+        return this.realTime;
+    }
+
+    @Override
+    public long getLongFramePosition() {
+        synchronized (lock) {
+            return playedFrames();
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * Guarded by lock.
+     */
+    private long playedFrames() {
+        if (!this.realTime) {
+            return this.writtenFrames;
+        }
+        if (!this.running) {
+            return this.playedAtStart;
+        }
+        long elapsed = (long) ((System.nanoTime() - this.startedAt) * (double) this.format.getFrameRate() / 1e9);
+        return Math.min(this.writtenFrames, this.playedAtStart + elapsed);
+    }
+
+    private long nanosUntilPlayed(long frames) {
+        return (long) (frames * 1e9 / this.format.getFrameRate());
+    }
+}
@@ -0,0 +1,83 @@
+package com.linearity.pcmusicplayer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+
+/**
+ * Where StreamingPlaybackEngine sends decoded audio: the sound card, or a stand-in for
+ * machines without one. It behaves like a SourceDataLine: it holds a buffer of audio,
+ * plays it out while started, and counts the frames that have been played.
+ */
+public interface OutputSink extends AutoCloseable {
+
+    /**
+     * Opens sinks for the engine, which asks for a new one whenever a song needs a
+     * different format.
+     */
+    @FunctionalInterface
+    interface Factory {
+
+        /**
+         * @param format format the audio will be written in
+         * @param bufferBytes size of the buffer between the engine and the output
+         * @param stateListener run when the sink starts or stops, including by itself
+         * @return an open, stopped sink
+         * @throws LineUnavailableException if the output can't take this format
+         */
+        OutputSink open(AudioFormat format, int bufferBytes, Runnable stateListener) throws LineUnavailableException;
+    }
+
+    /**
+     * @return format the sink was opened with
+     */
+    AudioFormat getFormat();
+
+    /**
+     * Writes audio, blocking while the buffer is full. Returns early, with fewer bytes
+     * written, when the sink is stopped or flushed.
+     *
+     * @param buffer audio in the sink's format
+     * @param offset start of the audio in buffer
+     * @param length bytes to write, a whole number of frames
+     * @return bytes written
+     */
+    int write(byte[] buffer, int offset, int length);
+
+    /**
+     * Starts playing out the buffer.
+     */
+    void start();
+
+    /**
+     * Stops playing, keeping what is buffered.
+     */
+    void stop();
+
+    /**
+     * Drops whatever is buffered and not played yet.
+     */
+    void flush();
+
+    /**
+     * Blocks until everything written has been played, or the sink is stopped.
+     */
+    void drain();
+
+    /**
+     * @return frames played since the sink was opened
+     */
+    long getLongFramePosition();
+
+    /**
+     * A sink that plays everything the moment it is written never holds any audio, so
+     * buffer levels and underruns mean nothing for it.
+     *
+     * @return true if written audio takes as long to play as it lasts
+     */
+    default boolean isRealTime() {
+        return true;
+    }
+
+    @Override
+    void close();
+}
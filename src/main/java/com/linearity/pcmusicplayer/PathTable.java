@@ -0,0 +1,214 @@
+package com.linearity.pcmusicplayer;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Every song path the player knows, stored once and numbered. A path is split into its
+ * directory, which is interned and shared by every song in it, and its file name, kept as
+ * UTF-8 in one growing byte array. Per song this costs the name's bytes plus three ints:
+ * directory, name offset and a hash slot. That is a few dozen bytes, against several
+ * hundred for a File with its path String.
+ *
+ * Song ids never change and are never reused, so other structures can store plain ints.
+ * All methods are synchronized: the scanner adds songs while the FX thread reads them.
+ */
+public class PathTable {
+
+    private final List<String> directories = new ArrayList<>();
+    private final Map<String, Integer> directoryIds = new HashMap<>();
+    /** Per directory: id of the directory above it, -1 for none, -2 until first asked for */
+    private int[] parentOf = new int[64];
+    /** Per song: its directory id, and where its name starts in names */
+    private int[] directoryOf = new int[1024];
+    private int[] nameStart = new int[1025];
+    private byte[] names = new byte[1 << 15];
+    private int size;
+    /** Open-addressing set of song ids, -1 for a free slot */
+    private int[] slots = newSlots(2048);
+
+    /**
+     * Adds a song, or finds it if it was added before.
+     *
+     * @param songFile song
+     * @return the song's id
+     */
+    public int add(File songFile) {
+        String parent = songFile.getParent();
+        byte[] name = songFile.getName().getBytes(StandardCharsets.UTF_8);
+        return add(parent == null ? "" : parent, name, name.length);
+    }
+
+    /**
+     * Adds a song by its directory and file name, or finds it if it was added before.
+     *
+     * @param directory path of the directory the song is in, empty for none
+     * @param name buffer starting with the song's file name in UTF-8
+     * @param length bytes of the name
+     * @return the song's id
+     */
+    public synchronized int add(String directory, byte[] name, int length) {
+        Integer directoryId = this.directoryIds.get(directory);
+        if (directoryId != null) {
+            int slot = slotOf(directoryId, name, length);
+            if (this.slots[slot] >= 0) {
+                return this.slots[slot];
+            }
+        } else {
+            directoryId = internDirectory(directory);
+        }
+        int id = this.size++;
+        if (id == this.directoryOf.length) {
+            this.directoryOf = Arrays.copyOf(this.directoryOf, id * 2);
+            this.nameStart = Arrays.copyOf(this.nameStart, id * 2 + 1);
+        }
+        int start = this.nameStart[id];
+        if (start + length > this.names.length) {
+            this.names = Arrays.copyOf(this.names, Math.max(start + length, this.names.length * 2));
+        }
+        System.arraycopy(name, 0, this.names, start, length);
+        this.directoryOf[id] = directoryId;
+        this.nameStart[id + 1] = start + length;
+        if (this.size * 2 > this.slots.length) {
+            rehash();
+        } else {
+            this.slots[slotOf(directoryId, name, length)] = id;
+        }
+        return id;
+    }
+
+    /**
+     * @param songFile song
+     * @return the song's id, or -1 if it was never added
+     */
+    public synchronized int find(File songFile) {
+        String parent = songFile.getParent();
+        Integer directoryId = this.directoryIds.get(parent == null ? "" : parent);
+        if (directoryId == null) {
+            return -1;
+        }
+        byte[] name = songFile.getName().getBytes(StandardCharsets.UTF_8);
+        return this.slots[slotOf(directoryId, name, name.length)];
+    }
+
+    /**
+     * @param id song id
+     * @return a new File for the song
+     */
+    public synchronized File file(int id) {
+        String directory = this.directories.get(this.directoryOf[id]);
+        return directory.isEmpty() ? new File(fileName(id)) : new File(directory, fileName(id));
+    }
+
+    /**
+     * @param id song id
+     * @return the song's file name
+     */
+    public synchronized String fileName(int id) {
+        int start = this.nameStart[id];
+        return new String(this.names, start, this.nameStart[id + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param id song id
+     * @return name of the directory the song is in, empty if there is none
+     */
+    public synchronized String directoryName(int id) {
+        String directory = this.directories.get(this.directoryOf[id]);
+        return directory.substring(directory.lastIndexOf(File.separatorChar) + 1);
+    }
+
+    /**
+     * @param id song id
+     * @return id of the directory the song is in, shared by every song in it
+     */
+    public synchronized int directoryId(int id) {
+        return this.directoryOf[id];
+    }
+
+    /**
+     * @param id song id
+     * @return id of the directory above the song's directory, -1 if there is none
+     */
+    public synchronized int parentDirectoryId(int id) {
+        int directoryId = this.directoryOf[id];
+        if (this.parentOf[directoryId] == -2) {
+            String parent = new File(this.directories.get(directoryId)).getParent();
+            Integer parentId = parent == null ? null : this.directoryIds.get(parent);
+            this.parentOf[directoryId] = parent == null ? -1 : parentId != null ? parentId : internDirectory(parent);
+        }
+        return this.parentOf[directoryId];
+    }
+
+    /**
+     * Hashes a song's path. Unlike its id, the hash doesn't depend on when the song was
+     * added, so it gives an order that is the same in every run.
+     *
+     * @param id song id
+     * @return hash of the song's directory and file name
+     */
+    public synchronized int pathHash(int id) {
+        return hash(this.directories.get(this.directoryOf[id]).hashCode(), this.names, this.nameStart[id], this.nameStart[id + 1]);
+    }
+
+    /**
+     * @return number of songs added
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @return slot holding the song with this directory and name, or the free slot where it would go
+     */
+    private int slotOf(int directoryId, byte[] name, int length) {
+        int mask = this.slots.length - 1;
+        int slot = hash(directoryId, name, 0, length) & mask;
+        while (true) {
+            int id = this.slots[slot];
+            if (id < 0 || (this.directoryOf[id] == directoryId && Arrays.equals(
+                    this.names, this.nameStart[id], this.nameStart[id + 1], name, 0, length))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int internDirectory(String directory) {
+        int directoryId = this.directories.size();
+        this.directories.add(directory);
+        this.directoryIds.put(directory, directoryId);
+        if (directoryId == this.parentOf.length) {
+            this.parentOf = Arrays.copyOf(this.parentOf, directoryId * 2);
+        }
+        this.parentOf[directoryId] = -2;
+        return directoryId;
+    }
+
+    private void rehash() {
+        this.slots = newSlots(this.slots.length * 2);
+        int mask = this.slots.length - 1;
+        for (int id = 0; id < this.size; id++) {
+            int slot = hash(this.directoryOf[id], this.names, this.nameStart[id], this.nameStart[id + 1]) & mask;
+            while (this.slots[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.slots[slot] = id;
+        }
+    }
+
+    private static int hash(int seed, byte[] bytes, int from, int to) {
+        int hash = seed * 0x9E3779B9;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        return slots;
+    }
+}
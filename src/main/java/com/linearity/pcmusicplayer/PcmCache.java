@@ -0,0 +1,334 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decoded PCM of recently played songs, kept in files so going back to one of them starts
+ * at once instead of decoding the MP3 again.
+ * A song is written here as a side effect of playing it: {@link PcmSource} copies what it
+ * decodes into a {@link Writer}, and the file only joins the cache if the song was decoded
+ * from its first frame to its last. Nothing is decoded just to fill the cache.
+ * Cached songs are read back through a memory map, so seeking in them is a position change.
+ *
+ * Entries are keyed by {@link TrackKey}, so a song changed on disk misses and is decoded
+ * afresh. The least recently used songs are dropped once there are more than maxTracks of
+ * them or they take more than maxBytes. WAV files are never cached, being PCM already.
+ */
+public class PcmCache implements Closeable {
+
+    /** About ten songs of four minutes at 44.1 kHz stereo */
+    public static final long DEFAULT_MAX_BYTES = 400L * 1024 * 1024;
+    public static final int DEFAULT_MAX_TRACKS = 10;
+
+    /**
+     * A song in the cache.
+     *
+     * @param file PCM file, nothing but frames
+     * @param format format of the frames
+     * @param bytes size of the file
+     */
+    private record Entry(File file, AudioFormat format, long bytes) {}
+
+    private final File directory;
+    private final long maxBytes;
+    private final int maxTracks;
+    /** In access order, least recently used first; guarded by itself */
+    private final LinkedHashMap<TrackKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+    private final AtomicInteger fileNumbers = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * @param directory directory to keep the PCM files in; it is emptied on close
+     * @param maxBytes most PCM to keep
+     * @param maxTracks most songs to keep
+     */
+    public PcmCache(File directory, long maxBytes, int maxTracks) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxTracks = maxTracks;
+    }
+
+    /**
+     * Makes a cache in a new temporary directory.
+     *
+     * @param maxBytes most PCM to keep
+     * @param maxTracks most songs to keep
+     * @return the cache, or null if no temporary directory could be made
+     */
+    @Nullable
+    public static PcmCache createTemporary(long maxBytes, int maxTracks) {
+        try {
+            return new PcmCache(Files.createTempDirectory("pcmusicplayer-pcm").toFile(), maxBytes, maxTracks);
+        } catch (IOException e) {
+            System.out.println("Failed to create the decoded audio cache.");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Opens a cached song for reading.
+     *
+     * @param key song as it is on disk now
+     * @return the song's PCM positioned at frame 0, or null if it isn't cached
+     */
+    @Nullable
+    AudioInputStream open(TrackKey key) {
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(entry.file().toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer pcm = channel.map(FileChannel.MapMode.READ_ONLY, 0, entry.bytes());
+            return new AudioInputStream(new MappedInputStream(pcm), entry.format(),
+                    entry.bytes() / entry.format().getFrameSize());
+        } catch (IOException e) {
+            System.out.println("Failed to read cached audio, decoding again.");
+            e.printStackTrace();
+            remove(key, entry);
+            return null;
+        }
+    }
+
+    /**
+     * Starts caching a song that is about to be decoded from its first frame.
+     *
+     * @param key song as it is on disk now
+     * @param format format of the decoded frames
+     * @return writer to copy the decoded PCM into, or null if the song needn't or can't be cached
+     */
+    @Nullable
+    Writer startWriting(TrackKey key, AudioFormat format) {
+        if (this.closed || key.size() < 0) {
+            return null;
+        }
+        synchronized (this.entries) {
+            if (this.entries.containsKey(key)) {
+                return null;
+            }
+        }
+        File part = new File(this.directory, this.fileNumbers.incrementAndGet() + ".pcm.part");
+        try {
+            return new Writer(key, format, part);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to cache decoded audio.");
+            return null;
+        }
+    }
+
+    /**
+     * @return number of songs cached
+     */
+    public int size() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    /**
+     * @return bytes of PCM cached
+     */
+    public long getTotalBytes() {
+        synchronized (this.entries) {
+            return this.totalBytes;
+        }
+    }
+
+    /**
+     * Drops every song and deletes the cache directory.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        synchronized (this.entries) {
+            for (Entry entry : this.entries.values()) {
+                delete(entry.file());
+            }
+            this.entries.clear();
+            this.totalBytes = 0;
+        }
+        File[] leftovers = this.directory.listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                delete(leftover);
+            }
+        }
+        delete(this.directory);
+    }
+
+    /**
+     * Adds a completely written song, then drops songs from the least recently used on
+     * until the limits are met again.
+     */
+    private void add(TrackKey key, Entry entry) {
+        synchronized (this.entries) {
+            if (this.closed || entry.bytes() > this.maxBytes) {
+                delete(entry.file());
+                return;
+            }
+            Entry replaced = this.entries.put(key, entry);
+            if (replaced != null) {
+                this.totalBytes -= replaced.bytes();
+                delete(replaced.file());
+            }
+            this.totalBytes += entry.bytes();
+            Iterator<Entry> oldest = this.entries.values().iterator();
+            while (oldest.hasNext() && (this.entries.size() > this.maxTracks || this.totalBytes > this.maxBytes)) {
+                Entry evicted = oldest.next();
+                oldest.remove();
+                this.totalBytes -= evicted.bytes();
+                delete(evicted.file());
+            }
+        }
+    }
+
+    private void remove(TrackKey key, Entry entry) {
+        synchronized (this.entries) {
+            if (this.entries.remove(key, entry)) {
+                this.totalBytes -= entry.bytes();
+                delete(entry.file());
+            }
+        }
+    }
+
+    /**
+     * Deletes a file. A file still mapped by a playing source can't be deleted on every
+     * system; that one goes when the player exits.
+     */
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Receives one song's PCM as it is decoded. Used by a single decoding thread.
+     */
+    class Writer {
+
+        private final TrackKey key;
+        private final AudioFormat format;
+        private final File part;
+        private final FileOutputStream out;
+        private long bytes;
+
+        private Writer(TrackKey key, AudioFormat format, File part) throws IOException {
+            this.key = key;
+            this.format = format;
+            this.part = part;
+            this.out = new FileOutputStream(part);
+        }
+
+        /**
+         * Appends decoded PCM. A failed write, e.g. a full disk, abandons the song.
+         *
+         * @return false once the song won't be cached
+         */
+        boolean write(byte[] buffer, int offset, int length) {
+            // a mapping can't be larger than 2 GB
+            if (this.bytes + length > Math.min(PcmCache.this.maxBytes, Integer.MAX_VALUE)) {
+                abort();
+                return false;
+            }
+            try {
+                this.out.write(buffer, offset, length);
+                this.bytes += length;
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to cache decoded audio.");
+                abort();
+                return false;
+            }
+        }
+
+        /**
+         * Called once the decoder reached the end of the song; adds it to the cache.
+         */
+        void finish() {
+            try {
+                this.out.close();
+                Path done = this.part.toPath().resolveSibling(this.part.getName().replace(".part", ""));
+                Files.move(this.part.toPath(), done, StandardCopyOption.REPLACE_EXISTING);
+                add(this.key, new Entry(done.toFile(), this.format, this.bytes));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.out.println("Failed to cache decoded audio.");
+                delete(this.part);
+            }
+        }
+
+        /**
+         * Called when the song won't be decoded to its end; throws away what was written.
+         */
+        void abort() {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            delete(this.part);
+        }
+    }
+
+    /**
+     * InputStream over a mapped file, so a cached song can stand in for a decoder.
+     */
+    private static class MappedInputStream extends InputStream {
+
+        private final ByteBuffer pcm;
+
+        MappedInputStream(ByteBuffer pcm) {
+            this.pcm = pcm;
+        }
+
+        @Override
+        public int read() {
+            return this.pcm.hasRemaining() ? this.pcm.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (!this.pcm.hasRemaining()) {
+                return length == 0 ? 0 : -1;
+            }
+            int n = Math.min(length, this.pcm.remaining());
+            this.pcm.get(buffer, offset, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, this.pcm.remaining()));
+            this.pcm.position(this.pcm.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return this.pcm.remaining();
+        }
+    }
+}
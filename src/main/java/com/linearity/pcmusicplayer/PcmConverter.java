@@ -0,0 +1,180 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+
+/**
+ * Converts 16-bit PCM from a song's sample rate and channel count to the output's, so
+ * every song plays through one line that stays open. Samples go to float, channels are
+ * matched (mono is copied to both sides, more channels down to mono are averaged), the
+ * rate is changed by a {@link Resampler} if it differs, and the result is rounded back
+ * to 16 bits.
+ * Not thread-safe; used by whichever thread reads the source.
+ */
+class PcmConverter {
+
+    /**
+     * Where the converter pulls song PCM from.
+     */
+    @FunctionalInterface
+    interface Input {
+        /**
+         * @return bytes read, whole frames, or -1 at the end of the song
+         */
+        int read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final Input input;
+    private final AudioFormat inputFormat;
+    private final AudioFormat outputFormat;
+    /** Null when the rates match */
+    @Nullable
+    private final Resampler resampler;
+    private final int inputChannels;
+    private final int outputChannels;
+    private byte[] inputBytes = new byte[0];
+    private float[] inputSamples = new float[0];
+    private float[] outputSamples = new float[0];
+    private boolean ended;
+
+    /**
+     * @param input song PCM
+     * @param inputFormat 16-bit signed little-endian format of the song
+     * @param outputFormat 16-bit signed little-endian format to produce
+     * @param quality resampling quality, unused when the rates match
+     */
+    PcmConverter(Input input, AudioFormat inputFormat, AudioFormat outputFormat, Resampler.Quality quality) {
+        if (!isPcm16(inputFormat) || !isPcm16(outputFormat)) {
+            throw new IllegalArgumentException("Can only convert 16-bit little-endian PCM: " + inputFormat + " -> " + outputFormat);
+        }
+        this.input = input;
+        this.inputFormat = inputFormat;
+        this.outputFormat = outputFormat;
+        this.inputChannels = inputFormat.getChannels();
+        this.outputChannels = outputFormat.getChannels();
+        int inputRate = Math.round(inputFormat.getSampleRate());
+        int outputRate = Math.round(outputFormat.getSampleRate());
+        this.resampler = inputRate == outputRate ? null : new Resampler(inputRate, outputRate, this.outputChannels, quality);
+    }
+
+    /**
+     * @return true if the format can be converted by this class
+     */
+    static boolean isPcm16(AudioFormat format) {
+        return format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED && format.getSampleSizeInBits() == 16
+                && !format.isBigEndian();
+    }
+
+    AudioFormat getOutputFormat() {
+        return this.outputFormat;
+    }
+
+    /**
+     * Reads converted PCM.
+     *
+     * @return bytes read, whole output frames, or -1 at the end of the song
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException {
+        int maxFrames = length / this.outputFormat.getFrameSize();
+        if (maxFrames == 0) {
+            return 0;
+        }
+        if (this.outputSamples.length < maxFrames * this.outputChannels) {
+            this.outputSamples = new float[maxFrames * this.outputChannels];
+        }
+        if (this.resampler == null) {
+            int frames = pull(maxFrames);
+            if (frames < 0) {
+                return -1;
+            }
+            return toBytes(this.inputSamples, frames, buffer, offset);
+        }
+        int frames = 0;
+        while (frames == 0) {
+            frames = this.resampler.read(this.outputSamples, maxFrames);
+            if (frames > 0 || this.resampler.isDone()) {
+                break;
+            }
+            if (this.ended) {
+                // nothing more will come out
+                break;
+            }
+            int pulled = pull((int) Math.max(64,
+                    (long) maxFrames * this.resampler.getInputRate() / this.resampler.getOutputRate()));
+            if (pulled < 0) {
+                this.ended = true;
+                this.resampler.finish();
+            } else {
+                this.resampler.write(this.inputSamples, pulled);
+            }
+        }
+        if (frames == 0) {
+            return -1;
+        }
+        return toBytes(this.outputSamples, frames, buffer, offset);
+    }
+
+    /**
+     * Rounds float samples back to 16 bits, clipping what went past full scale.
+     *
+     * @return bytes written
+     */
+    private int toBytes(float[] samples, int frames, byte[] buffer, int offset) {
+        int count = frames * this.outputChannels;
+        for (int i = 0, b = offset; i < count; i++, b += 2) {
+            int value = Math.round(samples[i] * 32768f);
+            value = Math.max(-32768, Math.min(32767, value));
+            buffer[b] = (byte) value;
+            buffer[b + 1] = (byte) (value >> 8);
+        }
+        return count * 2;
+    }
+
+    /**
+     * Reads song PCM into inputSamples as floats in the output's channel layout.
+     *
+     * @param inputFrames most frames to read
+     * @return frames read, or -1 at the end of the song
+     */
+    private int pull(int inputFrames) throws IOException {
+        int bytes = inputFrames * this.inputFormat.getFrameSize();
+        if (this.inputBytes.length < bytes) {
+            this.inputBytes = new byte[bytes];
+            this.inputSamples = new float[inputFrames * this.outputChannels];
+        }
+        int n = this.input.read(this.inputBytes, 0, bytes);
+        if (n < 0) {
+            return -1;
+        }
+        int frames = n / this.inputFormat.getFrameSize();
+        int in = this.inputChannels;
+        int out = this.outputChannels;
+        for (int frame = 0; frame < frames; frame++) {
+            int base = frame * in * 2;
+            for (int channel = 0; channel < out; channel++) {
+                float value;
+                if (in == out) {
+                    value = sample(base + channel * 2);
+                } else if (in == 1) {
+                    value = sample(base);
+                } else if (out == 1) {
+                    value = 0;
+                    for (int c = 0; c < in; c++) {
+                        value += sample(base + c * 2);
+                    }
+                    value /= in;
+                } else {
+                    value = channel < in ? sample(base + channel * 2) : 0;
+                }
+                this.inputSamples[frame * out + channel] = value;
+            }
+        }
+        return frames;
+    }
+
+    private float sample(int byteOffset) {
+        return (short) ((this.inputBytes[byteOffset] & 0xFF) | (this.inputBytes[byteOffset + 1] << 8)) / 32768f;
+    }
+}
@@ -0,0 +1,458 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.*;
+import java.io.*;
+import java.util.Map;
+
+/**
+ * A decoded, pull-based view of a song file.
+ * Wraps the encoded stream and the 16-bit PCM stream decoded from it, so callers can
+ * read small buffers on demand instead of decoding the whole file up front.
+ * With a {@link PcmCache} set, songs decoded from start to end are kept in it, and opening
+ * one of them again reads the cached PCM without a decoder.
+ */
+public class PcmSource implements Closeable {
+
+    /** Every decoder opened by this class for playback, per track */
+    public static final DecodeCounter DECODES = new DecodeCounter();
+    @Nullable
+    private static volatile PcmCache cache;
+
+    private final File songFile;
+    private final AudioInputStream audioStream;
+    private final AudioInputStream decodedStream;
+    private final AudioFormat format;
+    private final long frameLength;
+    /** Song frame that the first read returns */
+    private long startFrame;
+    /** Read from the file's tags on first use */
+    private volatile ReplayGain replayGain;
+    /** Audio decoded ahead of time by {@link #prefill(int)}, served before the stream */
+    private byte[] head = new byte[0];
+    private int headPosition;
+    private int headLength;
+    /** Time spent in the decoder and bytes it produced, reported on close */
+    private long decodeNanos;
+    private long decodedBytes;
+    /** Receives the decoded PCM while the song is decoded from its start, if it is being cached */
+    @Nullable
+    private PcmCache.Writer cacheWriter;
+    /** Set when the PCM comes from the cache, so reading it isn't counted as decoding */
+    private boolean fromCache;
+    /** Set for sources opened by {@link #openForAnalysis(File)}, which stay out of the playback metrics */
+    private boolean forAnalysis;
+    /** Turns the song's PCM into the output format, if that differs */
+    @Nullable
+    private PcmConverter converter;
+
+    private PcmSource(File songFile, AudioInputStream audioStream, AudioInputStream decodedStream,
+                      AudioFormat format, long frameLength) {
+        this.songFile = songFile;
+        this.audioStream = audioStream;
+        this.decodedStream = decodedStream;
+        this.format = format;
+        this.frameLength = frameLength;
+    }
+
+    /**
+     * Opens a song file and wraps it in a 16-bit signed little-endian PCM decoder.
+     * Nothing is decoded until {@link #read(byte[], int, int)} is called.
+     *
+     * @param songFile file to open (.mp3 or .wav)
+     * @return source positioned at frame 0
+     */
+    public static PcmSource open(File songFile) throws IOException, UnsupportedAudioFileException {
+        PcmCache pcmCache = cache;
+        if (pcmCache == null) {
+            return wrap(songFile, AudioSystem.getAudioInputStream(songFile), true, false);
+        }
+        TrackKey key = TrackKey.of(songFile);
+        PcmSource cached = openCached(songFile, pcmCache, key, true);
+        if (cached != null) {
+            return cached;
+        }
+        PcmSource pcmSource = wrap(songFile, AudioSystem.getAudioInputStream(songFile), true, false);
+        if (pcmSource.decodedStream != pcmSource.audioStream) {
+            pcmSource.cacheWriter = pcmCache.startWriting(key, pcmSource.format);
+        }
+        return pcmSource;
+    }
+
+    /**
+     * Opens a song to analyze rather than play. Cached PCM is read if there is some, but
+     * decoding doesn't fill the cache, so analysis doesn't push out the songs played lately.
+     * Its decoding isn't counted in {@link #DECODES} or {@link PlayerMetrics} either.
+     *
+     * @param songFile file to open (.mp3 or .wav)
+     * @return source positioned at frame 0
+     */
+    public static PcmSource openForAnalysis(File songFile) throws IOException, UnsupportedAudioFileException {
+        PcmCache pcmCache = cache;
+        PcmSource pcmSource = pcmCache == null ? null : openCached(songFile, pcmCache, TrackKey.of(songFile), false);
+        if (pcmSource == null) {
+            pcmSource = wrap(songFile, AudioSystem.getAudioInputStream(songFile), true, true);
+        }
+        pcmSource.forAnalysis = true;
+        return pcmSource;
+    }
+
+    /**
+     * Sets where songs are cached once decoded, shared by every source opened afterwards.
+     *
+     * @param pcmCache cache to use, or null to decode every time
+     */
+    public static void setCache(@Nullable PcmCache pcmCache) {
+        cache = pcmCache;
+    }
+
+    /**
+     * @param counted whether a hit counts in {@link PlayerMetrics#PCM_CACHE_HITS}
+     * @return the song read from the cache, or null if it isn't cached in its current version
+     */
+    @Nullable
+    private static PcmSource openCached(File songFile, PcmCache pcmCache, TrackKey key, boolean counted) {
+        AudioInputStream pcm = pcmCache.open(key);
+        if (pcm == null) {
+            return null;
+        }
+        if (counted) {
+            PlayerMetrics.PCM_CACHE_HITS.increment();
+        }
+        PcmSource pcmSource = new PcmSource(songFile, pcm, pcm, pcm.getFormat(), pcm.getFrameLength());
+        pcmSource.fromCache = true;
+        return pcmSource;
+    }
+
+    /**
+     * Opens a song file positioned at a given frame. With a seek index the decoder starts
+     * at the indexed MPEG frame just before the target, so at most one index interval is
+     * decoded and thrown away; without one, everything up to the target is.
+     *
+     * @param songFile file to open (.mp3 or .wav)
+     * @param frame target frame
+     * @param seekIndex index for this file, or null
+     * @return source whose first read returns the target frame (or the end of the song)
+     */
+    public static PcmSource openAt(File songFile, long frame, @Nullable Mp3SeekIndex seekIndex)
+            throws IOException, UnsupportedAudioFileException {
+        PcmCache pcmCache = cache;
+        PcmSource pcmSource = pcmCache == null ? null : openCached(songFile, pcmCache, TrackKey.of(songFile), true);
+        int entry = pcmSource != null || seekIndex == null ? -1 : seekIndex.entryFor(frame);
+        if (entry > 0) {
+            try {
+                pcmSource = openFromOffset(songFile, seekIndex.byteOffset(entry));
+                pcmSource.startFrame = seekIndex.pcmFrame(entry);
+            } catch (IOException | UnsupportedAudioFileException e) {
+                System.out.println("Failed to seek with index, decoding from the start.");
+                e.printStackTrace();
+            }
+        }
+        if (pcmSource == null) {
+            pcmSource = open(songFile);
+        }
+        pcmSource.startFrame += pcmSource.skipFrames(Math.max(0, frame - pcmSource.startFrame));
+        return pcmSource;
+    }
+
+    /**
+     * Starts decoding at a byte offset that holds an MPEG frame header.
+     * The song length still comes from the whole file.
+     */
+    private static PcmSource openFromOffset(File songFile, long offset) throws IOException, UnsupportedAudioFileException {
+        FileInputStream file = new FileInputStream(songFile);
+        try {
+            file.getChannel().position(offset);
+            AudioInputStream audioStream = AudioSystem.getAudioInputStream(new BufferedInputStream(file, 1 << 16));
+            return wrap(songFile, audioStream, false, false);
+        } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps an encoded stream in a 16-bit signed little-endian PCM decoder.
+     *
+     * @param fromStart whether the stream starts at the beginning of the song, so its
+     *                  frame length is the song's
+     * @param forAnalysis whether the decoder is opened for analysis, so it isn't counted in {@link #DECODES}
+     */
+    private static PcmSource wrap(File songFile, AudioInputStream audioStream, boolean fromStart, boolean forAnalysis) {
+        AudioFormat baseFormat = audioStream.getFormat();
+        AudioFormat decodeFormat = new AudioFormat(
+                AudioFormat.Encoding.PCM_SIGNED,
+                baseFormat.getSampleRate(),
+                16,
+                baseFormat.getChannels(),
+                baseFormat.getChannels() * 2,
+                baseFormat.getSampleRate(),
+                false
+        );
+        AudioInputStream decodedStream = AudioSystem.getAudioInputStream(decodeFormat, audioStream);
+        if (!forAnalysis) {
+            DECODES.record(TrackKey.of(songFile));
+        }
+        long frameLength = estimateFrameLength(songFile,
+                fromStart ? decodedStream.getFrameLength() : AudioSystem.NOT_SPECIFIED, decodeFormat);
+        return new PcmSource(songFile, audioStream, decodedStream, decodeFormat, frameLength);
+    }
+
+    /**
+     * Works out the length of the song in decoded frames without decoding it.
+     * WAV files report it directly; mp3spi exposes a "duration" property (in microseconds).
+     */
+    private static long estimateFrameLength(File songFile, long streamFrameLength, AudioFormat format) {
+        if (streamFrameLength != AudioSystem.NOT_SPECIFIED) {
+            return streamFrameLength;
+        }
+        try {
+            AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(songFile);
+            if (fileFormat.getFrameLength() != AudioSystem.NOT_SPECIFIED
+                    && fileFormat.getFormat().getEncoding() == AudioFormat.Encoding.PCM_SIGNED) {
+                return fileFormat.getFrameLength();
+            }
+            Map<String, Object> properties = fileFormat.properties();
+            Object duration = properties.get("duration");
+            if (duration instanceof Long micros) {
+                return (long) (micros / 1_000_000.0 * format.getSampleRate());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes the start of the song into memory, so the first reads after a track change
+     * don't wait on the decoder. Only called for sources that are not being read yet.
+     *
+     * @param maxBytes upper bound on the decoded audio held in memory
+     * @return bytes decoded ahead
+     */
+    public int prefill(int maxBytes) throws IOException {
+        maxBytes -= maxBytes % this.format.getFrameSize();
+        byte[] prefilled = new byte[Math.max(0, maxBytes)];
+        int n = 0;
+        while (n < prefilled.length) {
+            int r = decode(prefilled, n, prefilled.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        this.head = prefilled;
+        this.headPosition = 0;
+        this.headLength = n;
+        return n;
+    }
+
+    /**
+     * Makes {@link #read(byte[], int, int)} hand out PCM in another format, converting
+     * the sample rate and channels as needed. Frame positions and lengths stay in the
+     * song's own frames. Call it before the first read.
+     *
+     * @param outputFormat 16-bit signed little-endian format to read in
+     * @param quality resampling quality, if the sample rate differs
+     */
+    public void convertTo(AudioFormat outputFormat, Resampler.Quality quality) {
+        this.converter = outputFormat.matches(this.format) ? null
+                : new PcmConverter(this::readSong, this.format, outputFormat, quality);
+    }
+
+    /**
+     * Reads decoded PCM into the buffer, in the format set by {@link #convertTo} if any.
+     *
+     * @return bytes read (always a whole number of frames), or -1 at end of stream
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        boolean timed = isPlaybackDecoder();
+        long startedAt = timed ? System.nanoTime() : 0;
+        int n = this.converter != null ? this.converter.read(buffer, offset, length) : readSong(buffer, offset, length);
+        if (timed) {
+            PlayerMetrics.BUFFER_DECODES.record(System.nanoTime() - startedAt);
+        }
+        return n;
+    }
+
+    /**
+     * @return true if reading decodes the song for playback, so it counts in the decode
+     *         metrics; false for PCM read back from the cache and for analysis
+     */
+    private boolean isPlaybackDecoder() {
+        return !this.fromCache && !this.forAnalysis;
+    }
+
+    /**
+     * Reads PCM in the song's own format.
+     */
+    private int readSong(byte[] buffer, int offset, int length) throws IOException {
+        int frameSize = this.format.getFrameSize();
+        length -= length % frameSize;
+        int total = 0;
+        while (total < length) {
+            int n = readDecoded(buffer, offset + total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        // never hand out a partial frame, even on a short final read
+        total -= total % frameSize;
+        return total == 0 ? -1 : total;
+    }
+
+    /**
+     * Decodes and discards frames, used to reach a seek target. A WAV file already in the
+     * output format needs no decoding, so it is skipped directly; mp3spi's own skip is not
+     * frame-accurate and isn't used.
+     *
+     * @param frames number of frames to skip
+     * @return frames actually skipped
+     */
+    public long skipFrames(long frames) throws IOException {
+        int frameSize = this.format.getFrameSize();
+        byte[] scratch = new byte[frameSize * 4096];
+        long remaining = frames * frameSize;
+        if (this.decodedStream == this.audioStream && this.headPosition == this.headLength) {
+            while (remaining > 0) {
+                long skipped = this.decodedStream.skip(remaining);
+                if (skipped <= 0) {
+                    break;
+                }
+                remaining -= skipped;
+            }
+        }
+        while (remaining > 0) {
+            int n = readDecoded(scratch, 0, (int) Math.min(scratch.length, remaining));
+            if (n < 0) {
+                break;
+            }
+            remaining -= n;
+        }
+        return frames - remaining / frameSize;
+    }
+
+    /**
+     * Reads from the prefilled head first, then from the decoder.
+     */
+    private int readDecoded(byte[] buffer, int offset, int length) throws IOException {
+        if (this.headPosition < this.headLength) {
+            int n = Math.min(length, this.headLength - this.headPosition);
+            System.arraycopy(this.head, this.headPosition, buffer, offset, n);
+            this.headPosition += n;
+            if (this.decodedStream == this.audioStream && this.headPosition == this.headLength) {
+                this.head = new byte[0];
+                this.headPosition = 0;
+                this.headLength = 0;
+            }
+            return n;
+        }
+        return decode(buffer, offset, length);
+    }
+
+    /**
+     * Reads from the decoder, timing it.
+     */
+    private int decode(byte[] buffer, int offset, int length) throws IOException {
+        long startedAt = System.nanoTime();
+        int n = this.decodedStream.read(buffer, offset, length);
+        this.decodeNanos += System.nanoTime() - startedAt;
+        if (n > 0) {
+            this.decodedBytes += n;
+            if (this.cacheWriter != null && !this.cacheWriter.write(buffer, offset, n)) {
+                this.cacheWriter = null;
+            }
+        } else if (n < 0 && this.cacheWriter != null) {
+            this.cacheWriter.finish();
+            this.cacheWriter = null;
+        }
+        return n;
+    }
+
+    public File getSongFile() {
+        return songFile;
+    }
+
+    /**
+     * @return decoded PCM format handed out by {@link #read(byte[], int, int)}
+     */
+    public AudioFormat getFormat() {
+        return this.converter != null ? this.converter.getOutputFormat() : this.format;
+    }
+
+    /**
+     * @return format of the song as decoded, which frame positions and lengths count in
+     */
+    public AudioFormat getSongFormat() {
+        return this.format;
+    }
+
+    /**
+     * @return estimated song length in frames, or 0 when unknown
+     */
+    public long getFrameLength() {
+        return frameLength;
+    }
+
+    /**
+     * Gets the song's ReplayGain tags, reading them the first time. Callers preparing a
+     * source off the audio thread call this early so the pump never waits on the file.
+     *
+     * @return ReplayGain values, {@link ReplayGain#NONE} if the song has none
+     */
+    public ReplayGain getReplayGain() {
+        ReplayGain gain = this.replayGain;
+        if (gain == null) {
+            gain = MetadataProbe.probe(this.songFile).replayGain();
+            this.replayGain = gain;
+        }
+        return gain;
+    }
+
+    /**
+     * Reuses ReplayGain values already read for this song, e.g. when a seek reopens it.
+     */
+    void setReplayGain(ReplayGain replayGain) {
+        this.replayGain = replayGain;
+    }
+
+    /**
+     * @return song frame the source was opened at, see {@link #openAt(File, long, Mp3SeekIndex)}
+     */
+    public long getStartFrame() {
+        return startFrame;
+    }
+
+    /**
+     * Closes the decoder and records how long it spent decoding in {@link PlayerMetrics},
+     * unless it was opened for analysis.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.decodedBytes > 0 && isPlaybackDecoder()) {
+            long audioNanos = (long) (this.decodedBytes / this.format.getFrameSize() * 1e9 / this.format.getFrameRate());
+            PlayerMetrics.DECODE_NANOS.add(this.decodeNanos);
+            PlayerMetrics.DECODED_AUDIO_NANOS.add(audioNanos);
+            if (PlayerEvents.TRACK_DECODE.isEnabled()) {
+                PlayerEvents.TrackDecode event = new PlayerEvents.TrackDecode();
+                event.song = this.songFile.getPath();
+                event.decodeTime = this.decodeNanos;
+                event.audioDecoded = audioNanos;
+                event.commit();
+            }
+            this.decodedBytes = 0;
+        }
+        if (this.cacheWriter != null) {
+            // stopped before the end of the song
+            this.cacheWriter.abort();
+            this.cacheWriter = null;
+        }
+        try {
+            this.decodedStream.close();
+        } finally {
+            this.audioStream.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Audio output used by MusicPlayerModel.
+ * An engine plays one song at a time; positions are in frames of the decoded song.
+ */
+public interface PlaybackEngine extends AutoCloseable {
+
+    /**
+     * Opens a song, replacing the current one. The engine is left paused at frame 0.
+     *
+     * @param songFile file to play
+     */
+    void open(File songFile) throws IOException, UnsupportedAudioFileException, LineUnavailableException;
+
+    /**
+     * Opens an already decoded source, replacing the current song. The engine takes
+     * ownership of the source and is left paused at its current position.
+     *
+     * @param source source to play
+     */
+    void open(PcmSource source) throws LineUnavailableException;
+
+    /**
+     * Queues the song to play once the current one runs out. The engine takes ownership
+     * of the source; queueing another one (or null) closes the previous one.
+     *
+     * @param next source to continue with, or null to stop at the end of the current song
+     */
+    void queueNext(@Nullable PcmSource next);
+
+    /**
+     * Sets the callback run when playback has moved on to a queued song by itself.
+     * It is called from the engine's thread once the new song is audible.
+     *
+     * @param listener receives the file that is now playing and the silence between the
+     *                 two songs in nanoseconds, 0 when the new song followed without a gap
+     */
+    void setTrackAdvanceListener(ObjLongConsumer<File> listener);
+
+    /**
+     * Sets the callback run whenever the engine may have changed state: started, stopped,
+     * reached the end of the song, opened a song or moved to a new position.
+     * It can be called from any thread, including the engine's own, and may be called
+     * when nothing visible changed; the listener should re-read what it needs.
+     *
+     * @param listener state change callback
+     */
+    void setStateListener(Runnable listener);
+
+    /**
+     * Sets how long the end of a song overlaps the start of the queued one.
+     * Only applies when playback moves on to a queued song by itself.
+     *
+     * @param millis crossfade length, 0 to play songs back to back
+     */
+    void setCrossfadeMillis(int millis);
+
+    /**
+     * Sets the format the output stays open in. Songs in other formats are converted,
+     * their sample rate by a resampler, so the output isn't reopened between songs.
+     * Applies from the next song opened or queued.
+     *
+     * @param format 16-bit signed little-endian PCM, or null to open the output in each song's format
+     */
+    void setOutputFormat(@Nullable AudioFormat format);
+
+    /**
+     * @param quality how songs at other sample rates than the output are resampled
+     */
+    void setResamplerQuality(Resampler.Quality quality);
+
+    /**
+     * @return true if a song is open
+     */
+    boolean isOpen();
+
+    /**
+     * Starts or resumes output from the current position.
+     */
+    void start();
+
+    /**
+     * Pauses output, keeping the current position.
+     */
+    void stop();
+
+    /**
+     * @return true if output is running
+     */
+    boolean isRunning();
+
+    /**
+     * Becomes true once the last frame of the song has left the output, not merely the
+     * decoder, and the state listener is told right then.
+     *
+     * @return true once every frame of the song has been played
+     */
+    boolean isEndOfStream();
+
+    /**
+     * @return length of the current song in frames, or 0 when unknown
+     */
+    long getFrameLength();
+
+    /**
+     * @return frames per second of the current song's positions and length, its own sample
+     *         rate whatever the output runs at, or 0 when no song is open
+     */
+    float getFrameRate();
+
+    /**
+     * @return frame currently being heard
+     */
+    long getFramePosition();
+
+    /**
+     * Moves playback to the given frame, keeping the running state.
+     *
+     * @param frame frame to continue from
+     */
+    void setFramePosition(long frame);
+
+    /**
+     * @return lowest gain accepted by {@link #setGain(float)}, in decibels
+     */
+    float getMinGain();
+
+    /**
+     * @return highest gain accepted by {@link #setGain(float)}, in decibels
+     */
+    float getMaxGain();
+
+    /**
+     * @param decibels output gain
+     */
+    void setGain(float decibels);
+
+    /**
+     * Gets the processing applied to decoded audio before it reaches the output, for
+     * ReplayGain and limiter settings or to add stages.
+     *
+     * @return the engine's DSP chain
+     */
+    DspChain getDspChain();
+
+    /**
+     * Closes the song and releases the output and any threads.
+     */
+    @Override
+    void close();
+}
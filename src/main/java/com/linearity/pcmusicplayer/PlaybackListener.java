@@ -0,0 +1,45 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Receives playback events from MusicPlayerModel.
+ * Events arrive on the model's callback executor, and only when something actually changed.
+ */
+public interface PlaybackListener {
+
+    /** What the player is doing */
+    enum State {
+        /** No song is loaded */
+        IDLE,
+        /** A song is loaded but not playing */
+        PAUSED,
+        PLAYING,
+        /** The song has played to its last frame */
+        ENDED
+    }
+
+    /**
+     * Called when the player starts, pauses, or reaches the end of a song.
+     *
+     * @param state new state
+     */
+    default void onStateChanged(State state) {}
+
+    /**
+     * Called when a different song is loaded, including when playback moves on to the
+     * next song by itself.
+     *
+     * @param song song now loaded, or null
+     */
+    default void onSongChanged(@Nullable SongBean song) {}
+
+    /**
+     * Called while playing at the model's position tick rate, and once after every seek,
+     * load or pause, whenever the position has moved.
+     *
+     * @param frame frame currently being heard
+     * @param frameLength length of the song in frames, or 0 when unknown
+     */
+    default void onPositionChanged(long frame, long frameLength) {}
+}
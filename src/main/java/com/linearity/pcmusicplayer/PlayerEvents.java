@@ -0,0 +1,138 @@
+package com.linearity.pcmusicplayer;
+
+import jdk.jfr.*;
+
+import java.io.File;
+
+/**
+ * JDK Flight Recorder events of the playback pipeline, recorded next to the matching
+ * {@link PlayerMetrics} entries. Events are only created while a recording has them
+ * enabled, so they cost nothing otherwise; the audio thread checks the event type first.
+ *
+ * Record with -XX:StartFlightRecording or jcmd PID JFR.start, and look for the
+ * "PC Music Player" category.
+ */
+public final class PlayerEvents {
+
+    static final EventType UNDERRUN = EventType.getEventType(Underrun.class);
+    static final EventType FIRST_SAMPLE = EventType.getEventType(FirstSample.class);
+    static final EventType TRACK_DECODE = EventType.getEventType(TrackDecode.class);
+    static final EventType TRACK_TRANSITION = EventType.getEventType(TrackTransition.class);
+    static final EventType FX_STALL = EventType.getEventType(FxStall.class);
+
+    private PlayerEvents() {}
+
+    @Name("com.linearity.pcmusicplayer.TrackDecode")
+    @Label("Track Decode")
+    @Description("A decoder was closed; how long it spent decoding and how much audio it produced")
+    @Category({"PC Music Player", "Playback"})
+    @StackTrace(false)
+    public static final class TrackDecode extends Event {
+        @Label("Song")
+        String song;
+        @Label("Decode Time")
+        @Timespan
+        long decodeTime;
+        @Label("Audio Decoded")
+        @Timespan
+        long audioDecoded;
+    }
+
+    @Name("com.linearity.pcmusicplayer.FirstSample")
+    @Label("Time to First Sample")
+    @Description("From asking for a song to its first audio reaching the output")
+    @Category({"PC Music Player", "Playback"})
+    @StackTrace(false)
+    public static final class FirstSample extends Event {
+        @Label("Song")
+        String song;
+        @Label("Latency")
+        @Timespan
+        long latency;
+    }
+
+    @Name("com.linearity.pcmusicplayer.Underrun")
+    @Label("Output Underrun")
+    @Description("The output played everything it was given before the next buffer was decoded")
+    @Category({"PC Music Player", "Playback"})
+    @StackTrace(false)
+    public static final class Underrun extends Event {
+        @Label("Song")
+        String song;
+        @Label("Frame")
+        long frame;
+    }
+
+    @Name("com.linearity.pcmusicplayer.TrackTransition")
+    @Label("Track Transition")
+    @Description("Playback moved on to the next song by itself")
+    @Category({"PC Music Player", "Playback"})
+    @StackTrace(false)
+    public static final class TrackTransition extends Event {
+        @Label("Song")
+        String song;
+        @Label("Gap")
+        @Timespan
+        long gap;
+    }
+
+    @Name("com.linearity.pcmusicplayer.FxStall")
+    @Label("FX Thread Stall")
+    @Description("The JavaFX application thread took long to run a queued task")
+    @Category({"PC Music Player", "GUI"})
+    @StackTrace(false)
+    public static final class FxStall extends Event {
+        @Label("Delay")
+        @Timespan
+        long delay;
+    }
+
+    @Name("com.linearity.pcmusicplayer.LibraryScan")
+    @Label("Library Scan")
+    @Category({"PC Music Player", "Library"})
+    @StackTrace(false)
+    public static final class LibraryScan extends Event {
+        @Label("Directories")
+        long directories;
+        @Label("Songs")
+        long songs;
+        @Label("Cancelled")
+        boolean cancelled;
+    }
+
+    @Name("com.linearity.pcmusicplayer.IndexOperation")
+    @Label("Index Operation")
+    @Description("Loading or saving the library index, or building a seek index")
+    @Category({"PC Music Player", "Library"})
+    @StackTrace(false)
+    public static final class IndexOperation extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("File")
+        String file;
+        private final transient long startedAt = System.nanoTime();
+
+        /**
+         * Starts timing an operation.
+         *
+         * @param operation what is being done, e.g. "library index load"
+         * @param file index file or song being indexed
+         */
+        IndexOperation(String operation, File file) {
+            this.operation = operation;
+            this.file = file.getPath();
+            begin();
+        }
+
+        /**
+         * Stops timing, recording the duration in a histogram and committing the event.
+         *
+         * @param histogram histogram of this kind of operation
+         */
+        void finish(LatencyHistogram histogram) {
+            histogram.record(System.nanoTime() - this.startedAt);
+            end();
+            commit();
+        }
+    }
+}
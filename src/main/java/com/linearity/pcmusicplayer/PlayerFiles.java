@@ -0,0 +1,36 @@
+package com.linearity.pcmusicplayer;
+
+import java.io.File;
+
+/**
+ * Locations of the files the player keeps between runs.
+ */
+public final class PlayerFiles {
+
+    private PlayerFiles() {}
+
+    /**
+     * Gets the directory holding the player's own data, creating it if needed.
+     * Defaults to ~/.pcmusicplayer and can be moved with -Dpcmusicplayer.dataDir=...
+     *
+     * @return data directory
+     */
+    public static File dataDirectory() {
+        String configured = System.getProperty("pcmusicplayer.dataDir");
+        File directory = configured != null
+                ? new File(configured)
+                : new File(System.getProperty("user.home"), ".pcmusicplayer");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Failed to create " + directory.getAbsolutePath());
+        }
+        return directory;
+    }
+
+    /**
+     * @param name file name inside the data directory
+     * @return file in the data directory
+     */
+    public static File dataFile(String name) {
+        return new File(dataDirectory(), name);
+    }
+}
@@ -0,0 +1,113 @@
+package com.linearity.pcmusicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the playback pipeline, kept for the life of the process.
+ * Recording is lock-free and allocates nothing, so everything stays on in normal use and
+ * a stutter can be looked into after the fact with {@link #dump(File)}.
+ * The same moments are also recorded as {@link PlayerEvents} for Flight Recorder.
+ */
+public final class PlayerMetrics {
+
+    /** Time taken by each read from a decoder */
+    public static final LatencyHistogram BUFFER_DECODES = new LatencyHistogram();
+    /** Time spent decoding, and length of the audio that came out of it */
+    public static final LongAdder DECODE_NANOS = new LongAdder();
+    public static final LongAdder DECODED_AUDIO_NANOS = new LongAdder();
+    /** From asking for a song to its first audio reaching the output */
+    public static final LatencyHistogram FIRST_SAMPLES = new LatencyHistogram();
+    /** Audio left in the output's buffer each time a new buffer was decoded for it */
+    public static final LatencyHistogram BUFFERED_AUDIO = new LatencyHistogram();
+    /** Songs opened from the decoded PCM cache instead of a decoder */
+    public static final LongAdder PCM_CACHE_HITS = new LongAdder();
+    /** Times the output ran dry while playing */
+    public static final LongAdder UNDERRUNS = new LongAdder();
+    /** Silence between songs when playback moved on by itself */
+    public static final LatencyHistogram TRANSITION_GAPS = new LatencyHistogram();
+    /** How late the FX thread ran a task queued for it */
+    public static final LatencyHistogram FX_DELAYS = new LatencyHistogram();
+    public static final LatencyHistogram LIBRARY_SCANS = new LatencyHistogram();
+    public static final LatencyHistogram LIBRARY_INDEX_LOADS = new LatencyHistogram();
+    public static final LatencyHistogram LIBRARY_INDEX_SAVES = new LatencyHistogram();
+    public static final LatencyHistogram SEEK_INDEX_BUILDS = new LatencyHistogram();
+
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new LinkedHashMap<>();
+
+    static {
+        HISTOGRAMS.put("buffer decode", BUFFER_DECODES);
+        HISTOGRAMS.put("time to first sample", FIRST_SAMPLES);
+        HISTOGRAMS.put("buffered audio", BUFFERED_AUDIO);
+        HISTOGRAMS.put("transition gap", TRANSITION_GAPS);
+        HISTOGRAMS.put("fx thread delay", FX_DELAYS);
+        HISTOGRAMS.put("library scan", LIBRARY_SCANS);
+        HISTOGRAMS.put("library index load", LIBRARY_INDEX_LOADS);
+        HISTOGRAMS.put("library index save", LIBRARY_INDEX_SAVES);
+        HISTOGRAMS.put("seek index build", SEEK_INDEX_BUILDS);
+    }
+
+    private PlayerMetrics() {}
+
+    /**
+     * @return everything recorded so far, as text
+     */
+    public static String snapshot() {
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        out.println("PC Music Player metrics, " + Instant.now());
+        long decodeNanos = DECODE_NANOS.sum();
+        long audioNanos = DECODED_AUDIO_NANOS.sum();
+        out.printf("decoded: %.1f s of audio in %.1f s (%.0fx real time), %d decoders opened%n",
+                audioNanos / 1e9, decodeNanos / 1e9, decodeNanos == 0 ? 0 : (double) audioNanos / decodeNanos,
+                PcmSource.DECODES.total());
+        out.println("pcm cache hits: " + PCM_CACHE_HITS.sum());
+        out.println("underruns: " + UNDERRUNS.sum());
+        for (Map.Entry<String, LatencyHistogram> entry : HISTOGRAMS.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            out.println(entry.getKey() + ": " + histogram);
+            if (histogram.count() == 0) {
+                continue;
+            }
+            for (int i = 0; i < histogram.bucketCount(); i++) {
+                if (histogram.bucket(i) > 0) {
+                    out.printf("    <= %dus: %d%n", i == 0 ? 1 : 1L << i, histogram.bucket(i));
+                }
+            }
+        }
+        out.flush();
+        return text.toString();
+    }
+
+    /**
+     * Writes {@link #snapshot()} to a file, replacing it in one step.
+     *
+     * @param file file to write
+     * @throws IOException if writing fails
+     */
+    public static void dump(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Files.writeString(temp.toPath(), snapshot(), StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static void reset() {
+        DECODE_NANOS.reset();
+        DECODED_AUDIO_NANOS.reset();
+        PCM_CACHE_HITS.reset();
+        UNDERRUNS.reset();
+        HISTOGRAMS.values().forEach(LatencyHistogram::reset);
+    }
+}
@@ -0,0 +1,360 @@
+package com.linearity.pcmusicplayer;
+
+import javafx.collections.ObservableListBase;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The playlist as an int array of song ids from a {@link PathTable}.
+ * As an ObservableList it hands out SongBeans made on demand, so a ListView only ever
+ * materializes the rows it shows. Replacing, appending and shuffling work on the int
+ * array and fire a single change each.
+ *
+ * A shuffled range is drawn lazily: positions from the first one not read yet to the end
+ * hold the songs still to be drawn, and reading a position draws up to it, one swap per
+ * position. Songs appended meanwhile join the draw. Every position's song is fixed once
+ * read, so listeners never see a row change without a change event.
+ *
+ * Changed on the FX thread only, like any list a ListView shows. Reads draw, so they
+ * take the same lock as changes, and the prefetch thread and session writer may read too.
+ */
+public class Playlist extends ObservableListBase<SongBean> {
+
+    private final PathTable paths;
+    private int[] order = new int[0];
+    private int size;
+    /** Position of each song id in order, -1 if the song isn't in the playlist */
+    private int[] positions = new int[0];
+    /** Draws the songs from position shuffled on; null if the playlist isn't shuffled */
+    @Nullable
+    private ShuffleOrder shuffle;
+    private int shuffled;
+    /** Bumped by every change of the list */
+    private int version;
+
+    /**
+     * @param paths table the song ids refer to
+     */
+    public Playlist(PathTable paths) {
+        this.paths = paths;
+    }
+
+    @Override
+    public synchronized SongBean get(int index) {
+        return new SongBean(this.paths.file(trackAt(index)), index);
+    }
+
+    @Override
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * @param index playlist position
+     * @return id of the song there
+     */
+    public synchronized int trackAt(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        drawUpTo(index);
+        return this.order[index];
+    }
+
+    /**
+     * Tells whether a song is in the playlist, drawn yet or not, without drawing anything.
+     *
+     * @param trackId song id
+     * @return true if the song is in the playlist
+     */
+    public synchronized boolean containsTrack(int trackId) {
+        return trackId >= 0 && trackId < this.positions.length && this.positions[trackId] >= 0;
+    }
+
+    /**
+     * Finds a song's position. A song not drawn yet has none, so this draws the shuffle
+     * until the song comes up, and no further.
+     *
+     * @param trackId song id
+     * @return the song's playlist position, or -1 if it isn't in the playlist
+     */
+    public synchronized int positionOf(int trackId) {
+        if (!containsTrack(trackId)) {
+            return -1;
+        }
+        while (!isDrawn(this.positions[trackId])) {
+            drawUpTo(this.shuffled);
+        }
+        return this.positions[trackId];
+    }
+
+    /**
+     * Replaces the whole playlist.
+     *
+     * @param trackIds song ids in playlist order
+     * @param shuffle draws the new playlist in its order if not null; like {@link #shuffle},
+     *                the songs are put in path hash order first
+     */
+    public synchronized void setTracks(int[] trackIds, @Nullable ShuffleOrder shuffle) {
+        List<SongBean> removed = snapshot(0, this.size);
+        for (int i = 0; i < this.size; i++) {
+            this.positions[this.order[i]] = -1;
+        }
+        this.order = trackIds.clone();
+        this.size = trackIds.length;
+        if (shuffle != null) {
+            sortByPathHash(0);
+        }
+        this.shuffle = shuffle;
+        this.shuffled = 0;
+        this.version++;
+        indexPositions(0);
+        beginChange();
+        if (!removed.isEmpty()) {
+            nextRemove(0, removed);
+        }
+        if (this.size > 0) {
+            nextAdd(0, this.size);
+        }
+        endChange();
+    }
+
+    /**
+     * Replaces the whole playlist with songs already in playing order, e.g. a saved one.
+     *
+     * @param trackIds song ids in playing order
+     * @param shuffle draws the songs appended later if not null
+     */
+    public synchronized void setDrawnTracks(int[] trackIds, @Nullable ShuffleOrder shuffle) {
+        setTracks(trackIds, null);
+        this.shuffle = shuffle;
+        this.shuffled = this.size;
+    }
+
+    /**
+     * Draws whatever is left of the shuffle and copies the playlist.
+     *
+     * @return song ids in playing order
+     */
+    public synchronized int[] drawnTracks() {
+        drawUpTo(this.size - 1);
+        return Arrays.copyOf(this.order, this.size);
+    }
+
+    /**
+     * Copies the songs in the playlist without drawing anything.
+     *
+     * @return song ids, in playing order only as far as the shuffle is drawn
+     */
+    public synchronized int[] tracks() {
+        return Arrays.copyOf(this.order, this.size);
+    }
+
+    /**
+     * @return a number that changes whenever the playlist does
+     */
+    public synchronized int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Adds songs to the end. While a shuffle is being drawn they join it.
+     *
+     * @param trackIds song ids in the order to add them
+     */
+    public synchronized void appendTracks(int[] trackIds) {
+        if (trackIds.length == 0) {
+            return;
+        }
+        int from = this.size;
+        if (from + trackIds.length > this.order.length) {
+            this.order = Arrays.copyOf(this.order, Math.max(from + trackIds.length, this.order.length * 2));
+        }
+        System.arraycopy(trackIds, 0, this.order, from, trackIds.length);
+        this.size += trackIds.length;
+        this.version++;
+        indexPositions(from);
+        beginChange();
+        nextAdd(from, this.size);
+        endChange();
+    }
+
+    /**
+     * Shuffles the playlist from a position to the end. The songs are first put in order of
+     * their path hashes, so the shuffle depends only on its seed and on which songs there
+     * are, not on the order they were found in. Nothing is drawn until it is read.
+     *
+     * @param from first position to shuffle
+     * @param shuffle order to draw the songs in
+     */
+    public synchronized void shuffle(int from, ShuffleOrder shuffle) {
+        from = Math.min(from, this.size);
+        drawUpTo(from - 1);
+        List<SongBean> removed = snapshot(from, this.size);
+        sortByPathHash(from);
+        indexPositions(from);
+        this.shuffle = shuffle;
+        this.shuffled = from;
+        this.version++;
+        if (!removed.isEmpty()) {
+            // every row in the range may now show another song under the same number
+            beginChange();
+            nextReplace(from, this.size, removed);
+            endChange();
+        }
+    }
+
+    /**
+     * Moves a song to a position, shifting the songs between down by one, and draws
+     * everything before it. A song not drawn yet is taken out of the draw instead of
+     * drawing the shuffle until it comes up.
+     *
+     * @param trackId song in the playlist
+     * @param index position to move it to
+     */
+    public synchronized void moveTrack(int trackId, int index) {
+        if (!containsTrack(trackId)) {
+            return;
+        }
+        drawUpTo(index);
+        int position = this.positions[trackId];
+        if (!isDrawn(position)) {
+            // make it the next song drawn; it then moves up to index like a drawn one
+            int next = this.order[this.shuffled];
+            this.order[position] = next;
+            this.positions[next] = position;
+            this.order[this.shuffled] = trackId;
+            position = this.shuffled++;
+            this.positions[trackId] = position;
+        }
+        if (position == index) {
+            return;
+        }
+        int from = Math.min(position, index);
+        int to = Math.max(position, index) + 1;
+        List<SongBean> removed = snapshot(from, to);
+        if (position > index) {
+            System.arraycopy(this.order, index, this.order, index + 1, position - index);
+        } else {
+            System.arraycopy(this.order, position + 1, this.order, position, index - position);
+        }
+        this.order[index] = trackId;
+        for (int i = from; i < to; i++) {
+            this.positions[this.order[i]] = i;
+        }
+        this.version++;
+        beginChange();
+        nextReplace(from, to, removed);
+        endChange();
+    }
+
+    /**
+     * Sorts the songs from a position to the end by path hash, and songs whose hashes
+     * collide by path.
+     */
+    private void sortByPathHash(int from) {
+        long[] keys = new long[this.size - from];
+        for (int i = 0; i < keys.length; i++) {
+            int trackId = this.order[from + i];
+            keys[i] = (long) this.paths.pathHash(trackId) << 32 | trackId;
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            this.order[from + i] = (int) keys[i];
+        }
+        for (int start = 0, end; start < keys.length; start = end) {
+            end = start + 1;
+            while (end < keys.length && keys[end] >>> 32 == keys[start] >>> 32) {
+                end++;
+            }
+            if (end - start > 1) {
+                Integer[] collided = new Integer[end - start];
+                for (int i = 0; i < collided.length; i++) {
+                    collided[i] = this.order[from + start + i];
+                }
+                Arrays.sort(collided, Comparator.comparing(trackId -> this.paths.file(trackId).getPath()));
+                for (int i = 0; i < collided.length; i++) {
+                    this.order[from + start + i] = collided[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether the song at a position is fixed, i.e. not still to be drawn
+     */
+    private boolean isDrawn(int position) {
+        return this.shuffle == null || position < this.shuffled;
+    }
+
+    /**
+     * Draws the shuffle up to and including a position.
+     */
+    private void drawUpTo(int index) {
+        ShuffleOrder shuffle = this.shuffle;
+        if (shuffle == null) {
+            return;
+        }
+        ShuffleOrder.Spread spread = shuffle.getSpread();
+        while (this.shuffled <= index && this.shuffled < this.size) {
+            int previousGroup = this.shuffled == 0 ? -1 : groupOf(this.order[this.shuffled - 1], spread);
+            int pick = shuffle.draw(this.order, this.shuffled, this.size, previousGroup,
+                    trackId -> groupOf(trackId, spread));
+            int swap = this.order[pick];
+            this.order[pick] = this.order[this.shuffled];
+            this.order[this.shuffled] = swap;
+            this.positions[this.order[pick]] = pick;
+            this.positions[swap] = this.shuffled;
+            this.shuffled++;
+        }
+    }
+
+    private int groupOf(int trackId, ShuffleOrder.Spread spread) {
+        return switch (spread) {
+            case NONE -> -1;
+            case DIRECTORY -> this.paths.directoryId(trackId);
+            case ARTIST -> this.paths.parentDirectoryId(trackId);
+        };
+    }
+
+    /**
+     * @return songs in a range as they are now, made into SongBeans only if a listener asks
+     */
+    private List<SongBean> snapshot(int from, int to) {
+        // positions not drawn yet were never shown, so whatever they hold will do
+        int[] ids = Arrays.copyOfRange(this.order, from, to);
+        return new AbstractList<>() {
+            @Override
+            public SongBean get(int index) {
+                return new SongBean(paths.file(ids[index]), from + index);
+            }
+
+            @Override
+            public int size() {
+                return ids.length;
+            }
+        };
+    }
+
+    /**
+     * Records the positions of the songs from a position to the end.
+     */
+    private void indexPositions(int from) {
+        int highest = -1;
+        for (int i = from; i < this.size; i++) {
+            highest = Math.max(highest, this.order[i]);
+        }
+        if (highest >= this.positions.length) {
+            int oldLength = this.positions.length;
+            this.positions = Arrays.copyOf(this.positions, Math.max(highest + 1, oldLength * 2));
+            Arrays.fill(this.positions, oldLength, this.positions.length, -1);
+        }
+        for (int i = from; i < this.size; i++) {
+            this.positions[this.order[i]] = i;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.linearity.pcmusicplayer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Trigram index over the playlist for type-to-filter search.
+ * Every song is indexed under the lower-case name of its file and its parent directory,
+ * which usually holds the album or artist. A query of three or more characters is looked
+ * up by intersecting the posting lists of its trigrams, rarest first, and only the few
+ * candidates left are checked with a plain substring match. Shorter queries scan all names.
+ *
+ * Names are kept as lower-case UTF-8 in one byte array, and trigrams are of bytes, so the
+ * index adds a few dozen bytes per song and no objects. Since UTF-8 never starts a
+ * character inside another, a byte substring match is a character substring match.
+ *
+ * Songs are numbered in the order they were added, so posting lists stay sorted as songs
+ * are appended, and shuffling the playlist doesn't touch the index at all.
+ * Not thread-safe; used on the FX thread along with the playlist.
+ */
+public class PlaylistSearchIndex {
+
+    private static final int GRAM = 3;
+
+    /** Growable sorted list of song numbers */
+    private static final class Postings {
+        int[] entries = new int[4];
+        int size;
+
+        void add(int entry) {
+            if (this.size > 0 && this.entries[this.size - 1] == entry) {
+                return;
+            }
+            if (this.size == this.entries.length) {
+                this.entries = Arrays.copyOf(this.entries, this.size * 2);
+            }
+            this.entries[this.size++] = entry;
+        }
+    }
+
+    private final PathTable paths;
+    /** Open-addressing table from trigram to postings; a key of 0 marks a free slot */
+    private int[] gramKeys = new int[1 << 12];
+    private Postings[] gramPostings = new Postings[1 << 12];
+    private int gramCount;
+    /** Searchable names of all songs back to back, and where each one starts */
+    private byte[] text = new byte[1 << 15];
+    private int[] textStart = new int[1025];
+    /** Song id of each song number */
+    private int[] trackIds = new int[1024];
+    private int size;
+
+    /**
+     * @param paths table the playlist's song ids refer to
+     */
+    public PlaylistSearchIndex(PathTable paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Replaces everything in the index.
+     *
+     * @param trackIds song ids
+     */
+    public void rebuild(int[] trackIds) {
+        Arrays.fill(this.gramKeys, 0);
+        Arrays.fill(this.gramPostings, null);
+        this.gramCount = 0;
+        this.size = 0;
+        append(trackIds);
+    }
+
+    /**
+     * Indexes songs added to the end of the playlist.
+     *
+     * @param trackIds song ids
+     */
+    public void append(int[] trackIds) {
+        if (this.size + trackIds.length >= this.textStart.length) {
+            this.textStart = Arrays.copyOf(this.textStart,
+                    Math.max(this.size + trackIds.length + 1, this.textStart.length * 2));
+            this.trackIds = Arrays.copyOf(this.trackIds, this.textStart.length - 1);
+        }
+        for (int trackId : trackIds) {
+            int entry = this.size++;
+            this.trackIds[entry] = trackId;
+            byte[] name = searchableName(trackId);
+            int start = this.textStart[entry];
+            if (start + name.length > this.text.length) {
+                this.text = Arrays.copyOf(this.text, Math.max(start + name.length, this.text.length * 2));
+            }
+            System.arraycopy(name, 0, this.text, start, name.length);
+            this.textStart[entry + 1] = start + name.length;
+            for (int i = 0; i + GRAM <= name.length; i++) {
+                postingsFor(gramKey(name, i)).add(entry);
+            }
+        }
+    }
+
+    /**
+     * @return number of indexed songs
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Finds the songs whose file or directory name contains the query, ignoring case.
+     *
+     * @param query text typed by the user
+     * @return ids of the matching songs in the order they were added; every song for a blank query
+     */
+    public int[] search(String query) {
+        byte[] needle = query.strip().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        int[] matches = new int[16];
+        int count = 0;
+        if (needle.length < GRAM) {
+            for (int entry = 0; entry < this.size; entry++) {
+                if (needle.length == 0 || contains(entry, needle)) {
+                    if (count == matches.length) {
+                        matches = Arrays.copyOf(matches, count * 2);
+                    }
+                    matches[count++] = this.trackIds[entry];
+                }
+            }
+            return Arrays.copyOf(matches, count);
+        }
+        Postings[] lists = new Postings[needle.length - GRAM + 1];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = this.gramPostings[slotOf(gramKey(needle, i))];
+            if (lists[i] == null || lists[i].size == 0) {
+                return new int[0];
+            }
+        }
+        Arrays.sort(lists, Comparator.comparingInt(postings -> postings.size));
+        Postings rarest = lists[0];
+        int[] cursors = new int[lists.length];
+        candidates:
+        for (int c = 0; c < rarest.size; c++) {
+            int entry = rarest.entries[c];
+            for (int l = 1; l < lists.length; l++) {
+                Postings postings = lists[l];
+                int found = Arrays.binarySearch(postings.entries, cursors[l], postings.size, entry);
+                if (found >= 0) {
+                    cursors[l] = found;
+                    continue;
+                }
+                cursors[l] = -found - 1;
+                if (cursors[l] == postings.size) {
+                    break candidates;
+                }
+                continue candidates;
+            }
+            // every trigram occurs, but maybe not next to each other
+            if (contains(entry, needle)) {
+                if (count == matches.length) {
+                    matches = Arrays.copyOf(matches, count * 2);
+                }
+                matches[count++] = this.trackIds[entry];
+            }
+        }
+        return Arrays.copyOf(matches, count);
+    }
+
+    private boolean contains(int entry, byte[] needle) {
+        int end = this.textStart[entry + 1] - needle.length;
+        candidates:
+        for (int i = this.textStart[entry]; i <= end; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (this.text[i + j] != needle[j]) {
+                    continue candidates;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return lower-case file name and parent directory name, split by a line break no query contains
+     */
+    private byte[] searchableName(int trackId) {
+        String name = this.paths.fileName(trackId) + "\n" + this.paths.directoryName(trackId);
+        return name.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Postings postingsFor(int key) {
+        int slot = slotOf(key);
+        Postings postings = this.gramPostings[slot];
+        if (postings == null) {
+            postings = new Postings();
+            this.gramKeys[slot] = key;
+            this.gramPostings[slot] = postings;
+            if (++this.gramCount * 2 > this.gramKeys.length) {
+                growTable();
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * @return the key's slot, or the free slot where it would go
+     */
+    private int slotOf(int key) {
+        int mask = this.gramKeys.length - 1;
+        int hash = key * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (this.gramKeys[slot] != 0 && this.gramKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growTable() {
+        int[] keys = this.gramKeys;
+        Postings[] postings = this.gramPostings;
+        this.gramKeys = new int[keys.length * 2];
+        this.gramPostings = new Postings[keys.length * 2];
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                int slot = slotOf(keys[i]);
+                this.gramKeys[slot] = keys[i];
+                this.gramPostings[slot] = postings[i];
+            }
+        }
+    }
+
+    /**
+     * @return the three bytes from start, with a marker bit so no key is 0
+     */
+    private static int gramKey(byte[] text, int start) {
+        return 1 << 24 | (text[start] & 0xFF) << 16 | (text[start + 1] & 0xFF) << 8 | (text[start + 2] & 0xFF);
+    }
+}
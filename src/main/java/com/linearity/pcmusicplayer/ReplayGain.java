@@ -0,0 +1,64 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * ReplayGain values of a song. Missing values are NaN.
+ *
+ * @param trackGainDb gain that brings this song to the reference loudness
+ * @param trackPeak highest sample of this song, 1.0 being full scale
+ * @param albumGainDb gain that brings the song's album to the reference loudness
+ * @param albumPeak highest sample of the album
+ */
+public record ReplayGain(float trackGainDb, float trackPeak, float albumGainDb, float albumPeak) {
+
+    /** A song without ReplayGain information */
+    public static final ReplayGain NONE = new ReplayGain(Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+
+    public boolean hasTrackGain() {
+        return !Float.isNaN(this.trackGainDb);
+    }
+
+    public boolean hasAlbumGain() {
+        return !Float.isNaN(this.albumGainDb);
+    }
+
+    /**
+     * Fills the values this one lacks from another source, keeping tags over computed values.
+     *
+     * @param fallback values to use where this one has NaN
+     * @return combined values
+     */
+    public ReplayGain orElse(ReplayGain fallback) {
+        if (hasTrackGain() && hasAlbumGain()) {
+            return this;
+        }
+        return new ReplayGain(
+                hasTrackGain() ? this.trackGainDb : fallback.trackGainDb,
+                hasTrackGain() ? this.trackPeak : fallback.trackPeak,
+                hasAlbumGain() ? this.albumGainDb : fallback.albumGainDb,
+                hasAlbumGain() ? this.albumPeak : fallback.albumPeak);
+    }
+
+    /**
+     * Reads a tag value such as "-6.54 dB" or "0.988".
+     *
+     * @param text tag value, or null
+     * @return the number, or NaN if there isn't one
+     */
+    static float parse(@Nullable String text) {
+        if (text == null) {
+            return Float.NaN;
+        }
+        String number = text.trim();
+        int unit = number.toLowerCase().indexOf("db");
+        if (unit >= 0) {
+            number = number.substring(0, unit).trim();
+        }
+        try {
+            return Float.parseFloat(number.replace(',', '.'));
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.linearity.pcmusicplayer;
+
+/**
+ * Normalizes loudness with each song's ReplayGain values, so quiet and loud masters play
+ * at a similar level. The gain switches exactly at the first buffer of each song.
+ * Songs without ReplayGain values are played at the preamp gain alone.
+ */
+public class ReplayGainStage implements DspStage {
+
+    public enum Mode {
+        OFF,
+        /** Every song at the reference loudness */
+        TRACK,
+        /** Whole albums at the reference loudness, keeping the level differences within them */
+        ALBUM
+    }
+
+    private volatile Mode mode = Mode.TRACK;
+    private volatile float preampDb = 0f;
+    private volatile ReplayGain current = ReplayGain.NONE;
+    /** Gain applied at the end of the last buffer; pump thread only */
+    private float gain = 1f;
+    /** Set by trackChanged so the new song's gain applies from its first sample */
+    private boolean jump = true;
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return this.mode;
+    }
+
+    /**
+     * @param decibels gain added on top of every song's ReplayGain
+     */
+    public void setPreampDb(float decibels) {
+        this.preampDb = decibels;
+    }
+
+    public float getPreampDb() {
+        return this.preampDb;
+    }
+
+    /**
+     * @return gain in dB for the current song under the current settings
+     */
+    public float currentGainDb() {
+        ReplayGain replayGain = this.current;
+        float decibels = switch (this.mode) {
+            case OFF -> 0f;
+            case TRACK -> replayGain.hasTrackGain() ? replayGain.trackGainDb()
+                    : replayGain.hasAlbumGain() ? replayGain.albumGainDb() : 0f;
+            case ALBUM -> replayGain.hasAlbumGain() ? replayGain.albumGainDb()
+                    : replayGain.hasTrackGain() ? replayGain.trackGainDb() : 0f;
+        };
+        return this.mode == Mode.OFF ? 0f : decibels + this.preampDb;
+    }
+
+    @Override
+    public void prepare(float sampleRate, int channels) {
+        this.jump = true;
+    }
+
+    @Override
+    public void trackChanged(ReplayGain replayGain) {
+        this.current = replayGain;
+        this.jump = true;
+    }
+
+    @Override
+    public void process(float[] samples, int frames, int channels) {
+        float target = DspStage.dbToLinear(currentGainDb());
+        if (this.jump) {
+            this.gain = target;
+            this.jump = false;
+        }
+        DspStage.applyGain(samples, frames, channels, this.gain, target);
+        this.gain = target;
+    }
+}
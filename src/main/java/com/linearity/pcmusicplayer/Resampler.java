@@ -0,0 +1,272 @@
+package com.linearity.pcmusicplayer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming sample rate converter: a windowed-sinc low-pass filter evaluated at each output
+ * sample's position between input samples. The filter is tabulated at a fixed number of
+ * fractional offsets (phases) and interpolated linearly between the two nearest ones, so
+ * any pair of rates works with a table of a few thousand coefficients.
+ * Output positions advance by exactly inputRate/outputRate input samples, kept as an
+ * integer count, so long songs don't drift.
+ *
+ * When converting down the cutoff moves below the output's Nyquist frequency and the
+ * filter widens to match, so nothing above it folds back into the audible band.
+ * Feed input with {@link #write}, take output with {@link #read}, and call
+ * {@link #finish()} once the input ends so the last samples come out.
+ * Buffers grow only while the caller's chunks grow; after the first few, nothing is
+ * allocated. Not thread-safe.
+ */
+public class Resampler {
+
+    /**
+     * Filter length and accuracy against cost.
+     * Converting a 1 kHz sine from 44.1 to 48 kHz, FAST (18 taps) is about 70 dB above its
+     * error, GOOD (36 taps) about 90 dB and BEST (66 taps) over 120 dB; ResamplerTest
+     * checks these. Converting down takes more taps, since the filter widens.
+     */
+    public enum Quality {
+        FAST(8, 128, 6.0, 0.90),
+        GOOD(16, 512, 8.6, 0.94),
+        BEST(32, 2048, 12.0, 0.97);
+
+        /** Zero crossings of the sinc on each side */
+        final int zeroCrossings;
+        final int phases;
+        /** Kaiser window shape */
+        final double beta;
+        /** Passband edge as a fraction of the lower Nyquist frequency */
+        final double rolloff;
+
+        Quality(int zeroCrossings, int phases, double beta, double rolloff) {
+            this.zeroCrossings = zeroCrossings;
+            this.phases = phases;
+            this.beta = beta;
+            this.rolloff = rolloff;
+        }
+    }
+
+    /** Filter tables by quality and rates, shared so reopening a song for a seek doesn't rebuild one */
+    private static final Map<String, float[]> TABLES = new ConcurrentHashMap<>();
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int channels;
+    private final int phases;
+    /** Input samples on each side of an output position that the filter reaches */
+    private final int halfWidth;
+    /** phases + 1 rows of 2 * halfWidth coefficients; row p is the filter at offset p / phases */
+    private final float[] table;
+
+    /** Input frames not used up yet, interleaved; frame 0 is input frame historyStart */
+    private float[] history;
+    private int historyFrames;
+    private long historyStart;
+    /** Output frames produced so far */
+    private long outputCount;
+    /** Input frames written, and whether that is all of them */
+    private long inputCount;
+    private boolean finished;
+
+    /**
+     * @param inputRate sample rate written
+     * @param outputRate sample rate read
+     * @param channels interleaved channels
+     * @param quality filter length and steepness
+     */
+    public Resampler(int inputRate, int outputRate, int channels, Quality quality) {
+        if (inputRate <= 0 || outputRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("Bad resampler format " + inputRate + " -> " + outputRate + ", " + channels);
+        }
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+        this.phases = quality.phases;
+        double cutoff = quality.rolloff * Math.min(1.0, (double) outputRate / inputRate);
+        this.halfWidth = (int) Math.ceil(quality.zeroCrossings / cutoff);
+        int halfWidth = this.halfWidth;
+        this.table = TABLES.computeIfAbsent(quality + " " + inputRate + " " + outputRate,
+                key -> buildTable(quality.phases, halfWidth, cutoff, quality.beta));
+        // the filter reaches back halfWidth - 1 frames before the first input; those are silence
+        this.history = new float[(this.halfWidth * 2 + 4096) * channels];
+        this.historyFrames = this.halfWidth - 1;
+        this.historyStart = -(this.halfWidth - 1);
+    }
+
+    public int getInputRate() {
+        return this.inputRate;
+    }
+
+    public int getOutputRate() {
+        return this.outputRate;
+    }
+
+    /**
+     * Adds input.
+     *
+     * @param input interleaved samples, nominally between -1 and 1
+     * @param frames frames to take from the start of input
+     */
+    public void write(float[] input, int frames) {
+        if (this.finished) {
+            throw new IllegalStateException("Input already finished");
+        }
+        append(input, frames);
+        this.inputCount += frames;
+    }
+
+    /**
+     * Marks the end of the input. The rest of the output can then be read, up to the
+     * frame that lines up with the end of the input.
+     */
+    public void finish() {
+        if (!this.finished) {
+            this.finished = true;
+            // silence after the end, for the filter to reach into
+            append(null, this.halfWidth);
+        }
+    }
+
+    /**
+     * @return true once the input has ended and all output was read
+     */
+    public boolean isDone() {
+        return this.finished && outputPosition(this.outputCount) >= this.inputCount * this.outputRate;
+    }
+
+    /**
+     * Produces as much output as the input so far allows.
+     *
+     * @param output interleaved samples
+     * @param maxFrames most frames to produce
+     * @return frames produced, 0 when more input is needed or everything was read
+     */
+    public int read(float[] output, int maxFrames) {
+        int channels = this.channels;
+        int width = this.halfWidth * 2;
+        float[] table = this.table;
+        float[] history = this.history;
+        int produced = 0;
+        while (produced < maxFrames) {
+            long position = outputPosition(this.outputCount);
+            if (this.finished && position >= this.inputCount * this.outputRate) {
+                break;
+            }
+            long index = position / this.outputRate;
+            // the filter needs input frames index - halfWidth + 1 to index + halfWidth
+            long first = index - this.halfWidth + 1;
+            if (first + width > this.historyStart + this.historyFrames) {
+                break;
+            }
+            long remainder = position - index * this.outputRate;
+            double phase = (double) remainder * this.phases / this.outputRate;
+            int row = (int) phase;
+            float blend = (float) (phase - row);
+            int row0 = row * width;
+            int row1 = row0 + width;
+            int start = (int) (first - this.historyStart) * channels;
+            for (int channel = 0; channel < channels; channel++) {
+                float sum0 = 0;
+                float sum1 = 0;
+                int sample = start + channel;
+                for (int tap = 0; tap < width; tap++) {
+                    float x = history[sample];
+                    sum0 += x * table[row0 + tap];
+                    sum1 += x * table[row1 + tap];
+                    sample += channels;
+                }
+                output[produced * channels + channel] = sum0 + (sum1 - sum0) * blend;
+            }
+            produced++;
+            this.outputCount++;
+        }
+        discardUsed();
+        return produced;
+    }
+
+    /**
+     * @return output frame n's position in input frames, times outputRate
+     */
+    private long outputPosition(long n) {
+        return n * this.inputRate;
+    }
+
+    /**
+     * Drops input frames no future output reaches back to.
+     */
+    private void discardUsed() {
+        long index = outputPosition(this.outputCount) / this.outputRate;
+        long keepFrom = index - this.halfWidth + 1;
+        int drop = (int) Math.max(0, Math.min(this.historyFrames, keepFrom - this.historyStart));
+        if (drop > 0) {
+            System.arraycopy(this.history, drop * this.channels, this.history, 0, (this.historyFrames - drop) * this.channels);
+            this.historyFrames -= drop;
+            this.historyStart += drop;
+        }
+    }
+
+    /**
+     * @param input samples to append, or null for silence
+     */
+    private void append(float[] input, int frames) {
+        int needed = (this.historyFrames + frames) * this.channels;
+        if (needed > this.history.length) {
+            this.history = Arrays.copyOf(this.history, Math.max(needed, this.history.length * 2));
+        }
+        int offset = this.historyFrames * this.channels;
+        if (input == null) {
+            Arrays.fill(this.history, offset, needed, 0f);
+        } else {
+            System.arraycopy(input, 0, this.history, offset, frames * this.channels);
+        }
+        this.historyFrames += frames;
+    }
+
+    /**
+     * Tabulates h(t) = cutoff * sinc(cutoff * t) * kaiser(t / halfWidth) for the
+     * 2 * halfWidth input frames around an output position p / phases past an input
+     * frame, scaled so every row sums to 1 and DC passes unchanged.
+     */
+    private static float[] buildTable(int phases, int halfWidth, double cutoff, double beta) {
+        int width = halfWidth * 2;
+        float[] table = new float[(phases + 1) * width];
+        double denominator = besselI0(beta);
+        for (int p = 0; p <= phases; p++) {
+            double offset = (double) p / phases;
+            double[] row = new double[width];
+            double sum = 0;
+            for (int i = 0; i < width; i++) {
+                // weight of input frame first + i, which lies t frames before the output position
+                double t = halfWidth - 1 - i + offset;
+                double x = cutoff * t;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double ratio = t / halfWidth;
+                double window = Math.abs(ratio) >= 1 ? 0 : besselI0(beta * Math.sqrt(1 - ratio * ratio)) / denominator;
+                row[i] = cutoff * sinc * window;
+                sum += row[i];
+            }
+            for (int i = 0; i < width; i++) {
+                table[p * width + i] = (float) (row[i] / sum);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Zeroth-order modified Bessel function of the first kind, for the Kaiser window.
+     */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,155 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps an {@link Mp3SeekIndex} per MP3 file, in memory for recently played songs and on
+ * disk next to the library index. An index is built in the background the first time a
+ * song is played, and on the spot if a seek needs it before that has finished.
+ * A stored index belongs to one version of a file: a changed size or modification time
+ * means it is rebuilt.
+ */
+public class SeekIndexStore {
+
+    private static final int MAGIC = 0x50435349; // "PCSI"
+    private static final int VERSION = 2;
+    /** Indexes kept in memory; one is around 24 bytes per second of audio */
+    private static final int CACHE_SIZE = 32;
+
+    private final TrackFileStore<Mp3SeekIndex> files;
+    private final Map<TrackKey, Mp3SeekIndex> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TrackKey, Mp3SeekIndex> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final Set<String> building = ConcurrentHashMap.newKeySet();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "seek-index");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    /**
+     * @param directory where index files are kept, created if missing
+     */
+    public SeekIndexStore(File directory) {
+        this.files = new TrackFileStore<>(directory, MAGIC, VERSION, ".idx", "seek index",
+                Mp3SeekIndex::readFrom, Mp3SeekIndex::writeTo);
+    }
+
+    /**
+     * @return store in the player's data directory
+     */
+    public static SeekIndexStore openDefault() {
+        return new SeekIndexStore(PlayerFiles.dataFile("seek"));
+    }
+
+    /**
+     * @param songFile any song file
+     * @return true if seeking in this file can use an index
+     */
+    public static boolean isIndexable(File songFile) {
+        return LibraryIndex.formatOf(songFile.getName().toLowerCase(Locale.ROOT)) == LibraryIndex.Format.MP3;
+    }
+
+    /**
+     * Gets a song's index from memory or disk without building it.
+     *
+     * @param songFile MP3 file
+     * @return index, or null if there is none for this version of the file
+     */
+    @Nullable
+    public Mp3SeekIndex get(File songFile) {
+        TrackKey key = TrackKey.of(songFile);
+        synchronized (this.cache) {
+            Mp3SeekIndex cached = this.cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Mp3SeekIndex stored = this.files.read(songFile, key);
+        if (stored != null) {
+            synchronized (this.cache) {
+                this.cache.put(key, stored);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Gets a song's index, building it now if needed. Walking the frame headers reads the
+     * file once but decodes nothing, so this is far quicker than decoding up to a seek target.
+     *
+     * @param songFile MP3 file
+     * @return index, or null if the file couldn't be read
+     */
+    @Nullable
+    public Mp3SeekIndex getOrBuild(File songFile) {
+        Mp3SeekIndex index = get(songFile);
+        return index != null ? index : build(songFile);
+    }
+
+    /**
+     * Builds a song's index in the background unless it already exists.
+     *
+     * @param songFile song that has started playing; ignored if it isn't an MP3
+     */
+    public void ensureBuilt(File songFile) {
+        if (!isIndexable(songFile) || !this.building.add(songFile.getAbsolutePath())) {
+            return;
+        }
+        this.builder.execute(() -> {
+            try {
+                if (get(songFile) == null) {
+                    build(songFile);
+                }
+            } finally {
+                this.building.remove(songFile.getAbsolutePath());
+            }
+        });
+    }
+
+    /**
+     * Stops the background builder.
+     */
+    public void shutdown() {
+        this.builder.shutdownNow();
+    }
+
+    @Nullable
+    private Mp3SeekIndex build(File songFile) {
+        TrackKey key = TrackKey.of(songFile);
+        Mp3SeekIndex index;
+        PlayerEvents.IndexOperation timing = new PlayerEvents.IndexOperation("seek index build", songFile);
+        try {
+            index = Mp3SeekIndex.build(songFile);
+            timing.finish(PlayerMetrics.SEEK_INDEX_BUILDS);
+        } catch (IOException e) {
+            System.out.println("Failed to index " + songFile.getAbsolutePath());
+            e.printStackTrace();
+            return null;
+        }
+        synchronized (this.cache) {
+            this.cache.put(key, index);
+        }
+        try {
+            this.files.write(songFile, key, index);
+        } catch (IOException e) {
+            System.out.println("Failed to save seek index for " + songFile.getAbsolutePath());
+            e.printStackTrace();
+        }
+        return index;
+    }
+}
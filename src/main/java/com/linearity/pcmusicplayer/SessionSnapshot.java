@@ -0,0 +1,214 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What the player was doing, saved so the next launch can carry on at once: the playlist
+ * in playing order, the position in it and in the current song, the volume and the shuffle.
+ *
+ * The file starts with a fixed-size header holding everything that changes while a song
+ * plays, so a periodic save only rewrites those bytes in place. The playlist follows,
+ * rewritten only when it changed: every directory once, then per song its directory
+ * number and file name. The file is read into one buffer, and songs go straight into
+ * a {@link PathTable} without a File or path String being made for them. It isn't
+ * memory-mapped: a live mapping would keep Windows from replacing the file on the next save.
+ * Numbers are big-endian; strings are an int byte count and UTF-8.
+ */
+public class SessionSnapshot {
+
+    private static final int MAGIC = 0x50435353; // "PCSS"
+    private static final int VERSION = 1;
+    /** Bytes before the playlist; the header fields fill the start of it */
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * Where playback was.
+     *
+     * @param position playlist position of the current song
+     * @param frame frame position in the current song
+     * @param volume volume slider value, NaN if the user never set it
+     */
+    public record Playback(int position, long frame, double volume) {}
+
+    private final Playback playback;
+    @Nullable
+    private final ShuffleOrder.State shuffle;
+    /** Playlist as ids into the path table it was read into or taken from */
+    private final int[] trackIds;
+
+    /**
+     * @param playback where playback was
+     * @param shuffle shuffle of the playlist, or null if it isn't shuffled
+     * @param trackIds playlist in playing order, as song ids
+     */
+    public SessionSnapshot(Playback playback, @Nullable ShuffleOrder.State shuffle, int[] trackIds) {
+        this.playback = playback;
+        this.shuffle = shuffle;
+        this.trackIds = trackIds;
+    }
+
+    public Playback getPlayback() {
+        return this.playback;
+    }
+
+    @Nullable
+    public ShuffleOrder.State getShuffle() {
+        return this.shuffle;
+    }
+
+    public int[] getTrackIds() {
+        return this.trackIds;
+    }
+
+    /**
+     * Snapshot file in the player's data directory.
+     *
+     * @return the file
+     */
+    public static File defaultFile() {
+        return PlayerFiles.dataFile("session.snapshot");
+    }
+
+    /**
+     * Reads a snapshot file, adding its songs to a path table.
+     *
+     * @param file snapshot file
+     * @param paths table to add the playlist's songs to
+     * @return the snapshot, or null if the file is missing, outdated or damaged
+     */
+    @Nullable
+    public static SessionSnapshot load(File file, PathTable paths) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return null;
+            }
+            Playback playback = new Playback(in.getInt(), in.getLong(), in.getDouble());
+            ShuffleOrder.State shuffle = null;
+            boolean shuffled = in.get() != 0;
+            long seed = in.getLong();
+            int spread = in.get();
+            in.position(HEADER_SIZE);
+            String anchor = readString(in);
+            if (shuffled) {
+                ShuffleOrder.Spread[] spreads = ShuffleOrder.Spread.values();
+                shuffle = new ShuffleOrder.State(seed, spread < spreads.length ? spreads[spread] : ShuffleOrder.Spread.NONE,
+                        anchor.isEmpty() ? null : anchor);
+            }
+            String[] directories = new String[in.getInt()];
+            for (int i = 0; i < directories.length; i++) {
+                directories[i] = readString(in);
+            }
+            int[] trackIds = new int[in.getInt()];
+            byte[] name = new byte[256];
+            for (int i = 0; i < trackIds.length; i++) {
+                int directory = in.getInt();
+                int length = in.getInt();
+                if (length > name.length) {
+                    name = new byte[Math.max(length, name.length * 2)];
+                }
+                in.get(name, 0, length);
+                trackIds[i] = paths.add(directories[directory], name, length);
+            }
+            return new SessionSnapshot(playback, shuffle, trackIds);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            System.out.println("Failed to read session snapshot.");
+            return null;
+        }
+    }
+
+    /**
+     * Writes the whole snapshot, replacing the file in one step.
+     *
+     * @param file snapshot file
+     * @param paths table the snapshot's song ids refer to
+     * @throws IOException if writing fails
+     */
+    public void save(File file, PathTable paths) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.write(header().array());
+            writeString(out, this.shuffle == null || this.shuffle.anchorPath() == null ? "" : this.shuffle.anchorPath());
+            Map<String, Integer> directoryNumbers = new HashMap<>();
+            int[] directoryOf = new int[this.trackIds.length];
+            byte[][] names = new byte[this.trackIds.length][];
+            for (int i = 0; i < this.trackIds.length; i++) {
+                File songFile = paths.file(this.trackIds[i]);
+                String parent = songFile.getParent();
+                directoryOf[i] = directoryNumbers.computeIfAbsent(parent == null ? "" : parent, d -> directoryNumbers.size());
+                names[i] = songFile.getName().getBytes(StandardCharsets.UTF_8);
+            }
+            String[] directories = new String[directoryNumbers.size()];
+            directoryNumbers.forEach((directory, number) -> directories[number] = directory);
+            out.writeInt(directories.length);
+            for (String directory : directories) {
+                writeString(out, directory);
+            }
+            out.writeInt(this.trackIds.length);
+            for (int i = 0; i < this.trackIds.length; i++) {
+                out.writeInt(directoryOf[i]);
+                out.writeInt(names[i].length);
+                out.write(names[i]);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Rewrites only the header of a snapshot file saved before, for when just the
+     * playback position or volume changed. The playlist and shuffle must be the same
+     * as when the file was saved; this snapshot's song ids aren't used, so they may be empty.
+     *
+     * @param file snapshot file written by {@link #save}
+     * @throws IOException if writing fails or there is no such file
+     */
+    public void saveHeader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer header = header();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(this.playback.position());
+        header.putLong(this.playback.frame());
+        header.putDouble(this.playback.volume());
+        header.put((byte) (this.shuffle != null ? 1 : 0));
+        header.putLong(this.shuffle != null ? this.shuffle.seed() : 0);
+        header.put((byte) (this.shuffle != null ? this.shuffle.spread().ordinal() : 0));
+        header.clear();
+        return header;
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,104 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.SplittableRandom;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A seeded shuffle, drawn one song at a time.
+ * The playlist asks for the next song only when a position is first read, so starting a
+ * shuffle costs nothing and the first song is ready at once. The same seed over the same
+ * songs in the same starting order always gives the same order, so a {@link State} is
+ * enough to shuffle a library the same way again.
+ *
+ * Spread modes avoid two songs from the same directory, or by the same artist, in a row.
+ * Songs are taken to be filed as artist/album/song, so the artist is the directory above
+ * the song's directory; tags are only read for songs on screen, too late to shuffle by.
+ *
+ * Not thread-safe; the playlist draws under its own lock.
+ */
+public class ShuffleOrder {
+
+    /** Draws that may be retried to find a song unlike the one before it */
+    private static final int SPREAD_ATTEMPTS = 8;
+
+    public enum Spread { NONE, DIRECTORY, ARTIST }
+
+    private final long seed;
+    private final Spread spread;
+    private final SplittableRandom random;
+
+    /**
+     * @param seed seed of the order
+     * @param spread what songs in a row should differ in
+     */
+    public ShuffleOrder(long seed, Spread spread) {
+        this.seed = seed;
+        this.spread = spread;
+        this.random = new SplittableRandom(seed);
+    }
+
+    /**
+     * @param spread what songs in a row should differ in
+     * @return a shuffle with a fresh seed
+     */
+    public static ShuffleOrder newOrder(Spread spread) {
+        return new ShuffleOrder(new SplittableRandom().nextLong(), spread);
+    }
+
+    /**
+     * @return a shuffle with the same seed and spread that starts again from its first draw
+     */
+    public ShuffleOrder restart() {
+        return new ShuffleOrder(this.seed, this.spread);
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    public Spread getSpread() {
+        return this.spread;
+    }
+
+    /**
+     * Draws the song for the next position out of the songs not placed yet.
+     * With a spread mode, a song of the same group as the previous one is drawn again,
+     * a few times at most, so a library of mostly one artist still shuffles.
+     *
+     * @param pool song ids; the songs not placed yet are from..to
+     * @param from first unplaced index
+     * @param to index after the last song
+     * @param previousGroup group of the song placed before, or -1
+     * @param groupOf group of a song id under this order's spread mode
+     * @return index of the drawn song, between from and to
+     */
+    int draw(int[] pool, int from, int to, int previousGroup, IntUnaryOperator groupOf) {
+        int pick = from + this.random.nextInt(to - from);
+        if (this.spread == Spread.NONE || previousGroup < 0) {
+            return pick;
+        }
+        for (int attempt = 1; attempt < SPREAD_ATTEMPTS && groupOf.applyAsInt(pool[pick]) == previousGroup; attempt++) {
+            pick = from + this.random.nextInt(to - from);
+        }
+        return pick;
+    }
+
+    /**
+     * What is needed to rebuild a shuffle after a restart.
+     *
+     * @param seed seed of the order
+     * @param spread spread mode of the order
+     * @param anchorPath song placed first when the library was shuffled, or null
+     */
+    public record State(long seed, Spread spread, @Nullable String anchorPath) {
+
+        /**
+         * @return a shuffle starting from its first draw
+         */
+        public ShuffleOrder order() {
+            return new ShuffleOrder(this.seed, this.spread);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.linearity.pcmusicplayer;
+
+import javafx.scene.control.ListCell;
+
+/**
+ * Playlist row. Shows the file name straight away and replaces it with the song's tags and
+ * duration once the MetadataService has probed them. Only cells on screen exist, so only
+ * visible rows are ever probed.
+ */
+public class SongListCell extends ListCell<SongBean> {
+
+    private final MetadataService metadataService;
+
+    /**
+     * @param metadataService service that probes and caches tags
+     */
+    public SongListCell(MetadataService metadataService) {
+        this.metadataService = metadataService;
+    }
+
+    @Override
+    protected void updateItem(SongBean song, boolean empty) {
+        super.updateItem(song, empty);
+        if (empty || song == null) {
+            setText(null);
+            return;
+        }
+        TrackMetadata metadata = this.metadataService.getCached(song.songFile());
+        if (metadata != null) {
+            setText(describe(song, metadata));
+            return;
+        }
+        setText(song.toString());
+        this.metadataService.request(song.songFile()).thenAccept(probed -> {
+            // the cell may have been reused for another row in the meantime
+            if (song.equals(getItem())) {
+                setText(describe(song, probed));
+            }
+        });
+    }
+
+    private static String describe(SongBean song, TrackMetadata metadata) {
+        String name = metadata.title() == null
+                ? song.songFile().getName()
+                : metadata.artist() == null ? metadata.title() : metadata.artist() + " - " + metadata.title();
+        String duration = metadata.formatDuration();
+        return song.index() + ": " + name + (duration.isEmpty() ? "" : "  " + duration);
+    }
+}
@@ -0,0 +1,375 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Inverted index over the words in song file names, directory names and, once a song has
+ * been probed, its title, artist and album tags. Queries match whole words, word prefixes
+ * and, failing those, words one typo away, and rank songs by how well and where they
+ * matched.
+ *
+ * Songs are numbered by their id in the shared {@link PathTable}. Every distinct word is
+ * stored once and maps to a growable int array of postings, each posting being a song id
+ * shifted left by two with the field it came from in the low bits. Paths are not kept here
+ * at all, so a 200k-song library takes a few tens of MB. Scoring runs over arrays reused between
+ * queries, so a query allocates little beyond its result list.
+ *
+ * All methods are synchronized: the scanner adds songs, probe threads add tags and the
+ * FX thread queries.
+ */
+public class SongSearchIndex {
+
+    /** Where a word was found, kept in the low two bits of a posting */
+    private static final int FIELD_FILE = 0;
+    private static final int FIELD_DIRECTORY = 1;
+    private static final int FIELD_TAG = 2;
+    private static final float[] FIELD_WEIGHTS = {1.5f, 1f, 2f};
+    private static final float EXACT_SCORE = 3f;
+    private static final float PREFIX_SCORE = 2f;
+    private static final float FUZZY_SCORE = 1f;
+    /** Words shorter than this are only matched exactly or by prefix */
+    private static final int FUZZY_MIN_LENGTH = 4;
+    /** Vocabulary words a single prefix may expand to */
+    private static final int MAX_PREFIX_EXPANSION = 512;
+
+    /** Growable list of postings; tags arrive later, so they are not in song order */
+    private static final class Postings {
+        int[] entries = new int[2];
+        int size;
+
+        void add(int posting) {
+            if (this.size > 0 && this.entries[this.size - 1] == posting) {
+                return;
+            }
+            if (this.size == this.entries.length) {
+                this.entries = Arrays.copyOf(this.entries, this.size + (this.size >> 1) + 1);
+            }
+            this.entries[this.size++] = posting;
+        }
+    }
+
+    /**
+     * A song found by a query.
+     *
+     * @param songFile the song
+     * @param score higher is a better match
+     */
+    public record Hit(File songFile, float score) {}
+
+    /** Word to its postings, sorted so prefixes are a range */
+    private final TreeMap<String, Postings> words = new TreeMap<>();
+    private final PathTable paths;
+    /** Songs whose names, and whose tags, are already indexed */
+    private final BitSet indexed = new BitSet();
+    private final BitSet tagged = new BitSet();
+    private int songCount;
+
+    /** Scoring state reused between queries, indexed by song number */
+    private int[] matchedTerms = new int[0];
+    private float[] termScores = new float[0];
+    private float[] totalScores = new float[0];
+
+    /**
+     * @param paths table giving each song its number
+     */
+    public SongSearchIndex(PathTable paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Indexes songs by their file and directory names. Songs already indexed are skipped.
+     *
+     * @param songFiles songs, e.g. a batch just found by the library scanner
+     */
+    public synchronized void addSongs(Collection<File> songFiles) {
+        for (File songFile : songFiles) {
+            int number = this.paths.add(songFile);
+            if (this.indexed.get(number)) {
+                continue;
+            }
+            this.indexed.set(number);
+            this.songCount++;
+            String name = songFile.getName();
+            int dot = name.lastIndexOf('.');
+            addWords(number, FIELD_FILE, dot > 0 ? name.substring(0, dot) : name);
+            File parent = songFile.getParentFile();
+            if (parent != null) {
+                addWords(number, FIELD_DIRECTORY, parent.getName());
+            }
+        }
+    }
+
+    /**
+     * Indexes a song's tags once they have been read.
+     *
+     * @param songFile a song already added
+     * @param metadata its tags
+     */
+    public synchronized void addTags(File songFile, TrackMetadata metadata) {
+        int number = this.paths.find(songFile);
+        if (number < 0 || !this.indexed.get(number) || this.tagged.get(number)) {
+            return;
+        }
+        this.tagged.set(number);
+        for (String tag : new String[]{metadata.title(), metadata.artist(), metadata.album()}) {
+            if (tag != null) {
+                addWords(number, FIELD_TAG, tag);
+            }
+        }
+    }
+
+    /**
+     * Forgets every song, e.g. when the playlist is replaced.
+     */
+    public synchronized void clear() {
+        this.words.clear();
+        this.indexed.clear();
+        this.tagged.clear();
+        this.songCount = 0;
+    }
+
+    /**
+     * @return number of indexed songs
+     */
+    public synchronized int size() {
+        return this.songCount;
+    }
+
+    /**
+     * Finds the songs matching every word of a query, best first. Each query word matches a
+     * word of the song exactly or as a prefix; a word of four letters or more that matches
+     * nothing that way matches words one typo away instead.
+     * Ties keep the order the songs were first seen in.
+     *
+     * @param query words typed by the user
+     * @param limit most hits to return
+     * @return hits, best first
+     */
+    public synchronized List<Hit> search(String query, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        ensureScratch();
+        // songs that matched the first term; only they can match them all
+        int[] touched = new int[64];
+        int touchedCount = 0;
+        for (int t = 0; t < terms.size(); t++) {
+            String term = terms.get(t);
+            for (Map.Entry<String, Postings> entry : candidates(term)) {
+                float matchScore = entry.getKey().equals(term) ? EXACT_SCORE
+                        : entry.getKey().startsWith(term) ? PREFIX_SCORE : FUZZY_SCORE;
+                Postings postings = entry.getValue();
+                for (int i = 0; i < postings.size; i++) {
+                    int posting = postings.entries[i];
+                    int song = posting >>> 2;
+                    float score = matchScore * FIELD_WEIGHTS[posting & 3];
+                    if (this.matchedTerms[song] == t) {
+                        // first match of this term for a song that matched all earlier terms
+                        this.matchedTerms[song] = t + 1;
+                        this.termScores[song] = score;
+                        if (t == 0) {
+                            if (touchedCount == touched.length) {
+                                touched = Arrays.copyOf(touched, touchedCount * 2);
+                            }
+                            touched[touchedCount++] = song;
+                        }
+                    } else if (this.matchedTerms[song] == t + 1 && score > this.termScores[song]) {
+                        this.termScores[song] = score;
+                    }
+                }
+            }
+            for (int i = 0; i < touchedCount; i++) {
+                int song = touched[i];
+                if (this.matchedTerms[song] == t + 1) {
+                    this.totalScores[song] += this.termScores[song];
+                }
+            }
+        }
+        List<Hit> hits = collect(touched, touchedCount, terms.size(), limit);
+        for (int i = 0; i < touchedCount; i++) {
+            int song = touched[i];
+            this.matchedTerms[song] = 0;
+            this.totalScores[song] = 0f;
+        }
+        return hits;
+    }
+
+    /**
+     * Vocabulary words a query term may stand for: itself and words it starts, or if there
+     * are none and the term is long enough, words with the same first letter one edit away.
+     */
+    private List<Map.Entry<String, Postings>> candidates(String term) {
+        List<Map.Entry<String, Postings>> found = new ArrayList<>();
+        for (Map.Entry<String, Postings> entry : this.words.tailMap(term, true).entrySet()) {
+            if (!entry.getKey().startsWith(term) || found.size() == MAX_PREFIX_EXPANSION) {
+                break;
+            }
+            found.add(entry);
+        }
+        if (found.isEmpty() && term.length() >= FUZZY_MIN_LENGTH) {
+            // most likely a typo: try the words with the same first letter
+            String first = term.substring(0, 1);
+            String after = String.valueOf((char) (term.charAt(0) + 1));
+            for (Map.Entry<String, Postings> entry : this.words.subMap(first, after).entrySet()) {
+                String word = entry.getKey();
+                if (!word.startsWith(term) && Math.abs(word.length() - term.length()) <= 1
+                        && withinOneEdit(term, word)) {
+                    found.add(entry);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Picks the best songs that matched every term with a bounded min-heap, worst at the root.
+     */
+    private List<Hit> collect(int[] touched, int touchedCount, int termCount, int limit) {
+        int[] heap = new int[Math.min(limit, touchedCount)];
+        int heapSize = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int song = touched[i];
+            if (this.matchedTerms[song] != termCount) {
+                continue;
+            }
+            if (heapSize < heap.length) {
+                heap[heapSize] = song;
+                siftUp(heap, heapSize++);
+            } else if (better(song, heap[0])) {
+                heap[0] = song;
+                siftDown(heap, heapSize);
+            }
+        }
+        Hit[] hits = new Hit[heapSize];
+        while (heapSize > 0) {
+            int song = heap[0];
+            hits[--heapSize] = new Hit(this.paths.file(song), this.totalScores[song]);
+            heap[0] = heap[heapSize];
+            siftDown(heap, heapSize);
+        }
+        return Arrays.asList(hits);
+    }
+
+    /**
+     * @return true if song a ranks above song b: a higher score, or the same score and a lower id
+     */
+    private boolean better(int a, int b) {
+        float scoreA = this.totalScores[a];
+        float scoreB = this.totalScores[b];
+        return scoreA > scoreB || (scoreA == scoreB && a < b);
+    }
+
+    private void siftUp(int[] heap, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!better(heap[parent], heap[index])) {
+                break;
+            }
+            int swap = heap[parent];
+            heap[parent] = heap[index];
+            heap[index] = swap;
+            index = parent;
+        }
+    }
+
+    private void siftDown(int[] heap, int size) {
+        int index = 0;
+        while (true) {
+            int worst = index;
+            for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) {
+                if (better(heap[worst], heap[child])) {
+                    worst = child;
+                }
+            }
+            if (worst == index) {
+                return;
+            }
+            int swap = heap[worst];
+            heap[worst] = heap[index];
+            heap[index] = swap;
+            index = worst;
+        }
+    }
+
+    private void addWords(int song, int field, String text) {
+        for (String word : tokenize(text)) {
+            Postings postings = this.words.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                // the map key is the only copy of the word kept
+                this.words.put(word, postings);
+            }
+            postings.add(song << 2 | field);
+        }
+    }
+
+    private void ensureScratch() {
+        int songIds = this.paths.size();
+        if (this.matchedTerms.length < songIds) {
+            int capacity = Math.max(songIds, this.matchedTerms.length * 2);
+            this.matchedTerms = Arrays.copyOf(this.matchedTerms, capacity);
+            this.termScores = Arrays.copyOf(this.termScores, capacity);
+            this.totalScores = Arrays.copyOf(this.totalScores, capacity);
+        }
+    }
+
+    /**
+     * Splits text into lower-case words of letters and digits.
+     *
+     * @param text file name, tag or query
+     * @return words in order, without duplicates
+     */
+    static List<String> tokenize(@Nullable String text) {
+        if (text == null) {
+            return List.of();
+        }
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!tokens.contains(token)) {
+                    tokens.add(token);
+                }
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * @return true if b is a, or a with one character inserted, deleted, replaced or two
+     * neighbours swapped
+     */
+    static boolean withinOneEdit(String a, String b) {
+        int lengthA = a.length();
+        int lengthB = b.length();
+        if (Math.abs(lengthA - lengthB) > 1) {
+            return false;
+        }
+        int i = 0;
+        while (i < lengthA && i < lengthB && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        if (i == lengthA && i == lengthB) {
+            return true;
+        }
+        if (lengthA == lengthB) {
+            if (a.regionMatches(i + 1, b, i + 1, lengthA - i - 1)) {
+                return true;
+            }
+            return i + 1 < lengthA && a.charAt(i) == b.charAt(i + 1) && a.charAt(i + 1) == b.charAt(i)
+                    && a.regionMatches(i + 2, b, i + 2, lengthA - i - 2);
+        }
+        return lengthA < lengthB
+                ? a.regionMatches(i, b, i + 1, lengthA - i)
+                : a.regionMatches(i + 1, b, i, lengthB - i);
+    }
+}
@@ -0,0 +1,794 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.sound.sampled.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * PlaybackEngine that decodes a few thousand frames at a time on a dedicated thread
+ * and writes them to an {@link OutputSink}, normally a line of the sound card.
+ * Memory use is one decode buffer plus the line buffer, no matter how long the song is,
+ * and the first sample is heard after a single buffer has been decoded.
+ * A queued next song is spliced into the same line the moment the current one runs dry,
+ * so consecutive songs play without a gap.
+ * Seeking reopens the decoder at the target; with a {@link SeekIndexStore} an MP3 is
+ * reopened at the nearest indexed frame instead of being decoded from the start.
+ * Every buffer goes through a {@link DspChain} on the pump thread, which also provides the
+ * volume, so it doesn't depend on the line offering a MASTER_GAIN control.
+ * With a crossfade set, the queued song starts that long before the current one ends and
+ * the two are mixed by a {@link CrossfadeMixer} into the same line.
+ * Time to first sample, the audio left in the line per buffer and underruns go to
+ * {@link PlayerMetrics}, without allocating on the pump thread.
+ * The pump decodes under the lock, so the position getters don't take it: they read a
+ * {@link Timeline} published whenever the song or its place on the line changes.
+ */
+public class StreamingPlaybackEngine implements PlaybackEngine {
+
+    /**
+     * What the position getters need, so they never wait for the pump to decode a buffer.
+     *
+     * @param line line the song plays on
+     * @param basePosition song frame at lineBase
+     * @param lineBase line frame where the song, or the part of it after a seek, starts
+     * @param songFramesPerLineFrame song frames played per line frame
+     * @param frameLength length of the song in frames
+     * @param frameRate the song's own frame rate
+     * @param previous the previous song while the line still plays its end, or null
+     */
+    private record Timeline(OutputSink line, long basePosition, long lineBase, double songFramesPerLineFrame,
+                            long frameLength, float frameRate, @Nullable Timeline previous) {
+
+        /**
+         * @return the timeline of the song heard now
+         */
+        Timeline heard() {
+            return this.previous != null && this.line.getLongFramePosition() < this.lineBase ? this.previous : this;
+        }
+
+        long framePosition() {
+            long linePosition = this.line.getLongFramePosition();
+            return this.basePosition + Math.round(Math.max(0, linePosition - this.lineBase) * this.songFramesPerLineFrame);
+        }
+    }
+
+    /** Frames decoded per read from the source */
+    private static final int BUFFER_FRAMES = 4096;
+    /** Size of the output line's buffer */
+    private static final int LINE_BUFFER_MILLIS = 250;
+
+    private final Object lock = new Object();
+    private final Thread pumpThread;
+    @Nullable
+    private final SeekIndexStore seekIndexes;
+    private final OutputSink.Factory sinks;
+    private final DspChain dsp = new DspChain();
+    /** Guarded by lock */
+    private final CrossfadeMixer mixer = new CrossfadeMixer();
+
+    /** Guarded by lock */
+    private PcmSource source;
+    private PcmSource next;
+    private OutputSink line;
+    private byte[] buffer = new byte[0];
+    /** Song frame at the last open/seek, and the line's frame counter at that moment */
+    private long basePosition;
+    private long lineBase;
+    /** Frames handed to the line since lineBase */
+    private long writtenFrames;
+    /** Bumped on every open/seek so the pump can drop work for a stale source */
+    private long generation;
+    /** Bumped on every open and seek request, so a seek overtaken by a newer one is dropped */
+    private long seekRequest;
+    /** When the open song was asked for, until its first buffer has been written; 0 after */
+    private long firstSampleRequestedAt;
+    /** Set once this generation has written audio, so an empty line afterwards is an underrun */
+    private boolean primed;
+    private boolean closed;
+    /**
+     * Set when the queued song has been spliced in but the line is still playing out the
+     * previous one. Positions are reported against the previous song until lineBase is reached.
+     */
+    private File pendingFile;
+    /** Silence between the previous song and pendingFile, reported with the advance */
+    private long pendingGapNanos;
+    private long previousBasePosition;
+    private long previousLineBase;
+    private long previousFrameLength;
+    private float previousFrameRate;
+    /** Song frames per line frame of the previous song, while its end is still playing out */
+    private double previousSongFramesPerLineFrame = 1;
+
+    private volatile int crossfadeMillis;
+    @Nullable
+    private volatile AudioFormat outputFormat;
+    private volatile Resampler.Quality resamplerQuality = Resampler.Quality.GOOD;
+    private volatile boolean running;
+    private volatile boolean endOfStream;
+    /** Published under lock by {@link #publishTimeline}; null while no song is open */
+    @Nullable
+    private volatile Timeline timeline;
+    private volatile ObjLongConsumer<File> trackAdvanceListener = (file, gapNanos) -> {};
+    private volatile Runnable stateListener = () -> {};
+
+    public StreamingPlaybackEngine() {
+        this(null);
+    }
+
+    /**
+     * Plays on the sound card, in {@link LineOutputSink#preferredFormat()}. Songs at other rates
+     * are resampled at the quality named by -Dpcmusicplayer.resampler=fast|good|best.
+     *
+     * @param seekIndexes where MP3 seek indexes are kept, or null to seek by decoding
+     */
+    public StreamingPlaybackEngine(@Nullable SeekIndexStore seekIndexes) {
+        this(seekIndexes, LineOutputSink::open);
+        this.outputFormat = LineOutputSink.preferredFormat();
+        this.resamplerQuality = Resampler.Quality.valueOf(
+                System.getProperty("pcmusicplayer.resampler", "GOOD").toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * @param seekIndexes where MP3 seek indexes are kept, or null to seek by decoding
+     * @param sinks opens the output for each line format, e.g. a null or WAV file sink
+     *              to play without a sound card
+     */
+    public StreamingPlaybackEngine(@Nullable SeekIndexStore seekIndexes, OutputSink.Factory sinks) {
+        this.seekIndexes = seekIndexes;
+        this.sinks = sinks;
+        this.pumpThread = new Thread(this::pump, "pcm-pump");
+        this.pumpThread.setDaemon(true);
+        this.pumpThread.start();
+    }
+
+    @Override
+    public void open(File songFile) throws IOException, UnsupportedAudioFileException, LineUnavailableException {
+        long requestedAt = System.nanoTime();
+        PcmSource queued = null;
+        synchronized (lock) {
+            if (this.next != null && this.next.getSongFile().equals(songFile)) {
+                queued = this.next;
+                this.next = null;
+            }
+        }
+        PcmSource newSource = queued != null ? queued : PcmSource.open(songFile);
+        // read the tags here rather than under the lock
+        newSource.getReplayGain();
+        open(newSource, requestedAt);
+    }
+
+    @Override
+    public void open(PcmSource newSource) throws LineUnavailableException {
+        open(newSource, System.nanoTime());
+    }
+
+    /**
+     * @param requestedAt System.nanoTime() when the song was asked for
+     */
+    private void open(PcmSource newSource, long requestedAt) throws LineUnavailableException {
+        synchronized (lock) {
+            this.seekRequest++;
+            this.running = false;
+            this.endOfStream = false;
+            this.pendingFile = null;
+            closeSource();
+            try {
+                convert(newSource);
+                prepareLine(newSource.getFormat());
+            } catch (LineUnavailableException | RuntimeException e) {
+                closeQuietly(newSource);
+                publishTimeline();
+                throw e;
+            }
+            this.source = newSource;
+            this.basePosition = 0;
+            this.lineBase = this.line.getLongFramePosition();
+            this.writtenFrames = 0;
+            this.generation++;
+            this.firstSampleRequestedAt = requestedAt;
+            this.primed = false;
+            this.dsp.trackChanged(newSource.getSongFile(), newSource.getReplayGain());
+            indexInBackground(newSource);
+            publishTimeline();
+            lock.notifyAll();
+        }
+        this.stateListener.run();
+    }
+
+    @Override
+    public void queueNext(@Nullable PcmSource nextSource) {
+        if (nextSource != null) {
+            // builds the resampler on the caller's thread, not the pump's
+            convert(nextSource);
+        }
+        synchronized (lock) {
+            if (this.next != null && this.next != nextSource) {
+                closeQuietly(this.next);
+            }
+            this.next = nextSource;
+        }
+    }
+
+    @Override
+    public void setTrackAdvanceListener(ObjLongConsumer<File> listener) {
+        this.trackAdvanceListener = listener;
+    }
+
+    @Override
+    public void setStateListener(Runnable listener) {
+        this.stateListener = listener;
+    }
+
+    @Override
+    public void setCrossfadeMillis(int millis) {
+        this.crossfadeMillis = Math.max(0, millis);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.timeline != null;
+    }
+
+    @Override
+    public void start() {
+        synchronized (lock) {
+            if (this.source == null || this.running || this.endOfStream) {
+                return;
+            }
+            this.running = true;
+            this.line.start();
+            lock.notifyAll();
+        }
+        this.stateListener.run();
+    }
+
+    @Override
+    public void stop() {
+        synchronized (lock) {
+            if (this.source == null || !this.running) {
+                return;
+            }
+            this.running = false;
+            // a write blocked in the pump returns once the line is stopped
+            this.line.stop();
+        }
+        this.stateListener.run();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return this.running;
+    }
+
+    @Override
+    public boolean isEndOfStream() {
+        return this.endOfStream;
+    }
+
+    @Override
+    public long getFrameLength() {
+        Timeline timeline = this.timeline;
+        return timeline == null ? 0 : timeline.heard().frameLength();
+    }
+
+    @Override
+    public float getFrameRate() {
+        Timeline timeline = this.timeline;
+        return timeline == null ? 0 : timeline.heard().frameRate();
+    }
+
+    @Override
+    public long getFramePosition() {
+        Timeline timeline = this.timeline;
+        return timeline == null ? 0 : timeline.heard().framePosition();
+    }
+
+    @Override
+    public void setOutputFormat(@Nullable AudioFormat format) {
+        this.outputFormat = format;
+    }
+
+    @Override
+    public void setResamplerQuality(Resampler.Quality quality) {
+        this.resamplerQuality = quality;
+    }
+
+    @Override
+    public void setFramePosition(long frame) {
+        File songFile;
+        ReplayGain replayGain;
+        long request;
+        synchronized (lock) {
+            if (this.source == null) {
+                return;
+            }
+            songFile = this.source.getSongFile();
+            replayGain = this.source.getReplayGain();
+            request = ++this.seekRequest;
+        }
+        // open the new source before taking the lock: building an index reads the whole
+        // file, and reaching the target decodes up to an index interval (or the whole prefix)
+        PcmSource seeked;
+        try {
+            Mp3SeekIndex seekIndex = this.seekIndexes != null && SeekIndexStore.isIndexable(songFile)
+                    ? this.seekIndexes.getOrBuild(songFile)
+                    : null;
+            seeked = PcmSource.openAt(songFile, Math.max(0, frame), seekIndex);
+            seeked.setReplayGain(replayGain);
+            convert(seeked);
+        } catch (Exception e) {
+            System.out.println("Failed to seek audio.");
+            System.out.println(songFile.getAbsolutePath());
+            e.printStackTrace();
+            return;
+        }
+        synchronized (lock) {
+            if (request != this.seekRequest || this.source == null) {
+                // another song was opened or a newer seek asked for meanwhile
+                closeQuietly(seeked);
+                return;
+            }
+            boolean wasRunning = this.running;
+            this.running = false;
+            this.line.stop();
+            this.line.flush();
+            this.mixer.finish();
+            closeSource();
+            this.source = seeked;
+            this.generation++;
+            this.primed = false;
+            this.basePosition = this.source.getStartFrame();
+            // the limiter's delay line still holds audio from before the seek
+            this.dsp.prepare(this.line.getFormat(), BUFFER_FRAMES);
+            this.lineBase = this.line.getLongFramePosition();
+            this.writtenFrames = 0;
+            this.endOfStream = false;
+            publishTimeline();
+            if (wasRunning) {
+                this.running = true;
+                this.line.start();
+            }
+            lock.notifyAll();
+        }
+        this.stateListener.run();
+    }
+
+    @Override
+    public float getMinGain() {
+        return GainStage.MIN_GAIN_DB;
+    }
+
+    @Override
+    public float getMaxGain() {
+        return GainStage.MAX_GAIN_DB;
+    }
+
+    @Override
+    public void setGain(float decibels) {
+        this.dsp.getGain().setGainDb(decibels);
+    }
+
+    @Override
+    public DspChain getDspChain() {
+        return this.dsp;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            this.closed = true;
+            this.running = false;
+            this.mixer.finish();
+            closeSource();
+            queueNext(null);
+            closeLine();
+            publishTimeline();
+            lock.notifyAll();
+        }
+        this.pumpThread.interrupt();
+        if (this.seekIndexes != null) {
+            this.seekIndexes.shutdown();
+        }
+    }
+
+    /*******************************************************
+     *                                                      *
+     *  PUMP THREAD                                         *
+     *                                                      *
+     *******************************************************/
+
+    /**
+     * Body of the pump thread: waits until there is something to play, decodes one buffer
+     * and writes it to the line. Writing happens outside the lock since it blocks on the line.
+     */
+    private void pump() {
+        while (true) {
+            OutputSink target;
+            byte[] chunk;
+            long chunkGeneration;
+            int n;
+            synchronized (lock) {
+                try {
+                    while (!this.closed && (!this.running || this.source == null || this.endOfStream)) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    if (this.closed) {
+                        return;
+                    }
+                    continue;
+                }
+                if (this.closed) {
+                    return;
+                }
+                int fadeFrames = crossfadeFrames();
+                if (fadeFrames > 0) {
+                    beginCrossfade(fadeFrames);
+                }
+                n = readSource();
+                if (this.mixer.isActive()) {
+                    n = this.mixer.mix(this.buffer, n, this.buffer.length);
+                }
+                if (n < 0 && spliceNext()) {
+                    continue;
+                }
+                if (n > 0 && this.line.isRealTime()) {
+                    recordBufferLevel();
+                }
+                target = this.line;
+                chunk = this.buffer;
+                chunkGeneration = this.generation;
+            }
+            if (n < 0) {
+                // let the line play out what it holds before reporting the end
+                target.drain();
+                long drainedAt = System.nanoTime();
+                boolean reopened = false;
+                synchronized (lock) {
+                    if (chunkGeneration == this.generation && this.running) {
+                        if (this.next != null) {
+                            // the queued song needs a different line format, so it can't be spliced
+                            reopened = switchLine(drainedAt);
+                        }
+                        if (!reopened) {
+                            this.endOfStream = true;
+                            this.running = false;
+                            target.stop();
+                        }
+                    }
+                }
+                this.stateListener.run();
+                announceAdvance();
+                continue;
+            }
+            this.dsp.process(chunk, n);
+            int written = writeFully(target, chunk, n, chunkGeneration);
+            synchronized (lock) {
+                if (chunkGeneration == this.generation) {
+                    this.writtenFrames += written / target.getFormat().getFrameSize();
+                    this.primed = true;
+                    if (this.firstSampleRequestedAt != 0 && written > 0) {
+                        recordFirstSample();
+                    }
+                }
+            }
+            announceAdvance();
+        }
+    }
+
+    /**
+     * Records how much audio the line still holds now that the next buffer is decoded,
+     * and counts an underrun if it ran dry while playing. Guarded by lock.
+     */
+    private void recordBufferLevel() {
+        long buffered = this.lineBase + this.writtenFrames - this.line.getLongFramePosition();
+        AudioFormat format = this.line.getFormat();
+        PlayerMetrics.BUFFERED_AUDIO.record((long) (Math.max(0, buffered) * 1e9 / format.getFrameRate()));
+        if (buffered <= 0 && this.primed) {
+            PlayerMetrics.UNDERRUNS.increment();
+            if (PlayerEvents.UNDERRUN.isEnabled()) {
+                PlayerEvents.Underrun event = new PlayerEvents.Underrun();
+                event.song = this.source.getSongFile().getPath();
+                event.frame = this.basePosition + Math.round(this.writtenFrames * songFramesPerLineFrame());
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Records the time from asking for the open song to its first audio reaching the line.
+     * Guarded by lock.
+     */
+    private void recordFirstSample() {
+        long latency = System.nanoTime() - this.firstSampleRequestedAt;
+        this.firstSampleRequestedAt = 0;
+        PlayerMetrics.FIRST_SAMPLES.record(latency);
+        if (PlayerEvents.FIRST_SAMPLE.isEnabled()) {
+            PlayerEvents.FirstSample event = new PlayerEvents.FirstSample();
+            event.song = this.source.getSongFile().getPath();
+            event.latency = latency;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reads the next buffer from the current source. Guarded by lock.
+     */
+    private int readSource() {
+        try {
+            return this.source.read(this.buffer, 0, this.buffer.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Replaces a drained source with the queued one when both share the line's format.
+     * The next song's first frame goes to the line right after the last frame of this one,
+     * so the transition is sample-accurate. Guarded by lock.
+     *
+     * @return true if the queued song was spliced in
+     */
+    private boolean spliceNext() {
+        if (!canSplice()) {
+            return false;
+        }
+        closeQuietly(takeNext());
+        return true;
+    }
+
+    /**
+     * Checks whether the next buffer should start fading into the queued song.
+     * Guarded by lock.
+     *
+     * @return length of the fade to start in frames, or 0 for none
+     */
+    private int crossfadeFrames() {
+        int millis = this.crossfadeMillis;
+        if (millis == 0 || this.mixer.isActive() || !canSplice()) {
+            return 0;
+        }
+        long frameLength = this.source.getFrameLength();
+        if (frameLength <= 0) {
+            return 0;
+        }
+        // in line frames, which differ from the song's when it's resampled
+        long remaining = (long) ((frameLength - this.basePosition) / songFramesPerLineFrame()) - this.writtenFrames;
+        long fadeFrames = (long) (this.line.getFormat().getFrameRate() * millis / 1000);
+        if (remaining > fadeFrames) {
+            return 0;
+        }
+        // a length estimated too short still gets the whole fade; the mixer stops at the real end
+        return (int) (remaining > 0 ? remaining : fadeFrames);
+    }
+
+    /**
+     * Makes the queued song current and hands the current one to the mixer to fade out.
+     * Guarded by lock.
+     */
+    private void beginCrossfade(int fadeFrames) {
+        float outgoingDb = this.dsp.getReplayGain().currentGainDb();
+        PcmSource outgoing = takeNext();
+        // the chain now applies the incoming song's ReplayGain to the whole mix
+        float incomingDb = this.dsp.getReplayGain().currentGainDb();
+        this.mixer.begin(outgoing, fadeFrames, DspStage.dbToLinear(outgoingDb - incomingDb));
+    }
+
+    /**
+     * Guarded by lock.
+     *
+     * @return true if a song is queued and shares the line's format
+     */
+    private boolean canSplice() {
+        return this.next != null && this.next.getFormat().matches(this.line.getFormat());
+    }
+
+    /**
+     * Positions are kept in the song's own frames, so they don't depend on the output rate.
+     * Guarded by lock.
+     *
+     * @return song frames played per frame written to the line
+     */
+    private double songFramesPerLineFrame() {
+        return this.source.getSongFormat().getFrameRate() / this.line.getFormat().getFrameRate();
+    }
+
+    /**
+     * Sets a song up to be played in the output format, if there is one.
+     *
+     * @param source song not read from yet
+     */
+    private void convert(PcmSource source) {
+        AudioFormat format = this.outputFormat;
+        if (format != null) {
+            source.convertTo(format, this.resamplerQuality);
+        }
+    }
+
+    /**
+     * Makes the queued song current, starting right after the frames written so far.
+     * Guarded by lock.
+     *
+     * @return the previous source, still open
+     */
+    private PcmSource takeNext() {
+        PcmSource previous = this.source;
+        this.previousBasePosition = this.basePosition;
+        this.previousLineBase = this.lineBase;
+        this.previousFrameLength = previous.getFrameLength();
+        this.previousFrameRate = previous.getSongFormat().getFrameRate();
+        this.previousSongFramesPerLineFrame = songFramesPerLineFrame();
+        this.source = this.next;
+        this.next = null;
+        this.lineBase += this.writtenFrames;
+        this.basePosition = 0;
+        this.writtenFrames = 0;
+        this.pendingFile = this.source.getSongFile();
+        this.pendingGapNanos = 0;
+        this.dsp.trackChanged(this.source.getSongFile(), this.source.getReplayGain());
+        indexInBackground(this.source);
+        publishTimeline();
+        return previous;
+    }
+
+    /**
+     * Moves to the queued song on a line reopened in its format. Only used after the line
+     * has drained, so nothing audible is lost. Guarded by lock.
+     *
+     * @param drainedAt System.nanoTime() when the previous song finished playing
+     * @return true if the queued song is now playing
+     */
+    private boolean switchLine(long drainedAt) {
+        PcmSource queued = this.next;
+        this.next = null;
+        closeSource();
+        try {
+            prepareLine(queued.getFormat());
+        } catch (Exception e) {
+            System.out.println("Failed to load audio.");
+            System.out.println(queued.getSongFile().getAbsolutePath());
+            e.printStackTrace();
+            closeQuietly(queued);
+            publishTimeline();
+            return false;
+        }
+        this.source = queued;
+        this.basePosition = 0;
+        this.lineBase = this.line.getLongFramePosition();
+        this.writtenFrames = 0;
+        this.pendingFile = queued.getSongFile();
+        this.dsp.trackChanged(queued.getSongFile(), queued.getReplayGain());
+        indexInBackground(queued);
+        this.generation++;
+        this.primed = false;
+        publishTimeline();
+        this.line.start();
+        this.pendingGapNanos = System.nanoTime() - drainedAt;
+        return true;
+    }
+
+    /**
+     * Tells the listener once a spliced-in song has actually reached the speakers.
+     * Called from the pump thread without holding the lock.
+     */
+    private void announceAdvance() {
+        File advancedTo;
+        long gapNanos;
+        synchronized (lock) {
+            if (this.pendingFile == null || stillHearingPrevious()) {
+                return;
+            }
+            advancedTo = this.pendingFile;
+            gapNanos = this.pendingGapNanos;
+            this.pendingFile = null;
+            publishTimeline();
+        }
+        this.trackAdvanceListener.accept(advancedTo, gapNanos);
+    }
+
+    /**
+     * Guarded by lock.
+     */
+    private boolean stillHearingPrevious() {
+        return this.pendingFile != null && this.line.getLongFramePosition() < this.lineBase;
+    }
+
+    /**
+     * Writes a decoded chunk to the line. A write cut short by a pause is resumed once
+     * playback starts again; one cut short by a seek or new song is dropped.
+     *
+     * @return bytes that reached the line
+     */
+    private int writeFully(OutputSink target, byte[] chunk, int length, long chunkGeneration) {
+        int offset = 0;
+        while (offset < length) {
+            offset += target.write(chunk, offset, length - offset);
+            if (offset >= length) {
+                break;
+            }
+            synchronized (lock) {
+                try {
+                    while (!this.closed && !this.running && chunkGeneration == this.generation) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (this.closed || chunkGeneration != this.generation) {
+                    break;
+                }
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Makes sure an open line in the given format is available, reusing the current one
+     * when it matches. Guarded by lock.
+     */
+    private void prepareLine(AudioFormat format) throws LineUnavailableException {
+        if (this.line == null || !this.line.getFormat().matches(format)) {
+            closeLine();
+            int lineBytes = (int) (format.getFrameRate() * LINE_BUFFER_MILLIS / 1000) * format.getFrameSize();
+            this.line = this.sinks.open(format, lineBytes, () -> this.stateListener.run());
+        } else {
+            this.line.stop();
+            this.line.flush();
+        }
+        this.buffer = new byte[BUFFER_FRAMES * format.getFrameSize()];
+        this.dsp.prepare(format, BUFFER_FRAMES);
+        this.mixer.prepare(format, BUFFER_FRAMES);
+    }
+
+    /**
+     * Gets the song that just became current ready for fast seeking.
+     */
+    private void indexInBackground(PcmSource current) {
+        if (this.seekIndexes != null) {
+            this.seekIndexes.ensureBuilt(current.getSongFile());
+        }
+    }
+
+    private void closeSource() {
+        if (this.source != null) {
+            closeQuietly(this.source);
+            this.source = null;
+        }
+    }
+
+    /**
+     * Publishes the current song's timeline for the position getters. Called after every
+     * change of the song, its base position or line base, or the pending advance.
+     * Guarded by lock.
+     */
+    private void publishTimeline() {
+        if (this.source == null) {
+            this.timeline = null;
+            return;
+        }
+        Timeline previous = this.pendingFile == null ? null
+                : new Timeline(this.line, this.previousBasePosition, this.previousLineBase,
+                        this.previousSongFramesPerLineFrame, this.previousFrameLength, this.previousFrameRate, null);
+        this.timeline = new Timeline(this.line, this.basePosition, this.lineBase, songFramesPerLineFrame(),
+                this.source.getFrameLength(), this.source.getSongFormat().getFrameRate(), previous);
+    }
+
+    private static void closeQuietly(PcmSource pcmSource) {
+        try {
+            pcmSource.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void closeLine() {
+        if (this.line != null) {
+            this.line.close();
+            this.line = null;
+        }
+    }
+}
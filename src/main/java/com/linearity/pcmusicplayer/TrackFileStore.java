@@ -0,0 +1,132 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A directory of files that each hold something worked out from one song file, such as its
+ * seek index or waveform. A file starts with a header naming the song and the size and
+ * modification time it had, so data for an older version of the song is never read back.
+ *
+ * @param <T> what is stored per song
+ */
+public class TrackFileStore<T> {
+
+    /**
+     * Reads what {@link Writer} wrote after the header.
+     */
+    public interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Writes the data after the header.
+     */
+    public interface Writer<T> {
+        void write(T value, DataOutputStream out) throws IOException;
+    }
+
+    private final File directory;
+    private final int magic;
+    private final int version;
+    private final String extension;
+    private final String description;
+    private final Reader<T> reader;
+    private final Writer<T> writer;
+
+    /**
+     * @param directory where the files are kept, created if missing
+     * @param magic first int of every file
+     * @param version format version; files of another version are ignored
+     * @param extension file name extension, with the dot
+     * @param description what is stored, for log messages
+     * @param reader reads the data of one song
+     * @param writer writes the data of one song
+     */
+    public TrackFileStore(File directory, int magic, int version, String extension, String description,
+                          Reader<T> reader, Writer<T> writer) {
+        this.directory = directory;
+        this.magic = magic;
+        this.version = version;
+        this.extension = extension;
+        this.description = description;
+        this.reader = reader;
+        this.writer = writer;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Failed to create " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @param songFile song
+     * @param key the song's current version
+     * @return the stored data, or null if there is none for this version of the song
+     */
+    @Nullable
+    public T read(File songFile, TrackKey key) {
+        File file = fileFor(songFile);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != this.magic || in.readInt() != this.version
+                    || !in.readUTF().equals(songFile.getAbsolutePath())
+                    || in.readLong() != key.size()
+                    || in.readLong() != key.lastModified()) {
+                return null;
+            }
+            return this.reader.read(in);
+        } catch (IOException e) {
+            System.out.println("Failed to read " + this.description + " " + file.getAbsolutePath());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes through a temporary file, so a reader never sees half of it. The temporary
+     * file is deleted if writing fails.
+     *
+     * @param songFile song
+     * @param key the version of the song the data was worked out from
+     * @param value data to store
+     */
+    public void write(File songFile, TrackKey key, T value) throws IOException {
+        File file = fileFor(songFile);
+        File temp = File.createTempFile(file.getName(), ".tmp", this.directory);
+        boolean moved = false;
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(this.magic);
+                out.writeInt(this.version);
+                out.writeUTF(songFile.getAbsolutePath());
+                out.writeLong(key.size());
+                out.writeLong(key.lastModified());
+                this.writer.write(value, out);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            moved = true;
+        } finally {
+            if (!moved && !temp.delete() && temp.exists()) {
+                System.out.println("Failed to delete " + temp.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Names the file after a 64-bit FNV-1a hash of the song's path; the path stored
+     * inside settles any collision.
+     */
+    private File fileFor(File songFile) {
+        String path = songFile.getAbsolutePath();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < path.length(); i++) {
+            hash ^= path.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return new File(this.directory, Long.toHexString(hash) + this.extension);
+    }
+}
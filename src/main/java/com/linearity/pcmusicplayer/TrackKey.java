@@ -0,0 +1,33 @@
+package com.linearity.pcmusicplayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Identifies one version of a song file: the file itself (its inode where the file system
+ * has one, otherwise its absolute path) plus its size and modification time.
+ * Two keys are equal only if they refer to the same file with the same contents on disk.
+ */
+public record TrackKey(Object identity, long size, long lastModified) {
+
+    /**
+     * Reads the key of a file. Files that can't be read get a key that only
+     * carries their path.
+     *
+     * @param songFile file to identify
+     * @return key for the file as it is on disk now
+     */
+    public static TrackKey of(File songFile) {
+        String path = songFile.getAbsoluteFile().toPath().normalize().toString();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(songFile.toPath(), BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+            return new TrackKey(fileKey != null ? fileKey : path,
+                    attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (IOException | UnsupportedOperationException e) {
+            return new TrackKey(path, -1, -1);
+        }
+    }
+}
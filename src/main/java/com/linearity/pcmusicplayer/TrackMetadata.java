@@ -0,0 +1,32 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Tags and stream properties of a song, read without decoding any audio.
+ *
+ * @param title title tag, or null
+ * @param artist artist tag, or null
+ * @param album album tag, or null
+ * @param durationMicros duration in microseconds, or -1 if it couldn't be worked out
+ * @param sampleRate sample rate in Hz, or 0 if unknown
+ * @param channels channel count, or 0 if unknown
+ * @param replayGain ReplayGain tags, {@link ReplayGain#NONE} if there are none
+ */
+public record TrackMetadata(@Nullable String title, @Nullable String artist, @Nullable String album,
+                            long durationMicros, int sampleRate, int channels, ReplayGain replayGain) {
+
+    /** Metadata for a file that couldn't be probed */
+    public static final TrackMetadata UNKNOWN = new TrackMetadata(null, null, null, -1, 0, 0, ReplayGain.NONE);
+
+    /**
+     * @return duration as m:ss, or an empty string if unknown
+     */
+    public String formatDuration() {
+        if (this.durationMicros < 0) {
+            return "";
+        }
+        long seconds = this.durationMicros / 1_000_000;
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+}
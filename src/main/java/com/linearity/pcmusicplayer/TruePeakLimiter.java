@@ -0,0 +1,197 @@
+package com.linearity.pcmusicplayer;
+
+import java.util.Arrays;
+
+/**
+ * Look-ahead limiter that keeps the true peak, the peak of the signal between samples as
+ * a DAC reconstructs it, under a ceiling. Peaks are estimated by 4x oversampling with a
+ * short windowed-sinc interpolator. The audio is delayed by the look-ahead so the gain
+ * can come down before a peak arrives rather than clipping it.
+ *
+ * Per frame and channel this costs one 24-tap interpolation plus a few comparisons;
+ * every buffer is allocated in prepare(). Whatever is still in the delay line when
+ * playback stops for good is dropped, which at 1.5 ms is inaudible.
+ */
+public class TruePeakLimiter implements DspStage {
+
+    public static final float DEFAULT_CEILING_DB = -1f;
+    private static final float LOOKAHEAD_MILLIS = 1.5f;
+    private static final float RELEASE_MILLIS = 80f;
+    private static final int OVERSAMPLE = 4;
+    static final int TAPS = 8;
+    /** Interpolation filters for the points between two samples, TAPS coefficients per fractional offset */
+    static final float[] PHASES = buildPhases();
+
+    private volatile boolean enabled = true;
+    private volatile float ceiling = DspStage.dbToLinear(DEFAULT_CEILING_DB);
+
+    /** State below is only touched by prepare() and process() on the pump thread */
+    private float sampleRate;
+    private int channels;
+    private int lookahead;
+    private float attack;
+    private float release;
+    /** Delay line, lookahead frames, interleaved */
+    private float[] delay = new float[0];
+    private int delayPosition;
+    /**
+     * Last TAPS samples of each channel, channel after channel. Every sample is written
+     * twice, TAPS apart, so the newest TAPS always sit contiguously at historyPosition + 1.
+     */
+    private float[] history = new float[0];
+    private int historyPosition;
+    /** Monotonic queue of the smallest required gain over the look-ahead window */
+    private float[] windowGains = new float[0];
+    private long[] windowFrames = new long[0];
+    private int windowHead;
+    private int windowSize;
+    private long frameCounter;
+    private float envelope = 1f;
+    private boolean active;
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @param decibels highest true peak let through, in dBTP
+     */
+    public void setCeilingDb(float decibels) {
+        this.ceiling = DspStage.dbToLinear(Math.min(0f, decibels));
+    }
+
+    /**
+     * @return frames the audio is delayed by while the limiter is enabled
+     */
+    public int getLatencyFrames() {
+        return this.lookahead;
+    }
+
+    @Override
+    public void prepare(float sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        int lookahead = Math.max(TAPS, Math.round(sampleRate * LOOKAHEAD_MILLIS / 1000f));
+        if (channels != this.channels || lookahead != this.lookahead) {
+            this.channels = channels;
+            this.lookahead = lookahead;
+            this.delay = new float[lookahead * channels];
+            this.history = new float[2 * TAPS * channels];
+            this.windowGains = new float[lookahead + 1];
+            this.windowFrames = new long[lookahead + 1];
+        } else {
+            Arrays.fill(this.delay, 0f);
+            Arrays.fill(this.history, 0f);
+        }
+        // reaches 99% of a gain drop within the look-ahead, a safety clamp catches the rest
+        this.attack = (float) (1 - Math.exp(-5.0 / lookahead));
+        this.release = (float) (1 - Math.exp(-1000.0 / (RELEASE_MILLIS * sampleRate)));
+        this.delayPosition = 0;
+        this.historyPosition = 0;
+        this.windowHead = 0;
+        this.windowSize = 0;
+        this.frameCounter = 0;
+        this.envelope = 1f;
+        this.active = this.enabled;
+    }
+
+    @Override
+    public void process(float[] samples, int frames, int channels) {
+        boolean enabled = this.enabled;
+        if (enabled != this.active) {
+            // switching on starts from a clean delay line; switching off drops it
+            if (enabled) {
+                prepare(this.sampleRate, channels);
+            }
+            this.active = enabled;
+        }
+        if (!enabled || channels != this.channels) {
+            return;
+        }
+        float ceiling = this.ceiling;
+        int capacity = this.windowGains.length;
+        int i = 0;
+        for (int frame = 0; frame < frames; frame++, i += channels) {
+            // estimate the true peak around the newest samples
+            float peak = 0f;
+            float[] history = this.history;
+            int position = this.historyPosition = (this.historyPosition + 1) % TAPS;
+            for (int channel = 0; channel < channels; channel++) {
+                int base = channel * 2 * TAPS;
+                float sample = samples[i + channel];
+                history[base + position] = sample;
+                history[base + position + TAPS] = sample;
+                // the window is history[oldest .. oldest + TAPS - 1], newest last
+                int oldest = base + position + 1;
+                peak = Math.max(peak, Math.abs(history[oldest + TAPS / 2 - 1]));
+                for (int phase = 0; phase < PHASES.length; phase += TAPS) {
+                    float value = 0f;
+                    for (int tap = 0; tap < TAPS; tap++) {
+                        value += PHASES[phase + tap] * history[oldest + tap];
+                    }
+                    peak = Math.max(peak, Math.abs(value));
+                }
+            }
+            float required = peak > ceiling ? ceiling / peak : 1f;
+
+            // smallest required gain over the look-ahead window
+            long now = this.frameCounter++;
+            while (this.windowSize > 0
+                    && this.windowGains[(this.windowHead + this.windowSize - 1) % capacity] >= required) {
+                this.windowSize--;
+            }
+            int tail = (this.windowHead + this.windowSize) % capacity;
+            this.windowGains[tail] = required;
+            this.windowFrames[tail] = now;
+            this.windowSize++;
+            while (this.windowFrames[this.windowHead] <= now - this.lookahead) {
+                this.windowHead = (this.windowHead + 1) % capacity;
+                this.windowSize--;
+            }
+            float target = this.windowGains[this.windowHead];
+            this.envelope += (target - this.envelope) * (target < this.envelope ? this.attack : this.release);
+
+            // emit the delayed frame and store the new one
+            int slot = this.delayPosition * channels;
+            float gain = this.envelope;
+            for (int channel = 0; channel < channels; channel++) {
+                float magnitude = Math.abs(this.delay[slot + channel]);
+                if (magnitude * gain > ceiling) {
+                    gain = ceiling / magnitude;
+                }
+            }
+            for (int channel = 0; channel < channels; channel++) {
+                float delayed = this.delay[slot + channel];
+                this.delay[slot + channel] = samples[i + channel];
+                samples[i + channel] = delayed * gain;
+            }
+            this.delayPosition = (this.delayPosition + 1) % this.lookahead;
+        }
+    }
+
+    /**
+     * Windowed-sinc coefficients for the OVERSAMPLE - 1 points between the middle two
+     * of TAPS samples, each set normalized to unity gain.
+     */
+    private static float[] buildPhases() {
+        float[] phases = new float[(OVERSAMPLE - 1) * TAPS];
+        for (int p = 1; p < OVERSAMPLE; p++) {
+            double position = TAPS / 2 - 1 + (double) p / OVERSAMPLE;
+            double sum = 0;
+            for (int tap = 0; tap < TAPS; tap++) {
+                double x = tap - position;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double window = 0.5 + 0.5 * Math.cos(Math.PI * x / (TAPS / 2.0));
+                phases[(p - 1) * TAPS + tap] = (float) (sinc * window);
+                sum += sinc * window;
+            }
+            for (int tap = 0; tap < TAPS; tap++) {
+                phases[(p - 1) * TAPS + tap] /= (float) sum;
+            }
+        }
+        return phases;
+    }
+}
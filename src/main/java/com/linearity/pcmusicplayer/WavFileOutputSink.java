@@ -0,0 +1,147 @@
+package com.linearity.pcmusicplayer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * OutputSink that records everything played to a WAV file, as fast as it is decoded.
+ * Every frame that would have reached the speakers is in the file, after the DSP chain,
+ * so a recording can be compared sample by sample with an earlier one.
+ * Audio flushed by a seek has been written already and stays in the file.
+ */
+public class WavFileOutputSink implements OutputSink {
+
+    private static final int HEADER_SIZE = 44;
+
+    private final File file;
+    private final AudioFormat format;
+    private final OutputStream out;
+    private long writtenBytes;
+    private boolean closed;
+
+    private WavFileOutputSink(File file, AudioFormat format) throws IOException {
+        this.file = file;
+        this.format = format;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        // sizes are filled in on close
+        this.out.write(header(0));
+    }
+
+    /**
+     * Makes a factory recording to the given file. Should a song need a different format,
+     * the recording carries on in a new file numbered after the first, as name-2.wav.
+     *
+     * @param file WAV file to write
+     * @return factory of sinks writing to the file
+     */
+    public static OutputSink.Factory to(File file) {
+        int[] opened = {0};
+        return (format, bufferBytes, stateListener) -> {
+            if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || format.getSampleSizeInBits() != 16
+                    || format.isBigEndian()) {
+                throw new LineUnavailableException("Only 16-bit little-endian PCM can be recorded: " + format);
+            }
+            File target = file;
+            if (++opened[0] > 1) {
+                String name = file.getName();
+                int dot = name.lastIndexOf('.');
+                String numbered = (dot < 0 ? name : name.substring(0, dot)) + "-" + opened[0] + (dot < 0 ? "" : name.substring(dot));
+                target = new File(file.getAbsoluteFile().getParentFile(), numbered);
+            }
+            try {
+                return new WavFileOutputSink(target, format);
+            } catch (IOException e) {
+                LineUnavailableException unavailable = new LineUnavailableException("Failed to create " + target);
+                unavailable.initCause(e);
+                throw unavailable;
+            }
+        };
+    }
+
+    @Override
+    public AudioFormat getFormat() {
+        return this.format;
+    }
+
+    @Override
+    public synchronized int write(byte[] buffer, int offset, int length) {
+        if (this.closed) {
+            return 0;
+        }
+        try {
+            this.out.write(buffer, offset, length);
+            this.writtenBytes += length;
+            return length;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to write " + this.file.getAbsolutePath());
+            return 0;
+        }
+    }
+
+    @Override
+    public void start() {}
+
+    @Override
+    public void stop() {}
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void drain() {}
+
+    @Override
+    public boolean isRealTime() {
+        return false;
+    }
+
+    @Override
+    public synchronized long getLongFramePosition() {
+        return this.writtenBytes / this.format.getFrameSize();
+    }
+
+    /**
+     * Finishes the file by writing its sizes into the header.
+     */
+    @Override
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.out.close();
+            try (RandomAccessFile patch = new RandomAccessFile(this.file, "rw")) {
+                patch.write(header(this.writtenBytes));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to finish " + this.file.getAbsolutePath());
+        }
+    }
+
+    private byte[] header(long dataBytes) {
+        int dataSize = (int) Math.min(dataBytes, 0xFFFFFFFFL - HEADER_SIZE);
+        int channels = this.format.getChannels();
+        int sampleRate = (int) this.format.getSampleRate();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952); // "RIFF"
+        header.putInt(HEADER_SIZE - 8 + dataSize);
+        header.putInt(0x45564157); // "WAVE"
+        header.putInt(0x20746D66); // "fmt "
+        header.putInt(16);
+        header.putShort((short) 1); // PCM
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * this.format.getFrameSize());
+        header.putShort((short) this.format.getFrameSize());
+        header.putShort((short) this.format.getSampleSizeInBits());
+        header.putInt(0x61746164); // "data"
+        header.putInt(dataSize);
+        return header.array();
+    }
+}
@@ -0,0 +1,212 @@
+package com.linearity.pcmusicplayer;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Minimum and maximum sample of a song per bucket of frames, at several resolutions, for
+ * drawing its waveform. The finest level has a bucket every {@link #BASE_FRAMES_PER_BUCKET}
+ * frames, each further level merges pairs of buckets, and a waveform of any width is read
+ * from the coarsest level that still has a bucket per pixel. Channels are merged and
+ * samples are kept to 8 bits, so a five-minute song takes around 50 KB.
+ */
+public class WaveformPeaks {
+
+    /** Frames summarized by one bucket of the finest level, 23 ms at 44.1 kHz */
+    public static final int BASE_FRAMES_PER_BUCKET = 1024;
+    /** Levels are added until one has no more buckets than this */
+    private static final int COARSEST_BUCKETS = 256;
+
+    private final float sampleRate;
+    private final long frameLength;
+    /** mins[k] and maxs[k] are level k, whose buckets are BASE_FRAMES_PER_BUCKET << k frames */
+    private final byte[][] mins;
+    private final byte[][] maxs;
+
+    private WaveformPeaks(float sampleRate, long frameLength, byte[][] mins, byte[][] maxs) {
+        this.sampleRate = sampleRate;
+        this.frameLength = frameLength;
+        this.mins = mins;
+        this.maxs = maxs;
+    }
+
+    /**
+     * @return sample rate of the song, to turn frames into time
+     */
+    public float getSampleRate() {
+        return this.sampleRate;
+    }
+
+    /**
+     * @return frames decoded from the song
+     */
+    public long getFrameLength() {
+        return this.frameLength;
+    }
+
+    /**
+     * Summarizes a range of the song in columns, e.g. one per pixel.
+     *
+     * @param fromFrame first frame of the first column
+     * @param toFrame frame after the last column
+     * @param columns number of columns
+     * @param columnMins receives the lowest sample of each column, between -1 and 1
+     * @param columnMaxs receives the highest sample of each column, between -1 and 1
+     */
+    public void summarize(long fromFrame, long toFrame, int columns, float[] columnMins, float[] columnMaxs) {
+        double framesPerColumn = (double) (toFrame - fromFrame) / columns;
+        int level = 0;
+        while (level + 1 < this.mins.length && (long) BASE_FRAMES_PER_BUCKET << (level + 1) <= framesPerColumn) {
+            level++;
+        }
+        byte[] levelMins = this.mins[level];
+        byte[] levelMaxs = this.maxs[level];
+        long bucketFrames = (long) BASE_FRAMES_PER_BUCKET << level;
+        for (int column = 0; column < columns; column++) {
+            long start = fromFrame + (long) (framesPerColumn * column);
+            long end = fromFrame + (long) (framesPerColumn * (column + 1));
+            int first = (int) Math.min(start / bucketFrames, levelMins.length);
+            int last = (int) Math.min(Math.max(first + 1, (end + bucketFrames - 1) / bucketFrames), levelMins.length);
+            int min = 0;
+            int max = 0;
+            for (int bucket = first; bucket < last; bucket++) {
+                min = Math.min(min, levelMins[bucket]);
+                max = Math.max(max, levelMaxs[bucket]);
+            }
+            columnMins[column] = min / 128f;
+            columnMaxs[column] = max / 128f;
+        }
+    }
+
+    /**
+     * Writes the peaks; the caller writes whatever identifies the file.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeFloat(this.sampleRate);
+        out.writeLong(this.frameLength);
+        out.writeInt(this.mins.length);
+        for (int level = 0; level < this.mins.length; level++) {
+            out.writeInt(this.mins[level].length);
+            out.write(this.mins[level]);
+            out.write(this.maxs[level]);
+        }
+    }
+
+    /**
+     * Reads peaks written by {@link #writeTo(DataOutputStream)}.
+     */
+    public static WaveformPeaks readFrom(DataInputStream in) throws IOException {
+        float sampleRate = in.readFloat();
+        long frameLength = in.readLong();
+        int levels = in.readInt();
+        if (levels < 1 || levels > 64) {
+            throw new IOException("bad waveform level count " + levels);
+        }
+        byte[][] mins = new byte[levels][];
+        byte[][] maxs = new byte[levels][];
+        for (int level = 0; level < levels; level++) {
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("bad waveform size " + count);
+            }
+            mins[level] = new byte[count];
+            maxs[level] = new byte[count];
+            in.readFully(mins[level]);
+            in.readFully(maxs[level]);
+        }
+        return new WaveformPeaks(sampleRate, frameLength, mins, maxs);
+    }
+
+    /**
+     * Collects peaks from decoded PCM as it goes by, e.g. during loudness analysis.
+     */
+    public static class Builder {
+
+        private final float sampleRate;
+        private final int channels;
+        private byte[] mins = new byte[1024];
+        private byte[] maxs = new byte[1024];
+        private int buckets;
+        private int bucketMin = Integer.MAX_VALUE;
+        private int bucketMax = Integer.MIN_VALUE;
+        private int bucketFrames;
+        private long frames;
+
+        /**
+         * @param format 16-bit signed little-endian PCM, as {@link PcmSource} decodes to
+         */
+        public Builder(AudioFormat format) {
+            if (!PcmConverter.isPcm16(format)) {
+                throw new IllegalArgumentException("Can only summarize 16-bit little-endian PCM: " + format);
+            }
+            this.sampleRate = format.getSampleRate();
+            this.channels = format.getChannels();
+        }
+
+        /**
+         * @param pcm interleaved samples
+         * @param length bytes to take from the start of pcm, a whole number of frames
+         */
+        public void process(byte[] pcm, int length) {
+            int frameSize = this.channels * 2;
+            for (int offset = 0; offset + frameSize <= length; offset += frameSize) {
+                for (int channel = 0; channel < this.channels; channel++) {
+                    int i = offset + channel * 2;
+                    int sample = (short) ((pcm[i + 1] << 8) | (pcm[i] & 0xFF)) >> 8;
+                    this.bucketMin = Math.min(this.bucketMin, sample);
+                    this.bucketMax = Math.max(this.bucketMax, sample);
+                }
+                if (++this.bucketFrames == BASE_FRAMES_PER_BUCKET) {
+                    endBucket();
+                }
+            }
+            this.frames += length / frameSize;
+        }
+
+        /**
+         * @return peaks of everything processed
+         */
+        public WaveformPeaks build() {
+            if (this.bucketFrames > 0) {
+                endBucket();
+            }
+            int levels = 1;
+            for (int count = this.buckets; count > COARSEST_BUCKETS; count = (count + 1) / 2) {
+                levels++;
+            }
+            byte[][] levelMins = new byte[levels][];
+            byte[][] levelMaxs = new byte[levels][];
+            levelMins[0] = Arrays.copyOf(this.mins, this.buckets);
+            levelMaxs[0] = Arrays.copyOf(this.maxs, this.buckets);
+            for (int level = 1; level < levels; level++) {
+                byte[] finerMins = levelMins[level - 1];
+                byte[] finerMaxs = levelMaxs[level - 1];
+                int count = (finerMins.length + 1) / 2;
+                levelMins[level] = new byte[count];
+                levelMaxs[level] = new byte[count];
+                for (int bucket = 0; bucket < count; bucket++) {
+                    int pair = Math.min(bucket * 2 + 1, finerMins.length - 1);
+                    levelMins[level][bucket] = (byte) Math.min(finerMins[bucket * 2], finerMins[pair]);
+                    levelMaxs[level][bucket] = (byte) Math.max(finerMaxs[bucket * 2], finerMaxs[pair]);
+                }
+            }
+            return new WaveformPeaks(this.sampleRate, this.frames, levelMins, levelMaxs);
+        }
+
+        private void endBucket() {
+            if (this.buckets == this.mins.length) {
+                this.mins = Arrays.copyOf(this.mins, this.buckets * 2);
+                this.maxs = Arrays.copyOf(this.maxs, this.buckets * 2);
+            }
+            this.mins[this.buckets] = (byte) this.bucketMin;
+            this.maxs[this.buckets] = (byte) this.bucketMax;
+            this.buckets++;
+            this.bucketMin = Integer.MAX_VALUE;
+            this.bucketMax = Integer.MIN_VALUE;
+            this.bucketFrames = 0;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.linearity.pcmusicplayer;
+
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.Label;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.stage.Popup;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Seek bar that draws the song's waveform, the part played so far in another colour, with
+ * a tick every minute. Clicking or dragging seeks; hovering shows the time under the cursor.
+ * Positions are song frames, turned into time with the song's own frame rate.
+ *
+ * The waveform comes from {@link WaveformPeaks} and is summarized once per width and song,
+ * so moving the position only repaints. Until the peaks are ready a plain line is drawn.
+ */
+public class WaveformSeekBar extends Region {
+
+    private static final double PREF_HEIGHT = 48;
+    private static final double TICK_HEIGHT = 4;
+    private static final Color PLAYED = Color.DODGERBLUE;
+    private static final Color UNPLAYED = Color.DARKGRAY;
+    private static final Color PLAYHEAD = Color.DARKSLATEGRAY;
+
+    private final Canvas canvas = new Canvas();
+    private final Label timeLabel = new Label();
+    private final Popup timePopup = new Popup();
+    private double max;
+    private double value;
+    private float frameRate;
+    private boolean valueChanging;
+    @Nullable
+    private WaveformPeaks peaks;
+    private LongConsumer onSeek = frame -> {};
+    /** Waveform per column of the canvas, or null when it must be summarized again */
+    private float[] columnMins;
+    private float[] columnMaxs;
+
+    public WaveformSeekBar() {
+        getChildren().add(this.canvas);
+        this.timePopup.getContent().add(this.timeLabel);
+        setPrefHeight(PREF_HEIGHT);
+        setMinHeight(PREF_HEIGHT / 2);
+        setOnMousePressed(e -> {
+            this.valueChanging = true;
+            setValue(valueAt(e));
+        });
+        setOnMouseDragged(e -> {
+            setValue(valueAt(e));
+            showTime(e);
+        });
+        setOnMouseReleased(e -> {
+            setValue(valueAt(e));
+            this.valueChanging = false;
+            this.onSeek.accept((long) this.value);
+        });
+        setOnMouseMoved(this::showTime);
+        setOnMouseEntered(e -> this.timePopup.show(this, e.getScreenX() - 5, e.getScreenY() - 20));
+        setOnMouseExited(e -> this.timePopup.hide());
+    }
+
+    /**
+     * @param onSeek receives the frame chosen by a click or drag
+     */
+    public void setOnSeek(LongConsumer onSeek) {
+        this.onSeek = onSeek;
+    }
+
+    public double getMax() {
+        return this.max;
+    }
+
+    /**
+     * @param max length of the song in frames
+     */
+    public void setMax(double max) {
+        if (max != this.max) {
+            this.max = max;
+            this.columnMins = null;
+            draw();
+        }
+    }
+
+    public double getValue() {
+        return this.value;
+    }
+
+    /**
+     * @param value frame being played
+     */
+    public void setValue(double value) {
+        this.value = Math.max(0, Math.min(value, this.max));
+        draw();
+    }
+
+    /**
+     * @return true while the user drags the position
+     */
+    public boolean isValueChanging() {
+        return this.valueChanging;
+    }
+
+    /**
+     * @param frameRate frames per second of the song, for tick marks and times
+     */
+    public void setFrameRate(float frameRate) {
+        if (frameRate != this.frameRate) {
+            this.frameRate = frameRate;
+            draw();
+        }
+    }
+
+    /**
+     * @param peaks waveform of the song, or null to draw a plain line until it is known
+     */
+    public void setPeaks(@Nullable WaveformPeaks peaks) {
+        this.peaks = peaks;
+        this.columnMins = null;
+        draw();
+    }
+
+    @Override
+    protected void layoutChildren() {
+        double width = snapSizeX(getWidth() - snappedLeftInset() - snappedRightInset());
+        double height = snapSizeY(getHeight() - snappedTopInset() - snappedBottomInset());
+        this.canvas.relocate(snappedLeftInset(), snappedTopInset());
+        if (width != this.canvas.getWidth() || height != this.canvas.getHeight()) {
+            this.canvas.setWidth(Math.max(0, width));
+            this.canvas.setHeight(Math.max(0, height));
+            this.columnMins = null;
+            draw();
+        }
+    }
+
+    private void draw() {
+        int width = (int) this.canvas.getWidth();
+        double height = this.canvas.getHeight();
+        GraphicsContext g = this.canvas.getGraphicsContext2D();
+        g.clearRect(0, 0, this.canvas.getWidth(), height);
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        double waveHeight = height - TICK_HEIGHT;
+        double middle = waveHeight / 2;
+        double playedX = this.max > 0 ? this.value / this.max * width : 0;
+        WaveformPeaks shownPeaks = this.peaks;
+        if (shownPeaks != null && this.max > 0) {
+            if (this.columnMins == null || this.columnMins.length != width) {
+                this.columnMins = new float[width];
+                this.columnMaxs = new float[width];
+                shownPeaks.summarize(0, (long) this.max, width, this.columnMins, this.columnMaxs);
+            }
+            g.setFill(PLAYED);
+            for (int x = 0; x < width; x++) {
+                if (x == (int) Math.ceil(playedX)) {
+                    g.setFill(UNPLAYED);
+                }
+                double top = middle - this.columnMaxs[x] * middle;
+                double bottom = middle - this.columnMins[x] * middle;
+                g.fillRect(x, top, 1, Math.max(1, bottom - top));
+            }
+        } else {
+            g.setFill(UNPLAYED);
+            g.fillRect(0, middle - 1, width, 2);
+            g.setFill(PLAYED);
+            g.fillRect(0, middle - 1, playedX, 2);
+        }
+        if (this.frameRate > 0 && this.max > 0) {
+            g.setFill(UNPLAYED);
+            double minuteWidth = 60 * this.frameRate / this.max * width;
+            for (double x = minuteWidth; x < width; x += minuteWidth) {
+                g.fillRect(Math.floor(x), waveHeight, 1, TICK_HEIGHT);
+            }
+        }
+        g.setFill(PLAYHEAD);
+        g.fillRect(Math.min(Math.floor(playedX), width - 1), 0, 1, waveHeight);
+    }
+
+    /**
+     * @return frame under the mouse, within the song
+     */
+    private double valueAt(MouseEvent e) {
+        double width = this.canvas.getWidth();
+        if (width <= 0) {
+            return 0;
+        }
+        double x = e.getX() - this.canvas.getLayoutX();
+        return Math.max(0, Math.min(1, x / width)) * this.max;
+    }
+
+    private void showTime(MouseEvent e) {
+        this.timeLabel.setText(this.frameRate > 0 && this.max > 0 ? formatTime(valueAt(e) / this.frameRate) : "");
+        this.timePopup.setAnchorX(e.getScreenX() - 5);
+        this.timePopup.setAnchorY(e.getScreenY() - 20);
+    }
+
+    /**
+     * @param seconds time into the song
+     * @return time as minutes:seconds
+     */
+    private static String formatTime(double seconds) {
+        int whole = (int) seconds;
+        return String.format("%d:%02d", whole / 60, whole % 60);
+    }
+}
@@ -0,0 +1,154 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the {@link WaveformPeaks} of songs, in memory for recently shown songs and on disk
+ * next to the library index. Peaks are stored by loudness analysis, which decodes every
+ * song anyway, and otherwise made on request by decoding the song once more on a
+ * low-priority thread, apart from the decoder feeding the audio line.
+ * Stored peaks belong to one version of a file: a changed size or modification time means
+ * they are made again.
+ */
+public class WaveformStore {
+
+    private static final int MAGIC = 0x50435746; // "PCWF"
+    private static final int VERSION = 1;
+    /** Peaks kept in memory; one is around 10 KB per minute of audio */
+    private static final int CACHE_SIZE = 16;
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private final TrackFileStore<WaveformPeaks> files;
+    private final Map<TrackKey, WaveformPeaks> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TrackKey, WaveformPeaks> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    /** Song asked for last; earlier requests still queued are only served if nothing needs decoding */
+    private final AtomicReference<File> latestRequest = new AtomicReference<>();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "waveform");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    /**
+     * @param directory where peak files are kept, created if missing
+     */
+    public WaveformStore(File directory) {
+        this.files = new TrackFileStore<>(directory, MAGIC, VERSION, ".wfm", "waveform",
+                WaveformPeaks::readFrom, WaveformPeaks::writeTo);
+    }
+
+    /**
+     * @return store in the player's data directory
+     */
+    public static WaveformStore openDefault() {
+        return new WaveformStore(PlayerFiles.dataFile("waveforms"));
+    }
+
+    /**
+     * Gets a song's peaks from memory or disk without decoding it.
+     *
+     * @param songFile any song file
+     * @return peaks, or null if there are none for this version of the file
+     */
+    @Nullable
+    public WaveformPeaks get(File songFile) {
+        TrackKey key = TrackKey.of(songFile);
+        synchronized (this.cache) {
+            WaveformPeaks cached = this.cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        WaveformPeaks stored = this.files.read(songFile, key);
+        if (stored != null) {
+            synchronized (this.cache) {
+                this.cache.put(key, stored);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Looks up a song's peaks in the background, decoding it if they aren't stored.
+     * A newer request supersedes this one, unless the peaks turn out to be stored.
+     *
+     * @param songFile song to show
+     * @param consumer receives the peaks on the store's thread; not called if the song
+     *                 couldn't be decoded or a newer request came first
+     */
+    public void request(File songFile, Consumer<WaveformPeaks> consumer) {
+        this.latestRequest.set(songFile);
+        this.builder.execute(() -> {
+            WaveformPeaks peaks = get(songFile);
+            if (peaks == null && songFile.equals(this.latestRequest.get())) {
+                peaks = build(songFile);
+            }
+            if (peaks != null) {
+                consumer.accept(peaks);
+            }
+        });
+    }
+
+    /**
+     * Stores peaks made elsewhere, in memory and on disk.
+     *
+     * @param songFile song summarized
+     * @param peaks its peaks
+     */
+    public void put(File songFile, WaveformPeaks peaks) {
+        TrackKey key = TrackKey.of(songFile);
+        synchronized (this.cache) {
+            this.cache.put(key, peaks);
+        }
+        try {
+            this.files.write(songFile, key, peaks);
+        } catch (IOException e) {
+            System.out.println("Failed to save waveform for " + songFile.getAbsolutePath());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the background builder.
+     */
+    public void shutdown() {
+        this.builder.shutdownNow();
+    }
+
+    @Nullable
+    private WaveformPeaks build(File songFile) {
+        WaveformPeaks peaks;
+        try (PcmSource source = PcmSource.openForAnalysis(songFile)) {
+            WaveformPeaks.Builder peaksBuilder = new WaveformPeaks.Builder(source.getFormat());
+            byte[] buffer = new byte[CHUNK_BYTES];
+            int n;
+            while ((n = source.read(buffer, 0, buffer.length)) >= 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+                peaksBuilder.process(buffer, n);
+            }
+            peaks = peaksBuilder.build();
+        } catch (Exception e) {
+            System.out.println("Failed to make the waveform of " + songFile.getAbsolutePath());
+            e.printStackTrace();
+            return null;
+        }
+        put(songFile, peaks);
+        return peaks;
+    }
+}
@@ -6,6 +6,7 @@ module com.linearity.pcmusicplayer {
     requires javafx.media;
     requires java.desktop;
     requires org.jetbrains.annotations;
+    requires jdk.jfr;
 
     opens com.linearity.pcmusicplayer to javafx.fxml;
     exports com.linearity.pcmusicplayer;
@@ -0,0 +1,112 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the library index reads back what it saved, and reads the older format.
+ */
+class LibraryIndexTest {
+
+    /** Old enough for the directory listing to be kept */
+    private static final long DIRECTORY_MTIME = 1_000_000L;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTripKeepsEveryField() throws IOException {
+        File file = this.directory.resolve("library.index").toFile();
+        LibraryIndex index = new LibraryIndex(file);
+        LibraryIndex.Track analyzed = track("/music/a.mp3", 100);
+        LibraryIndex.Track failed = track("/music/b.wav", 200);
+        LibraryIndex.Track listed = track("/elsewhere/c.mp3", 300);
+        index.putDirectory("/music", DIRECTORY_MTIME, List.of(analyzed, failed), List.of("/music/sub"));
+        index.putTrack(listed);
+        index.updateDuration(analyzed.file(), 180_000_000L);
+        index.updateLoudness(analyzed.file(), -14.5f, -0.3f);
+        index.markAnalysisFailed(failed.file());
+        index.save();
+
+        LibraryIndex loaded = LibraryIndex.load(file);
+        assertEquals(3, loaded.trackCount());
+        assertEquals(index.getTrack(analyzed.file()), loaded.getTrack(analyzed.file()));
+        assertEquals(index.getTrack(failed.file()), loaded.getTrack(failed.file()));
+        assertEquals(listed, loaded.getTrack(listed.file()));
+        LibraryIndex.Track reloaded = loaded.getTrack(analyzed.file());
+        assertNotNull(reloaded);
+        assertEquals(180_000_000L, reloaded.durationMicros());
+        assertEquals(-14.5f, reloaded.loudnessLufs());
+        assertTrue(loaded.getTrack(failed.file()).analysisFailed());
+        assertEquals(List.of(listed), loaded.tracksMissingLoudness());
+        assertEquals(-3.5f, loaded.replayGainFor(analyzed.file()).trackGainDb(), 1e-6f);
+
+        LibraryIndex.Directory listing = loaded.getDirectory("/music", DIRECTORY_MTIME);
+        assertNotNull(listing);
+        assertEquals(List.of(analyzed.path(), failed.path()), listing.trackPaths());
+        assertEquals(List.of("/music/sub"), listing.children());
+        assertNull(loaded.getDirectory("/music", DIRECTORY_MTIME + 1));
+    }
+
+    @Test
+    void relistingDropsRemovedSongs() {
+        LibraryIndex index = new LibraryIndex(this.directory.resolve("library.index").toFile());
+        LibraryIndex.Track kept = track("/music/a.mp3", 100);
+        LibraryIndex.Track removed = track("/music/b.mp3", 200);
+        index.putDirectory("/music", DIRECTORY_MTIME, List.of(kept, removed), List.of());
+        index.putDirectory("/music", DIRECTORY_MTIME + 5, List.of(kept), List.of());
+        assertNotNull(index.getTrack(kept.file()));
+        assertNull(index.getTrack(removed.file()));
+    }
+
+    @Test
+    void readsVersion2WithoutFailureMarks() throws IOException {
+        File file = this.directory.resolve("library.index").toFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x50434C49);
+            out.writeInt(2);
+            out.writeInt(1);
+            out.writeUTF("/music/a.mp3");
+            out.writeLong(100);
+            out.writeLong(2000);
+            out.writeByte(LibraryIndex.Format.MP3.ordinal());
+            out.writeLong(-1);
+            out.writeFloat(Float.NaN);
+            out.writeFloat(Float.NaN);
+            out.writeInt(0);
+        }
+        LibraryIndex.Track track = LibraryIndex.load(file).getTrack(new File("/music/a.mp3"));
+        assertNotNull(track);
+        assertEquals(100, track.size());
+        assertFalse(track.analysisFailed());
+        assertFalse(track.hasLoudness());
+    }
+
+    @Test
+    void damagedFileGivesAnEmptyIndex() throws IOException {
+        File file = this.directory.resolve("library.index").toFile();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(0x50434C49);
+            out.writeInt(3);
+            out.writeInt(5);
+        }
+        assertEquals(0, LibraryIndex.load(file).trackCount());
+    }
+
+    private static LibraryIndex.Track track(String path, long size) {
+        return new LibraryIndex.Track(new File(path).getPath(), size, 2000, LibraryIndex.formatOf(path), -1);
+    }
+}
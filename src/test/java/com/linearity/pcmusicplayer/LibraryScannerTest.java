@@ -0,0 +1,133 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks musiclist scanning: listed songs are indexed like songs found in a directory and
+ * forgotten once deleted, and lists including themselves are reported, not followed.
+ */
+class LibraryScannerTest {
+
+    @TempDir
+    Path directory;
+
+    private LibraryIndex index;
+    private LibraryScanner scanner;
+
+    @AfterEach
+    void shutdownScanner() {
+        if (this.scanner != null) {
+            this.scanner.shutdown();
+        }
+    }
+
+    @Test
+    void musicListSongsAreIndexedAndForgotten() throws IOException {
+        File first = song("a.wav", 100);
+        File second = song("b.mp3", 200);
+        File missing = this.directory.resolve("c.wav").toFile();
+        File musicList = this.directory.resolve("all.musiclist").toFile();
+        musicList(musicList, first.getPath(), second.getPath(), missing.getPath());
+        this.index = new LibraryIndex(this.directory.resolve("library.index").toFile());
+        this.scanner = new LibraryScanner(this.index);
+
+        assertEquals(Set.of(first, second), new HashSet<>(this.scanner.scanAll(List.of(musicList))));
+        LibraryIndex.Track track = this.index.getTrack(first);
+        assertNotNull(track);
+        assertEquals(100, track.size());
+        assertEquals(LibraryIndex.Format.WAV, track.format());
+        assertNotNull(this.index.getTrack(second));
+        assertNull(this.index.getTrack(missing));
+        Set<File> unanalyzed = new HashSet<>();
+        for (LibraryIndex.Track each : this.index.tracksMissingLoudness()) {
+            unanalyzed.add(each.file());
+        }
+        assertTrue(unanalyzed.containsAll(Set.of(first, second)));
+
+        Files.delete(second.toPath());
+        assertEquals(List.of(first), this.scanner.scanAll(List.of(musicList)));
+        assertNull(this.index.getTrack(second));
+        assertNotNull(this.index.getTrack(first));
+    }
+
+    @Test
+    void includeCycleIsReportedAndNotFollowed() throws IOException {
+        File song = song("a.wav", 100);
+        File outer = this.directory.resolve("outer.musiclist").toFile();
+        File inner = this.directory.resolve("inner.musiclist").toFile();
+        musicList(outer, song.getPath(), inner.getPath());
+        musicList(inner, outer.getPath());
+        this.scanner = new LibraryScanner();
+        Recorder recorder = new Recorder();
+        this.scanner.scan(List.of(outer), recorder).await();
+        assertEquals(List.of(song), recorder.found);
+        assertEquals(1, recorder.cycles.size());
+        List<File> chain = recorder.cycles.get(0);
+        assertEquals(outer.getCanonicalFile(), chain.get(0).getCanonicalFile());
+        assertEquals(outer.getCanonicalFile(), chain.get(chain.size() - 1).getCanonicalFile());
+    }
+
+    @Test
+    void listIncludedTwiceIsNotACycle() throws IOException {
+        File song = song("a.wav", 100);
+        File shared = this.directory.resolve("shared.musiclist").toFile();
+        File left = this.directory.resolve("left.musiclist").toFile();
+        File right = this.directory.resolve("right.musiclist").toFile();
+        File top = this.directory.resolve("top.musiclist").toFile();
+        musicList(shared, song.getPath());
+        musicList(left, shared.getPath());
+        musicList(right, shared.getPath());
+        musicList(top, left.getPath(), right.getPath());
+        this.scanner = new LibraryScanner();
+        Recorder recorder = new Recorder();
+        this.scanner.scan(List.of(top), recorder).await();
+        assertEquals(List.of(song), recorder.found);
+        assertTrue(recorder.cycles.isEmpty());
+    }
+
+    /**
+     * Collects what a scan reports.
+     */
+    private static class Recorder implements LibraryScanner.Listener {
+        final List<File> found = Collections.synchronizedList(new ArrayList<>());
+        final List<List<File>> cycles = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onTracksFound(List<File> tracks) {
+            this.found.addAll(tracks);
+        }
+
+        @Override
+        public void onIncludeCycle(List<File> chain) {
+            this.cycles.add(chain);
+        }
+    }
+
+    private static void musicList(File file, String... lines) throws IOException {
+        Files.writeString(file.toPath(), String.join("\n", lines) + "\n", StandardCharsets.UTF_8);
+    }
+
+    private File song(String name, int size) throws IOException {
+        Path path = this.directory.resolve(name);
+        Files.write(path, new byte[size]);
+        return path.toFile();
+    }
+}
@@ -0,0 +1,76 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the meter against tones whose loudness and true peak are known, as in the
+ * EBU Tech 3341 and 3342 test signals.
+ */
+class LoudnessMeterTest {
+
+    @Test
+    void sineAtMinus23DbfsIsMinus23Lufs() {
+        for (float rate : new float[]{44100, 48000}) {
+            LoudnessMeter meter = new LoudnessMeter(rate, 2);
+            feed(meter, sine(rate, 997, dbToAmplitude(-23), 0, 20));
+            assertEquals(-23.0, meter.integratedLoudness(), 0.1, "at " + rate + " Hz");
+        }
+    }
+
+    @Test
+    void silenceIsGatedOut() {
+        LoudnessMeter meter = new LoudnessMeter(48000, 2);
+        feed(meter, sine(48000, 997, dbToAmplitude(-20), 0, 10));
+        feed(meter, new byte[48000 * 4 * 10]);
+        assertEquals(-20.0, meter.integratedLoudness(), 0.1);
+
+        LoudnessMeter silent = new LoudnessMeter(48000, 2);
+        feed(silent, new byte[48000 * 4 * 5]);
+        assertTrue(Double.isNaN(silent.integratedLoudness()));
+    }
+
+    @Test
+    void truePeakFindsPeaksBetweenSamples() {
+        // a quarter of the sample rate at 45 degrees: every sample is 3 dB below the peak
+        float amplitude = 0.5f;
+        LoudnessMeter meter = new LoudnessMeter(48000, 2);
+        feed(meter, sine(48000, 12000, amplitude, Math.PI / 4, 1));
+        double truePeakDb = 20 * Math.log10(meter.truePeak());
+        assertEquals(20 * Math.log10(amplitude), truePeakDb, 0.5);
+    }
+
+    static float dbToAmplitude(double decibels) {
+        return (float) Math.pow(10, decibels / 20);
+    }
+
+    /**
+     * @return a sine in both channels of 16-bit stereo PCM
+     */
+    static byte[] sine(float rate, double frequency, float amplitude, double phase, double seconds) {
+        int frames = (int) (rate * seconds);
+        byte[] pcm = new byte[frames * 4];
+        for (int frame = 0; frame < frames; frame++) {
+            short sample = (short) Math.round(32767 * amplitude * Math.sin(2 * Math.PI * frequency * frame / rate + phase));
+            for (int channel = 0; channel < 2; channel++) {
+                pcm[frame * 4 + channel * 2] = (byte) sample;
+                pcm[frame * 4 + channel * 2 + 1] = (byte) (sample >> 8);
+            }
+        }
+        return pcm;
+    }
+
+    /**
+     * Feeds PCM in decoder-sized chunks.
+     */
+    static void feed(LoudnessMeter meter, byte[] pcm) {
+        byte[] chunk = new byte[4096 * 4];
+        for (int offset = 0; offset < pcm.length; offset += chunk.length) {
+            int length = Math.min(chunk.length, pcm.length - offset);
+            System.arraycopy(pcm, offset, chunk, 0, length);
+            meter.process(chunk, length);
+        }
+    }
+}
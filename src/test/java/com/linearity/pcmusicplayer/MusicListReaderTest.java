@@ -0,0 +1,83 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks what a musiclist's lines turn into, and that parsed lists are cached until they change.
+ */
+class MusicListReaderTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsEntriesInFileOrder() throws IOException {
+        File song = Files.createFile(this.directory.resolve("a.mp3")).toFile();
+        File missingSong = this.directory.resolve("gone.wav").toFile();
+        File folder = Files.createDirectory(this.directory.resolve("folder")).toFile();
+        File included = Files.createFile(this.directory.resolve("more.musiclist")).toFile();
+        File missingList = this.directory.resolve("gone.musiclist").toFile();
+        File text = Files.createFile(this.directory.resolve("notes.txt")).toFile();
+        Path musicList = write("all.musiclist", song.getPath(), "", folder.getPath(), missingSong.getPath(),
+                included.getPath(), missingList.getPath(), text.getPath(), this.directory.resolve("nowhere").toString());
+
+        assertEquals(List.of(
+                new MusicListReader.Entry(song, MusicListReader.Kind.SONG),
+                new MusicListReader.Entry(folder, MusicListReader.Kind.DIRECTORY),
+                // songs are kept whether or not they exist; the scanner stats them
+                new MusicListReader.Entry(missingSong, MusicListReader.Kind.SONG),
+                new MusicListReader.Entry(included, MusicListReader.Kind.MUSIC_LIST)
+        ), new MusicListReader().read(musicList));
+    }
+
+    @Test
+    void readsMoreLinesThanOneBatch() throws IOException {
+        String[] lines = new String[1000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = this.directory.resolve("song" + i + ".mp3").toString();
+        }
+        List<MusicListReader.Entry> entries = new MusicListReader().read(write("big.musiclist", lines));
+        assertEquals(lines.length, entries.size());
+        for (int i = 0; i < lines.length; i++) {
+            assertEquals(new File(lines[i]), entries.get(i).file());
+        }
+    }
+
+    @Test
+    void cachesUntilTheListChanges() throws IOException {
+        File first = this.directory.resolve("a.mp3").toFile();
+        File second = this.directory.resolve("b.mp3").toFile();
+        Path musicList = write("all.musiclist", first.getPath());
+        FileTime parsedAt = Files.getLastModifiedTime(musicList);
+        MusicListReader reader = new MusicListReader();
+        assertEquals(List.of(new MusicListReader.Entry(first, MusicListReader.Kind.SONG)), reader.read(musicList));
+
+        // same size and mtime: taken from the cache without reading the file
+        write("all.musiclist", second.getPath());
+        Files.setLastModifiedTime(musicList, parsedAt);
+        assertEquals(first, reader.read(musicList).get(0).file());
+
+        Files.setLastModifiedTime(musicList, FileTime.fromMillis(parsedAt.toMillis() + 2000));
+        assertEquals(second, reader.read(musicList).get(0).file());
+        reader.clearCache();
+        write("all.musiclist", first.getPath(), second.getPath());
+        assertEquals(2, reader.read(musicList).size());
+    }
+
+    private Path write(String name, String... lines) throws IOException {
+        Path path = this.directory.resolve(name);
+        Files.writeString(path, String.join("\n", lines) + "\n", StandardCharsets.UTF_8);
+        return path;
+    }
+}
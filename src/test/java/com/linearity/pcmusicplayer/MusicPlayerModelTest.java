@@ -0,0 +1,137 @@
+package com.linearity.pcmusicplayer;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that every change of song decodes the new song once, whether it is loaded,
+ * reached with next, or reached by playing the previous song to its end.
+ * Plays generated WAV files into a NullOutputSink as fast as they decode.
+ */
+class MusicPlayerModelTest {
+
+    private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+
+    @TempDir
+    Path directory;
+
+    /** Released each time the model queues a prefetched song on the engine */
+    private final Semaphore queued = new Semaphore(0);
+    private MusicPlayerModel model;
+
+    @BeforeEach
+    void createModel() {
+        PcmSource.setCache(null);
+        StreamingPlaybackEngine engine = new StreamingPlaybackEngine(null, NullOutputSink.maxSpeed()) {
+            @Override
+            public void queueNext(@Nullable PcmSource nextSource) {
+                super.queueNext(nextSource);
+                if (nextSource != null) {
+                    queued.release();
+                }
+            }
+        };
+        this.model = new MusicPlayerModel(engine);
+    }
+
+    @AfterEach
+    void shutdownModel() {
+        this.model.shutdown();
+    }
+
+    @Test
+    void loadingTheSameSongTwiceDecodesItOnce() throws Exception {
+        File first = song("first.wav", 1);
+        File second = song("second.wav", 1);
+        this.model.setPlaylist(List.of(first, second));
+
+        this.model.loadSpecificAsync(0).join();
+        this.model.loadSpecificAsync(0).join();
+
+        assertEquals(1, this.model.getDecodeCount(first));
+    }
+
+    @Test
+    void nextPlaysThePrefetchedSong() throws Exception {
+        File first = song("first.wav", 1);
+        File second = song("second.wav", 1);
+        File third = song("third.wav", 1);
+        this.model.setPlaylist(List.of(first, second, third));
+        this.model.loadSpecificAsync(0).join();
+        awaitQueued();
+
+        SongBean next = this.model.nextAsync().join();
+
+        assertEquals(second, next.songFile());
+        assertEquals(1, this.model.getDecodeCount(second));
+    }
+
+    @Test
+    void advancingAtTheEndPlaysThePrefetchedSong() throws Exception {
+        File first = song("first.wav", 1);
+        // long enough to still be playing when the test stops the model
+        File second = song("second.wav", 60);
+        File third = song("third.wav", 60);
+        this.model.setPlaylist(List.of(first, second, third));
+        this.model.loadSpecificAsync(0).join();
+        awaitQueued();
+        CountDownLatch advanced = new CountDownLatch(1);
+        this.model.addPlaybackListener(new PlaybackListener() {
+            @Override
+            public void onSongChanged(@Nullable SongBean song) {
+                if (song != null && song.songFile().equals(second)) {
+                    advanced.countDown();
+                }
+            }
+        });
+
+        this.model.start();
+        assertTrue(advanced.await(10, TimeUnit.SECONDS), "never advanced to the second song");
+        this.model.stop();
+
+        assertEquals(1, this.model.getDecodeCount(second));
+    }
+
+    private void awaitQueued() throws InterruptedException {
+        assertTrue(this.queued.tryAcquire(10, TimeUnit.SECONDS), "next song was never prefetched");
+    }
+
+    /**
+     * Writes a WAV file of a quiet sine.
+     */
+    private File song(String name, int seconds) throws IOException {
+        int frames = (int) FORMAT.getFrameRate() * seconds;
+        byte[] pcm = new byte[frames * FORMAT.getFrameSize()];
+        for (int i = 0; i < frames; i++) {
+            short sample = (short) (1000 * Math.sin(2 * Math.PI * 440 * i / FORMAT.getFrameRate()));
+            for (int channel = 0; channel < 2; channel++) {
+                int offset = i * 4 + channel * 2;
+                pcm[offset] = (byte) sample;
+                pcm[offset + 1] = (byte) (sample >> 8);
+            }
+        }
+        File file = this.directory.resolve(name).toFile();
+        AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(pcm), FORMAT, frames),
+                AudioFileFormat.Type.WAVE, file);
+        return file;
+    }
+}
@@ -0,0 +1,78 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Checks that songs keep their ids and paths through the table's growth, and that path
+ * hashes don't depend on the order songs were added in.
+ */
+class PathTableTest {
+
+    private static final int SONGS = 5000;
+
+    @Test
+    void addingAgainFindsTheSameSong() {
+        PathTable paths = new PathTable();
+        int[] ids = new int[SONGS];
+        for (int i = 0; i < SONGS; i++) {
+            ids[i] = paths.add(song(i));
+        }
+        assertEquals(SONGS, paths.size());
+        for (int i = 0; i < SONGS; i++) {
+            assertEquals(ids[i], paths.add(song(i)));
+            assertEquals(ids[i], paths.find(song(i)));
+            assertEquals(song(i), paths.file(ids[i]));
+        }
+        assertEquals(SONGS, paths.size());
+        assertEquals(-1, paths.find(new File("/nowhere", "song.mp3")));
+        assertEquals(-1, paths.find(new File(song(0).getParentFile(), "missing.mp3")));
+    }
+
+    @Test
+    void addsByDirectoryAndNameBytes() {
+        PathTable paths = new PathTable();
+        File song = new File("/music/Björk", "Jóga.mp3");
+        byte[] name = "Jóga.mp3".getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[64];
+        System.arraycopy(name, 0, buffer, 0, name.length);
+        int id = paths.add(song.getParent(), buffer, name.length);
+        assertEquals(id, paths.add(song));
+        assertEquals(song, paths.file(id));
+        assertEquals("Jóga.mp3", paths.fileName(id));
+        assertEquals("Björk", paths.directoryName(id));
+    }
+
+    @Test
+    void directoriesAreShared() {
+        PathTable paths = new PathTable();
+        int first = paths.add(new File("/music/artist/album", "a.mp3"));
+        int second = paths.add(new File("/music/artist/album", "b.mp3"));
+        int other = paths.add(new File("/music/artist/other", "c.mp3"));
+        assertEquals(paths.directoryId(first), paths.directoryId(second));
+        assertNotEquals(paths.directoryId(first), paths.directoryId(other));
+        assertEquals(paths.parentDirectoryId(first), paths.parentDirectoryId(other));
+    }
+
+    @Test
+    void pathHashDoesNotDependOnInsertionOrder() {
+        PathTable forward = new PathTable();
+        PathTable backward = new PathTable();
+        for (int i = 0; i < SONGS; i++) {
+            forward.add(song(i));
+            backward.add(song(SONGS - 1 - i));
+        }
+        for (int i = 0; i < SONGS; i++) {
+            assertEquals(forward.pathHash(forward.find(song(i))), backward.pathHash(backward.find(song(i))));
+        }
+    }
+
+    private static File song(int i) {
+        return new File("/music/artist" + i % 31 + "/album" + i % 7, "song" + i + ".mp3");
+    }
+}
@@ -0,0 +1,130 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the lazily drawn shuffle of the playlist: the same seed always gives the same
+ * order, and looking songs up draws no more than it must.
+ */
+class PlaylistTest {
+
+    private static final int SONGS = 1000;
+
+    private final PathTable paths = new PathTable();
+
+    @Test
+    void membershipDoesNotDraw() {
+        int[] trackIds = songs("library", SONGS);
+        Playlist playlist = new Playlist(this.paths);
+        playlist.setTracks(trackIds, new ShuffleOrder(42, ShuffleOrder.Spread.NONE));
+        int[] undrawn = playlist.tracks();
+        for (int trackId : trackIds) {
+            assertTrue(playlist.containsTrack(trackId));
+        }
+        assertFalse(playlist.containsTrack(this.paths.add(new File("elsewhere", "song.mp3"))));
+        assertFalse(playlist.containsTrack(-1));
+        assertArrayEquals(undrawn, playlist.tracks());
+    }
+
+    @Test
+    void positionOfDrawsOnlyUntilTheSongComesUp() {
+        int[] trackIds = songs("library", SONGS);
+        Playlist reference = new Playlist(this.paths);
+        reference.setTracks(trackIds, new ShuffleOrder(42, ShuffleOrder.Spread.NONE));
+        int[] drawn = reference.drawnTracks();
+        Playlist playlist = new Playlist(this.paths);
+        playlist.setTracks(trackIds, new ShuffleOrder(42, ShuffleOrder.Spread.NONE));
+        int position = SONGS / 10;
+        assertEquals(position, playlist.positionOf(drawn[position]));
+        int[] order = playlist.tracks();
+        assertArrayEquals(Arrays.copyOf(drawn, position + 1), Arrays.copyOf(order, position + 1));
+        // the songs after it are still waiting to be drawn
+        assertFalse(Arrays.equals(drawn, order));
+        assertArrayEquals(drawn, playlist.drawnTracks());
+    }
+
+    @Test
+    void movingAnUndrawnSongTakesItOutOfTheDraw() {
+        int[] trackIds = songs("library", SONGS);
+        Playlist playlist = new Playlist(this.paths);
+        playlist.setTracks(trackIds, new ShuffleOrder(7, ShuffleOrder.Spread.NONE));
+        int first = trackIds[SONGS / 2];
+        playlist.moveTrack(first, 0);
+        assertEquals(first, playlist.trackAt(0));
+        assertEquals(0, playlist.positionOf(first));
+        int[] order = playlist.drawnTracks();
+        int[] sortedOrder = order.clone();
+        Arrays.sort(sortedOrder);
+        int[] sortedIds = trackIds.clone();
+        Arrays.sort(sortedIds);
+        assertArrayEquals(sortedIds, sortedOrder);
+        for (int i = 0; i < order.length; i++) {
+            assertEquals(i, playlist.positionOf(order[i]));
+        }
+    }
+
+    @Test
+    void sameSeedGivesTheSameOrderWhateverTheFoundOrder() {
+        for (ShuffleOrder.Spread spread : ShuffleOrder.Spread.values()) {
+            PathTable forward = new PathTable();
+            PathTable backward = new PathTable();
+            int[] forwardIds = new int[SONGS];
+            int[] backwardIds = new int[SONGS];
+            for (int i = 0; i < SONGS; i++) {
+                forwardIds[i] = forward.add(song("library", i));
+                backwardIds[i] = backward.add(song("library", SONGS - 1 - i));
+            }
+            Playlist first = new Playlist(forward);
+            first.setTracks(forwardIds, new ShuffleOrder(99, spread));
+            Playlist second = new Playlist(backward);
+            second.setTracks(backwardIds, new ShuffleOrder(99, spread));
+            // read in different steps, which must not change what is drawn
+            second.trackAt(SONGS / 3);
+            int[] firstOrder = first.drawnTracks();
+            int[] secondOrder = second.drawnTracks();
+            for (int i = 0; i < SONGS; i++) {
+                assertEquals(forward.file(firstOrder[i]), backward.file(secondOrder[i]), spread + " at " + i);
+            }
+
+            Playlist reseeded = new Playlist(forward);
+            reseeded.setTracks(forwardIds, new ShuffleOrder(100, spread));
+            assertFalse(Arrays.equals(firstOrder, reseeded.drawnTracks()));
+        }
+    }
+
+    @Test
+    void spreadAvoidsTheSameDirectoryInARow() {
+        int[] trackIds = songs("library", SONGS);
+        Playlist playlist = new Playlist(this.paths);
+        playlist.setTracks(trackIds, new ShuffleOrder(5, ShuffleOrder.Spread.DIRECTORY));
+        int[] order = playlist.drawnTracks();
+        int repeats = 0;
+        for (int i = 1; i < order.length; i++) {
+            if (this.paths.directoryId(order[i]) == this.paths.directoryId(order[i - 1])) {
+                repeats++;
+            }
+        }
+        // 17 directories: an unspread shuffle repeats about one time in 17
+        assertTrue(repeats < SONGS / 100, "repeats: " + repeats);
+    }
+
+    private int[] songs(String directory, int count) {
+        int[] trackIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            trackIds[i] = this.paths.add(song(directory, i));
+        }
+        return trackIds;
+    }
+
+    private static File song(String directory, int i) {
+        return new File(directory + File.separator + "album" + i % 17, "song" + i + ".mp3");
+    }
+}
@@ -0,0 +1,120 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the accuracy {@link Resampler.Quality} promises, and that converting keeps the
+ * length of the audio and passes DC unchanged.
+ */
+class ResamplerTest {
+
+    private static final int INPUT_RATE = 44100;
+    private static final int OUTPUT_RATE = 48000;
+    /** Output frames left out at each end, where the filter reaches past the input */
+    private static final int EDGE_FRAMES = 100;
+
+    @Test
+    void fastIsAbout70DbAboveItsError() {
+        assertTrue(sineSignalToError(Resampler.Quality.FAST) >= 68);
+    }
+
+    @Test
+    void goodIsAbout90DbAboveItsError() {
+        assertTrue(sineSignalToError(Resampler.Quality.GOOD) >= 88);
+    }
+
+    @Test
+    void bestIsOver120DbAboveItsError() {
+        assertTrue(sineSignalToError(Resampler.Quality.BEST) >= 120);
+    }
+
+    @Test
+    void keepsTheLengthOfTheAudio() {
+        for (Resampler.Quality quality : Resampler.Quality.values()) {
+            for (int frames : new int[]{1, 441, 44100, 44101, 100_000}) {
+                float[] output = convert(new float[frames], 1, INPUT_RATE, OUTPUT_RATE, quality);
+                long expected = ((long) frames * OUTPUT_RATE + INPUT_RATE - 1) / INPUT_RATE;
+                assertEquals(expected, output.length, quality + ", " + frames + " frames");
+            }
+            float[] down = convert(new float[OUTPUT_RATE], 1, OUTPUT_RATE, INPUT_RATE, quality);
+            assertEquals(INPUT_RATE, down.length, quality + ", down");
+        }
+    }
+
+    @Test
+    void passesDcUnchanged() {
+        for (Resampler.Quality quality : Resampler.Quality.values()) {
+            float[] input = new float[INPUT_RATE * 2];
+            for (int i = 0; i < input.length; i += 2) {
+                input[i] = 0.25f;
+                input[i + 1] = -0.5f;
+            }
+            float[] output = convert(input, 2, INPUT_RATE, OUTPUT_RATE, quality);
+            for (int i = EDGE_FRAMES * 2; i < output.length - EDGE_FRAMES * 2; i += 2) {
+                assertEquals(0.25f, output[i], 1e-5f, quality + " left");
+                assertEquals(-0.5f, output[i + 1], 1e-5f, quality + " right");
+            }
+        }
+    }
+
+    /**
+     * Converts two seconds of a 1 kHz sine and compares the result with the sine at the
+     * output rate.
+     *
+     * @return signal to error ratio in dB
+     */
+    private static double sineSignalToError(Resampler.Quality quality) {
+        double frequency = 1000;
+        float[] input = new float[INPUT_RATE * 2];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (float) (0.5 * Math.sin(2 * Math.PI * frequency * i / INPUT_RATE));
+        }
+        float[] output = convert(input, 1, INPUT_RATE, OUTPUT_RATE, quality);
+        double signal = 0;
+        double error = 0;
+        for (int i = EDGE_FRAMES; i < output.length - EDGE_FRAMES; i++) {
+            double expected = 0.5 * Math.sin(2 * Math.PI * frequency * i / OUTPUT_RATE);
+            signal += expected * expected;
+            error += (output[i] - expected) * (output[i] - expected);
+        }
+        return 10 * Math.log10(signal / error);
+    }
+
+    /**
+     * Feeds the input in chunks, reading as it goes, the way PcmConverter does.
+     */
+    private static float[] convert(float[] input, int channels, int inputRate, int outputRate,
+                                   Resampler.Quality quality) {
+        Resampler resampler = new Resampler(inputRate, outputRate, channels, quality);
+        int chunkFrames = 4096;
+        float[] chunk = new float[chunkFrames * channels];
+        float[] read = new float[chunkFrames * channels];
+        float[] output = new float[chunkFrames * channels];
+        int outputFrames = 0;
+        int frames = input.length / channels;
+        for (int start = 0; start < frames + chunkFrames; start += chunkFrames) {
+            if (start < frames) {
+                int n = Math.min(chunkFrames, frames - start);
+                System.arraycopy(input, start * channels, chunk, 0, n * channels);
+                resampler.write(chunk, n);
+            } else {
+                resampler.finish();
+            }
+            int n;
+            while ((n = resampler.read(read, chunkFrames)) > 0) {
+                if (output.length < (outputFrames + n) * channels) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                System.arraycopy(read, 0, output, outputFrames * channels, n * channels);
+                outputFrames += n;
+            }
+        }
+        assertTrue(resampler.isDone());
+        return Arrays.copyOf(output, outputFrames * channels);
+    }
+}
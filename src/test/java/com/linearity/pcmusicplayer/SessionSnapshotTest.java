@@ -0,0 +1,77 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that a saved session reads back the same, and that a header-only save keeps
+ * the playlist saved before.
+ */
+class SessionSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void roundTrip() throws IOException {
+        PathTable paths = new PathTable();
+        int[] trackIds = {
+                paths.add(new File("/music/artist/album", "one.mp3")),
+                paths.add(new File("/music/artist/album", "twö.wav")),
+                paths.add(new File("/other", "three.mp3"))
+        };
+        ShuffleOrder.State shuffle = new ShuffleOrder.State(1234L, ShuffleOrder.Spread.ARTIST, "/other/three.mp3");
+        SessionSnapshot.Playback playback = new SessionSnapshot.Playback(1, 44100L * 60, 0.75);
+        File file = this.directory.resolve("session.snapshot").toFile();
+        new SessionSnapshot(playback, shuffle, trackIds).save(file, paths);
+
+        PathTable loadedPaths = new PathTable();
+        SessionSnapshot loaded = SessionSnapshot.load(file, loadedPaths);
+        assertNotNull(loaded);
+        assertEquals(playback, loaded.getPlayback());
+        assertEquals(shuffle, loaded.getShuffle());
+        assertEquals(trackIds.length, loaded.getTrackIds().length);
+        for (int i = 0; i < trackIds.length; i++) {
+            assertEquals(paths.file(trackIds[i]), loadedPaths.file(loaded.getTrackIds()[i]));
+        }
+    }
+
+    @Test
+    void headerSaveKeepsThePlaylist() throws IOException {
+        PathTable paths = new PathTable();
+        int[] trackIds = {paths.add(new File("/music", "a.mp3")), paths.add(new File("/music", "b.mp3"))};
+        File file = this.directory.resolve("session.snapshot").toFile();
+        new SessionSnapshot(new SessionSnapshot.Playback(0, 0, Double.NaN), null, trackIds).save(file, paths);
+        SessionSnapshot.Playback later = new SessionSnapshot.Playback(1, 12345, -6);
+        new SessionSnapshot(later, null, new int[0]).saveHeader(file);
+        // saving over a file just read must work, which a live mapping prevents on Windows
+        assertNotNull(SessionSnapshot.load(file, new PathTable()));
+        new SessionSnapshot(later, null, trackIds).save(file, paths);
+
+        PathTable loadedPaths = new PathTable();
+        SessionSnapshot loaded = SessionSnapshot.load(file, loadedPaths);
+        assertNotNull(loaded);
+        assertEquals(later, loaded.getPlayback());
+        assertNull(loaded.getShuffle());
+        assertArrayEquals(new File[]{new File("/music", "a.mp3"), new File("/music", "b.mp3")},
+                new File[]{loadedPaths.file(loaded.getTrackIds()[0]), loadedPaths.file(loaded.getTrackIds()[1])});
+    }
+
+    @Test
+    void damagedFileIsIgnored() throws IOException {
+        File file = this.directory.resolve("session.snapshot").toFile();
+        Files.write(file.toPath(), new byte[]{0x50, 0x43, 0x53, 0x53, 0, 0, 0, 1, 0, 0});
+        assertNull(SessionSnapshot.load(file, new PathTable()));
+        assertNull(SessionSnapshot.load(this.directory.resolve("missing").toFile(), new PathTable()));
+    }
+}
@@ -0,0 +1,83 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that stored data is only read back for the same version of the song and of
+ * the file format.
+ */
+class TrackFileStoreTest {
+
+    private static final int MAGIC = 0x54455354; // "TEST"
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasWritten() throws IOException {
+        File song = song();
+        TrackFileStore<String> store = store(1);
+        TrackKey key = TrackKey.of(song);
+        store.write(song, key, "peaks");
+        assertEquals("peaks", store.read(song, key));
+        assertNull(store.read(new File(song.getParentFile(), "other.mp3"), key));
+        try (var files = Files.list(this.directory.resolve("store"))) {
+            assertTrue(files.noneMatch(path -> path.toString().endsWith(".tmp")));
+        }
+    }
+
+    @Test
+    void changedSongIsNotReadBack() throws IOException {
+        File song = song();
+        TrackFileStore<String> store = store(1);
+        TrackKey key = TrackKey.of(song);
+        store.write(song, key, "peaks");
+        assertNull(store.read(song, new TrackKey(key.identity(), key.size() + 1, key.lastModified())));
+        assertNull(store.read(song, new TrackKey(key.identity(), key.size(), key.lastModified() + 1)));
+    }
+
+    @Test
+    void otherVersionIsNotReadBack() throws IOException {
+        File song = song();
+        TrackKey key = TrackKey.of(song);
+        store(1).write(song, key, "peaks");
+        assertNull(store(2).read(song, key));
+        assertEquals("peaks", store(1).read(song, key));
+    }
+
+    @Test
+    void failedWriteLeavesNoTemporaryFile() throws IOException {
+        File song = song();
+        TrackFileStore<String> store = new TrackFileStore<>(this.directory.resolve("store").toFile(), MAGIC, 1,
+                ".test", "test data", in -> in.readUTF(), (value, out) -> {
+                    throw new IOException("disk full");
+                });
+        assertThrows(IOException.class, () -> store.write(song, TrackKey.of(song), "peaks"));
+        try (var files = Files.list(this.directory.resolve("store"))) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private TrackFileStore<String> store(int version) {
+        return new TrackFileStore<>(this.directory.resolve("store").toFile(), MAGIC, version, ".test", "test data",
+                in -> in.readUTF(), (value, out) -> out.writeUTF(Objects.requireNonNull(value)));
+    }
+
+    private File song() throws IOException {
+        Path path = this.directory.resolve("song.mp3");
+        Files.write(path, new byte[64]);
+        return path.toFile();
+    }
+}
@@ -0,0 +1,96 @@
+package com.linearity.pcmusicplayer;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the limiter keeps the true peak under its ceiling and leaves quieter audio alone.
+ */
+class TruePeakLimiterTest {
+
+    private static final float RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int BLOCK_FRAMES = 4096;
+
+    @Test
+    void truePeakStaysUnderTheCeiling() {
+        TruePeakLimiter limiter = new TruePeakLimiter();
+        limiter.prepare(RATE, CHANNELS);
+        float ceiling = DspStage.dbToLinear(TruePeakLimiter.DEFAULT_CEILING_DB);
+        // samples reach 0.85, but the signal between them reaches 1.2
+        float[] samples = sine(12000, 1.2f, Math.PI / 4, 2);
+        process(limiter, samples);
+
+        float samplePeak = 0;
+        for (float sample : samples) {
+            samplePeak = Math.max(samplePeak, Math.abs(sample));
+        }
+        assertTrue(samplePeak <= ceiling * 1.0001f, "sample peak " + samplePeak);
+        LoudnessMeter meter = new LoudnessMeter(RATE, CHANNELS);
+        meter.process(toPcm(samples), samples.length * 2);
+        double overDb = 20 * Math.log10(meter.truePeak() / ceiling);
+        assertTrue(overDb < 0.1, "true peak " + overDb + " dB over the ceiling");
+    }
+
+    @Test
+    void quietAudioPassesThroughDelayed() {
+        TruePeakLimiter limiter = new TruePeakLimiter();
+        limiter.prepare(RATE, CHANNELS);
+        float[] input = sine(997, 0.5f, 0, 1);
+        float[] output = input.clone();
+        process(limiter, output);
+        int delay = limiter.getLatencyFrames() * CHANNELS;
+        assertTrue(delay > 0);
+        for (int i = delay; i < output.length; i++) {
+            assertEquals(input[i - delay], output[i], 1e-6f);
+        }
+    }
+
+    @Test
+    void disabledLimiterChangesNothing() {
+        TruePeakLimiter limiter = new TruePeakLimiter();
+        limiter.prepare(RATE, CHANNELS);
+        limiter.setEnabled(false);
+        float[] input = sine(12000, 1.2f, Math.PI / 4, 0.5);
+        float[] output = input.clone();
+        process(limiter, output);
+        for (int i = 0; i < output.length; i++) {
+            assertEquals(input[i], output[i]);
+        }
+    }
+
+    private static void process(TruePeakLimiter limiter, float[] samples) {
+        int frames = samples.length / CHANNELS;
+        float[] block = new float[BLOCK_FRAMES * CHANNELS];
+        for (int start = 0; start < frames; start += BLOCK_FRAMES) {
+            int count = Math.min(BLOCK_FRAMES, frames - start);
+            System.arraycopy(samples, start * CHANNELS, block, 0, count * CHANNELS);
+            limiter.process(block, count, CHANNELS);
+            System.arraycopy(block, 0, samples, start * CHANNELS, count * CHANNELS);
+        }
+    }
+
+    private static float[] sine(double frequency, float amplitude, double phase, double seconds) {
+        int frames = (int) (RATE * seconds);
+        float[] samples = new float[frames * CHANNELS];
+        for (int frame = 0; frame < frames; frame++) {
+            float sample = (float) (amplitude * Math.sin(2 * Math.PI * frequency * frame / RATE + phase));
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                samples[frame * CHANNELS + channel] = sample;
+            }
+        }
+        return samples;
+    }
+
+    private static byte[] toPcm(float[] samples) {
+        byte[] pcm = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            short sample = (short) Math.round(samples[i] * 32767);
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}